@@ -0,0 +1,87 @@
+/**
+ *
+ */
+package es.ubu.lsi.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import es.ubu.lsi.common.ChatMessage.MessageType;
+
+/**
+ * Benchmark de la codificación y decodificación de ChatMessage en cada
+ * formato de trama.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    /** Formato de las tramas. */
+    @Param({ "SERIALIZED", "BINARY" })
+    public WireFormat formato;
+
+    /** Longitud del texto del mensaje. */
+    @Param({ "16", "256" })
+    public int longitud;
+
+    /** Mensaje que se codifica. */
+    private ChatMessage mensaje;
+
+    /** Codificador del formato. */
+    private FrameEncoder encoder;
+
+    /** Trama ya codificada que se decodifica. */
+    private byte[] trama;
+
+    /**
+     * Prepara el mensaje y su trama.
+     *
+     * @throws IOException si falla la codificación
+     */
+    @Setup
+    public void preparar() throws IOException {
+        mensaje = new ChatMessage(7, MessageType.MESSAGE, "x".repeat(longitud));
+        encoder = formato.encoder();
+        trama = encoder.encode(mensaje);
+    }
+
+    /**
+     * Codifica el mensaje.
+     *
+     * @return bytes de la trama
+     * @throws IOException si falla la codificación
+     */
+    @Benchmark
+    public byte[] codificar() throws IOException {
+        return encoder.encode(mensaje);
+    }
+
+    /**
+     * Decodifica la trama con un decodificador nuevo (como al recibirla
+     * de una conexión recién abierta).
+     *
+     * @return el mensaje decodificado
+     * @throws IOException si la trama no es válida
+     */
+    @Benchmark
+    public ChatMessage decodificar() throws IOException {
+        return formato.nuevoDecoder().decode(ByteBuffer.wrap(trama));
+    }
+}
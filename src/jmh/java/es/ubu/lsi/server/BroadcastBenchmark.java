@@ -0,0 +1,197 @@
+/**
+ *
+ */
+package es.ubu.lsi.server;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessage.MessageType;
+import es.ubu.lsi.common.EncodedMessage;
+import es.ubu.lsi.common.WireFormat;
+
+/**
+ * Benchmark del reparto de un mensaje (broadcast) entre sesiones en memoria,
+ * sin red, para distintos números de clientes y densidades de baneo.
+ *
+ * Cada sesión pide la trama binaria, así que se mide también la
+ * codificación (una sola vez por mensaje).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    /** Nombre del usuario que envía los mensajes. */
+    private static final String EMISOR = "usuario1";
+
+    /** Número de sesiones conectadas. */
+    @Param({ "10", "100", "1000", "10000" })
+    public int sesiones;
+
+    /** Número de salas entre las que se reparten las sesiones. */
+    @Param({ "1", "100" })
+    public int salas;
+
+    /** Fracción de las sesiones que han baneado al emisor. */
+    @Param({ "0", "0.01", "0.5" })
+    public double densidadBaneos;
+
+    /** Servidor sin arrancar (solo se usa su lógica común). */
+    private ChatServerImpl servidor;
+
+    /** Mensaje que se reparte. */
+    private ChatMessage mensaje;
+
+    /**
+     * Registra las sesiones y los baneos.
+     */
+    @Setup
+    public void preparar() {
+        servidor = new ChatServerImpl(0, new ServerConfig(new Properties()));
+        Random aleatorio = new Random(42);
+        for (int id = 1; id <= sesiones; id++) {
+            SesionEnMemoria sesion = new SesionEnMemoria(id, "usuario" + id);
+            servidor.clientes.reservar(sesion);
+            servidor.clientes.registrar(sesion);
+            // El emisor (id 1) queda en la sala general
+            int sala = (id - 1) % salas;
+            servidor.salas.entrar(sesion, sala == 0 ? RoomRegistry.GENERAL : "sala" + sala);
+            if (id > 1 && aleatorio.nextDouble() < densidadBaneos) {
+                servidor.baneos.banear(id, EMISOR);
+            }
+        }
+        mensaje = new ChatMessage(1, MessageType.MESSAGE, "hola a todos desde el benchmark");
+    }
+
+    /**
+     * Libera lo que crea el constructor del servidor: su ejecutor y los
+     * temporizadores de reanudación, admisión y latidos (como al apagarlo;
+     * los servicios de startup no se llegan a arrancar).
+     */
+    @TearDown
+    public void terminar() {
+        servidor.reanudaciones.cerrar();
+        servidor.admision.cerrar();
+        servidor.latidos.cerrar();
+        servidor.ejecutor.shutdownNow();
+    }
+
+    /**
+     * Reparte un mensaje del emisor a las sesiones de su sala.
+     */
+    @Benchmark
+    public void broadcast() {
+        servidor.broadcast(mensaje);
+    }
+
+    /**
+     * Sesión sin red: solo guarda la última trama recibida.
+     */
+    static class SesionEnMemoria implements ClientSession {
+
+        /** Identificador de la sesión. */
+        private final int id;
+
+        /** Nombre de usuario. */
+        private final String username;
+
+        /** Plantilla de las publicaciones. */
+        private final MessageTemplate plantilla;
+
+        /** Última trama recibida (para que no se elimine el trabajo). */
+        private byte[] ultima;
+
+        /**
+         * Constructor.
+         *
+         * @param id identificador
+         * @param username nombre de usuario
+         */
+        SesionEnMemoria(int id, String username) {
+            this.id = id;
+            this.username = username;
+            this.plantilla = new MessageTemplate(username);
+        }
+
+        @Override
+        public int getId() {
+            return id;
+        }
+
+        @Override
+        public String getUsername() {
+            return username;
+        }
+
+        @Override
+        public MessageTemplate getPlantilla() {
+            return plantilla;
+        }
+
+        @Override
+        public WireFormat getFormato() {
+            return WireFormat.BINARY;
+        }
+
+        /**
+         * Estas sesiones no se reanudan.
+         *
+         * @return null
+         */
+        @Override
+        public ReplayBuffer getRepeticion() {
+            return null;
+        }
+
+        @Override
+        public void enviarTrama(EncodedMessage trama) {
+            try {
+                ultima = trama.bytes(WireFormat.BINARY);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * Estas sesiones no tienen cola de salida.
+         *
+         * @return null
+         */
+        @Override
+        public OutboundQueue getColaSalida() {
+            return null;
+        }
+
+        @Override
+        public void disconnect() {
+            ultima = null;
+        }
+
+        @Override
+        public CompletableFuture<Boolean> vaciarYCerrar() {
+            disconnect();
+            return CompletableFuture.completedFuture(true);
+        }
+    }
+}
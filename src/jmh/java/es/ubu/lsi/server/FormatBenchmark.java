@@ -0,0 +1,89 @@
+/**
+ *
+ */
+package es.ubu.lsi.server;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import es.ubu.lsi.common.BinaryFrameEncoder;
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessage.MessageType;
+import es.ubu.lsi.common.EncodedMessage;
+
+/**
+ * Benchmark del formato del texto de las publicaciones.
+ *
+ * Compara el String.format que usaba el servidor con la plantilla
+ * precompilada de cada sesión, tanto para el texto como para el mensaje
+ * completo con su trama binaria.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormatBenchmark {
+
+    /** Nombre del usuario (no final para que no se pliegue como constante). */
+    public String usuario = "jerry";
+
+    /** Texto del mensaje. */
+    public String contenido = "hola desde jerry";
+
+    /** Plantilla del usuario, como la que guarda su sesión. */
+    private final MessageTemplate plantilla = new MessageTemplate(usuario);
+
+    /**
+     * Formato anterior con String.format.
+     *
+     * @return el texto final
+     */
+    @Benchmark
+    public String formatoAnterior() {
+        return String.format("%s %s: %s ha escrito: %s",
+                ChatServerImpl.PUB, ChatServerImpl.USER, usuario, contenido);
+    }
+
+    /**
+     * Formato anterior más la codificación binaria de todo el texto.
+     *
+     * @return la trama binaria
+     * @throws IOException no se produce con mensajes válidos
+     */
+    @Benchmark
+    public byte[] formatoAnteriorYTrama() throws IOException {
+        return BinaryFrameEncoder.INSTANCE.encode(new ChatMessage(7, MessageType.MESSAGE, formatoAnterior()));
+    }
+
+    /**
+     * Texto con la plantilla.
+     *
+     * @return el texto final
+     */
+    @Benchmark
+    public String plantilla() {
+        return plantilla.texto(contenido);
+    }
+
+    /**
+     * Mensaje completo con la plantilla, como lo crea el broadcast.
+     *
+     * @return el mensaje con su trama binaria
+     */
+    @Benchmark
+    public EncodedMessage plantillaYTrama() {
+        return plantilla.publicacion(7, MessageType.MESSAGE, contenido);
+    }
+}
@@ -6,21 +6,39 @@ package es.ubu.lsi.client;
 
 import java.io.*;
 import java.net.Socket;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.*;
 
 import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.FrameReader;
+import es.ubu.lsi.common.ThreadMode;
+import es.ubu.lsi.common.WireFormat;
 import es.ubu.lsi.common.ChatMessage.MessageType;
 
 /**
  * Implementación del cliente de chat.
  * 
  * Esta clase gestiona:
- *  - La conexión con el servidor.
+ *  - La conexión con el servidor (formato de tramas según chat.wire).
  *  - El envío de mensajes.
- *  - La recepción de mensajes mediante un hilo interno.
+ *  - La recepción de mensajes mediante un hilo interno, que los deja en una
+ *    cola acotada de la que otro hilo los pasa por lotes al manejador
+ *    (MessageHandler, por defecto la consola).
  *  - La lectura de la entrada del usuario.
+ *  - La reconexión si se cae la conexión (con formato binario el servidor
+ *    da un token con el que se reanuda la sesión y se reciben los mensajes
+ *    perdidos).
+ *  - La respuesta automática a los latidos (PING) con los que el servidor
+ *    comprueba que el cliente sigue ahí.
  *  - El cierre ordenado del cliente.
  */
 public class ChatClientImpl implements ChatClient {
@@ -68,26 +86,60 @@ public class ChatClientImpl implements ChatClient {
     /** Variable carry on que indica el estado del cliente. */
     private volatile boolean carryOn = true;
 
+    /** Se abre cuando el cliente deja de estar activo (start espera en él). */
+    private final CountDownLatch terminado = new CountDownLatch(1);
+
     /** Variable id con el identificador asignado por el servidor. */
     private int id;
 
-    /** Variable in con el stream entrante de comunicación. */
-    private ObjectInputStream in;
+    /** Variable in con el lector de tramas entrantes. */
+    private volatile FrameReader in;
     
-    /** Variable out con el stream entrante de comunicación. */
-    private ObjectOutputStream out;
+    /** Variable out con el stream saliente de comunicación. */
+    private volatile OutputStream out;
+
+    /** Cerrojo de los envíos: escriben el hilo de la entrada y el oyente (PONG). */
+    private final ReentrantLock envio = new ReentrantLock();
+
+    /** Token para reanudar la sesión si se cae la conexión (null si el servidor no lo da). */
+    private volatile String tokenReanudacion;
+
+    /** Tramas recibidas del servidor, para pedir al reconectar las que falten. */
+    private long recibidas;
+
+    /** Variable formato con el formato de las tramas que se pide al servidor. */
+    private final WireFormat formato = WireFormat.desdeSistema();
 
     /** Variable escucha cliente, listener interno. */
     private ChatClientListener escuchaCliente;
 
     /** Variable socket, representa el socket del cliente. */
-    private Socket socket;
+    private volatile Socket socket;
 
     /** Variable hora con el formato del tiempo para usar en los logs y mensajes. */
-    private final SimpleDateFormat hora = new SimpleDateFormat("HH:mm:ss");
+    private static final DateTimeFormatter HORA = DateTimeFormatter.ofPattern("HH:mm:ss");
 
     /** Variable hilo entrada que sirve para la lectura de entradas del teclado. */
     protected Thread hiloEntrada;
+
+    /** Fábrica de los hilos del oyente y de la entrada (plataforma o virtuales según chat.threads). */
+    private final ThreadFactory hilos = ThreadMode.desdeSistema().fabrica("chat-cliente");
+
+    /** Manejador de los mensajes recibidos. */
+    private final MessageHandler manejador;
+
+    /** Mensajes recibidos pendientes de pasar al manejador (capacidad según chat.client.queue). */
+    private final BlockingQueue<ChatMessage> recibidos =
+            new ArrayBlockingQueue<>(Math.max(1, Integer.getInteger("chat.client.queue", 1024)));
+
+    /** Hilo que pasa los mensajes recibidos al manejador. */
+    private Thread hiloReparto;
+
+    /** Indica que el reparto debe terminar cuando se vacíe la cola. */
+    private volatile boolean finReparto;
+
+    /** Marca que se deja en la cola para despertar al reparto al cerrar. */
+    private static final ChatMessage FIN_REPARTO = new ChatMessage(0, MessageType.LOGOUT, "");
     
     // Constantes de mensajes evita repetir contenido
     /** Constant PUB, con el patrocinio de los mensajes. */
@@ -96,32 +148,63 @@ public class ChatClientImpl implements ChatClient {
     /** Constante ERROR con el mensaje de error de entrada y salida. */
     private static final String ERROR = "Erreur IO";
 
+    /** Intentos de reconexión cuando se cae la conexión. */
+    private static final int INTENTOS_RECONEXION = 5;
+
+    /** Espera antes del primer intento (crece en cada intento). */
+    private static final long ESPERA_RECONEXION_MS = 1000;
+
+    /** Mensajes máximos de cada lote que se pasa al manejador. */
+    private static final int MAX_LOTE = 256;
+
+    /** Espera de la cola de recepción llena entre comprobaciones del estado (milisegundos). */
+    private static final long ESPERA_COLA_MS = 100;
+
     /**
      * Constructor principal. Crea el cliente con todos los datos por parámetro.
      * 
      * @param server   servidor usado
 	 * @param username usuario que se conecta
 	 * @param port     puerto de enlace utilizado
+	 * @param manejador receptor de los mensajes del servidor
      */
-    public ChatClientImpl(String server, String username, int port) {
+    public ChatClientImpl(String server, String username, int port, MessageHandler manejador) {
         this.server = server;
         this.username = username;
         this.port = port;
+        this.manejador = manejador;
 
         try {
             // Conexión al servidor creando un socket
             socket = new Socket(server, port);
 
-            // Flujo de salida (se crea en primer lugar para evitar deadlocks)
-            out = new ObjectOutputStream(socket.getOutputStream());
+            // Cada mensaje se envía entero con un solo flush, sin esperar a Nagle
+            socket.setTcpNoDelay(true);
+
+            /* Flujo de salida con buffer, empezando por el saludo que indica el formato
+             * de las tramas. El saludo sale junto con el nombre de usuario en el primer flush */
+            out = new BufferedOutputStream(socket.getOutputStream());
+            out.write(formato.saludo());
 
         } catch (IOException e) {
         	// Si falla, se informa del fallo y se cierra el proceso
             LOGGER.log(Level.SEVERE, ERROR, e);
-            carryOn = false;
+            parar();
         }
     }
     
+    /**
+     * Constructor. Crea el cliente con todos los datos por parámetro y
+     * muestra los mensajes en consola.
+     * 
+     * @param server   servidor usado
+	 * @param username usuario que se conecta
+	 * @param port     puerto de enlace utilizado
+     */
+    public ChatClientImpl(String server, String username, int port) {
+        this(server, username, port, new ConsoleMessageHandler());
+    }
+    
     /**
 	 * Constructor. Crea el cliente con servidor y cliente. El puerto se
 	 * escoge con el valor por defecto.
@@ -157,6 +240,10 @@ public class ChatClientImpl implements ChatClient {
         }
 
         try {
+            // Se arranca el reparto de los mensajes recibidos al manejador
+            hiloReparto = hilos.newThread(this::repartirMensajes);
+            hiloReparto.start();
+
             /* Conexión inicial con el servidor. Si no hay primera conexión del
              *  cliente algo ha fallado y se procede a la desconexión*/
             if (!iniciarConexion()) {
@@ -168,17 +255,15 @@ public class ChatClientImpl implements ChatClient {
             arrancarOyente();
 
             // Se arranca la lectura de teclado
-            hiloEntrada = new Thread(this::leerEntradaUsuario);
+            hiloEntrada = hilos.newThread(this::leerEntradaUsuario);
             hiloEntrada.setDaemon(true);
             hiloEntrada.start();
 
-            // Bucle principal, se sale de él en cuanto pasa a inactivo.
-            while (carryOn) {
-                try { Thread.sleep(50); 
-                } catch (InterruptedException e) {
-                	Thread.currentThread().interrupt();
-                    break;
-                }
+            // Se espera sin consumir CPU a que el cliente pase a inactivo
+            try {
+                terminado.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
 
         } finally {
@@ -195,85 +280,250 @@ public class ChatClientImpl implements ChatClient {
      */
     private boolean iniciarConexion() {
         try {
-        	//Primera conexión: se habilita el flujo de entrada
-            in = new ObjectInputStream(socket.getInputStream());
+        	//Primera conexión: se comprueba el saludo del servidor y se habilita el flujo de entrada
+            InputStream entrada = new BufferedInputStream(socket.getInputStream());
+            WireFormat.comprobarSaludoServidor(FrameReader.leerSaludo(entrada));
+            in = new FrameReader(entrada, formato.nuevoDecoder());
 
             // Se envía nombre de usuario para pedir registro en el chat
             sendMessage(new ChatMessage(0, MessageType.MESSAGE, username));
 
             // Se recibe el ID asignado por el servidor
-            ChatMessage response = (ChatMessage) in.readObject();
+            ChatMessage response = leer();
             id = Integer.parseInt(response.getMessage());
 
             // Se recibe el mensaje de bienvenida al chat
-            ChatMessage bienvenida = (ChatMessage) in.readObject();
-            System.out.println(bienvenida.getMessage());
+            entregar(leer());
 
             LOGGER.log(Level.INFO,
                     "{0} Son las: [{1}]. El id creado por el servidor para el usuario {2} es: {3}",
-                    new Object[]{PUB, hora.format(new Date()), username, id});
+                    new Object[]{PUB, HORA.format(LocalTime.now()), username, id});
 
             return true;
 
-        } catch (IOException | ClassNotFoundException e) {
+        } catch (IOException e) {
             LOGGER.log(Level.SEVERE, ERROR, e);
-            carryOn = false;
+            parar();
             return false;
         }
     }
 
+    /**
+     * Marca el cliente como inactivo y despierta a quien espera su final.
+     */
+    private void parar() {
+        carryOn = false;
+        terminado.countDown();
+    }
+
     /**
      * Arranca el hilo que escucha mensajes del servidor.
      */
     private void arrancarOyente() {
-        escuchaCliente = new ChatClientListener(in);
-        new Thread(escuchaCliente).start();
+        escuchaCliente = new ChatClientListener();
+        hilos.newThread(escuchaCliente).start();
+    }
+
+    /**
+     * Deja un mensaje recibido en la cola del manejador. Si la cola está
+     * llena se espera (el socket deja de leerse y el servidor aplica su
+     * política de cola llena), salvo que el cliente se esté cerrando.
+     * 
+     * @param mensaje mensaje recibido
+     */
+    private void entregar(ChatMessage mensaje) {
+        try {
+            while (!recibidos.offer(mensaje, ESPERA_COLA_MS, TimeUnit.MILLISECONDS)) {
+                if (finReparto) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Hilo de reparto: saca los mensajes recibidos por lotes y se los pasa
+     * al manejador, hasta que se cierra el cliente y se vacía la cola.
+     * Sin mensajes se queda bloqueado en la cola; al cerrar lo despierta la
+     * marca FIN_REPARTO (o, si la cola estaba llena, termina al vaciarla).
+     */
+    private void repartirMensajes() {
+        List<ChatMessage> lote = new ArrayList<>(MAX_LOTE);
+        try {
+            while (true) {
+                lote.add(recibidos.take());
+                recibidos.drainTo(lote, MAX_LOTE - 1);
+                boolean fin = lote.remove(FIN_REPARTO);
+                if (!lote.isEmpty()) {
+                    try {
+                        manejador.recibir(lote);
+                    } catch (RuntimeException e) {
+                        // Un fallo del manejador no para el reparto
+                        LOGGER.log(Level.SEVERE, ERROR, e);
+                    }
+                    lote.clear();
+                }
+                if (fin || (finReparto && recibidos.isEmpty())) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Termina el reparto después de pasar al manejador lo que quede en la
+     * cola (esperando como mucho un segundo).
+     */
+    private void terminarReparto() {
+        finReparto = true;
+        recibidos.offer(FIN_REPARTO);
+        Thread reparto = hiloReparto;
+        if (reparto != null && reparto != Thread.currentThread()) {
+            try {
+                reparto.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Lee la siguiente trama del servidor y la cuenta.
+     * 
+     * @return el mensaje recibido
+     * @throws IOException si falla la lectura
+     */
+    private ChatMessage leer() throws IOException {
+        ChatMessage mensaje = in.read();
+        recibidas++;
+        return mensaje;
+    }
+
+    /**
+     * Intenta reanudar la sesión con una conexión nueva después de que se
+     * haya caído la anterior. Se presenta el token y las tramas recibidas, y
+     * el servidor contesta con el número de su confirmación (desde el que se
+     * sigue contando) y las tramas que faltan.
+     * 
+     * La conexión nueva solo se usa para enviar cuando ya se ha pedido la
+     * reanudación, así que lo que se escriba mientras tanto no se mezcla.
+     * 
+     * @return true si se ha reanudado la sesión
+     */
+    private boolean reconectar() {
+        cerrarSocket();
+        for (int intento = 1; intento <= INTENTOS_RECONEXION && carryOn; intento++) {
+            try {
+                Thread.sleep(ESPERA_RECONEXION_MS * intento);
+
+                Socket nuevo = new Socket(server, port);
+                nuevo.setTcpNoDelay(true);
+                OutputStream salida = new BufferedOutputStream(nuevo.getOutputStream());
+                salida.write(formato.saludo());
+                salida.write(formato.encoder().encode(
+                        new ChatMessage(id, MessageType.RESUME, tokenReanudacion + " " + recibidas)));
+                salida.flush();
+
+                InputStream entrada = new BufferedInputStream(nuevo.getInputStream());
+                WireFormat.comprobarSaludoServidor(FrameReader.leerSaludo(entrada));
+                FrameReader lector = new FrameReader(entrada, formato.nuevoDecoder());
+                ChatMessage respuesta = lector.read();
+
+                // La sesión ya no existe: el servidor lo explica y cierra
+                if (respuesta.getType() != MessageType.RESUME) {
+                    entregar(respuesta);
+                    nuevo.close();
+                    return false;
+                }
+
+                recibidas = Long.parseLong(respuesta.getMessage());
+                socket = nuevo;
+                out = salida;
+                in = lector;
+                LOGGER.log(Level.INFO, "{0} Son las: [{1}]. Conexión recuperada.",
+                        new Object[]{PUB, HORA.format(LocalTime.now())});
+                return true;
+
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (IOException | NumberFormatException e) {
+                LOGGER.log(Level.INFO, "{0} No se puede reconectar (intento {1} de {2}).",
+                        new Object[]{PUB, intento, INTENTOS_RECONEXION});
+            }
+        }
+        return false;
     }
 
     /**
      * Lee la entrada del usuario desde consola.
+     * 
+     * La lectura es bloqueante: mientras no se escribe nada el hilo no gasta
+     * CPU. El hilo es daemon, así que si el cliente termina mientras espera
+     * una línea no impide el cierre.
      */
     private void leerEntradaUsuario() {
     	//Inicialización del buffer de entrada
         BufferedReader entrada = new BufferedReader(new InputStreamReader(System.in));
 
-        while (carryOn) { //Se procede en bucle mientras esté activo.
-            try {
-            	//Si la entrada se encuentra disponible se trata
-                if (entrada.ready()) {
-                	//Se toma el valor que se ha introducido el cliente
-                    String texto = entrada.readLine();
+        try {
+            String texto;
+            // Se procede en bucle mientras esté activo y no se acabe la entrada
+            while (carryOn && (texto = entrada.readLine()) != null) {
+                // Una línea leída cuando ya se ha cerrado el cliente no se envía
+                if (!carryOn) {
+                    break;
+                }
+
+                // Se procede según el caso
+                switch (texto.toUpperCase()) {
+                	// Si es logout se para el chat del cliente
+                	case "LOGOUT" -> {
+                        sendMessage(new ChatMessage(id, MessageType.LOGOUT, ""));
+                        parar();
+                    }
+                	
+                	// Si es shtudown se para el servidor y los otros clientes (si hay)
+                    case "SHUTDOWN" -> {
+                        sendMessage(new ChatMessage(id, MessageType.SHUTDOWN, ""));
+                        parar();
+                    }
                     
-                    // Se procede según el caso
-                    switch (texto.toUpperCase()) {
-                    	// Si es logout se para el chat del cliente
-                    	case "LOGOUT" -> {
-                            sendMessage(new ChatMessage(id, MessageType.LOGOUT, ""));
-                            carryOn = false;
+                    // "@usuario texto" es un mensaje privado para ese usuario
+                    default -> {
+                        if (texto.startsWith("@") && texto.length() > 1) {
+                            enviarPrivado(texto.substring(1));
+                        } else {
+                            // En caso sontrario se continua normalmente
+                            sendMessage(new ChatMessage(id, MessageType.MESSAGE, texto));
                         }
-                    	
-                    	// Si es shtudown se para el servidor y los otros clientes (si hay)
-                        case "SHUTDOWN" -> {
-                            sendMessage(new ChatMessage(id, MessageType.SHUTDOWN, ""));
-                            carryOn = false;
-                        }
-                        
-                        // En caso sontrario se continua normalmente
-                        default -> sendMessage(new ChatMessage(id, MessageType.MESSAGE, texto));
                     }
-                // Si no está disponible se da un plazo de espera (necesario  para el cierre)
-                } else {
-                    Thread.sleep(50);
                 }
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                break;
-            } catch (Exception e) {
-                e.printStackTrace();
-                break;
             }
+        } catch (IOException e) {
+            if (carryOn) {
+                LOGGER.log(Level.SEVERE, ERROR, e);
+            }
+        }
+    }
 
+    /**
+     * Envía un mensaje privado. Con serialización el servidor puede ser uno
+     * antiguo, que no conoce los mensajes privados: no se envía para que
+     * nunca acabe publicado para toda la sala.
+     *
+     * @param texto destinatario y texto ("usuario texto")
+     */
+    private void enviarPrivado(String texto) {
+        if (formato != WireFormat.BINARY) {
+            LOGGER.info(PUB + "Los mensajes privados necesitan el formato binario (chat.wire=binary), no se ha enviado.");
+            return;
         }
+        sendMessage(new ChatMessage(id, MessageType.PRIVATE, texto));
     }
 
     /**
@@ -283,13 +533,23 @@ public class ChatClientImpl implements ChatClient {
      */
     @Override
     public void sendMessage(ChatMessage message) {
+        // Sin synchronized, para no fijar el hilo virtual a su portador mientras escribe
+        envio.lock();
         try {
-        	// Toma el mensaje y lo envía por el stream de salida.
-            out.writeObject(message);
+        	// Toma el mensaje, lo codifica y lo envía por el stream de salida (una sola escritura).
+            out.write(formato.encoder().encode(message));
+            out.flush();
         } catch (IOException e) {
+            // Si la sesión se puede reanudar, el oyente está reconectando: solo se pierde este mensaje
+            if (carryOn && tokenReanudacion != null) {
+                LOGGER.info(PUB + "Sin conexión con el servidor, el mensaje no se ha enviado.");
+                return;
+            }
         	// Si falla se informa y se desconecta
             LOGGER.log(Level.SEVERE, ERROR, e);
             disconnect();
+        } finally {
+            envio.unlock();
         }
     }
 
@@ -299,7 +559,7 @@ public class ChatClientImpl implements ChatClient {
     @Override
     public void disconnect() {
     	// Se pasa el carriOn a false para indicar el final.
-    	carryOn = false;
+    	parar();
         
         // Se para el oyente si existe todavía
         if (escuchaCliente != null) {
@@ -310,6 +570,20 @@ public class ChatClientImpl implements ChatClient {
         try {
             if (out != null) out.close();
             if (in != null) in.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, ERROR, e);
+        }
+        cerrarSocket();
+
+        // Se entregan al manejador los mensajes que quedan
+        terminarReparto();
+    }
+
+    /**
+     * Cierra el socket actual (y con él sus flujos).
+     */
+    private void cerrarSocket() {
+        try {
             if (socket != null && !socket.isClosed()) socket.close();
         } catch (IOException e) {
             LOGGER.log(Level.SEVERE, ERROR, e);
@@ -331,29 +605,18 @@ public class ChatClientImpl implements ChatClient {
     
     /**
      * Clase interna que gestiona la escucha de los clientes y detiene el 
-     * chat cuando es necesario.
+     * chat cuando es necesario. Solo lee y decodifica: los mensajes se dejan
+     * en la cola del manejador sin esperar a que se muestren.
      *
      * @see ChatClientEvent
      */
     class ChatClientListener implements Runnable {
 
-        /** Variable in de entrada de datos. */
-        private final ObjectInputStream in;
-
-        /**
-         * Instancia un oyente del chat clienter.
-         *
-         * @param in el stream entrante de comunicación
-         */
-        public ChatClientListener(ObjectInputStream in) {
-            this.in = in;
-        }
-
         /**
          * Detiene el chat.
          */
         public void pararChat() {
-            carryOn = false;
+            parar();
             try { 
             	in.close(); 
             } catch (IOException e) {
@@ -369,37 +632,55 @@ public class ChatClientImpl implements ChatClient {
             while (carryOn) {
                 try {
                 	// Se recibe el mensaje entrante.
-                    ChatMessage mensaje = (ChatMessage) in.readObject();
+                    ChatMessage mensaje = leer();
+
+                    // Token con el que se reanuda la sesión si se cae la conexión (no se muestra)
+                    if (mensaje.getType() == MessageType.RESUME) {
+                        tokenReanudacion = mensaje.getMessage();
+                        continue;
+                    }
+
+                    // Latido del servidor: se contesta enseguida y no se muestra
+                    if (mensaje.getType() == MessageType.PING) {
+                        sendMessage(new ChatMessage(id, MessageType.PONG, mensaje.getMessage()));
+                        continue;
+                    }
+
+                    /* Sin esperar al manejador: se deja en la cola y se sigue leyendo.
+                     * Va antes de parar el cliente para que el cierre no lo deje fuera */
+                    entregar(mensaje);
                     
                     // En función del tipo de mensaje se toma una acción u otra.
                     switch (mensaje.getType()) {
-                    	
-                    	// Mensaje normal a ser tratado normalmente, se muestra en consola.
-                        case MESSAGE -> System.out.println(mensaje.getMessage());
                         
-                        // Mensaje de logout, se informa y se pasa carryOn a false para parar el bucle.
-                        case LOGOUT -> {
-                            System.out.println("Has sido desconectado del servidor.");
-                            carryOn = false;
-                        }
+                        // Mensaje de logout, se pasa carryOn a false para parar el bucle.
+                        case LOGOUT -> parar();
                         
-                        /* Mensaje de shutdown, se informa, se pasa carryOn a false y si hay 
+                        /* Mensaje de shutdown, se pasa carryOn a false y si hay 
                          * un hilo abierto se cierra
                          */
                         case SHUTDOWN -> {
-                            System.out.println("El servidor se ha cerrado.");
-                            carryOn = false;
+                            parar();
 
                             if (hiloEntrada != null && hiloEntrada.isAlive()) {
                                 hiloEntrada.interrupt();
                             }
                         }
+
+                        // Los mensajes normales no cambian el estado
+                        default -> { }
                     }
 
                 } catch (IOException e) {
+                    // Si no se ha cerrado a propósito, se intenta reanudar la sesión
+                    if (carryOn && tokenReanudacion != null && reconectar()) {
+                        continue;
+                    }
+                    if (carryOn) {
+                        LOGGER.info(PUB + "Se ha perdido la conexión con el servidor.");
+                        parar();
+                    }
                     break;
-                } catch (ClassNotFoundException e) {
-                    carryOn = false;
                 }
             }
         }
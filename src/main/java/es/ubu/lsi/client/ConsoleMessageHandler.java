@@ -0,0 +1,73 @@
+/**
+ * 
+ */
+package es.ubu.lsi.client;
+
+import java.io.PrintStream;
+import java.util.List;
+
+import es.ubu.lsi.common.ChatMessage;
+
+/**
+ * Manejador que muestra los mensajes en consola.
+ * 
+ * Cada lote se escribe de una vez (un solo print y un solo flush), así que
+ * una ráfaga de mensajes no se convierte en una escritura por mensaje.
+ * 
+ * @author Fernando Arroyo
+ */
+public class ConsoleMessageHandler implements MessageHandler {
+
+    /** Salida en la que se escriben los mensajes. */
+    private final PrintStream salida;
+
+    /**
+     * Constructor con la salida estándar.
+     */
+    public ConsoleMessageHandler() {
+        this(System.out);
+    }
+
+    /**
+     * Constructor con la salida indicada.
+     * 
+     * @param salida salida en la que se escriben los mensajes
+     */
+    public ConsoleMessageHandler(PrintStream salida) {
+        this.salida = salida;
+    }
+
+    /**
+     * Escribe el lote entero de una vez.
+     * 
+     * @param mensajes mensajes recibidos
+     */
+    @Override
+    public void recibir(List<ChatMessage> mensajes) {
+        StringBuilder texto = new StringBuilder();
+        for (ChatMessage mensaje : mensajes) {
+            switch (mensaje.getType()) {
+
+                // Mensaje de logout: el motivo (si lo hay) y el aviso
+                case LOGOUT -> {
+                    if (mensaje.getMessage() != null && !mensaje.getMessage().isBlank()) {
+                        texto.append(mensaje.getMessage()).append(System.lineSeparator());
+                    }
+                    texto.append("Has sido desconectado del servidor.");
+                }
+
+                // Mensaje de shutdown, se informa del cierre
+                case SHUTDOWN -> texto.append("El servidor se ha cerrado.");
+
+                // Mensaje privado, se marca para distinguirlo de los de la sala
+                case PRIVATE -> texto.append("(privado) ").append(mensaje.getMessage());
+
+                // Mensaje normal, se muestra tal cual
+                default -> texto.append(mensaje.getMessage());
+            }
+            texto.append(System.lineSeparator());
+        }
+        salida.print(texto);
+        salida.flush();
+    }
+}
@@ -0,0 +1,32 @@
+/**
+ * 
+ */
+package es.ubu.lsi.client;
+
+import java.util.List;
+
+import es.ubu.lsi.common.ChatMessage;
+
+/**
+ * Interface MessageHandler
+ * 
+ * Recibe los mensajes que llegan del servidor.
+ * 
+ * El cliente lee y decodifica las tramas en el hilo del oyente y las deja en
+ * una cola acotada. Otro hilo las saca por lotes y se las pasa al manejador,
+ * así que un manejador lento no frena la lectura del socket mientras haya
+ * sitio en la cola (cuando se llena, el oyente espera).
+ * 
+ * @author Fernando Arroyo
+ */
+@FunctionalInterface
+public interface MessageHandler {
+
+	/**
+	 * Trata un lote de mensajes en el orden en el que han llegado. Siempre
+	 * se llama desde el mismo hilo. Los tokens de reanudación no llegan aquí.
+	 * 
+	 * @param mensajes mensajes recibidos (la lista se reutiliza al volver)
+	 */
+	public void recibir(List<ChatMessage> mensajes);
+}
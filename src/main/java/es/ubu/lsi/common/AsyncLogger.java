@@ -0,0 +1,360 @@
+/**
+ *
+ */
+package es.ubu.lsi.common;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Logger asíncrono sobre un java.util.logging.Logger.
+ *
+ * Los hilos que registran un evento solo copian el nivel, el patrón y los
+ * parámetros en una posición libre de un anillo reservado al crearlo (sin
+ * cerrojos: cada productor reserva su posición con un CAS). Un hilo de fondo
+ * crea los LogRecord, les da formato y los pasa a los handlers del logger de
+ * destino, así el formato y la escritura en consola no frenan los mensajes.
+ *
+ * El nivel se comprueba antes de nada y los métodos tienen versiones con uno,
+ * dos y tres parámetros, por lo que un evento descartado por nivel no crea
+ * ningún objeto. Si el anillo está lleno el evento se descarta (y se cuenta):
+ * el registro nunca bloquea a quien lo hace.
+ *
+ * Con el anillo vacío el hilo de fondo se duerme sin plazo, y un productor
+ * solo lo despierta si está dormido: sin eventos no gasta CPU, y con muchos
+ * eventos no se paga un unpark por cada uno.
+ */
+public class AsyncLogger {
+
+    /** Número máximo de parámetros guardados sin crear un array. */
+    private static final int MAX_PARAMETROS = 3;
+
+    /**
+     * Posición del anillo. La secuencia indica su estado: igual a la
+     * posición libre que le toca, o esa posición + 1 cuando ya está escrita.
+     */
+    private static final class Evento {
+
+        /** Secuencia de la posición (ver la clase). */
+        private volatile long secuencia;
+
+        /** Nivel del evento. */
+        private Level nivel;
+
+        /** Patrón del mensaje (formato de MessageFormat). */
+        private String patron;
+
+        /** Parámetros sueltos. */
+        private final Object[] parametros = new Object[MAX_PARAMETROS];
+
+        /** Número de parámetros sueltos usados. */
+        private int numParametros;
+
+        /** Parámetros en array (cuando hay más de MAX_PARAMETROS). */
+        private Object[] array;
+
+        /** Excepción asociada. */
+        private Throwable error;
+
+        /** Instante del evento en milisegundos. */
+        private long milis;
+    }
+
+    /** Logger que recibe los eventos. */
+    private final Logger destino;
+
+    /** Anillo de eventos. */
+    private final Evento[] anillo;
+
+    /** Máscara para calcular la posición (la capacidad es potencia de dos). */
+    private final int mascara;
+
+    /** Siguiente posición que reservará un productor. */
+    private final AtomicLong cola = new AtomicLong();
+
+    /** Siguiente posición que leerá el hilo de fondo (solo la escribe él). */
+    private volatile long cabeza;
+
+    /** Eventos descartados por anillo lleno. */
+    private final LongAdder descartados = new LongAdder();
+
+    /** Hilo de fondo. */
+    private final Thread hilo;
+
+    /** Indica que el hilo de fondo va a dormirse o está dormido esperando eventos. */
+    private volatile boolean esperando;
+
+    /** Monitor de los hilos que esperan en vaciar. */
+    private final Object vaciado = new Object();
+
+    /** Hilos esperando en vaciar (el hilo de fondo solo avisa si hay alguno). */
+    private volatile int esperandoVaciado;
+
+    /**
+     * Constructor. Arranca el hilo de fondo (demonio).
+     *
+     * @param destino logger que recibe los eventos
+     * @param capacidad número de eventos del anillo (se redondea a potencia de dos)
+     */
+    public AsyncLogger(Logger destino, int capacidad) {
+        this.destino = destino;
+        int tam = Integer.highestOneBit(Math.max(2, capacidad - 1)) << 1;
+        this.anillo = new Evento[tam];
+        this.mascara = tam - 1;
+        for (int i = 0; i < tam; i++) {
+            anillo[i] = new Evento();
+            anillo[i].secuencia = i;
+        }
+
+        hilo = new Thread(this::consumir, "log-" + destino.getName());
+        hilo.setDaemon(true);
+        hilo.start();
+    }
+
+    /**
+     * Indica si un nivel se registra (la misma regla que el logger de destino).
+     *
+     * @param nivel nivel del evento
+     * @return true si se registra
+     */
+    public boolean isLoggable(Level nivel) {
+        return destino.isLoggable(nivel);
+    }
+
+    /**
+     * Registra un mensaje sin parámetros.
+     *
+     * @param nivel nivel
+     * @param patron mensaje
+     */
+    public void log(Level nivel, String patron) {
+        if (destino.isLoggable(nivel)) {
+            publicar(nivel, patron, 0, null, null, null, null, null);
+        }
+    }
+
+    /**
+     * Registra un mensaje con un parámetro.
+     *
+     * @param nivel nivel
+     * @param patron mensaje con {0}
+     * @param p0 parámetro 0
+     */
+    public void log(Level nivel, String patron, Object p0) {
+        if (destino.isLoggable(nivel)) {
+            publicar(nivel, patron, 1, p0, null, null, null, null);
+        }
+    }
+
+    /**
+     * Registra un mensaje con dos parámetros.
+     *
+     * @param nivel nivel
+     * @param patron mensaje con {0} y {1}
+     * @param p0 parámetro 0
+     * @param p1 parámetro 1
+     */
+    public void log(Level nivel, String patron, Object p0, Object p1) {
+        if (destino.isLoggable(nivel)) {
+            publicar(nivel, patron, 2, p0, p1, null, null, null);
+        }
+    }
+
+    /**
+     * Registra un mensaje con tres parámetros.
+     *
+     * @param nivel nivel
+     * @param patron mensaje con {0}, {1} y {2}
+     * @param p0 parámetro 0
+     * @param p1 parámetro 1
+     * @param p2 parámetro 2
+     */
+    public void log(Level nivel, String patron, Object p0, Object p1, Object p2) {
+        if (destino.isLoggable(nivel)) {
+            publicar(nivel, patron, 3, p0, p1, p2, null, null);
+        }
+    }
+
+    /**
+     * Registra un mensaje con más parámetros. Quien llama crea el array, así
+     * que conviene comprobar antes isLoggable si está en un camino frecuente.
+     *
+     * @param nivel nivel
+     * @param patron mensaje
+     * @param parametros parámetros
+     */
+    public void log(Level nivel, String patron, Object[] parametros) {
+        if (destino.isLoggable(nivel)) {
+            publicar(nivel, patron, 0, null, null, null, parametros, null);
+        }
+    }
+
+    /**
+     * Registra un mensaje con una excepción.
+     *
+     * @param nivel nivel
+     * @param patron mensaje
+     * @param error excepción
+     */
+    public void log(Level nivel, String patron, Throwable error) {
+        if (destino.isLoggable(nivel)) {
+            publicar(nivel, patron, 0, null, null, null, null, error);
+        }
+    }
+
+    /**
+     * Devuelve los eventos descartados porque el anillo estaba lleno.
+     *
+     * @return eventos descartados
+     */
+    public long getDescartados() {
+        return descartados.sum();
+    }
+
+    /**
+     * Espera (como mucho el tiempo indicado) a que el hilo de fondo haya
+     * pasado al logger todos los eventos registrados hasta ahora.
+     *
+     * @param maxMilis espera máxima en milisegundos
+     */
+    public void vaciar(long maxMilis) {
+        long objetivo = cola.get();
+        long limite = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxMilis);
+        synchronized (vaciado) {
+            esperandoVaciado++;
+            try {
+                long restante;
+                while (cabeza < objetivo && (restante = limite - System.nanoTime()) > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(vaciado, restante);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                esperandoVaciado--;
+            }
+        }
+    }
+
+    /**
+     * Reserva una posición del anillo y copia el evento.
+     *
+     * @param nivel nivel
+     * @param patron mensaje
+     * @param numParametros parámetros sueltos usados (p0 a p2)
+     * @param p0 parámetro 0
+     * @param p1 parámetro 1
+     * @param p2 parámetro 2
+     * @param array parámetros en array (o null)
+     * @param error excepción (o null)
+     */
+    private void publicar(Level nivel, String patron, int numParametros,
+            Object p0, Object p1, Object p2, Object[] array, Throwable error) {
+        Evento evento;
+        long posicion;
+        while (true) {
+            posicion = cola.get();
+            evento = anillo[(int) (posicion & mascara)];
+            long secuencia = evento.secuencia;
+            if (secuencia == posicion) {
+                if (cola.compareAndSet(posicion, posicion + 1)) {
+                    break;
+                }
+            } else if (secuencia < posicion) {
+                // La posición aún no se ha leído: el anillo está lleno
+                descartados.increment();
+                return;
+            }
+            // Otro productor ha cogido la posición: se reintenta con la siguiente
+        }
+
+        evento.nivel = nivel;
+        evento.patron = patron;
+        evento.numParametros = numParametros;
+        evento.parametros[0] = p0;
+        evento.parametros[1] = p1;
+        evento.parametros[2] = p2;
+        evento.array = array;
+        evento.error = error;
+        evento.milis = System.currentTimeMillis();
+
+        // Se publica: el hilo de fondo ya puede leerlo. Se mira si duerme
+        // después de publicar (y él lo anota antes de mirar la posición), así
+        // que uno de los dos ve al otro y el evento no se queda sin leer.
+        evento.secuencia = posicion + 1;
+        if (esperando) {
+            LockSupport.unpark(hilo);
+        }
+    }
+
+    /**
+     * Bucle del hilo de fondo: pasa los eventos al logger en orden.
+     */
+    private void consumir() {
+        while (true) {
+            long posicion = cabeza;
+            Evento evento = anillo[(int) (posicion & mascara)];
+            if (evento.secuencia != posicion + 1) {
+                esperando = true;
+                if (evento.secuencia != posicion + 1) {
+                    LockSupport.park(this);
+                }
+                esperando = false;
+                continue;
+            }
+
+            LogRecord registro = crearRegistro(evento);
+
+            // Se libera la posición para la siguiente vuelta del anillo
+            evento.patron = null;
+            evento.parametros[0] = null;
+            evento.parametros[1] = null;
+            evento.parametros[2] = null;
+            evento.array = null;
+            evento.error = null;
+            evento.secuencia = posicion + anillo.length;
+            cabeza = posicion + 1;
+
+            try {
+                destino.log(registro);
+            } catch (RuntimeException e) {
+                // Un handler que falla no debe parar el hilo de fondo
+            }
+
+            if (esperandoVaciado > 0) {
+                synchronized (vaciado) {
+                    vaciado.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Crea el LogRecord de un evento.
+     *
+     * @param evento evento leído del anillo
+     * @return el registro para el logger
+     */
+    private LogRecord crearRegistro(Evento evento) {
+        LogRecord registro = new LogRecord(evento.nivel, evento.patron);
+        registro.setLoggerName(destino.getName());
+        registro.setInstant(Instant.ofEpochMilli(evento.milis));
+        // Sin esto se buscaría el origen en la pila del hilo de fondo
+        registro.setSourceClassName(destino.getName());
+        registro.setSourceMethodName(null);
+        if (evento.array != null) {
+            registro.setParameters(evento.array);
+        } else if (evento.numParametros > 0) {
+            Object[] parametros = new Object[evento.numParametros];
+            System.arraycopy(evento.parametros, 0, parametros, 0, evento.numParametros);
+            registro.setParameters(parametros);
+        }
+        registro.setThrown(evento.error);
+        return registro;
+    }
+}
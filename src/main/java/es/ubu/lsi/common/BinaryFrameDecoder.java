@@ -0,0 +1,89 @@
+/**
+ *
+ */
+package es.ubu.lsi.common;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import es.ubu.lsi.common.ChatMessage.MessageType;
+
+/**
+ * Decodificador del formato binario compacto.
+ *
+ * @see BinaryFrameEncoder
+ */
+public class BinaryFrameDecoder implements FrameDecoder {
+
+    /** Tipos de mensaje indexados por ordinal. */
+    private static final MessageType[] TIPOS = MessageType.values();
+
+    /**
+     * Decodifica la siguiente trama binaria del buffer.
+     *
+     * @param buffer buffer en modo lectura
+     * @return el mensaje o null si faltan bytes
+     * @throws IOException si la trama no es válida
+     */
+    @Override
+    public ChatMessage decode(ByteBuffer buffer) throws IOException {
+        int inicio = buffer.position();
+
+        // Longitud de la trama
+        long longitud = leerVarint(buffer, buffer.limit());
+        if (longitud < 0) {
+            buffer.position(inicio);
+            return null;
+        }
+        // El límite es de la trama entera, como en los buffers de lectura
+        long total = buffer.position() - inicio + longitud;
+        if (total > WireFormat.MAX_TRAMA) {
+            throw new StreamCorruptedException("Trama demasiado grande: " + total);
+        }
+        if (buffer.remaining() < longitud) {
+            buffer.position(inicio);
+            return null;
+        }
+        int fin = buffer.position() + (int) longitud;
+
+        // Id y tipo
+        long id = leerVarint(buffer, fin);
+        if (id < 0 || buffer.position() >= fin) {
+            throw new StreamCorruptedException("Trama binaria truncada");
+        }
+        int tipo = buffer.get() & 0xFF;
+        if (tipo >= TIPOS.length) {
+            throw new StreamCorruptedException("Tipo de mensaje desconocido: " + tipo);
+        }
+
+        // Texto hasta el final de la trama
+        byte[] utf8 = new byte[fin - buffer.position()];
+        buffer.get(utf8);
+        return new ChatMessage((int) id, TIPOS[tipo], new String(utf8, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Lee un varint sin signo de 32 bits.
+     *
+     * @param buffer buffer de entrada
+     * @param limite posición que no se puede sobrepasar
+     * @return el valor leído o -1 si faltan bytes
+     * @throws StreamCorruptedException si el varint ocupa más de 5 bytes
+     */
+    private static long leerVarint(ByteBuffer buffer, int limite) throws StreamCorruptedException {
+        long valor = 0;
+        for (int desplazamiento = 0; desplazamiento < 35; desplazamiento += 7) {
+            if (buffer.position() >= limite) {
+                return -1;
+            }
+            int b = buffer.get() & 0xFF;
+            valor |= (long) (b & 0x7F) << desplazamiento;
+            if ((b & 0x80) == 0) {
+                return valor & 0xFFFFFFFFL;
+            }
+        }
+        throw new StreamCorruptedException("Varint demasiado largo");
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ *
+ */
+package es.ubu.lsi.common;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Codificador del formato binario compacto.
+ *
+ * Cada trama es:
+ *  - Longitud del resto de la trama (varint).
+ *  - Id del cliente (varint).
+ *  - Tipo de mensaje (un byte, ordinal de MessageType).
+ *  - Texto del mensaje en UTF-8 (hasta el final de la trama).
+ *
+ * Los varint usan 7 bits por byte, con el bit alto indicando que sigue otro
+ * byte (como en Protocol Buffers). Un mensaje típico ocupa unos pocos bytes
+ * más que su texto, frente a los cientos de la serialización Java.
+ */
+public class BinaryFrameEncoder implements FrameEncoder {
+
+    /** Instancia compartida (no tiene estado). */
+    public static final BinaryFrameEncoder INSTANCE = new BinaryFrameEncoder();
+
+    /**
+     * Codifica el mensaje en una trama binaria.
+     *
+     * @param mensaje mensaje que se quiere codificar
+     * @return bytes de la trama
+     * @throws IOException si el mensaje no tiene tipo
+     */
+    @Override
+    public byte[] encode(ChatMessage mensaje) throws IOException {
+        if (mensaje.getType() == null) {
+            throw new InvalidObjectException("Mensaje sin tipo");
+        }
+        String texto = mensaje.getMessage();
+        byte[] utf8 = texto == null ? new byte[0] : texto.getBytes(StandardCharsets.UTF_8);
+
+        int cuerpo = tamVarint(mensaje.getId()) + 1 + utf8.length;
+        byte[] trama = new byte[tamVarint(cuerpo) + cuerpo];
+
+        int pos = escribirVarint(trama, 0, cuerpo);
+        pos = escribirVarint(trama, pos, mensaje.getId());
+        trama[pos++] = (byte) mensaje.getType().ordinal();
+        System.arraycopy(utf8, 0, trama, pos, utf8.length);
+        return trama;
+    }
+
+    /**
+     * Calcula cuántos bytes ocupa un entero como varint (sin signo).
+     *
+     * @param valor entero que se va a codificar
+     * @return número de bytes (1 a 5)
+     */
+    public static int tamVarint(int valor) {
+        int bytes = 1;
+        while ((valor & ~0x7F) != 0) {
+            valor >>>= 7;
+            bytes++;
+        }
+        return bytes;
+    }
+
+    /**
+     * Escribe un entero como varint (sin signo).
+     *
+     * @param destino array de destino
+     * @param pos posición en la que se empieza a escribir
+     * @param valor entero que se va a codificar
+     * @return posición siguiente al último byte escrito
+     */
+    public static int escribirVarint(byte[] destino, int pos, int valor) {
+        while ((valor & ~0x7F) != 0) {
+            destino[pos++] = (byte) ((valor & 0x7F) | 0x80);
+            valor >>>= 7;
+        }
+        destino[pos++] = (byte) valor;
+        return pos;
+    }
+}
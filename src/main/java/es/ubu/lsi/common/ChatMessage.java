@@ -27,7 +27,15 @@ public class ChatMessage implements Serializable {
 		/** Shutdown server. */
 		SHUTDOWN,		
 		/** Logout client. */
-		LOGOUT;		
+		LOGOUT,
+		/** Resume token, resume request or resume confirmation (binary clients only). */
+		RESUME,
+		/** Private message to a single user. */
+		PRIVATE,
+		/** Heartbeat request, answered with PONG (binary clients only). */
+		PING,
+		/** Heartbeat answer. */
+		PONG;
 	}
 	
 	/** Type. */
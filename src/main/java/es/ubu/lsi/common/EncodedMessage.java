@@ -0,0 +1,97 @@
+/**
+ *
+ */
+package es.ubu.lsi.common;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import es.ubu.lsi.common.ChatMessage.MessageType;
+
+/**
+ * Mensaje con sus tramas ya codificadas, para enviarlo a muchos clientes.
+ *
+ * Cada formato se codifica una sola vez, la primera vez que algún
+ * destinatario lo pide, y todos los destinatarios con ese formato reciben
+ * el mismo array de bytes. Los arrays no se deben modificar, y el mensaje
+ * tampoco una vez creado el EncodedMessage.
+ *
+ * Los clientes que hablan serialización pueden ser clientes antiguos, que
+ * solo conocen los tipos MESSAGE, SHUTDOWN y LOGOUT y no pueden leer un
+ * enumerado con otro valor: en su trama los tipos posteriores (como
+ * PRIVATE) van como MESSAGE. Esto solo se hace aquí, en lo que envía el
+ * servidor a cada cliente, nunca en lo que envía un cliente.
+ */
+public class EncodedMessage {
+
+    /** Mensaje original. */
+    private final ChatMessage mensaje;
+
+    /** Trama de cada formato (por ordinal), null hasta que se codifica. */
+    private final AtomicReferenceArray<byte[]> tramas =
+            new AtomicReferenceArray<>(WireFormat.values().length);
+
+    /**
+     * Constructor.
+     *
+     * @param mensaje mensaje que se va a enviar
+     */
+    public EncodedMessage(ChatMessage mensaje) {
+        this.mensaje = mensaje;
+    }
+
+    /**
+     * Constructor con la trama de un formato ya construida (por ejemplo a
+     * partir de una plantilla). Debe ser la misma que daría su codificador.
+     *
+     * @param mensaje mensaje que se va a enviar
+     * @param formato formato de la trama dada
+     * @param trama bytes de la trama (no se deben modificar después)
+     */
+    public EncodedMessage(ChatMessage mensaje, WireFormat formato, byte[] trama) {
+        this.mensaje = mensaje;
+        tramas.set(formato.ordinal(), trama);
+    }
+
+    /**
+     * Devuelve el mensaje original.
+     *
+     * @return el mensaje
+     */
+    public ChatMessage getMensaje() {
+        return mensaje;
+    }
+
+    /**
+     * Devuelve la trama del mensaje en un formato, codificándola si es la
+     * primera vez que se pide.
+     *
+     * @param formato formato de la trama
+     * @return bytes de la trama (compartidos, no se deben modificar)
+     * @throws IOException si el mensaje no se puede codificar
+     */
+    public byte[] bytes(WireFormat formato) throws IOException {
+        byte[] trama = tramas.get(formato.ordinal());
+        if (trama == null) {
+            // Si dos hilos codifican a la vez, se queda la primera trama
+            tramas.compareAndSet(formato.ordinal(), null, formato.encoder().encode(mensajePara(formato)));
+            trama = tramas.get(formato.ordinal());
+        }
+        return trama;
+    }
+
+    /**
+     * Devuelve el mensaje tal como lo tiene que recibir un cliente con el
+     * formato indicado.
+     *
+     * @param formato formato del destinatario
+     * @return el mensaje original o, para serialización, con los tipos
+     *         nuevos como MESSAGE
+     */
+    private ChatMessage mensajePara(WireFormat formato) {
+        if (formato == WireFormat.SERIALIZED && mensaje.getType().ordinal() > MessageType.LOGOUT.ordinal()) {
+            return new ChatMessage(mensaje.getId(), MessageType.MESSAGE, mensaje.getMessage());
+        }
+        return mensaje;
+    }
+}
@@ -0,0 +1,29 @@
+/**
+ *
+ */
+package es.ubu.lsi.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Interface FrameDecoder
+ *
+ * Extrae mensajes del chat de un buffer que se va llenando de forma
+ * incremental (lecturas no bloqueantes). Cada conexión tiene su propio
+ * decodificador porque puede guardar estado entre tramas.
+ */
+public interface FrameDecoder {
+
+    /**
+     * Intenta decodificar el siguiente mensaje del buffer.
+     *
+     * Si la trama está completa se consume del buffer y se devuelve el
+     * mensaje. Si faltan bytes no se consume nada y se devuelve null.
+     *
+     * @param buffer buffer en modo lectura (entre position y limit)
+     * @return el mensaje decodificado o null si la trama está incompleta
+     * @throws IOException si los datos recibidos no son una trama válida
+     */
+    public ChatMessage decode(ByteBuffer buffer) throws IOException;
+}
@@ -0,0 +1,24 @@
+/**
+ *
+ */
+package es.ubu.lsi.common;
+
+import java.io.IOException;
+
+/**
+ * Interface FrameEncoder
+ *
+ * Convierte un mensaje del chat en la secuencia de bytes exacta que se
+ * escribe en la conexión (una trama).
+ */
+public interface FrameEncoder {
+
+    /**
+     * Codifica un mensaje en una trama lista para escribir en el socket.
+     *
+     * @param mensaje mensaje que se quiere codificar
+     * @return bytes de la trama
+     * @throws IOException si el mensaje no se puede codificar
+     */
+    public byte[] encode(ChatMessage mensaje) throws IOException;
+}
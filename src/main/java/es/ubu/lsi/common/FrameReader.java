@@ -0,0 +1,141 @@
+/**
+ *
+ */
+package es.ubu.lsi.common;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+
+/**
+ * Lector bloqueante de tramas sobre un InputStream.
+ *
+ * Acumula lo leído del flujo en un buffer y se lo pasa al decodificador hasta
+ * que hay un mensaje completo. Es el equivalente a readObject() para
+ * cualquier formato de trama.
+ */
+public class FrameReader implements Closeable {
+
+    /** Tamaño inicial del buffer. */
+    private static final int TAM_INICIAL = 8 * 1024;
+
+    /** Flujo de entrada. */
+    private final InputStream in;
+
+    /** Decodificador de las tramas. */
+    private final FrameDecoder decoder;
+
+    /** Bytes leídos pendientes de decodificar (en modo lectura). */
+    private ByteBuffer buffer = ByteBuffer.allocate(TAM_INICIAL).limit(0);
+
+    /** Total de bytes leídos del flujo. */
+    private long bytesLeidos;
+
+    /** Bytes de la última trama devuelta. */
+    private int tamUltima;
+
+    /**
+     * Constructor.
+     *
+     * @param in flujo de entrada
+     * @param decoder decodificador de las tramas
+     */
+    public FrameReader(InputStream in, FrameDecoder decoder) {
+        this.in = in;
+        this.decoder = decoder;
+    }
+
+    /**
+     * Lee el siguiente mensaje, bloqueando hasta que llegue completo.
+     *
+     * @return el mensaje leído
+     * @throws EOFException si se cierra el flujo
+     * @throws IOException si falla la lectura o la trama no es válida
+     */
+    public ChatMessage read() throws IOException {
+        while (true) {
+            int inicio = buffer.position();
+            ChatMessage mensaje = decoder.decode(buffer);
+            if (mensaje != null) {
+                tamUltima = buffer.position() - inicio;
+                return mensaje;
+            }
+
+            // Faltan bytes: se pasa el buffer a modo escritura y se lee más
+            buffer.compact();
+            if (!buffer.hasRemaining()) {
+                ampliar();
+            }
+            int leidos = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            if (leidos < 0) {
+                throw new EOFException();
+            }
+            buffer.position(buffer.position() + leidos);
+            bytesLeidos += leidos;
+            buffer.flip();
+        }
+    }
+
+    /**
+     * Devuelve el total de bytes leídos del flujo (sin contar el saludo).
+     *
+     * @return bytes leídos
+     */
+    public long getBytesLeidos() {
+        return bytesLeidos;
+    }
+
+    /**
+     * Devuelve el tamaño de la última trama leída. A diferencia de la
+     * diferencia de getBytesLeidos, no incluye lo leído por adelantado.
+     *
+     * @return bytes de la trama
+     */
+    public int getTamUltima() {
+        return tamUltima;
+    }
+
+    /**
+     * Cierra el flujo de entrada.
+     *
+     * @throws IOException si falla el cierre
+     */
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Duplica el buffer (en modo escritura) hasta el tamaño máximo de trama.
+     *
+     * @throws StreamCorruptedException si la trama supera el tamaño máximo
+     */
+    private void ampliar() throws StreamCorruptedException {
+        if (buffer.capacity() >= WireFormat.MAX_TRAMA) {
+            throw new StreamCorruptedException("Trama demasiado grande");
+        }
+        ByteBuffer nuevo = ByteBuffer.allocate(buffer.capacity() * 2);
+        buffer.flip();
+        nuevo.put(buffer);
+        buffer = nuevo;
+    }
+
+    /**
+     * Lee un saludo de conexión de tamaño fijo.
+     *
+     * @param in flujo de entrada
+     * @return los bytes del saludo
+     * @throws EOFException si el flujo se cierra antes
+     * @throws IOException si falla la lectura
+     */
+    public static byte[] leerSaludo(InputStream in) throws IOException {
+        byte[] saludo = in.readNBytes(WireFormat.LONGITUD_SALUDO);
+        if (saludo.length < WireFormat.LONGITUD_SALUDO) {
+            throw new EOFException();
+        }
+        return saludo;
+    }
+}
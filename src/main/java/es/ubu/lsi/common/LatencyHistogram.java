@@ -0,0 +1,169 @@
+/**
+ *
+ */
+package es.ubu.lsi.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histograma concurrente de latencias (u otros valores positivos).
+ *
+ * Usa cubetas log-lineales: cada potencia de dos se divide en 32 cubetas
+ * iguales, así que el error relativo de los percentiles es menor del 3 %
+ * para cualquier valor entre 1 y Long.MAX_VALUE. Registrar un valor no crea
+ * objetos ni coge cerrojos (solo incrementos atómicos), por lo que se puede
+ * usar desde muchos hilos en el camino de los mensajes.
+ */
+public class LatencyHistogram {
+
+    /** Bits de precisión dentro de cada potencia de dos. */
+    private static final int BITS_SUBCUBETA = 5;
+
+    /** Cubetas por potencia de dos. */
+    private static final int SUBCUBETAS = 1 << BITS_SUBCUBETA;
+
+    /** Número total de cubetas (hasta 2^63). */
+    private static final int CUBETAS = (64 - BITS_SUBCUBETA) * SUBCUBETAS;
+
+    /** Cuentas por cubeta. */
+    private final AtomicLongArray cuentas = new AtomicLongArray(CUBETAS);
+
+    /** Número de valores registrados. */
+    private final LongAdder total = new LongAdder();
+
+    /** Suma de los valores registrados. */
+    private final LongAdder suma = new LongAdder();
+
+    /** Mayor valor registrado. */
+    private final AtomicLong maximo = new AtomicLong();
+
+    /**
+     * Registra un valor (los negativos cuentan como 0).
+     *
+     * @param valor valor que se registra
+     */
+    public void registrar(long valor) {
+        long v = Math.max(0, valor);
+        cuentas.incrementAndGet(indice(v));
+        total.increment();
+        suma.add(v);
+
+        long actual;
+        while (v > (actual = maximo.get()) && !maximo.compareAndSet(actual, v)) {
+            // Se reintenta hasta que otro hilo no lo cambie a la vez
+        }
+    }
+
+    /**
+     * Devuelve el número de valores registrados.
+     *
+     * @return número de valores
+     */
+    public long getCuenta() {
+        return total.sum();
+    }
+
+    /**
+     * Devuelve la media de los valores registrados.
+     *
+     * @return la media o 0 si no hay valores
+     */
+    public double getMedia() {
+        long n = total.sum();
+        return n == 0 ? 0 : (double) suma.sum() / n;
+    }
+
+    /**
+     * Devuelve el mayor valor registrado.
+     *
+     * @return el máximo o 0 si no hay valores
+     */
+    public long getMaximo() {
+        return maximo.get();
+    }
+
+    /**
+     * Devuelve el valor por debajo del cual está el porcentaje indicado de
+     * los valores registrados.
+     *
+     * @param percentil porcentaje entre 0 y 100 (por ejemplo 99.9)
+     * @return el percentil (límite superior de su cubeta, sin pasar del máximo)
+     */
+    public long percentil(double percentil) {
+        long n = total.sum();
+        if (n == 0) {
+            return 0;
+        }
+        long objetivo = Math.max(1, (long) Math.ceil(n * Math.min(100, percentil) / 100.0));
+        long acumulado = 0;
+        for (int i = 0; i < CUBETAS; i++) {
+            acumulado += cuentas.get(i);
+            if (acumulado >= objetivo) {
+                return Math.min(limiteSuperior(i), maximo.get());
+            }
+        }
+        return maximo.get();
+    }
+
+    /**
+     * Suma a este histograma los valores de otro.
+     *
+     * @param otro histograma que se suma
+     */
+    public void sumar(LatencyHistogram otro) {
+        for (int i = 0; i < CUBETAS; i++) {
+            long c = otro.cuentas.get(i);
+            if (c != 0) {
+                cuentas.addAndGet(i, c);
+            }
+        }
+        total.add(otro.total.sum());
+        suma.add(otro.suma.sum());
+        maximo.accumulateAndGet(otro.maximo.get(), Math::max);
+    }
+
+    /**
+     * Borra todos los valores registrados.
+     */
+    public void reiniciar() {
+        for (int i = 0; i < CUBETAS; i++) {
+            cuentas.set(i, 0);
+        }
+        total.reset();
+        suma.reset();
+        maximo.set(0);
+    }
+
+    /**
+     * Calcula la cubeta de un valor.
+     *
+     * @param valor valor no negativo
+     * @return índice de la cubeta
+     */
+    private static int indice(long valor) {
+        if (valor < SUBCUBETAS) {
+            return (int) valor;
+        }
+        int exponente = 63 - Long.numberOfLeadingZeros(valor);
+        int mantisa = (int) (valor >>> (exponente - BITS_SUBCUBETA)) & (SUBCUBETAS - 1);
+        return (exponente - BITS_SUBCUBETA + 1) * SUBCUBETAS + mantisa;
+    }
+
+    /**
+     * Calcula el mayor valor que cae en una cubeta.
+     *
+     * @param indice índice de la cubeta
+     * @return límite superior de la cubeta
+     */
+    private static long limiteSuperior(int indice) {
+        if (indice < SUBCUBETAS) {
+            return indice;
+        }
+        int exponente = indice / SUBCUBETAS + BITS_SUBCUBETA - 1;
+        long mantisa = SUBCUBETAS + indice % SUBCUBETAS;
+        // En la última cubeta se desborda a Long.MIN_VALUE y al restar 1 queda Long.MAX_VALUE
+        return ((mantisa + 1) << (exponente - BITS_SUBCUBETA)) - 1;
+    }
+}
@@ -0,0 +1,447 @@
+/**
+ *
+ */
+package es.ubu.lsi.common;
+
+import static java.io.ObjectStreamConstants.SC_EXTERNALIZABLE;
+import static java.io.ObjectStreamConstants.SC_WRITE_METHOD;
+import static java.io.ObjectStreamConstants.TC_BLOCKDATA;
+import static java.io.ObjectStreamConstants.TC_CLASSDESC;
+import static java.io.ObjectStreamConstants.TC_ENDBLOCKDATA;
+import static java.io.ObjectStreamConstants.TC_ENUM;
+import static java.io.ObjectStreamConstants.TC_LONGSTRING;
+import static java.io.ObjectStreamConstants.TC_NULL;
+import static java.io.ObjectStreamConstants.TC_OBJECT;
+import static java.io.ObjectStreamConstants.TC_REFERENCE;
+import static java.io.ObjectStreamConstants.TC_RESET;
+import static java.io.ObjectStreamConstants.TC_STRING;
+import static java.io.ObjectStreamConstants.baseWireHandle;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.StreamCorruptedException;
+import java.io.UTFDataFormatException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import es.ubu.lsi.common.ChatMessage.MessageType;
+
+/**
+ * Decodificador incremental del flujo que genera un ObjectOutputStream.
+ *
+ * Permite leer los mensajes de los clientes que usan writeObject() sin
+ * bloquear un hilo en readObject(): se analiza la gramática del protocolo de
+ * serialización sobre los bytes recibidos y, si la trama no está completa,
+ * se deshace lo leído y se espera a que lleguen más datos.
+ *
+ * Solo se soporta lo necesario para ChatMessage: objetos con campos
+ * primitivos, cadenas, enumerados y referencias. Mantiene la tabla de
+ * referencias del flujo, por lo que hay una instancia por conexión.
+ *
+ * La cabecera del flujo no se trata aquí: forma parte del saludo de la
+ * conexión (ver WireFormat).
+ */
+public class SerializedFrameDecoder implements FrameDecoder {
+
+    /** Tabla de referencias (handles) del flujo. */
+    private List<Object> referencias = new ArrayList<>();
+
+    /**
+     * Decodifica el siguiente ChatMessage del buffer.
+     *
+     * @param buffer buffer en modo lectura
+     * @return el mensaje o null si faltan bytes
+     * @throws IOException si el flujo no es válido o no contiene un ChatMessage
+     */
+    @Override
+    public ChatMessage decode(ByteBuffer buffer) throws IOException {
+        // Estado previo para poder deshacer si la trama está incompleta
+        int inicio = buffer.position();
+        List<Object> referenciasPrevias = referencias;
+        int numReferenciasPrevias = referencias.size();
+
+        try {
+            // Los reset vacían la tabla de referencias
+            while (buffer.hasRemaining() && buffer.get(buffer.position()) == TC_RESET) {
+                buffer.get();
+                referencias = new ArrayList<>();
+            }
+
+            if (!buffer.hasRemaining()) {
+                // Solo han llegado los reset: se leerán con el resto de la trama
+                throw new BufferUnderflowException();
+            }
+
+            return aMensaje(leerContenido(buffer));
+
+        } catch (BufferUnderflowException e) {
+            // Trama incompleta: se vuelve al estado anterior
+            buffer.position(inicio);
+            referencias = referenciasPrevias;
+            referencias.subList(numReferenciasPrevias, referencias.size()).clear();
+            return null;
+        }
+    }
+
+    /**
+     * Lee un elemento del flujo (objeto, cadena, enumerado, referencia...).
+     *
+     * @param buffer buffer de entrada
+     * @return el elemento leído
+     * @throws IOException si el elemento no está soportado
+     */
+    private Object leerContenido(ByteBuffer buffer) throws IOException {
+        byte tc = buffer.get();
+        switch (tc) {
+            case TC_NULL:
+                return null;
+            case TC_REFERENCE:
+                return referencia(buffer.getInt());
+            case TC_STRING:
+                return registrar(leerUtf(buffer, buffer.getShort() & 0xFFFF));
+            case TC_LONGSTRING:
+                return registrar(leerUtf(buffer, leerLongitudLarga(buffer)));
+            case TC_CLASSDESC:
+                return leerDescClase(buffer);
+            case TC_ENUM:
+                return leerEnum(buffer);
+            case TC_OBJECT:
+                return leerObjeto(buffer);
+            default:
+                throw new StreamCorruptedException(
+                        String.format("Elemento no soportado: 0x%02X", tc));
+        }
+    }
+
+    /**
+     * Lee un descriptor de clase (nuevo, referencia o nulo).
+     *
+     * @param buffer buffer de entrada
+     * @return el descriptor o null
+     * @throws IOException si el descriptor no es válido
+     */
+    private DescClase leerDesc(ByteBuffer buffer) throws IOException {
+        byte tc = buffer.get();
+        switch (tc) {
+            case TC_NULL:
+                return null;
+            case TC_CLASSDESC:
+                return leerDescClase(buffer);
+            case TC_REFERENCE:
+                Object ref = referencia(buffer.getInt());
+                if (ref instanceof DescClase desc) {
+                    return desc;
+                }
+                throw new StreamCorruptedException("La referencia no es un descriptor de clase");
+            default:
+                throw new StreamCorruptedException(
+                        String.format("Descriptor no soportado: 0x%02X", tc));
+        }
+    }
+
+    /**
+     * Lee un descriptor de clase nuevo (el TC_CLASSDESC ya se ha consumido).
+     *
+     * @param buffer buffer de entrada
+     * @return el descriptor leído
+     * @throws IOException si el descriptor no es válido
+     */
+    private DescClase leerDescClase(ByteBuffer buffer) throws IOException {
+        DescClase desc = new DescClase();
+        desc.nombre = leerUtf(buffer, buffer.getShort() & 0xFFFF);
+        buffer.getLong(); // serialVersionUID
+        registrar(desc);
+
+        desc.flags = buffer.get();
+        int numCampos = buffer.getShort();
+        for (int i = 0; i < numCampos; i++) {
+            char tipo = (char) buffer.get();
+            String nombre = leerUtf(buffer, buffer.getShort() & 0xFFFF);
+            if (tipo == 'L' || tipo == '[') {
+                // Nombre de la clase del campo, no se necesita
+                leerContenido(buffer);
+            }
+            desc.tipos.add(tipo);
+            desc.campos.add(nombre);
+        }
+
+        saltarAnotaciones(buffer);
+        desc.superDesc = leerDesc(buffer);
+        return desc;
+    }
+
+    /**
+     * Salta las anotaciones de clase hasta TC_ENDBLOCKDATA.
+     *
+     * @param buffer buffer de entrada
+     * @throws IOException si el contenido no está soportado
+     */
+    private void saltarAnotaciones(ByteBuffer buffer) throws IOException {
+        while (siguiente(buffer) != TC_ENDBLOCKDATA) {
+            if (siguiente(buffer) == TC_BLOCKDATA) {
+                buffer.get();
+                int longitud = buffer.get() & 0xFF;
+                buffer.position(buffer.position() + comprobarDisponible(buffer, longitud));
+            } else {
+                leerContenido(buffer);
+            }
+        }
+        buffer.get();
+    }
+
+    /**
+     * Lee una constante de un enumerado (el TC_ENUM ya se ha consumido).
+     *
+     * @param buffer buffer de entrada
+     * @return la constante leída
+     * @throws IOException si el nombre no es una cadena
+     */
+    private EnumLeido leerEnum(ByteBuffer buffer) throws IOException {
+        EnumLeido constante = new EnumLeido();
+        constante.desc = leerDesc(buffer);
+        registrar(constante);
+
+        Object nombre = leerContenido(buffer);
+        if (!(nombre instanceof String)) {
+            throw new StreamCorruptedException("Nombre de constante no válido");
+        }
+        constante.nombre = (String) nombre;
+        return constante;
+    }
+
+    /**
+     * Lee un objeto serializable (el TC_OBJECT ya se ha consumido).
+     *
+     * @param buffer buffer de entrada
+     * @return el objeto con sus campos
+     * @throws IOException si la clase usa serialización personalizada
+     */
+    private ObjetoLeido leerObjeto(ByteBuffer buffer) throws IOException {
+        ObjetoLeido objeto = new ObjetoLeido();
+        objeto.desc = leerDesc(buffer);
+        if (objeto.desc == null) {
+            throw new StreamCorruptedException("Objeto sin descriptor de clase");
+        }
+        registrar(objeto);
+
+        // Los datos van desde la superclase más alta hasta la propia clase
+        Deque<DescClase> jerarquia = new ArrayDeque<>();
+        for (DescClase d = objeto.desc; d != null; d = d.superDesc) {
+            jerarquia.push(d);
+        }
+
+        for (DescClase d : jerarquia) {
+            if ((d.flags & (SC_WRITE_METHOD | SC_EXTERNALIZABLE)) != 0) {
+                throw new InvalidObjectException("Serialización personalizada no soportada: " + d.nombre);
+            }
+            for (int i = 0; i < d.campos.size(); i++) {
+                objeto.valores.put(d.campos.get(i), leerValor(buffer, d.tipos.get(i)));
+            }
+        }
+        return objeto;
+    }
+
+    /**
+     * Lee el valor de un campo según su código de tipo.
+     *
+     * @param buffer buffer de entrada
+     * @param tipo código de tipo del campo
+     * @return el valor leído
+     * @throws IOException si el tipo no es válido
+     */
+    private Object leerValor(ByteBuffer buffer, char tipo) throws IOException {
+        switch (tipo) {
+            case 'B': return buffer.get();
+            case 'C': return buffer.getChar();
+            case 'D': return buffer.getDouble();
+            case 'F': return buffer.getFloat();
+            case 'I': return buffer.getInt();
+            case 'J': return buffer.getLong();
+            case 'S': return buffer.getShort();
+            case 'Z': return buffer.get() != 0;
+            case 'L':
+            case '[':
+                return leerContenido(buffer);
+            default:
+                throw new StreamCorruptedException("Tipo de campo no válido: " + tipo);
+        }
+    }
+
+    /**
+     * Convierte el objeto leído en un ChatMessage.
+     *
+     * @param leido objeto leído del flujo
+     * @return el mensaje
+     * @throws IOException si el objeto no es un ChatMessage completo
+     */
+    private ChatMessage aMensaje(Object leido) throws IOException {
+        if (!(leido instanceof ObjetoLeido objeto)
+                || !ChatMessage.class.getName().equals(objeto.desc.nombre)) {
+            throw new InvalidObjectException("Se esperaba un " + ChatMessage.class.getName());
+        }
+
+        Object id = objeto.valores.get("id");
+        Object texto = objeto.valores.get("message");
+        Object tipo = objeto.valores.get("type");
+
+        MessageType tipoMensaje = null;
+        if (tipo instanceof EnumLeido constante) {
+            try {
+                tipoMensaje = MessageType.valueOf(constante.nombre);
+            } catch (IllegalArgumentException e) {
+                throw new InvalidObjectException("Tipo de mensaje desconocido: " + constante.nombre);
+            }
+        }
+
+        // Un mensaje sin tipo o sin texto no lo genera ningún cliente válido
+        if (tipoMensaje == null || !(texto instanceof String s)) {
+            throw new InvalidObjectException("Mensaje sin tipo o sin texto");
+        }
+        return new ChatMessage(id instanceof Integer i ? i : 0, tipoMensaje, s);
+    }
+
+    /**
+     * Añade un elemento a la tabla de referencias.
+     *
+     * @param elemento elemento leído
+     * @param <T> tipo del elemento
+     * @return el mismo elemento
+     */
+    private <T> T registrar(T elemento) {
+        referencias.add(elemento);
+        return elemento;
+    }
+
+    /**
+     * Resuelve una referencia a un elemento leído anteriormente.
+     *
+     * @param handle identificador de la referencia
+     * @return el elemento referenciado
+     * @throws StreamCorruptedException si la referencia no existe
+     */
+    private Object referencia(int handle) throws StreamCorruptedException {
+        int indice = handle - baseWireHandle;
+        if (indice < 0 || indice >= referencias.size()) {
+            throw new StreamCorruptedException("Referencia no válida: " + handle);
+        }
+        return referencias.get(indice);
+    }
+
+    /**
+     * Lee la longitud de una cadena larga.
+     *
+     * @param buffer buffer de entrada
+     * @return la longitud
+     * @throws StreamCorruptedException si la longitud no cabe en un int
+     */
+    private int leerLongitudLarga(ByteBuffer buffer) throws StreamCorruptedException {
+        long longitud = buffer.getLong();
+        if (longitud < 0 || longitud > Integer.MAX_VALUE) {
+            throw new StreamCorruptedException("Longitud de cadena no válida: " + longitud);
+        }
+        return (int) longitud;
+    }
+
+    /**
+     * Consulta el siguiente byte sin consumirlo.
+     *
+     * @param buffer buffer de entrada
+     * @return el siguiente byte
+     */
+    private static byte siguiente(ByteBuffer buffer) {
+        if (!buffer.hasRemaining()) {
+            throw new BufferUnderflowException();
+        }
+        return buffer.get(buffer.position());
+    }
+
+    /**
+     * Comprueba que hay al menos los bytes indicados en el buffer.
+     *
+     * @param buffer buffer de entrada
+     * @param longitud bytes necesarios
+     * @return la misma longitud
+     */
+    private static int comprobarDisponible(ByteBuffer buffer, int longitud) {
+        if (buffer.remaining() < longitud) {
+            throw new BufferUnderflowException();
+        }
+        return longitud;
+    }
+
+    /**
+     * Lee una cadena en UTF-8 modificado (el formato de writeUTF).
+     *
+     * @param buffer buffer de entrada
+     * @param longitud número de bytes de la cadena
+     * @return la cadena
+     * @throws UTFDataFormatException si la codificación no es válida
+     */
+    private static String leerUtf(ByteBuffer buffer, int longitud) throws UTFDataFormatException {
+        byte[] bytes = new byte[comprobarDisponible(buffer, longitud)];
+        buffer.get(bytes);
+
+        char[] caracteres = new char[longitud];
+        int n = 0;
+        int i = 0;
+        while (i < longitud) {
+            int b = bytes[i] & 0xFF;
+            if (b < 0x80) {
+                caracteres[n++] = (char) b;
+                i++;
+            } else if ((b & 0xE0) == 0xC0 && i + 1 < longitud) {
+                caracteres[n++] = (char) (((b & 0x1F) << 6) | (bytes[i + 1] & 0x3F));
+                i += 2;
+            } else if ((b & 0xF0) == 0xE0 && i + 2 < longitud) {
+                caracteres[n++] = (char) (((b & 0x0F) << 12) | ((bytes[i + 1] & 0x3F) << 6)
+                        | (bytes[i + 2] & 0x3F));
+                i += 3;
+            } else {
+                throw new UTFDataFormatException("Byte no válido en la posición " + i);
+            }
+        }
+        return new String(caracteres, 0, n);
+    }
+
+    /**
+     * Descriptor de clase leído del flujo.
+     */
+    private static final class DescClase {
+        /** Nombre de la clase. */
+        private String nombre;
+        /** Flags del descriptor. */
+        private byte flags;
+        /** Códigos de tipo de los campos. */
+        private final List<Character> tipos = new ArrayList<>();
+        /** Nombres de los campos. */
+        private final List<String> campos = new ArrayList<>();
+        /** Descriptor de la superclase. */
+        private DescClase superDesc;
+    }
+
+    /**
+     * Constante de enumerado leída del flujo.
+     */
+    private static final class EnumLeido {
+        /** Descriptor del enumerado. */
+        private DescClase desc;
+        /** Nombre de la constante. */
+        private String nombre;
+    }
+
+    /**
+     * Objeto leído del flujo con sus campos.
+     */
+    private static final class ObjetoLeido {
+        /** Descriptor de la clase del objeto. */
+        private DescClase desc;
+        /** Valores de los campos por nombre. */
+        private final Map<String, Object> valores = new HashMap<>();
+    }
+}
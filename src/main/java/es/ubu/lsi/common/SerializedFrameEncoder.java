@@ -0,0 +1,54 @@
+/**
+ *
+ */
+package es.ubu.lsi.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+
+/**
+ * Codificador de tramas con serialización Java estándar.
+ *
+ * Cada trama empieza por TC_RESET seguido del objeto serializado. El reset
+ * vacía la tabla de referencias del ObjectInputStream remoto, por lo que
+ * cada trama es autocontenida y se puede escribir directamente en el socket
+ * sin pasar por un ObjectOutputStream propio de la conexión. Así es compatible
+ * con los clientes que leen con readObject().
+ *
+ * La cabecera del flujo (STREAM_HEADER) se envía una sola vez, como saludo
+ * al abrir la conexión.
+ *
+ * El mensaje se codifica tal cual, con su tipo. Los clientes antiguos no
+ * pueden leer los tipos posteriores a LOGOUT: es el servidor el que los
+ * rebaja antes de enviárselos (ver EncodedMessage).
+ */
+public class SerializedFrameEncoder implements FrameEncoder {
+
+    /** Cabecera del flujo de serialización (STREAM_MAGIC + STREAM_VERSION). */
+    public static final byte[] STREAM_HEADER = { (byte) 0xAC, (byte) 0xED, 0x00, 0x05 };
+
+    /** Instancia compartida (no tiene estado). */
+    public static final SerializedFrameEncoder INSTANCE = new SerializedFrameEncoder();
+
+    /**
+     * Codifica el mensaje como TC_RESET + objeto serializado.
+     *
+     * @param mensaje mensaje que se quiere codificar
+     * @return bytes de la trama sin la cabecera del flujo
+     * @throws IOException si falla la serialización
+     */
+    @Override
+    public byte[] encode(ChatMessage mensaje) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+            // reset() escribe TC_RESET en el flujo
+            oos.reset();
+            oos.writeObject(mensaje);
+        }
+        // Se descarta la cabecera, que solo se envía una vez por conexión
+        byte[] completo = bytes.toByteArray();
+        return Arrays.copyOfRange(completo, STREAM_HEADER.length, completo.length);
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ *
+ */
+package es.ubu.lsi.common;
+
+import java.lang.reflect.Method;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Modo de ejecución de las tareas de conexión (hilos de plataforma o
+ * virtuales).
+ *
+ * Los hilos virtuales se crean por reflexión para que el proyecto siga
+ * compilando con release 17: si la JVM en ejecución es 21 o superior se usan,
+ * y si no se avisa y se vuelve a los hilos de plataforma.
+ *
+ * Se elige con la propiedad del sistema chat.threads (platform o virtual).
+ */
+public enum ThreadMode {
+
+    /** Un hilo del sistema operativo por tarea. */
+    PLATFORM,
+
+    /** Un hilo virtual por tarea (Java 21 o superior). */
+    VIRTUAL;
+
+    /** Nombre de la propiedad del sistema que elige el modo. */
+    public static final String PROPIEDAD = "chat.threads";
+
+    /** Logger para avisar de la vuelta a hilos de plataforma. */
+    private static final Logger LOGGER = Logger.getLogger(ThreadMode.class.getName());
+
+    /**
+     * Lee el modo de la propiedad del sistema chat.threads.
+     *
+     * @return el modo elegido o PLATFORM si no se indica o no es válido
+     */
+    public static ThreadMode desdeSistema() {
+        String valor = System.getProperty(PROPIEDAD);
+        if (valor == null) {
+            return PLATFORM;
+        }
+        try {
+            return valueOf(valor.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            LOGGER.warning("Valor no válido para " + PROPIEDAD + ": " + valor);
+            return PLATFORM;
+        }
+    }
+
+    /**
+     * Crea una fábrica de hilos con nombres prefijo-0, prefijo-1...
+     *
+     * @param prefijo prefijo del nombre de los hilos
+     * @return la fábrica de hilos
+     */
+    public ThreadFactory fabrica(String prefijo) {
+        if (this == VIRTUAL) {
+            ThreadFactory virtual = fabricaVirtual(prefijo);
+            if (virtual != null) {
+                return virtual;
+            }
+        }
+
+        AtomicInteger contador = new AtomicInteger();
+        return tarea -> new Thread(tarea, prefijo + "-" + contador.getAndIncrement());
+    }
+
+    /**
+     * Crea un ejecutor para tareas de larga duración (una por conexión).
+     *
+     * Con hilos virtuales se crea un hilo nuevo por tarea (no se reutilizan);
+     * con hilos de plataforma se usa un pool que reutiliza los hilos libres.
+     *
+     * @param prefijo prefijo del nombre de los hilos
+     * @return el ejecutor
+     */
+    public ExecutorService nuevoEjecutor(String prefijo) {
+        ThreadFactory fabrica = fabrica(prefijo);
+        if (this == VIRTUAL) {
+            try {
+                Method porTarea = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+                return (ExecutorService) porTarea.invoke(null, fabrica);
+            } catch (ReflectiveOperationException e) {
+                LOGGER.fine("Sin newThreadPerTaskExecutor, se usa un pool");
+            }
+        }
+        return Executors.newCachedThreadPool(fabrica);
+    }
+
+    /**
+     * Crea la fábrica de hilos virtuales (Thread.ofVirtual().name(prefijo, 0).factory()).
+     *
+     * @param prefijo prefijo del nombre de los hilos
+     * @return la fábrica o null si la JVM no tiene hilos virtuales
+     */
+    private static ThreadFactory fabricaVirtual(String prefijo) {
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            Object virtual = Thread.class.getMethod("ofVirtual").invoke(null);
+            virtual = builder.getMethod("name", String.class, long.class).invoke(virtual, prefijo + "-", 0L);
+            return (ThreadFactory) builder.getMethod("factory").invoke(virtual);
+        } catch (ReflectiveOperationException e) {
+            LOGGER.warning("Esta JVM no tiene hilos virtuales (requiere Java 21), se usan hilos de plataforma");
+            return null;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ *
+ */
+package es.ubu.lsi.common;
+
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.logging.Logger;
+
+/**
+ * Formato de las tramas en la conexión y negociación al conectar.
+ *
+ * Al abrir la conexión:
+ *  - El servidor envía siempre la cabecera de serialización (4 bytes), que
+ *    es lo que esperan los clientes antiguos en new ObjectInputStream().
+ *  - El cliente envía su saludo de 4 bytes: la misma cabecera si habla
+ *    serialización Java, o BINARY_MAGIC si habla el formato binario.
+ *
+ * El servidor elige el formato de la conexión según el saludo recibido, así
+ * que los clientes antiguos siguen funcionando sin cambios.
+ *
+ * El cliente elige el formato con la propiedad del sistema chat.wire
+ * (binary por defecto, o serialized).
+ */
+public enum WireFormat {
+
+    /** Serialización Java de ChatMessage (clientes antiguos). */
+    SERIALIZED,
+
+    /** Formato binario compacto: longitud, id, tipo y texto UTF-8. */
+    BINARY;
+
+    /** Nombre de la propiedad del sistema que elige el formato del cliente. */
+    public static final String PROPIEDAD = "chat.wire";
+
+    /** Saludo de los clientes que hablan el formato binario ("CHB" + versión 1). */
+    public static final byte[] BINARY_MAGIC = { 'C', 'H', 'B', 1 };
+
+    /** Saludo del servidor, igual para todos los clientes. */
+    public static final byte[] SALUDO_SERVIDOR = SerializedFrameEncoder.STREAM_HEADER;
+
+    /** Longitud de los saludos. */
+    public static final int LONGITUD_SALUDO = 4;
+
+    /** Tamaño máximo de una trama. */
+    public static final int MAX_TRAMA = 1024 * 1024;
+
+    /** Logger para avisar de valores no válidos. */
+    private static final Logger LOGGER = Logger.getLogger(WireFormat.class.getName());
+
+    /**
+     * Devuelve el saludo que envía el cliente para pedir este formato.
+     *
+     * @return los 4 bytes del saludo
+     */
+    public byte[] saludo() {
+        return this == BINARY ? BINARY_MAGIC.clone() : SerializedFrameEncoder.STREAM_HEADER.clone();
+    }
+
+    /**
+     * Devuelve el codificador de este formato (no tiene estado).
+     *
+     * @return el codificador
+     */
+    public FrameEncoder encoder() {
+        return this == BINARY ? BinaryFrameEncoder.INSTANCE : SerializedFrameEncoder.INSTANCE;
+    }
+
+    /**
+     * Crea un decodificador de este formato para una conexión.
+     *
+     * @return un decodificador nuevo
+     */
+    public FrameDecoder nuevoDecoder() {
+        return this == BINARY ? new BinaryFrameDecoder() : new SerializedFrameDecoder();
+    }
+
+    /**
+     * Identifica el formato pedido por un cliente a partir de su saludo.
+     *
+     * @param saludo los 4 primeros bytes recibidos del cliente
+     * @return el formato pedido
+     * @throws StreamCorruptedException si el saludo no es de ningún formato
+     */
+    public static WireFormat desdeSaludo(byte[] saludo) throws StreamCorruptedException {
+        if (Arrays.equals(saludo, BINARY_MAGIC)) {
+            return BINARY;
+        }
+        if (Arrays.equals(saludo, SerializedFrameEncoder.STREAM_HEADER)) {
+            return SERIALIZED;
+        }
+        throw new StreamCorruptedException("Saludo de cliente no válido");
+    }
+
+    /**
+     * Comprueba el saludo recibido del servidor.
+     *
+     * @param saludo los 4 primeros bytes recibidos del servidor
+     * @throws StreamCorruptedException si no es el saludo esperado
+     */
+    public static void comprobarSaludoServidor(byte[] saludo) throws StreamCorruptedException {
+        if (!Arrays.equals(saludo, SALUDO_SERVIDOR)) {
+            throw new StreamCorruptedException("Saludo de servidor no válido");
+        }
+    }
+
+    /**
+     * Lee el formato de la propiedad del sistema chat.wire.
+     *
+     * @return el formato elegido o BINARY si no se indica o no es válido
+     */
+    public static WireFormat desdeSistema() {
+        String valor = System.getProperty(PROPIEDAD);
+        if (valor == null) {
+            return BINARY;
+        }
+        try {
+            return valueOf(valor.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            LOGGER.warning("Valor no válido para " + PROPIEDAD + ": " + valor);
+            return BINARY;
+        }
+    }
+}
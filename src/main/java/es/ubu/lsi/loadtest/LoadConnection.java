@@ -0,0 +1,208 @@
+/**
+ *
+ */
+package es.ubu.lsi.loadtest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.locks.ReentrantLock;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessage.MessageType;
+import es.ubu.lsi.common.FrameEncoder;
+import es.ubu.lsi.common.FrameReader;
+import es.ubu.lsi.common.WireFormat;
+
+/**
+ * Conexión del generador de carga.
+ *
+ * Hace el mismo intercambio inicial que ChatClientImpl (saludos, nombre de
+ * usuario, id y bienvenida) y después lee los mensajes del chat sin mostrarlos.
+ * Los mensajes que publica llevan el instante (System.nanoTime) en el que se
+ * tenían que enviar; al recibirlos se calcula la latencia de entrega.
+ */
+class LoadConnection implements Runnable {
+
+    /** Marca que precede al instante de envío en el texto del mensaje. */
+    static final String MARCA = "ha escrito: lt ";
+
+    /** Nombre de usuario. */
+    private final String username;
+
+    /** Formato de las tramas. */
+    private final WireFormat formato;
+
+    /** Codificador de las tramas. */
+    private final FrameEncoder encoder;
+
+    /** Resultados compartidos de la prueba. */
+    private final LoadGenerator.Resultados resultados;
+
+    /** Socket de la conexión. */
+    private Socket socket;
+
+    /** Flujo de salida (escriben el hilo que marca el ritmo y el lector, que contesta a los PING). */
+    private OutputStream out;
+
+    /** Cerrojo de las escrituras en el flujo de salida. */
+    private final ReentrantLock envio = new ReentrantLock();
+
+    /** Lector de tramas. */
+    private FrameReader in;
+
+    /** Id asignado por el servidor. */
+    private int id;
+
+    /** Indica si la conexión sigue abierta. */
+    private volatile boolean activa;
+
+    /**
+     * Constructor.
+     *
+     * @param username nombre de usuario (único)
+     * @param formato formato de las tramas
+     * @param resultados resultados compartidos de la prueba
+     */
+    LoadConnection(String username, WireFormat formato, LoadGenerator.Resultados resultados) {
+        this.username = username;
+        this.formato = formato;
+        this.encoder = formato.encoder();
+        this.resultados = resultados;
+    }
+
+    /**
+     * Abre la conexión y hace el intercambio inicial con el servidor.
+     *
+     * @param host servidor
+     * @param port puerto
+     * @throws IOException si falla la conexión o el servidor rechaza al usuario
+     */
+    void conectar(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        out = new BufferedOutputStream(socket.getOutputStream());
+        out.write(formato.saludo());
+
+        InputStream entrada = new BufferedInputStream(socket.getInputStream());
+        WireFormat.comprobarSaludoServidor(FrameReader.leerSaludo(entrada));
+        in = new FrameReader(entrada, formato.nuevoDecoder());
+
+        // Nombre de usuario, id y bienvenida, como ChatClientImpl.iniciarConexion()
+        enviar(new ChatMessage(0, MessageType.MESSAGE, username));
+        ChatMessage respuesta = in.read();
+        if (respuesta.getType() != MessageType.MESSAGE) {
+            throw new IOException("Usuario rechazado: " + respuesta.getMessage());
+        }
+        id = Integer.parseInt(respuesta.getMessage());
+        in.read();
+        activa = true;
+    }
+
+    /**
+     * Publica un mensaje con el instante en el que se tenía que enviar.
+     *
+     * @param instanteNanos instante previsto (System.nanoTime)
+     * @throws IOException si falla el envío
+     */
+    void publicar(long instanteNanos) throws IOException {
+        enviar(new ChatMessage(id, MessageType.MESSAGE, "lt " + instanteNanos));
+    }
+
+    /**
+     * Lee los mensajes hasta que se cierra la conexión y registra la
+     * latencia de los publicados por el generador.
+     */
+    @Override
+    public void run() {
+        try {
+            while (activa) {
+                ChatMessage mensaje = in.read();
+                if (mensaje.getType() == MessageType.RESUME) {
+                    // Token de reanudación: el generador no reconecta
+                    continue;
+                }
+                if (mensaje.getType() == MessageType.PING) {
+                    // Latido: sin respuesta el servidor cerraría las conexiones que no publican
+                    enviar(new ChatMessage(id, MessageType.PONG, mensaje.getMessage()));
+                    continue;
+                }
+                if (mensaje.getType() != MessageType.MESSAGE) {
+                    break;
+                }
+                registrar(mensaje.getMessage());
+            }
+        } catch (IOException e) {
+            if (activa) {
+                resultados.errores.increment();
+            }
+        } finally {
+            activa = false;
+        }
+    }
+
+    /**
+     * Se despide del servidor (logout) y cierra el socket.
+     */
+    void cerrar() {
+        if (socket == null) {
+            return;
+        }
+        boolean abierta = activa;
+        activa = false;
+        try {
+            if (abierta) {
+                enviar(new ChatMessage(id, MessageType.LOGOUT, ""));
+            }
+        } catch (IOException e) {
+            // Se cierra igualmente
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nada más que hacer
+        }
+    }
+
+    /**
+     * Calcula y registra la latencia de un mensaje recibido.
+     *
+     * @param texto texto del mensaje
+     */
+    private void registrar(String texto) {
+        int posicion = texto.lastIndexOf(MARCA);
+        if (posicion < 0) {
+            return;
+        }
+        long enviado;
+        try {
+            enviado = Long.parseLong(texto.substring(posicion + MARCA.length()));
+        } catch (NumberFormatException e) {
+            return;
+        }
+
+        // Los mensajes del calentamiento no cuentan
+        if (enviado >= resultados.inicioMedida) {
+            resultados.latencias.registrar(System.nanoTime() - enviado);
+        }
+    }
+
+    /**
+     * Codifica y envía un mensaje.
+     *
+     * @param mensaje mensaje enviado
+     * @throws IOException si falla el envío
+     */
+    private void enviar(ChatMessage mensaje) throws IOException {
+        envio.lock();
+        try {
+            out.write(encoder.encode(mensaje));
+            out.flush();
+        } finally {
+            envio.unlock();
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/**
+ *
+ */
+package es.ubu.lsi.loadtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import es.ubu.lsi.common.LatencyHistogram;
+import es.ubu.lsi.common.ThreadMode;
+import es.ubu.lsi.common.WireFormat;
+
+/**
+ * Generador de carga para el servidor de chat.
+ *
+ * Abre muchas conexiones a la vez con el mismo protocolo que ChatClientImpl,
+ * publica mensajes a un ritmo fijo repartidos entre todas ellas y mide:
+ *  - El tiempo de establecimiento de las conexiones.
+ *  - La latencia de entrega de cada mensaje a cada destinatario (p50/p99/p999).
+ *  - Los mensajes enviados y entregados por segundo.
+ *
+ * La latencia se mide desde el instante en el que el mensaje se tenía que
+ * enviar según el ritmo, no desde que se envió de verdad: si el generador o
+ * el servidor se retrasan, el retraso se cuenta (sin omisión coordinada).
+ *
+ * Se configura con propiedades del sistema:
+ *  - load.host, load.port: servidor (localhost:1500).
+ *  - load.clients: número de conexiones (1000).
+ *  - load.rate: mensajes publicados por segundo entre todas (200).
+ *  - load.warmup, load.duration: segundos de calentamiento y de medida (5 y 30).
+ *  - load.connect.parallel: conexiones que se abren a la vez (64).
+ *  - chat.wire y chat.threads, como en el cliente.
+ */
+public class LoadGenerator {
+
+    /**
+     * Resultados compartidos por todas las conexiones.
+     */
+    static class Resultados {
+
+        /** Latencias de entrega en nanosegundos. */
+        final LatencyHistogram latencias = new LatencyHistogram();
+
+        /** Tiempos de establecimiento de las conexiones en nanosegundos. */
+        final LatencyHistogram conexiones = new LatencyHistogram();
+
+        /** Errores de lectura en conexiones abiertas. */
+        final LongAdder errores = new LongAdder();
+
+        /** Instante (System.nanoTime) a partir del cual se mide. */
+        volatile long inicioMedida = Long.MAX_VALUE;
+    }
+
+    /** Servidor. */
+    private final String host;
+
+    /** Puerto. */
+    private final int port;
+
+    /** Número de conexiones. */
+    private final int clientes;
+
+    /** Mensajes por segundo entre todas las conexiones. */
+    private final int ritmo;
+
+    /** Segundos de calentamiento. */
+    private final int calentamiento;
+
+    /** Segundos de medida. */
+    private final int duracion;
+
+    /** Conexiones que se abren a la vez. */
+    private final int paralelas;
+
+    /** Formato de las tramas. */
+    private final WireFormat formato = WireFormat.desdeSistema();
+
+    /** Resultados de la prueba. */
+    private final Resultados resultados = new Resultados();
+
+    /** Conexiones abiertas. */
+    private final List<LoadConnection> abiertas = new CopyOnWriteArrayList<>();
+
+    /**
+     * Constructor con la configuración de las propiedades del sistema.
+     */
+    public LoadGenerator() {
+        this.host = System.getProperty("load.host", "localhost");
+        this.port = Integer.getInteger("load.port", 1500);
+        this.clientes = Integer.getInteger("load.clients", 1000);
+        this.ritmo = Math.max(1, Integer.getInteger("load.rate", 200));
+        this.calentamiento = Integer.getInteger("load.warmup", 5);
+        this.duracion = Integer.getInteger("load.duration", 30);
+        this.paralelas = Math.max(1, Integer.getInteger("load.connect.parallel", 64));
+    }
+
+    /**
+     * Ejecuta la prueba completa y muestra los resultados.
+     *
+     * @throws InterruptedException si se interrumpe la espera
+     */
+    public void ejecutar() throws InterruptedException {
+        ExecutorService lectores = ThreadMode.desdeSistema().nuevoEjecutor("carga-lector");
+        try {
+            conectarTodos(lectores);
+            if (abiertas.isEmpty()) {
+                System.out.println("No se ha podido abrir ninguna conexión.");
+                return;
+            }
+
+            // Calentamiento y después medida, sin parar de publicar
+            long inicio = System.nanoTime();
+            long finCalentamiento = inicio + TimeUnit.SECONDS.toNanos(calentamiento);
+            long fin = finCalentamiento + TimeUnit.SECONDS.toNanos(duracion);
+            resultados.inicioMedida = finCalentamiento;
+            long enviados = publicar(inicio, fin, finCalentamiento);
+
+            // Se da un margen para que lleguen los últimos mensajes
+            Thread.sleep(2000);
+            informar(enviados);
+        } finally {
+            for (LoadConnection conexion : abiertas) {
+                conexion.cerrar();
+            }
+            lectores.shutdownNow();
+        }
+    }
+
+    /**
+     * Abre las conexiones (varias a la vez) y lanza el lector de cada una.
+     *
+     * @param lectores ejecutor de los lectores
+     * @throws InterruptedException si se interrumpe la espera
+     */
+    private void conectarTodos(ExecutorService lectores) throws InterruptedException {
+        ExecutorService conectores = Executors.newFixedThreadPool(paralelas);
+        List<Callable<Void>> tareas = new ArrayList<>(clientes);
+        for (int i = 0; i < clientes; i++) {
+            String username = "carga-" + i;
+            tareas.add(() -> {
+                LoadConnection conexion = new LoadConnection(username, formato, resultados);
+                long t0 = System.nanoTime();
+                try {
+                    conexion.conectar(host, port);
+                    resultados.conexiones.registrar(System.nanoTime() - t0);
+                    abiertas.add(conexion);
+                    lectores.execute(conexion);
+                } catch (IOException e) {
+                    resultados.errores.increment();
+                    conexion.cerrar();
+                }
+                return null;
+            });
+        }
+        long t0 = System.nanoTime();
+        conectores.invokeAll(tareas);
+        conectores.shutdown();
+        System.out.printf(Locale.ROOT, "Conexiones abiertas: %d de %d en %.1f s%n",
+                abiertas.size(), clientes, (System.nanoTime() - t0) / 1e9);
+    }
+
+    /**
+     * Publica mensajes al ritmo indicado, cada vez desde una conexión.
+     *
+     * @param inicio instante de inicio
+     * @param fin instante de fin
+     * @param inicioMedida instante a partir del cual se cuentan los envíos
+     * @return mensajes enviados durante la medida
+     */
+    private long publicar(long inicio, long fin, long inicioMedida) {
+        long periodo = TimeUnit.SECONDS.toNanos(1) / ritmo;
+        long enviados = 0;
+        int siguiente = 0;
+        for (long previsto = inicio; previsto < fin; previsto += periodo) {
+            long espera;
+            while ((espera = previsto - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(espera);
+            }
+            LoadConnection conexion = abiertas.get(siguiente++ % abiertas.size());
+            try {
+                conexion.publicar(previsto);
+                if (previsto >= inicioMedida) {
+                    enviados++;
+                }
+            } catch (IOException e) {
+                resultados.errores.increment();
+            }
+        }
+        return enviados;
+    }
+
+    /**
+     * Muestra los resultados de la medida.
+     *
+     * @param enviados mensajes enviados durante la medida
+     */
+    private void informar(long enviados) {
+        LatencyHistogram lat = resultados.latencias;
+        LatencyHistogram con = resultados.conexiones;
+        System.out.printf(Locale.ROOT, "Formato: %s, conexiones: %d, ritmo: %d msg/s, medida: %d s%n",
+                formato, abiertas.size(), ritmo, duracion);
+        System.out.printf(Locale.ROOT, "Conexión (ms): p50=%.2f p99=%.2f max=%.2f%n",
+                con.percentil(50) / 1e6, con.percentil(99) / 1e6, con.getMaximo() / 1e6);
+        System.out.printf(Locale.ROOT, "Enviados: %d (%.1f msg/s)  Entregados: %d (%.1f msg/s, esperados %d)%n",
+                enviados, (double) enviados / duracion, lat.getCuenta(),
+                (double) lat.getCuenta() / duracion, enviados * abiertas.size());
+        System.out.printf(Locale.ROOT, "Latencia (ms): p50=%.3f p99=%.3f p999=%.3f max=%.3f media=%.3f%n",
+                lat.percentil(50) / 1e6, lat.percentil(99) / 1e6, lat.percentil(99.9) / 1e6,
+                lat.getMaximo() / 1e6, lat.getMedia() / 1e6);
+        System.out.printf(Locale.ROOT, "Errores: %d%n", resultados.errores.sum());
+    }
+
+    /**
+     * Método main.
+     *
+     * @param args no se usan (la configuración va en propiedades del sistema)
+     * @throws InterruptedException si se interrumpe la prueba
+     */
+    public static void main(String[] args) throws InterruptedException {
+        new LoadGenerator().ejecutar();
+    }
+}
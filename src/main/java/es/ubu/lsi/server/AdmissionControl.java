@@ -0,0 +1,256 @@
+/**
+ *
+ */
+package es.ubu.lsi.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Control de admisión de las conexiones entrantes.
+ *
+ * Cada conexión aceptada pasa por tres filtros antes de que el servidor
+ * le dedique nada:
+ *  - La tasa de conexiones de su dirección de origen (un TokenBucket por
+ *    dirección, chat.accept.rate y chat.accept.burst).
+ *  - El máximo de conexiones abiertas (chat.max.connections).
+ *  - El máximo de inicios a medias (chat.handshake.max): conexiones que aún
+ *    no han terminado el saludo y el nombre de usuario.
+ *
+ * Si no pasa, se cierra en el momento con un RST (SO_LINGER a 0), sin
+ * enviar nada ni dejar el socket en TIME_WAIT. Así una avalancha de
+ * reconexiones tras un despliegue no llena el servidor de hilos esperando
+ * nombres de usuario que no llegan.
+ *
+ * Además cada inicio tiene un plazo (chat.handshake.timeout.ms): si no
+ * termina a tiempo se cierra la conexión desde un temporizador, tanto si el
+ * cliente no envía nada como si lo envía byte a byte.
+ */
+class AdmissionControl {
+
+    /** Logger de los rechazos (solo con nivel FINE: en una avalancha son muchos). */
+    private static final Logger LOGGER = Logger.getLogger(AdmissionControl.class.getName());
+
+    /** Direcciones de origen a partir de las que se olvidan los cubos que no se usan. */
+    private static final int MAX_ORIGENES = 10_000;
+
+    /** Conexiones abiertas como máximo (0 sin límite). */
+    private final int maxConexiones;
+
+    /** Huecos para inicios a medias (null sin límite). */
+    private final Semaphore inicios;
+
+    /** Plazo de cada inicio en milisegundos (0 sin plazo). */
+    private final long plazoInicioMs;
+
+    /** Conexiones por segundo de cada origen (0 sin límite). */
+    private final double tasaPorOrigen;
+
+    /** Conexiones seguidas que se admiten de un origen. */
+    private final double rafagaPorOrigen;
+
+    /** Cubos de fichas por dirección de origen. */
+    private final Map<InetAddress, TokenBucket> porOrigen = new ConcurrentHashMap<>();
+
+    /** Conexiones admitidas y aún abiertas. */
+    private final AtomicInteger conexiones = new AtomicInteger();
+
+    /** Conexiones rechazadas. */
+    private final LongAdder rechazadas = new LongAdder();
+
+    /** Hilo de los plazos de inicio (se crea con el primero). */
+    private ScheduledExecutorService temporizador;
+
+    /**
+     * Constructor.
+     *
+     * @param config configuración del servidor
+     */
+    AdmissionControl(ServerConfig config) {
+        this.maxConexiones = config.getMaxConnections();
+        this.inicios = config.getHandshakeMax() > 0 ? new Semaphore(config.getHandshakeMax()) : null;
+        this.plazoInicioMs = config.getHandshakeTimeoutMillis();
+        this.tasaPorOrigen = config.getAcceptRate();
+        this.rafagaPorOrigen = config.getAcceptBurst();
+    }
+
+    /**
+     * Decide si se admite una conexión recién aceptada. Si se admite, cuenta
+     * como abierta y ocupa un hueco de inicio hasta que se llame a
+     * inicioTerminado.
+     *
+     * @param origen dirección del cliente
+     * @return true si se admite y false si hay que rechazarla
+     */
+    boolean admitir(InetAddress origen) {
+        if (!permitidaPorOrigen(origen)) {
+            return rechazar(origen, "demasiadas conexiones desde su dirección");
+        }
+        if (conexiones.incrementAndGet() > maxConexiones && maxConexiones > 0) {
+            conexiones.decrementAndGet();
+            return rechazar(origen, "máximo de conexiones alcanzado");
+        }
+        if (inicios != null && !inicios.tryAcquire()) {
+            conexiones.decrementAndGet();
+            return rechazar(origen, "demasiados inicios a medias");
+        }
+        return true;
+    }
+
+    /**
+     * Programa el plazo del inicio de una conexión admitida.
+     *
+     * @param alCaducar acción que cierra la conexión si no termina a tiempo
+     * @return el plazo programado, o null si no hay plazo
+     */
+    ScheduledFuture<?> vigilarInicio(Runnable alCaducar) {
+        if (plazoInicioMs == 0) {
+            return null;
+        }
+        try {
+            return temporizador().schedule(alCaducar, plazoInicioMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // El servidor se está apagando: la conexión se cerrará igualmente
+            return null;
+        }
+    }
+
+    /**
+     * Libera el hueco de inicio de una conexión y cancela su plazo. Se llama
+     * una sola vez por conexión admitida, termine bien o mal el inicio.
+     *
+     * @param plazo plazo programado (o null)
+     */
+    void inicioTerminado(ScheduledFuture<?> plazo) {
+        if (plazo != null) {
+            plazo.cancel(false);
+        }
+        if (inicios != null) {
+            inicios.release();
+        }
+    }
+
+    /**
+     * Cuenta el cierre de una conexión admitida.
+     */
+    void conexionCerrada() {
+        conexiones.decrementAndGet();
+    }
+
+    /**
+     * Devuelve las conexiones admitidas y aún abiertas.
+     *
+     * @return conexiones abiertas
+     */
+    int getConexiones() {
+        return conexiones.get();
+    }
+
+    /**
+     * Devuelve las conexiones rechazadas desde el arranque.
+     *
+     * @return conexiones rechazadas
+     */
+    long getRechazadas() {
+        return rechazadas.sum();
+    }
+
+    /**
+     * Para el temporizador de los plazos.
+     */
+    synchronized void cerrar() {
+        if (temporizador != null) {
+            temporizador.shutdownNow();
+        }
+    }
+
+    /**
+     * Cierra un socket rechazado con un RST.
+     *
+     * @param socket socket recién aceptado
+     */
+    static void cortar(Socket socket) {
+        try {
+            socket.setSoLinger(true, 0);
+            socket.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Error cerrando una conexión rechazada", e);
+        }
+    }
+
+    /**
+     * Cierra un canal rechazado con un RST.
+     *
+     * @param canal canal recién aceptado
+     */
+    static void cortar(SocketChannel canal) {
+        try {
+            canal.setOption(StandardSocketOptions.SO_LINGER, 0);
+            canal.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Error cerrando una conexión rechazada", e);
+        }
+    }
+
+    /**
+     * Gasta una ficha del cubo del origen. Si hay demasiados orígenes se
+     * olvidan los cubos llenos, que no limitan nada.
+     *
+     * @param origen dirección del cliente
+     * @return true si el origen no supera su tasa
+     */
+    private boolean permitidaPorOrigen(InetAddress origen) {
+        if (tasaPorOrigen <= 0 || origen == null) {
+            return true;
+        }
+        if (porOrigen.size() > MAX_ORIGENES) {
+            porOrigen.values().removeIf(TokenBucket::lleno);
+        }
+        return porOrigen.computeIfAbsent(origen, k -> new TokenBucket(tasaPorOrigen, rafagaPorOrigen))
+                .consumir(1);
+    }
+
+    /**
+     * Cuenta y registra un rechazo.
+     *
+     * @param origen dirección del cliente
+     * @param motivo motivo del rechazo
+     * @return false, para devolverlo directamente
+     */
+    private boolean rechazar(InetAddress origen, String motivo) {
+        rechazadas.increment();
+        LOGGER.log(Level.FINE, "Conexión de {0} rechazada: {1}", new Object[] { origen, motivo });
+        return false;
+    }
+
+    /**
+     * Devuelve el temporizador, creándolo si hace falta.
+     *
+     * @return el temporizador de los plazos
+     */
+    private synchronized ScheduledExecutorService temporizador() {
+        if (temporizador == null) {
+            temporizador = Executors.newSingleThreadScheduledExecutor(tarea -> {
+                Thread hilo = new Thread(tarea, "chat-admision");
+                hilo.setDaemon(true);
+                return hilo;
+            });
+        }
+        return temporizador;
+    }
+}
@@ -0,0 +1,194 @@
+/**
+ *
+ */
+package es.ubu.lsi.server;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Índice invertido de baneos de todo el servidor.
+ *
+ * Para cada usuario baneado guarda el conjunto de ids de las sesiones que lo
+ * han baneado. El broadcast pide una sola vez el conjunto del emisor y, si
+ * nadie lo ha baneado (lo normal), envía a todos sin consultar nada por
+ * destinatario.
+ *
+ * Los conjuntos son arrays ordenados de ids y no un BitSet: los ids de sesión
+ * no se reutilizan, así que un BitSet crecería con el total de conexiones
+ * del servidor y no con las sesiones que banean. El array ocupa lo que
+ * haya de estas, y consultarlo es una búsqueda binaria.
+ *
+ * Los conjuntos publicados no se modifican nunca: cada cambio crea una copia
+ * (copy-on-write), así que se pueden leer sin cerrojos mientras otro hilo
+ * banea o desbanea. Los baneos son pocos comparados con los mensajes.
+ *
+ * Como antes, un baneo es de la sesión que lo hace: se olvida cuando esa
+ * sesión se desconecta.
+ */
+class BanIndex {
+
+    /** Usuario baneado → ids de las sesiones que lo han baneado. */
+    private final Map<String, Baneadores> baneadores = new ConcurrentHashMap<>();
+
+    /** Id de sesión → usuarios que ha baneado (para limpiar al desconectar). */
+    private final Map<Integer, Set<String>> baneosPorSesion = new ConcurrentHashMap<>();
+
+    /**
+     * Registra que una sesión banea a un usuario.
+     *
+     * @param idSesion id de la sesión que banea
+     * @param usuario nombre del usuario baneado
+     */
+    void banear(int idSesion, String usuario) {
+        baneosPorSesion.computeIfAbsent(idSesion, k -> ConcurrentHashMap.newKeySet()).add(usuario);
+        baneadores.compute(usuario, (k, actual) -> actual == null ? new Baneadores(new int[] { idSesion })
+                : actual.con(idSesion));
+    }
+
+    /**
+     * Registra que una sesión desbanea a un usuario.
+     *
+     * @param idSesion id de la sesión que desbanea
+     * @param usuario nombre del usuario desbaneado
+     */
+    void desbanear(int idSesion, String usuario) {
+        Set<String> baneos = baneosPorSesion.get(idSesion);
+        if (baneos != null) {
+            baneos.remove(usuario);
+        }
+        quitar(idSesion, usuario);
+    }
+
+    /**
+     * Devuelve las sesiones que han baneado a un usuario.
+     *
+     * @param usuario nombre del usuario
+     * @return ids de las sesiones (no se debe modificar) o null si no hay ninguna
+     */
+    Baneadores baneadoresDe(String usuario) {
+        return usuario == null ? null : baneadores.get(usuario);
+    }
+
+    /**
+     * Indica si una sesión ha baneado a un usuario.
+     *
+     * @param idSesion id de la sesión
+     * @param usuario nombre del usuario
+     * @return true si lo ha baneado
+     */
+    boolean haBaneado(int idSesion, String usuario) {
+        Baneadores ids = baneadoresDe(usuario);
+        return ids != null && ids.contiene(idSesion);
+    }
+
+    /**
+     * Olvida todos los baneos de una sesión que se ha desconectado.
+     *
+     * @param idSesion id de la sesión
+     */
+    void olvidar(int idSesion) {
+        Set<String> baneos = baneosPorSesion.remove(idSesion);
+        if (baneos != null) {
+            for (String usuario : baneos) {
+                quitar(idSesion, usuario);
+            }
+        }
+    }
+
+    /**
+     * Vacía el índice.
+     */
+    void limpiar() {
+        baneadores.clear();
+        baneosPorSesion.clear();
+    }
+
+    /**
+     * Quita una sesión del conjunto de un usuario (y el conjunto si queda vacío).
+     *
+     * @param idSesion id de la sesión
+     * @param usuario nombre del usuario
+     */
+    private void quitar(int idSesion, String usuario) {
+        baneadores.computeIfPresent(usuario, (k, actual) -> actual.sin(idSesion));
+    }
+
+    /**
+     * Conjunto inmutable de ids de sesión que han baneado a un usuario.
+     */
+    static final class Baneadores {
+
+        /** Ids ordenados, sin repetir. */
+        private final int[] ids;
+
+        /**
+         * Constructor.
+         *
+         * @param ids ids ordenados (no se copian)
+         */
+        private Baneadores(int[] ids) {
+            this.ids = ids;
+        }
+
+        /**
+         * Indica si una sesión está en el conjunto.
+         *
+         * @param idSesion id de la sesión
+         * @return true si está
+         */
+        boolean contiene(int idSesion) {
+            return Arrays.binarySearch(ids, idSesion) >= 0;
+        }
+
+        /**
+         * Devuelve el número de sesiones del conjunto.
+         *
+         * @return número de sesiones
+         */
+        int tamano() {
+            return ids.length;
+        }
+
+        /**
+         * Devuelve una copia con una sesión más.
+         *
+         * @param idSesion id de la sesión
+         * @return el nuevo conjunto (este mismo si ya estaba)
+         */
+        private Baneadores con(int idSesion) {
+            int pos = Arrays.binarySearch(ids, idSesion);
+            if (pos >= 0) {
+                return this;
+            }
+            pos = -pos - 1;
+            int[] nuevos = new int[ids.length + 1];
+            System.arraycopy(ids, 0, nuevos, 0, pos);
+            nuevos[pos] = idSesion;
+            System.arraycopy(ids, pos, nuevos, pos + 1, ids.length - pos);
+            return new Baneadores(nuevos);
+        }
+
+        /**
+         * Devuelve una copia sin una sesión.
+         *
+         * @param idSesion id de la sesión
+         * @return el nuevo conjunto (este mismo si no estaba, null si queda vacío)
+         */
+        private Baneadores sin(int idSesion) {
+            int pos = Arrays.binarySearch(ids, idSesion);
+            if (pos < 0) {
+                return this;
+            }
+            if (ids.length == 1) {
+                return null;
+            }
+            int[] nuevos = new int[ids.length - 1];
+            System.arraycopy(ids, 0, nuevos, 0, pos);
+            System.arraycopy(ids, pos + 1, nuevos, pos, nuevos.length - pos);
+            return new Baneadores(nuevos);
+        }
+    }
+}
@@ -3,6 +3,8 @@
  */
 package es.ubu.lsi.server;
 
+import java.time.Duration;
+
 import es.ubu.lsi.common.ChatMessage;
 
 /**
@@ -24,6 +26,14 @@ public interface ChatServer {
 	 */
 	public void shutdown();
 	
+	/**
+	 * Para el servidor, esperando como mucho el plazo a que los clientes
+	 * reciban lo que tienen pendiente
+	 * 
+	 * @param plazo tiempo máximo para vaciar las colas de los clientes
+	 */
+	public void shutdown(Duration plazo);
+	
 	/**
 	 * Envía el mensaje del servidor a los clientes
 	 * 
@@ -31,6 +41,15 @@ public interface ChatServer {
 	 */
 	public void broadcast(ChatMessage mensaje);
 	
+	/**
+	 * Envía el mensaje a un solo cliente
+	 * 
+	 * @param destinatario nombre del usuario que lo recibe
+	 * @param mensaje que se quiere enviar
+	 * @return true si el destinatario está conectado
+	 */
+	public boolean send(String destinatario, ChatMessage mensaje);
+	
 	/**
 	 * Elimina el cliente cuya identidad se pasa por parámetro
 	 * 
@@ -3,19 +3,45 @@
  */
 package es.ubu.lsi.server;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import es.ubu.lsi.common.AsyncLogger;
 import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.EncodedMessage;
+import es.ubu.lsi.common.FrameReader;
+import es.ubu.lsi.common.WireFormat;
 import es.ubu.lsi.common.ChatMessage.MessageType;
 
 /**
@@ -23,52 +49,100 @@ import es.ubu.lsi.common.ChatMessage.MessageType;
  * 
  * Esta clase gestiona:
  *  - La creación del socket servidor.
- *  - La aceptación de conexiones entrantes.
+ *  - La aceptación de conexiones entrantes (con control de admisión).
  *  - El registro de clientes conectados.
  *  - El envío de mensajes a todos los clientes (broadcast).
+ *  - El envío de mensajes privados a un solo cliente (send).
+ *  - La detección de clientes inactivos con latidos (PING/PONG).
  *  - El apagado ordenado del sistema.
  * 
- * Contiene una clase interna (ServerThreadForClient) que gestiona cada cliente.
+ * Contiene una clase interna (ServerThreadForClient) que gestiona cada cliente
+ * con una tarea bloqueante, que se ejecuta en el ejecutor del servidor (hilos
+ * de plataforma o virtuales según chat.threads). La lógica del chat (registro, baneos, publicación,
+ * logout y shutdown) trabaja sobre ClientSession, por lo que la comparten
+ * otros motores de red como ChatServerNio.
  */
 public class ChatServerImpl implements ChatServer {
 
     /** Puerto por defecto */
-    private static final int DEFAULT_PORT = 1500;
+    protected static final int DEFAULT_PORT = 1500;
 
     /** Logger para gestión de las trazas del servidor. */
-    private static final Logger LOGGER = Logger.getLogger(ChatServerImpl.class.getName());
+    protected static final Logger LOGGER = Logger.getLogger(ChatServerImpl.class.getName());
+
+    /** Trazas frecuentes (por mensaje o por conexión): se escriben en un hilo de fondo. */
+    protected static final AsyncLogger ASYNC_LOGGER = new AsyncLogger(LOGGER, 8192);
 
-    /** Variable para la gestión del formato de hora para los mensajes */
-    private static final SimpleDateFormat SDF = new SimpleDateFormat("HH:mm:ss");
+    /** Formato de hora para los mensajes (inmutable, se puede usar desde varios hilos). */
+    protected static final DateTimeFormatter FORMATO_HORA = DateTimeFormatter.ofPattern("HH:mm:ss");
 
     // Constantes para evitar duplicación de cadenas
     
     /** Variable con el mensaje de patrocinio. */
-    private static final String PUB = "Fernando patrocina el mensaje : ";
+    protected static final String PUB = "Fernando patrocina el mensaje : ";
     
     /** Variable con el mensaje fijo sobre el usuario. */
-    private static final String USER = " El usuario ";
+    static final String USER = " El usuario ";
     
     /** Variable con el mensaje de error de entrada y salida. */
-    private static final String ERROR = "Error I/O";
+    protected static final String ERROR = "Error I/O";
     
     /** Variable con el segundo mensaje de error. */
-    private static final String ERROR2 = "No se hace nada, ya está cerrado";
+    protected static final String ERROR2 = "No se hace nada, ya está cerrado";
 
     /**Variable Contador global de clientes (se incrementa en cada conexión). */
-    protected static int clientId = 0;
+    protected static final AtomicInteger clientId = new AtomicInteger();
 
     /** Puerto efectivo del servidor. */
-    private final int port;
+    protected final int port;
+
+    /** Configuración del servidor. */
+    protected final ServerConfig config;
+
+    /** Ejecutor de las tareas de los clientes. */
+    protected final ExecutorService ejecutor;
 
     /** Indica si el servidor está activo. */
-    private volatile boolean alive = true;
+    protected volatile boolean alive = true;
+
+    /** Indica si ya se ha empezado a apagar (solo se apaga una vez). */
+    private final AtomicBoolean apagando = new AtomicBoolean();
 
     /** Socket del servidor */
     private ServerSocket serverSocket;
 
-    /** Lista de clientes conectados: id → hilo del cliente. */
-    protected final Map<Integer, ServerThreadForClient> clientes = new ConcurrentHashMap<>();
+    /** Registro de clientes conectados (por id y por nombre de usuario). */
+    protected final SessionRegistry clientes = new SessionRegistry();
+
+    /** Baneos de todos los clientes: usuario baneado → sesiones que lo banean. */
+    protected final BanIndex baneos = new BanIndex();
+
+    /** Salas, sus miembros y sus últimos mensajes. */
+    protected final RoomRegistry salas;
+
+    /** Sesiones de clientes que han perdido la conexión y pueden volver. */
+    protected final ResumeRegistry reanudaciones;
+
+    /** Bus con los demás nodos del clúster. */
+    protected final ClusterBus bus;
+
+    /** Control de admisión de las conexiones entrantes. */
+    protected final AdmissionControl admision;
+
+    /** Latidos y cierre de las sesiones inactivas. */
+    protected final HeartbeatMonitor latidos;
+
+    /** Registro persistente de las publicaciones (null si no se guardan). */
+    protected MessageLog registroMensajes;
+
+    /** Métricas del servidor. */
+    protected final ServerMetrics metricas = new ServerMetrics(this);
+
+    /** Endpoint de texto de las métricas (null si no se abre). */
+    private MetricsEndpoint endpointMetricas;
+
+    /** Tramas descartadas en las colas de salida de todos los clientes. */
+    protected final LongAdder tramasDescartadas = new LongAdder();
 
     /**
      * Constructor por defecto (puerto 1500).
@@ -83,7 +157,74 @@ public class ChatServerImpl implements ChatServer {
      * @param port puerto de conexión.
      */
     public ChatServerImpl(int port) {
+        this(port, new ServerConfig());
+    }
+
+    /**
+     * Constructor con puerto y configuración.
+     * 
+     * @param port puerto de conexión.
+     * @param config configuración del servidor.
+     */
+    public ChatServerImpl(int port, ServerConfig config) {
+        this(port, config, nuevoBus(config));
+    }
+
+    /**
+     * Constructor con puerto, configuración y bus del clúster.
+     * 
+     * @param port puerto de conexión.
+     * @param config configuración del servidor.
+     * @param bus bus con los demás nodos del clúster.
+     */
+    public ChatServerImpl(int port, ServerConfig config, ClusterBus bus) {
+        this(port, config, config.getThreadMode().nuevoEjecutor("chat-cliente"), bus);
+    }
+
+    /**
+     * Constructor con puerto, configuración y ejecutor de las tareas de
+     * los clientes.
+     * 
+     * @param port puerto de conexión.
+     * @param config configuración del servidor.
+     * @param ejecutor ejecutor en el que corre cada cliente.
+     */
+    public ChatServerImpl(int port, ServerConfig config, ExecutorService ejecutor) {
+        this(port, config, ejecutor, nuevoBus(config));
+    }
+
+    /**
+     * Constructor con puerto, configuración, ejecutor de las tareas de los
+     * clientes y bus del clúster.
+     * 
+     * @param port puerto de conexión.
+     * @param config configuración del servidor.
+     * @param ejecutor ejecutor en el que corre cada cliente.
+     * @param bus bus con los demás nodos del clúster.
+     */
+    public ChatServerImpl(int port, ServerConfig config, ExecutorService ejecutor, ClusterBus bus) {
         this.port = port;
+        this.config = config;
+        this.ejecutor = ejecutor;
+        this.bus = bus;
+        this.salas = new RoomRegistry(config::getHistorySize);
+        this.reanudaciones = new ResumeRegistry(config.getResumeGraceMillis());
+        this.admision = new AdmissionControl(config);
+        this.latidos = new HeartbeatMonitor(config);
+    }
+
+    /**
+     * Crea el bus del clúster según la configuración.
+     * 
+     * @param config configuración del servidor.
+     * @return una malla TCP si hay nodos configurados o un bus local si no.
+     */
+    static ClusterBus nuevoBus(ServerConfig config) {
+        if (config.getClusterNodes().isEmpty()) {
+            return new LocalBus();
+        }
+        return new TcpPeerBus(config.getClusterNodes(), config.getClusterNode(),
+                config.getClusterTimeoutMillis());
     }
 
     /**
@@ -94,17 +235,20 @@ public class ChatServerImpl implements ChatServer {
     public void startup() {
         try {
             // Creación del socket del servidor
-            serverSocket = new ServerSocket(port);
+            serverSocket = new ServerSocket(port, config.getAcceptBacklog());
             
             //Log de apertura
             LOGGER.log(Level.INFO,
                     "{0} Servidor iniciado a las: [{1}]",
-                    new Object[]{ PUB, SDF.format(new Date()) });
+                    new Object[]{ PUB, FORMATO_HORA.format(LocalTime.now()) });
 
             LOGGER.log(Level.INFO,
                     "Escuchando al puerto: {0}",
                     new Object[]{ port });
 
+            // Métricas, registro de mensajes y clúster
+            arrancarServicios();
+
             // Bucle principal: aceptar conexiones mientras el servidor esté vivo
             while (alive) {
             	// Se lanza el método para procesar la conexión.
@@ -117,7 +261,9 @@ public class ChatServerImpl implements ChatServer {
     }
 
     /**
-     * Acepta una conexión entrante y lanza un hilo para gestionarla.
+     * Acepta una conexión entrante y lanza una tarea para gestionarla, si
+     * la admite el control de admisión. Las rechazadas se cierran sin crear
+     * ninguna tarea.
      * 
      * @throws IOException.
      */
@@ -125,10 +271,24 @@ public class ChatServerImpl implements ChatServer {
         try {
             // Espera bloqueante hasta que un cliente se conecta
             Socket socket = serverSocket.accept();
+            metricas.conexionAceptada();
+
+            // Rechazo inmediato si supera algún límite
+            if (!admision.admitir(socket.getInetAddress())) {
+                AdmissionControl.cortar(socket);
+                return;
+            }
 
-            // Se crea un hilo dedicado para ese cliente
+            // Se crea una tarea dedicada para ese cliente
             ServerThreadForClient hiloCliente = new ServerThreadForClient(socket);
-            hiloCliente.start();
+            try {
+                ejecutor.execute(hiloCliente);
+            } catch (RejectedExecutionException e) {
+                // El servidor se está apagando
+                admision.inicioTerminado(null);
+                admision.conexionCerrada();
+                AdmissionControl.cortar(socket);
+            }
 
         } catch (IOException e) {
             // Si el servidor sigue activo, se trata como error
@@ -139,19 +299,68 @@ public class ChatServerImpl implements ChatServer {
     }
 
     /**
-     * Apaga el servidor de forma ordenada.
+     * Apaga el servidor de forma ordenada, con el plazo de chat.shutdown.timeout.ms.
      */
     @Override
     public void shutdown() {
+        shutdown(Duration.ofMillis(config.getShutdownTimeoutMillis()));
+    }
+
+    /**
+     * Apaga el servidor de forma ordenada: deja de aceptar conexiones,
+     * avisa a los clientes y vacía sus colas de salida en paralelo (como
+     * mucho durante el plazo) antes de cerrar todo lo demás.
+     * 
+     * @param plazo tiempo máximo para vaciar las colas de los clientes.
+     */
+    @Override
+    public void shutdown(Duration plazo) {
+        // Pueden pedirlo varios clientes a la vez: solo apaga el primero
+        if (!apagando.compareAndSet(false, true)) {
+            return;
+        }
+
         // Se pasa alive a false para parar el bucle de startup
     	alive = false;
 
         LOGGER.info(PUB + "Se va a apagar el servidor.");
 
-        // Desconectar todos los clientes
+        // No se aceptan más conexiones
+        dejarDeAceptar();
+
+        // Se avisa a los clientes y se vacían sus colas, todas a la vez
+        new ShutdownCoordinator(plazo).vaciar(clientes.sesiones(),
+                new ChatMessage(0, MessageType.SHUTDOWN, ""));
+
+        // Desconectar los clientes que queden y olvidar las sesiones suspendidas
         desconectarTodosLosClientes();
+        reanudaciones.cerrar();
+        admision.cerrar();
+        latidos.cerrar();
+
+        // Se cierran las conexiones con los demás nodos
+        bus.cerrar();
+
+        // Se escribe lo que quede en el registro de mensajes
+        if (registroMensajes != null) {
+            registroMensajes.cerrar(500);
+        }
 
-        // Cerrar el socket del servidor
+        // Se retiran las métricas
+        retirarMetricas();
+
+        // No se aceptan más tareas; las que quedan terminan al cerrarse su socket
+        ejecutor.shutdown();
+        pararMotor();
+
+        // Se da un margen para que se escriban las trazas pendientes
+        ASYNC_LOGGER.vaciar(500);
+    }
+
+    /**
+     * Cierra el socket del servidor para no aceptar más conexiones.
+     */
+    protected void dejarDeAceptar() {
         try {
             if (serverSocket != null && !serverSocket.isClosed()) {
                 serverSocket.close();
@@ -161,12 +370,20 @@ public class ChatServerImpl implements ChatServer {
         }
     }
 
+    /**
+     * Para lo que le quede al motor de red al final del apagado. El motor
+     * bloqueante no tiene nada más: sus tareas terminan al cerrarse los sockets.
+     */
+    protected void pararMotor() {
+        // Nada que parar
+    }
+
     /**
      * Desconecta todos los clientes que estuvieran todavía conectados.
      */
     public void desconectarTodosLosClientes() {
     	// Se recorre el diccionario con los clientes
-        for (ServerThreadForClient cliente : clientes.values()) {
+        for (ClientSession cliente : clientes.sesiones()) {
             try {
             	// Y se desconecta el cliente
                 cliente.disconnect();
@@ -175,12 +392,22 @@ public class ChatServerImpl implements ChatServer {
             }
         }
         
-        // Al acabar se vacía la lista de clientes.
-        clientes.clear();
+        // Al acabar se vacía la lista de clientes, sus baneos y las salas.
+        clientes.limpiar();
+        baneos.limpiar();
+        salas.limpiar();
     }
 
     /**
-     * Envía un mensaje a todos los clientes no baneados por el emisor.
+     * Envía un mensaje a los clientes de la sala del emisor que no lo hayan
+     * baneado. Los mensajes que no son de ningún cliente (id 0, como el aviso
+     * de apagado) van a todos los clientes locales.
+     * 
+     * Las publicaciones de los clientes se reenvían además una vez al resto
+     * de nodos del clúster, que las reparten entre sus clientes.
+     * 
+     * El mensaje final se crea y se codifica una sola vez (una vez por
+     * formato de trama) y todos los destinatarios reciben los mismos bytes.
      * 
      * @param mensaje mensaje que se va a enviar
      */
@@ -196,31 +423,199 @@ public class ChatServerImpl implements ChatServer {
         MessageType tipo = mensaje.getType();
 
         // Buscar el nombre del usuario que envía el mensaje
-        String senderUsername = null;
-        for (ServerThreadForClient cliente : clientes.values()) {
-            if (cliente.id == senderId) {
-                senderUsername = cliente.username;
-                break;
+        ClientSession emisor = clientes.porId(senderId);
+
+        // Si no se encuentra el nombre de usuario, no se podrá banear
+        String senderUsername = emisor != null ? emisor.getUsername() : "";
+        MessageTemplate plantilla = emisor != null ? emisor.getPlantilla() : MessageTemplate.ANONIMA;
+
+        // Se crea el mensaje final (con patrocinio) una vez para todos los destinatarios
+        EncodedMessage trama = plantilla.publicacion(senderId, tipo, contenido);
+
+        // Sesiones que han baneado al emisor (null si no le ha baneado nadie)
+        BanIndex.Baneadores excluidos = baneos.baneadoresDe(senderUsername);
+
+        // Destinatarios: los miembros de la sala del emisor
+        RoomRegistry.Room sala = emisor != null ? salas.salaDe(senderId) : null;
+        Collection<ClientSession> destinatarios = sala != null ? sala.miembros() : clientes.sesiones();
+
+        // Se envia el mensaje a los destinatarios que no hayan baneado al emisor
+        difundir(trama, destinatarios, excluidos);
+        guardarEnHistorial(sala, trama);
+
+        // Se guarda y se reenvía a los demás nodos, con la trama binaria ya construida
+        if (sala != null) {
+            try {
+                byte[] tramaBinaria = trama.bytes(WireFormat.BINARY);
+                registrarPublicacion(sala.getNombre(), tramaBinaria);
+                bus.publicar(sala.getNombre(), senderUsername, tramaBinaria);
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, ERROR, e);
             }
         }
+    }
 
-        // Si no se encuentra el nombre de usuario, no se podrá banear
-        if (senderUsername == null) {
-            senderUsername = "";
+    /**
+     * Envía un mensaje a un solo cliente. El destinatario se busca por
+     * nombre en el índice de sesiones (O(1)) y la trama va directamente a su
+     * cola de salida, sin recorrer ninguna sala ni mirar otros baneos.
+     * 
+     * Si el destinatario ha baneado al emisor no lo recibe (como en las
+     * publicaciones, el emisor no se entera). Los mensajes privados no se
+     * guardan en el historial ni en el registro persistente y no se reenvían
+     * a otros nodos: solo llegan a los clientes de este.
+     * 
+     * @param destinatario nombre del usuario que lo recibe
+     * @param mensaje mensaje que se va a enviar
+     * @return true si el destinatario está conectado a este nodo
+     */
+    @Override
+    public boolean send(String destinatario, ChatMessage mensaje) {
+        ClientSession destino = clientes.porNombre(destinatario);
+
+        // Un nombre reservado sin id es de una sesión que aún no ha entrado
+        if (destino == null || destino.getId() == 0) {
+            return false;
+        }
+
+        // Emisor del mensaje (null si es del servidor)
+        ClientSession emisor = clientes.porId(mensaje.getId());
+        if (emisor != null && baneos.haBaneado(destino.getId(), emisor.getUsername())) {
+            return true;
+        }
+
+        MessageTemplate plantilla = emisor != null ? emisor.getPlantilla() : MessageTemplate.ANONIMA;
+        destino.enviarTrama(plantilla.publicacion(mensaje.getId(), mensaje.getType(), mensaje.getMessage()));
+        return true;
+    }
+
+    /**
+     * Deja una publicación en el registro persistente, si lo hay. Solo la
+     * encola: la escritura se hace en el hilo del registro.
+     * 
+     * @param nombreSala sala en la que se ha publicado.
+     * @param tramaBinaria trama binaria del mensaje.
+     */
+    protected void registrarPublicacion(String nombreSala, byte[] tramaBinaria) {
+        if (registroMensajes != null) {
+            registroMensajes.anadir(nombreSala, tramaBinaria);
+        }
+    }
+
+    /**
+     * Reparte entre los clientes locales una publicación de otro nodo.
+     * 
+     * @param nombreSala sala en la que se ha publicado.
+     * @param usuario nombre del emisor.
+     * @param tramaBinaria trama binaria del mensaje.
+     */
+    protected void publicacionRemota(String nombreSala, String usuario, byte[] tramaBinaria) {
+        RoomRegistry.Room sala = salas.porNombre(nombreSala);
+        if (sala == null) {
+            // Ningún cliente de este nodo está en la sala
+            return;
+        }
+        try {
+            ChatMessage mensaje = WireFormat.BINARY.nuevoDecoder().decode(ByteBuffer.wrap(tramaBinaria));
+            EncodedMessage trama = new EncodedMessage(mensaje, WireFormat.BINARY, tramaBinaria);
+            registrarPublicacion(nombreSala, tramaBinaria);
+            difundir(trama, sala.miembros(), baneos.baneadoresDe(usuario));
+            guardarEnHistorial(sala, trama);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Publicación de otro nodo no válida: {0}", e.getMessage());
+        }
+    }
+
+    /**
+     * Guarda una publicación entre los últimos mensajes de su sala.
+     * 
+     * @param sala sala de la publicación (o null si no es de ninguna).
+     * @param trama mensaje ya codificado.
+     */
+    private static void guardarEnHistorial(RoomRegistry.Room sala, EncodedMessage trama) {
+        if (sala != null && sala.historial() != null) {
+            sala.historial().anadir(trama);
         }
+    }
 
-        // Formato final del mensaje con patrocinio
-        String contenidoFinal = String.format(
-                "%s %s: %s ha escrito: %s",
-                PUB, USER, senderUsername, contenido
-        );
+    /**
+     * Envía a una sesión los últimos mensajes de una sala, con los bytes
+     * que ya se codificaron al publicarlos.
+     * 
+     * @param sesion sesión que acaba de entrar en la sala.
+     * @param sala sala en la que ha entrado.
+     */
+    private static void enviarHistorial(ClientSession sesion, RoomRegistry.Room sala) {
+        if (sala.historial() == null) {
+            return;
+        }
+        for (EncodedMessage trama : sala.historial().recientes()) {
+            sesion.enviarTrama(trama);
+        }
+    }
 
-        // Se envia el mensaje a todos los clientes que no hayan baneado al emisor
-        for (ServerThreadForClient cliente : clientes.values()) {
-            if (!cliente.haBaneado(senderUsername)) {
-                cliente.enviarMensaje(new ChatMessage(senderId, tipo, contenidoFinal));
+    /**
+     * Envía una trama a los destinatarios que no estén excluidos.
+     * 
+     * @param trama mensaje ya codificado.
+     * @param destinatarios sesiones a las que se envía.
+     * @param excluidos ids de las sesiones que no lo reciben (o null).
+     */
+    private void difundir(EncodedMessage trama, Collection<ClientSession> destinatarios,
+            BanIndex.Baneadores excluidos) {
+        long inicio = System.nanoTime();
+        int enviados = 0;
+        for (ClientSession cliente : destinatarios) {
+            if (excluidos == null || !excluidos.contiene(cliente.getId())) {
+                cliente.enviarTrama(trama);
+                enviados++;
             }
         }
+        metricas.broadcast(enviados, System.nanoTime() - inicio);
+    }
+
+    /**
+     * Devuelve las métricas del servidor.
+     * 
+     * @return las métricas.
+     */
+    public ServerMetrics getMetricas() {
+        return metricas;
+    }
+
+    /**
+     * Devuelve el número total de tramas descartadas por colas llenas.
+     * 
+     * @return tramas descartadas desde el arranque.
+     */
+    public long getTramasDescartadas() {
+        return tramasDescartadas.sum();
+    }
+
+    /**
+     * Devuelve la suma de las tramas pendientes en todas las colas de salida.
+     * 
+     * @return tramas pendientes de escribir.
+     */
+    public int getProfundidadColas() {
+        int total = 0;
+        for (ClientSession cliente : clientes.sesiones()) {
+            total += cliente.getColaSalida().getProfundidad();
+        }
+        return total;
+    }
+
+    /**
+     * Devuelve la mayor profundidad alcanzada por la cola de algún cliente conectado.
+     * 
+     * @return profundidad máxima de las colas.
+     */
+    public int getMaxProfundidadCola() {
+        int max = 0;
+        for (ClientSession cliente : clientes.sesiones()) {
+            max = Math.max(max, cliente.getColaSalida().getMaxProfundidad());
+        }
+        return max;
     }
 
     /**
@@ -231,13 +626,16 @@ public class ChatServerImpl implements ChatServer {
     @Override
     public void remove(int id) {
     	// Se cierra el hilo del cliente
-        ServerThreadForClient cliente = clientes.remove(id);
+        ClientSession cliente = clientes.eliminar(id);
+
+        // Sus baneos dejan de aplicarse y sale de su sala
+        baneos.olvidar(id);
+        salas.salir(id);
         
-        // Si existe es cliente se logea el cierre
+        // Si existe es cliente se libera su nombre en el clúster y se logea el cierre
         if (cliente != null) {
-            LOGGER.log(Level.INFO,
-                    "{0} Usuario eliminado: {1}",
-                    new Object[]{ PUB, id });
+            bus.liberar(cliente.getUsername());
+            ASYNC_LOGGER.log(Level.INFO, PUB + " Usuario eliminado: {0}", id);
         }
     }
 
@@ -247,310 +645,1080 @@ public class ChatServerImpl implements ChatServer {
      * @param args argumentos enventuales del main.
      */
     public static void main(String[] args) {
-    	// Se instancia el servidor.
-        ChatServerImpl server = new ChatServerImpl(DEFAULT_PORT);
+    	// Se lee la configuración de las propiedades del sistema (-Dchat.engine=nio, -Dchat.port=1501...)
+        ServerConfig config = new ServerConfig();
+
+    	// Se instancia el servidor con el motor elegido.
+        ChatServer server = config.getEngine() == ServerConfig.Engine.NIO
+                ? new ChatServerNio(config.getPort(), config)
+                : new ChatServerImpl(config.getPort(), config);
         
         // Se lanza el proceso de startup
         server.startup();
     }
 
     // -------------------------------------------------------------------------
-    // -------------------------- CLASE INTERNA --------------------------------
+    // ------------------ LÓGICA COMÚN A TODOS LOS MOTORES ---------------------
     // -------------------------------------------------------------------------
 
     /**
-     * Hilo dedicado a gestionar un cliente concreto.
+     * Genera un nuevo ID único para un cliente.
      * 
-     * Cada cliente tiene:
-     *  - Su propio socket.
-     *  - Sus propios flujos de entrada/salida.
-     *  - Su propio estado (activo/inactivo).
-     *  - Su propia lista de usuarios baneados.
+     * @return clientId clave generada para el nuevo cliente que se conecta.
      */
-    class ServerThreadForClient extends Thread {
-
-        /** Identificador único del cliente. */
-        private int id;
-
-        /** Nombre de usuario. */
-        private String username;
-
-        /** Socket asociado al cliente. */
-        private final Socket socket;
+    protected static int getNextId() {
+        return clientId.incrementAndGet();
+    }
 
-        /** Flujos de entrada y salida. */
-        private ObjectInputStream in;
-        private ObjectOutputStream out;
+    /**
+     * Arranca lo que comparten los motores: métricas, registro persistente
+     * de mensajes (si está configurado) y bus del clúster.
+     * 
+     * @throws IOException si no se puede abrir el registro o el bus.
+     */
+    protected void arrancarServicios() throws IOException {
+        // Se publican las métricas (JMX y texto)
+        publicarMetricas();
+
+        // Se abre el registro persistente de mensajes
+        if (config.getLogDir() != null) {
+            registroMensajes = new MessageLog(Paths.get(config.getLogDir()), config.getLogSegmentBytes(),
+                    config.getLogQueue(), config.getLogFsync(), config.getLogFsyncMillis());
+        }
 
-        /** Estado del hilo. */
-        private volatile boolean active = true;
+        // Se conecta con los demás nodos del clúster
+        bus.iniciar(this::publicacionRemota);
+    }
 
-        /** Lista de usuarios baneados por este cliente. */
-        private final Map<String, Boolean> baneados = new ConcurrentHashMap<>();
-        
-        /**
-         * Constructor: Hilo del cliente.
-         * 
-         * @param socket en el que se ejecuta el hilo.
-         */
-        public ServerThreadForClient(Socket socket) {
-            this.socket = socket;
+    /**
+     * Publica las métricas como MBean y, si está configurado, en el
+     * endpoint de texto. Un fallo solo se avisa: el servidor sigue sin métricas.
+     */
+    protected void publicarMetricas() {
+        if (config.isMetricsJmx()) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(metricas, nombreMBean());
+            } catch (JMException e) {
+                LOGGER.log(Level.WARNING, "No se pueden registrar las métricas en JMX: {0}", e.getMessage());
+            }
         }
-
-        /**
-         * Método principal del hilo.
-         * Inicializa la conexión y entra en el bucle de lectura de mensajes.
-         */
-        @Override
-        public void run() {
+        if (config.getMetricsPort() > 0) {
             try {
-            	// Se inicializa la conexión.
-                inicializarConexion();
-                
-                // Una vez inicializada se gestiona los mensajes
-                gestionarMensajes();
-                
-            } catch (IOException | ClassNotFoundException e) {
-                LOGGER.log(Level.SEVERE, ERROR, e);
-            
-            // Al finalizar, se cierran los recursos
-            } finally {
-                cerrarRecursos();
-                remove(id);
+                endpointMetricas = new MetricsEndpoint(config.getMetricsPort(), metricas);
+                LOGGER.log(Level.INFO, "Métricas en http://localhost:{0}/metrics",
+                        String.valueOf(config.getMetricsPort()));
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "No se puede abrir el endpoint de métricas: {0}", e.getMessage());
             }
         }
+    }
 
-        /**
-         * Inicializa los flujos, recibe el nombre del usuario y registra al cliente.
-         * 
-         * @throws IOException
-		 * @throws ClassNotFoundException
-         */
-        private void inicializarConexion() throws IOException, ClassNotFoundException {
-
-            // Se crea el flujo de salida primero (esto evita deadlocks)
-            out = new ObjectOutputStream(socket.getOutputStream());
-            out.flush();
-
-            // Se crea el flujo de entrada
-            in = new ObjectInputStream(socket.getInputStream());
-
-            // Se lee el primer mensaje que contiene el nombre del usuario
-            ChatMessage primerMensaje = (ChatMessage) in.readObject();
-            username = primerMensaje.getMessage();
-
-            // Se comprueba primero si el nombre ya existe. Si está se informa y se para.
-            if (clientes.values().stream().anyMatch(c -> c.username.equals(username))) {
-                out.writeObject(new ChatMessage(0, MessageType.LOGOUT,
-                        PUB + "Ese usuario ya está registrado"));
-                active = false;
-                return;
+    /**
+     * Retira las métricas publicadas en el arranque.
+     */
+    protected void retirarMetricas() {
+        if (endpointMetricas != null) {
+            endpointMetricas.parar();
+            endpointMetricas = null;
+        }
+        try {
+            MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+            if (mbeans.isRegistered(nombreMBean())) {
+                mbeans.unregisterMBean(nombreMBean());
             }
+        } catch (JMException e) {
+            LOGGER.log(Level.FINE, ERROR2, e);
+        }
+    }
 
-            // Se asigna un ID único al usuario que se ha registrado
-            id = getNextId();
-            clientes.put(id, this);
+    /**
+     * Nombre JMX de las métricas.
+     * 
+     * @return el nombre del MBean.
+     * @throws MalformedObjectNameException no ocurre con el nombre fijo.
+     */
+    private static ObjectName nombreMBean() throws MalformedObjectNameException {
+        return new ObjectName("es.ubu.lsi:type=ChatServer");
+    }
 
-            /* Mensajes de log con la identidad del usuario que se ha conectado y 
-             * el número de ellos que están conectados
-             * */
-            LOGGER.log(Level.INFO,
-                    "{0} {1} {2} con id {3} se ha conectado a las [{4}].",
-                    new Object[]{ PUB, USER, username, id, SDF.format(new Date()) });
+    /**
+     * Crea la cola de salida de un cliente según la configuración.
+     * 
+     * @return una cola de salida vacía.
+     */
+    protected OutboundQueue nuevaColaSalida() {
+        return new OutboundQueue(config.getOutboundCapacity(), config.getOverflowPolicy(),
+                tramasDescartadas);
+    }
 
-            LOGGER.log(Level.INFO,
-                    "{0} Clientes conectados {1}.",
-                    new Object[]{ PUB, clientes.size() });
+    /**
+     * Desconecta a un cliente cuya cola de salida se ha llenado.
+     * 
+     * @param sesion sesión del cliente lento.
+     */
+    protected void desconectarLento(ClientSession sesion) {
+        ASYNC_LOGGER.log(Level.WARNING,
+                PUB + " " + USER + " {0} no lee sus mensajes (cola llena), se desconecta.",
+                sesion.getUsername());
+        sesion.disconnect();
+    }
 
-            // Se envia ID al cliente
-            out.writeObject(new ChatMessage(id, MessageType.MESSAGE, String.valueOf(id)));
+    /**
+     * Crea el límite de publicación de una sesión nueva.
+     * 
+     * @return el límite o null si no se limita la publicación.
+     */
+    protected PublishRateLimiter nuevoLimitador() {
+        return config.isPublishLimited() ? new PublishRateLimiter(config) : null;
+    }
 
-            // Se envía el mensaje de bienvenida
-            out.writeObject(new ChatMessage(id, MessageType.MESSAGE,
-                    PUB + "Hola " + username + " Bienvenido al chat. Tu id es: " + id));
-        }
+    /**
+     * Avisa a un cliente de que se le desconecta por superar el límite de
+     * publicación (política DISCONNECT). La sesión se cierra después de
+     * enviarle el aviso.
+     * 
+     * @param sesion sesión del cliente.
+     */
+    protected void desconectarPorTasa(ClientSession sesion) {
+        ASYNC_LOGGER.log(Level.WARNING,
+                PUB + " " + USER + " {0} publica demasiado deprisa, se desconecta.",
+                sesion.getUsername());
+        sesion.enviarMensaje(new ChatMessage(0, MessageType.LOGOUT,
+                PUB + "Has superado el límite de mensajes"));
+    }
 
-        /**
-         * Bucle principal de lectura de mensajes del cliente. Se tratan según el tipo.
-         * 
-         * @throws IOException
-         * @throws ClassNotFoundException
-         */
-        private void gestionarMensajes() throws IOException, ClassNotFoundException {
-        	// Se leen los mensajes mientras se encuentre activo el hilo.
-        	while (active) {
-                try {
-                	// Lectura del mensaje entrante
-                    ChatMessage msg = (ChatMessage) in.readObject();
-
-                    switch (msg.getType()) {
-                    
-                    	// Si es logout se lanza el método que gestiona el logout
-                        case LOGOUT -> procesarLogout();
-                        
-                        // Si es shutdown se lanza el método que gestiona el shutdown
-                        case SHUTDOWN -> procesarShutdown();
-                        
-                        // Los demás mensajes se tratan con el método estándar.
-                        default -> procesarPublicacion(msg);
-                    }
+    /**
+     * Registra el cierre de un cliente que no ha enviado nada (ni contestado
+     * a los PING) en el plazo de inactividad. El motor cierra después la
+     * conexión como si se hubiera caído, así que la sesión se puede reanudar.
+     * 
+     * @param sesion sesión del cliente inactivo.
+     */
+    protected void desconectarInactivo(ClientSession sesion) {
+        metricas.sesionInactiva();
+        ASYNC_LOGGER.log(Level.WARNING,
+                PUB + " " + USER + " {0} no responde, se cierra su conexión.",
+                sesion.getUsername());
+    }
 
-                } catch (IOException e) {
+    /**
+     * Reserva el nombre de usuario de una sesión: primero entre los clientes
+     * locales (de forma atómica) y después en el clúster.
+     * 
+     * @param sesion sesión que ya ha recibido su nombre de usuario.
+     * @return futuro con false si ya hay un cliente con ese nombre.
+     */
+    protected CompletableFuture<Boolean> reservarNombre(ClientSession sesion) {
+        if (!clientes.reservar(sesion) && !(descartarSuspendida(sesion.getUsername()) && clientes.reservar(sesion))) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return bus.reclamar(sesion.getUsername()).thenApply(concedido -> {
+            if (!concedido) {
+                // Lo tiene un cliente de otro nodo
+                clientes.liberar(sesion);
+            }
+            return concedido;
+        });
+    }
+
+    /**
+     * Si un nombre es de una sesión suspendida, su cliente ha vuelto a
+     * entrar sin reanudarla: se descarta la sesión y se libera el nombre.
+     * 
+     * @param username nombre que se quiere reservar.
+     * @return true si se ha liberado el nombre.
+     */
+    private boolean descartarSuspendida(String username) {
+        if (clientes.porNombre(username) instanceof SuspendedSession suspendida
+                && reanudaciones.descartar(suspendida)) {
+            remove(suspendida.getId());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Crea el anillo de reanudación de una sesión que se va a registrar.
+     * Solo se reanudan las sesiones de formato binario: los clientes antiguos
+     * (serialización Java) no conocen los mensajes RESUME.
+     * 
+     * @param formato formato de las tramas de la sesión.
+     * @return el anillo con un token nuevo o null si la sesión no se podrá reanudar.
+     */
+    protected ReplayBuffer nuevaRepeticion(WireFormat formato) {
+        if (config.getResumeGraceMillis() == 0 || formato != WireFormat.BINARY) {
+            return null;
+        }
+        return new ReplayBuffer(reanudaciones.nuevoToken(), config.getResumeBuffer());
+    }
+
+    /**
+     * Guarda la sesión de un cliente que ha perdido la conexión sin
+     * despedirse, para que pueda reanudarla durante el periodo de gracia.
+     * Si no se puede reanudar se elimina como siempre.
+     * 
+     * La sesión suspendida sustituye a la caída en los registros y en su
+     * sala: conserva su id (y con él sus baneos) y anota las publicaciones
+     * que le llegan mientras tanto.
+     * 
+     * @param sesion sesión cuya conexión se ha caído.
+     */
+    protected void suspender(ClientSession sesion) {
+        if (!alive || sesion.getRepeticion() == null) {
+            remove(sesion.getId());
+            return;
+        }
+        SuspendedSession suspendida = new SuspendedSession(sesion);
+
+        // Primero en la sala: las publicaciones que lleguen mientras tanto ya se anotan
+        salas.sustituir(suspendida);
+        if (!clientes.sustituir(sesion, suspendida)) {
+            // Ya se había eliminado (y con ella su sitio en la sala)
+            return;
+        }
+        reanudaciones.suspender(suspendida, this::caducar);
+        ASYNC_LOGGER.log(Level.INFO, PUB + " " + USER + " {0} ha perdido la conexión, se guarda su sesión.",
+                sesion.getUsername());
+    }
+
+    /**
+     * Elimina una sesión suspendida cuyo cliente no ha vuelto a tiempo.
+     * 
+     * @param suspendida sesión caducada.
+     */
+    private void caducar(SuspendedSession suspendida) {
+        ASYNC_LOGGER.log(Level.INFO, PUB + " " + USER + " {0} no ha vuelto, se cierra su sesión.",
+                suspendida.getUsername());
+        remove(suspendida.getId());
+    }
+
+    /**
+     * Reanuda una sesión suspendida con una nueva conexión. La petición
+     * lleva el token de la sesión y cuántas tramas ha recibido el cliente.
+     * 
+     * La nueva conexión recibe la confirmación (RESUME con el número de esa
+     * trama, para que el cliente siga contando) y las tramas que le faltan,
+     * y después sustituye a la suspendida en los registros y en su sala.
+     * 
+     * @param nueva sesión de la nueva conexión.
+     * @param peticion mensaje RESUME con "token recibidas".
+     * @return false si no hay sesión que reanudar (se le ha avisado al cliente).
+     */
+    protected boolean reanudarSesion(ResumableSession nueva, ChatMessage peticion) {
+        String[] parts = String.valueOf(peticion.getMessage()).trim().split("\\s+");
+        SuspendedSession suspendida = null;
+        long recibidas = 0;
+        if (parts.length == 2 && nueva.getFormato() == WireFormat.BINARY) {
+            try {
+                recibidas = Long.parseLong(parts[1]);
+                suspendida = reanudaciones.tomar(parts[0]);
+            } catch (NumberFormatException e) {
+                LOGGER.log(Level.FINE, "Petición de reanudación no válida", e);
+            }
+        }
+
+        // Token desconocido o caducado: el cliente tiene que volver a entrar
+        if (suspendida == null) {
+            nueva.enviarMensaje(new ChatMessage(0, MessageType.LOGOUT,
+                    PUB + "La sesión ha caducado, hay que volver a entrar"));
+            return false;
+        }
+
+        nueva.adoptar(suspendida);
+        int reenviadas = suspendida.traspasar(nueva, recibidas);
+        clientes.sustituir(suspendida, nueva);
+        salas.sustituir(nueva);
+        ASYNC_LOGGER.log(Level.INFO, PUB + " " + USER + " {0} ha reanudado su sesión ({1} mensajes reenviados).",
+                nueva.getUsername(), reenviadas);
+        return true;
+    }
+
+    /**
+     * Libera el nombre de una sesión que lo había reservado pero se ha
+     * cerrado antes de registrarse.
+     * 
+     * @param sesion sesión cerrada.
+     */
+    protected void liberarNombre(ClientSession sesion) {
+        clientes.liberar(sesion);
+        bus.liberar(sesion.getUsername());
+    }
+
+    /**
+     * Rechaza a un cliente cuyo nombre de usuario ya existe.
+     * 
+     * @param sesion sesión del cliente rechazado.
+     */
+    protected void rechazarUsuarioDuplicado(ClientSession sesion) {
+        sesion.enviarMensaje(new ChatMessage(0, MessageType.LOGOUT,
+                PUB + "Ese usuario ya está registrado"));
+    }
+
+    /**
+     * Registra un cliente (que ya tiene id asignado) y le envía su id y
+     * el mensaje de bienvenida.
+     * 
+     * @param sesion sesión del cliente.
+     */
+    protected void registrarCliente(ClientSession sesion) {
+        int id = sesion.getId();
+        String username = sesion.getUsername();
+        clientes.registrar(sesion);
+        RoomRegistry.Room sala = salas.entrar(sesion, RoomRegistry.GENERAL);
+
+        /* Mensajes de log con la identidad del usuario que se ha conectado y 
+         * el número de ellos que están conectados
+         * */
+        if (ASYNC_LOGGER.isLoggable(Level.INFO)) {
+            ASYNC_LOGGER.log(Level.INFO,
+                    PUB + " " + USER + " {0} con id {1} se ha conectado a las [{2}].",
+                    username, id, FORMATO_HORA.format(LocalTime.now()));
+
+            ASYNC_LOGGER.log(Level.INFO, PUB + " Clientes conectados {0}.", clientes.size());
+        }
+
+        // Se envia ID al cliente
+        sesion.enviarMensaje(new ChatMessage(id, MessageType.MESSAGE, String.valueOf(id)));
+
+        // Se envía el mensaje de bienvenida
+        sesion.enviarMensaje(new ChatMessage(id, MessageType.MESSAGE,
+                PUB + "Hola " + username + " Bienvenido al chat. Tu id es: " + id));
+
+        // Si la sesión se puede reanudar, su token
+        if (sesion.getRepeticion() != null) {
+            sesion.enviarMensaje(new ChatMessage(id, MessageType.RESUME, sesion.getRepeticion().getToken()));
+        }
+
+        // Y los últimos mensajes de la sala general
+        enviarHistorial(sesion, sala);
+    }
+
+    /**
+     * Trata un mensaje recibido de un cliente ya registrado según su tipo.
+     * 
+     * @param sesion sesión del cliente que envía el mensaje.
+     * @param msg mensaje recibido.
+     * @return true si la sesión sigue activa y false si hay que cerrarla.
+     */
+    protected boolean procesarMensaje(ClientSession sesion, ChatMessage msg) {
+        metricas.mensajeRecibido();
+        switch (msg.getType()) {
+        
+        	// Si es logout se lanza el método que gestiona el logout
+            case LOGOUT -> {
+                procesarLogout(sesion);
+                return false;
+            }
+            
+            // Si es shutdown se lanza el método que gestiona el shutdown; la
+            // sesión sigue abierta para que el apagado la vacíe como a las demás
+            case SHUTDOWN -> {
+                procesarShutdown(sesion);
+                return true;
+            }
+
+            // Una sesión ya registrada no tiene nada que reanudar
+            case RESUME -> {
+                return true;
+            }
+
+            // Los mensajes privados van solo a su destinatario
+            case PRIVATE -> {
+                procesarPrivado(sesion, msg);
+                return true;
+            }
+
+            // Latidos: la actividad ya se ha anotado al leer, a un PING se contesta
+            case PING -> {
+                sesion.enviarMensaje(new ChatMessage(0, MessageType.PONG, msg.getMessage()));
+                return true;
+            }
+            case PONG -> {
+                return true;
+            }
+            
+            // Los demás mensajes se tratan con el método estándar.
+            default -> {
+                procesarPublicacion(sesion, msg);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Procesa la desconexión voluntaria del cliente.
+     * 
+     * @param sesion sesión del cliente.
+     */
+    private void procesarLogout(ClientSession sesion) {
+        ASYNC_LOGGER.log(Level.INFO, PUB + " " + USER + " {0} se ha desconectado.",
+                sesion.getUsername());
+    }
+
+    /**
+     * Procesa el cierre total del servidor solicitado por un cliente.
+     * 
+     * @param sesion sesión del cliente.
+     */
+    private void procesarShutdown(ClientSession sesion) {
+        ASYNC_LOGGER.log(Level.INFO, PUB + " " + USER + " {0} ha cerrado el servidor.",
+                sesion.getUsername());
+
+        /* El apagado (que avisa a los clientes y espera a que vacíen sus colas)
+         * se hace en otro hilo: el que procesa el mensaje puede ser el mismo
+         * que tiene que escribir los avisos (motor NIO) */
+        Thread apagado = new Thread(this::shutdown, "chat-apagado");
+        apagado.start();
+    }
+
+    /**
+     * Procesa un mensaje normal (publicación o comando ban/unban/join/leave).
+     * 
+     * @param sesion sesión del cliente.
+     * @param msg mensaje que se va a tratar.
+     */
+    private void procesarPublicacion(ClientSession sesion, ChatMessage msg) {
+        String content = msg.getMessage();
+
+        // Cuando hay un comando de baneo/desbaneo se gestionan con el método adhoc.
+        if (content.startsWith("ban ") || content.startsWith("unban ")) {
+            gestionarBaneos(sesion, content);
+            return;
+        }
+
+        // Los cambios de sala se gestionan aparte.
+        if (content.startsWith("join ") || "leave".equals(content.trim())) {
+            gestionarSalas(sesion, content);
+            return;
+        }
+        
+        // Con el prefijo del emisor tiene que seguir cabiendo en una trama
+        if (!comprobarTamano(sesion, content)) {
+            return;
+        }
+
+        // Se hace un log del mensaje publicado (sin crear nada si el nivel no se registra)
+        ASYNC_LOGGER.log(Level.INFO, PUB + " " + USER + " {0} ha publicado un mensaje.",
+                sesion.getUsername());
+        
+        // Se envía el mensaje con el método broadcast
+        broadcast(msg);
+    }
+
+    /**
+     * Procesa un mensaje privado. El contenido es el nombre del destinatario
+     * seguido del texto.
+     * 
+     * @param sesion sesión del cliente que lo envía.
+     * @param msg mensaje privado.
+     */
+    private void procesarPrivado(ClientSession sesion, ChatMessage msg) {
+        String[] parts = String.valueOf(msg.getMessage()).trim().split("\\s+", 2);
+
+        // Si no hay texto después del destinatario, se termina.
+        if (parts.length < 2 || !comprobarTamano(sesion, parts[1])) {
+            return;
+        }
+
+        ChatMessage privado = new ChatMessage(sesion.getId(), MessageType.PRIVATE, parts[1]);
+        if (send(parts[0], privado)) {
+            ASYNC_LOGGER.log(Level.INFO, PUB + " " + USER + " {0} ha enviado un mensaje privado a {1}.",
+                    sesion.getUsername(), parts[0]);
+        } else {
+            // Se avisa al emisor de que no ha llegado
+            sesion.enviarMensaje(new ChatMessage(sesion.getId(), MessageType.MESSAGE,
+                    PUB + "El usuario " + parts[0] + " no está conectado."));
+        }
+    }
+
+    /**
+     * Comprueba que el mensaje de un cliente, con el prefijo de su nombre,
+     * cabe en una trama. Si no cabe no se envía y se avisa al cliente.
+     * 
+     * @param sesion sesión del cliente que lo envía.
+     * @param contenido texto del mensaje.
+     * @return true si se puede enviar.
+     */
+    private boolean comprobarTamano(ClientSession sesion, String contenido) {
+        if (sesion.getPlantilla().cabeEnTrama(contenido)) {
+            return true;
+        }
+        ASYNC_LOGGER.log(Level.INFO, PUB + " " + USER + " {0} ha enviado un mensaje demasiado largo.",
+                sesion.getUsername());
+        sesion.enviarMensaje(new ChatMessage(sesion.getId(), MessageType.MESSAGE,
+                PUB + "El mensaje es demasiado largo, no se ha enviado."));
+        return false;
+    }
+
+    /**
+     * Gestiona los comandos de baneo y desbaneo.
+     * 
+     * @param sesion sesión del cliente que banea.
+     * @param contenido contenido del mensaje de ban/unban
+     */
+    private void gestionarBaneos(ClientSession sesion, String contenido) {
+    	// Cuando se produce un baneo se divide en dos parte el mensaje
+        String[] parts = contenido.trim().split("\\s+", 2);
+        
+        // Si no se puede dividir (empiea por ban/unban sin nada más), se termina.
+        if (parts.length < 2) {
+        	return;
+        }
+        
+        //Cuando se puede dividir se extraen las dos partes
+        String comando = parts[0]; // contiene ban/unban
+        String usuario = parts[1]; // contiene nombre de usuario
+        
+        // Cuando se banea se añade a la lista
+        if ("ban".equals(comando)) {
+            baneos.banear(sesion.getId(), usuario);
+            ASYNC_LOGGER.log(Level.INFO, PUB + " " + USER + " {0} ha baneado a {1}.",
+                    sesion.getUsername(), usuario);
+        
+        // Cuando se desbanea se saca de la lista
+        } else if ("unban".equals(comando)) {
+            baneos.desbanear(sesion.getId(), usuario);
+            ASYNC_LOGGER.log(Level.INFO, PUB + "  " + USER + " {0} ha desbaneado a {1}.",
+                    sesion.getUsername(), usuario);
+        }
+    }
+
+    /**
+     * Gestiona los comandos de cambio de sala: "join sala" entra en una sala
+     * (saliendo de la actual) y "leave" vuelve a la sala general.
+     * 
+     * @param sesion sesión del cliente que cambia de sala.
+     * @param contenido contenido del mensaje de join/leave.
+     */
+    private void gestionarSalas(ClientSession sesion, String contenido) {
+        String[] parts = contenido.trim().split("\\s+", 2);
+
+        // Si es join sin nombre de sala, se termina.
+        if ("join".equals(parts[0]) && parts.length < 2) {
+            return;
+        }
+
+        // Sala de destino (la general si sale de la actual)
+        String nombre = parts.length == 2 ? parts[1] : RoomRegistry.GENERAL;
+
+        RoomRegistry.Room anterior = salas.salaDe(sesion.getId());
+        RoomRegistry.Room sala = salas.entrar(sesion, nombre);
+        if (sala != anterior) {
+            ASYNC_LOGGER.log(Level.INFO, PUB + " " + USER + " {0} ha entrado en la sala {1}.",
+                    sesion.getUsername(), nombre);
+        }
+
+        // Se confirma al cliente; el historial solo si ha cambiado de sala
+        sesion.enviarMensaje(new ChatMessage(sesion.getId(), MessageType.MESSAGE,
+                PUB + "Estás en la sala " + nombre + " (" + sala.size() + " usuarios)."));
+        if (sala != anterior) {
+            enviarHistorial(sesion, sala);
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // -------------------------- CLASE INTERNA --------------------------------
+    // -------------------------------------------------------------------------
+
+    /**
+     * Tarea dedicada a gestionar un cliente concreto.
+     * 
+     * Se ejecuta en el ejecutor del servidor. No usa synchronized para que
+     * las lecturas bloqueantes no fijen el hilo virtual a su portador.
+     * 
+     * Las escrituras no se hacen desde el hilo que envía: las tramas se dejan
+     * en la cola de salida del cliente y una segunda tarea (el escritor) las
+     * vacía hacia el socket. Al terminar la lectura se cierra la cola y es el
+     * escritor quien cierra el socket cuando ha enviado lo pendiente.
+     * 
+     * Si la conexión se cae sin logout y la sesión se puede reanudar, se
+     * espera al escritor (que anota lo que no ha podido enviar) y se deja la
+     * sesión suspendida.
+     * 
+     * Cada cliente tiene:
+     *  - Su propio socket.
+     *  - Sus propios flujos de entrada/salida.
+     *  - Su propio estado (activo/inactivo).
+     */
+    class ServerThreadForClient implements Runnable, ResumableSession {
+
+        /** Identificador único del cliente. */
+        private int id;
+
+        /** Nombre de usuario. */
+        private String username;
+
+        /** Plantilla de las publicaciones del usuario. */
+        private MessageTemplate plantilla;
+
+        /** Socket asociado al cliente. */
+        private final Socket socket;
+
+        /** Flujos de entrada y salida. */
+        private FrameReader in;
+        private OutputStream out;
+
+        /** Formato de las tramas negociado con el cliente. */
+        private WireFormat formato;
+
+        /** Estado del hilo. */
+        private volatile boolean active = true;
+
+        /** Cola de salida, vaciada por el escritor del cliente. */
+        private final OutboundQueue cola = nuevaColaSalida();
+
+        /** Tramas enviadas para reanudar la sesión (null si no se puede). */
+        private volatile ReplayBuffer repeticion;
+
+        /** Indica si la conexión se ha caído sin que el cliente se despida. */
+        private boolean caida;
+
+        /** Se completa cuando termina el escritor, con true si ha enviado toda la cola. */
+        private final CompletableFuture<Boolean> escritorTerminado = new CompletableFuture<>();
+
+        /** Límite de publicación del cliente (null si no hay). */
+        private final PublishRateLimiter limitador = nuevoLimitador();
+
+        /** Indica si la conexión aún ocupa un hueco de inicio (lo cambia quien termina el inicio o el plazo). */
+        private final AtomicBoolean enInicio = new AtomicBoolean(true);
+
+        /** Plazo del inicio (null si no hay). */
+        private ScheduledFuture<?> plazoInicio;
+
+        /** Indica si se ha cerrado la conexión por no terminar el inicio a tiempo. */
+        private volatile boolean inicioCaducado;
+
+        /** Vigilancia de la inactividad (null sin latidos o con un cliente antiguo). */
+        private HeartbeatMonitor.Watch vigilancia;
+
+        /**
+         * Constructor: Hilo del cliente.
+         * 
+         * @param socket en el que se ejecuta el hilo.
+         */
+        public ServerThreadForClient(Socket socket) {
+            this.socket = socket;
+        }
+
+        /**
+         * Método principal del hilo.
+         * Inicializa la conexión y entra en el bucle de lectura de mensajes.
+         */
+        @Override
+        public void run() {
+            try {
+                // Se arranca el escritor, que vacía la cola de salida hacia el socket
+                socket.setTcpNoDelay(config.isTcpNoDelay());
+                out = new BufferedOutputStream(socket.getOutputStream(), config.getWriteMaxBytes());
+                ejecutor.execute(this::escribirPendientes);
+
+            	// Se inicializa la conexión, con un plazo para terminar.
+                plazoInicio = admision.vigilarInicio(this::caducarInicio);
+                inicializarConexion();
+                if (!terminarInicio()) {
+                    // El plazo ha vencido mientras tanto: la conexión ya está cerrada
                     active = false;
-                    break;
+                }
+
+                // Se vigila la inactividad del cliente registrado
+                if (active) {
+                    vigilarActividad();
+                }
+                
+                // Una vez inicializada se gestiona los mensajes
+                gestionarMensajes();
+                
+            } catch (IOException e) {
+                if (inicioCaducado) {
+                    ASYNC_LOGGER.log(Level.FINE, PUB + "Conexión de {0} cerrada: no ha terminado el inicio a tiempo.",
+                            socket.getInetAddress());
+                } else {
+                    LOGGER.log(Level.SEVERE, ERROR, e);
+                }
+
+            // El servidor se está apagando: no hay escritor que cierre el socket
+            } catch (RejectedExecutionException e) {
+                cerrarRecursos();
+            
+            } finally {
+                terminarInicio();
+                admision.conexionCerrada();
+                if (vigilancia != null) {
+                    vigilancia.cancelar();
+                }
+                if (caida && repeticion != null) {
+                    // Se cierra el socket para que el escritor acabe y anote lo que no ha enviado
+                    cerrarRecursos();
+                    cola.cerrar();
+                    esperarEscritor();
+                    suspender(this);
+                } else {
+                    // Se cierra la cola (el escritor envía lo pendiente y cierra el socket)
+                    cola.cerrar();
+                    remove(id);
                 }
             }
         }
 
         /**
-         * Procesa la desconexión voluntaria del cliente.
+         * Libera el hueco de inicio de la conexión (solo la primera vez).
+         * 
+         * @return false si ya lo había liberado el plazo
          */
-        private void procesarLogout() {
-            LOGGER.log(Level.INFO,
-                    "{0} {1} {2} se ha desconectado.",
-                    new Object[]{ PUB, USER, username });
-
-            active = false;
+        private boolean terminarInicio() {
+            if (!enInicio.compareAndSet(true, false)) {
+                return false;
+            }
+            admision.inicioTerminado(plazoInicio);
+            return true;
         }
 
         /**
-         * Procesa el cierre total del servidor solicitado por un cliente.
+         * Cierra la conexión si no ha terminado el inicio en su plazo (desde
+         * el temporizador: la lectura bloqueada termina con una excepción).
          */
-        private void procesarShutdown() {
-            LOGGER.log(Level.INFO,
-                    "{0} {1} {2} ha cerrado el servidor.",
-                    new Object[]{ PUB, USER, username });
+        private void caducarInicio() {
+            if (enInicio.compareAndSet(true, false)) {
+                inicioCaducado = true;
+                admision.inicioTerminado(null);
+                cerrarRecursos();
+            }
+        }
 
-            active = false;
+        /**
+         * Empieza a vigilar la inactividad del cliente. Los clientes antiguos
+         * no conocen los PING: con ellos se activa el keepalive de TCP, que
+         * también detecta la conexión caída aunque mucho más tarde.
+         * 
+         * @throws IOException si no se puede activar el keepalive
+         */
+        private void vigilarActividad() throws IOException {
+            if (formato == WireFormat.BINARY) {
+                vigilancia = latidos.vigilar(this, this::caducarPorInactividad);
+            } else {
+                socket.setKeepAlive(true);
+            }
+        }
 
-            // Se avisa a todos los clientes
-            broadcast(new ChatMessage(0, MessageType.SHUTDOWN, ""));
+        /**
+         * Cierra la conexión de un cliente inactivo (desde el temporizador:
+         * la lectura bloqueada termina con una excepción y la conexión se
+         * trata como caída).
+         */
+        private void caducarPorInactividad() {
+            if (active) {
+                desconectarInactivo(this);
+                cerrarRecursos();
+            }
+        }
 
-            // Se da tiempo a que los clientes reciban el mensaje
+        /**
+         * Espera (como mucho un segundo) a que termine el escritor.
+         */
+        private void esperarEscritor() {
             try {
-                Thread.sleep(200);
-            } catch (InterruptedException e) 
-            {
-            	Thread.currentThread().interrupt();
-            	LOGGER.info(ERROR2);
+                escritorTerminado.get(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | TimeoutException e) {
+                LOGGER.log(Level.FINE, "El escritor no ha terminado a tiempo", e);
             }
+        }
 
-            // Se apaga el servidor
-            ChatServerImpl.this.shutdown();
+        /**
+         * Escritor del cliente: envía las tramas de la cola en orden hasta
+         * que se cierra, y después cierra los recursos.
+         * 
+         * Las tramas se sacan por lotes y se escriben en un buffer que se
+         * vacía una vez por lote, así una ráfaga de mensajes sale con una
+         * sola escritura en el socket.
+         * 
+         * Si la sesión se puede reanudar, cada lote se anota antes de
+         * escribirlo y al terminar se anota lo que quede en la cola.
+         */
+        private void escribirPendientes() {
+            List<byte[]> lote = new ArrayList<>();
+            int maxBytes = config.getWriteMaxBytes();
+            long espera = config.getWriteMaxDelayNanos();
+            boolean vaciada = false;
+            try {
+                while (cola.tomarLote(lote, maxBytes, espera) > 0) {
+                    ReplayBuffer anillo = repeticion;
+                    if (anillo != null) {
+                        anillo.anotar(lote);
+                    }
+                    long bytes = 0;
+                    for (byte[] trama : lote) {
+                        out.write(trama);
+                        bytes += trama.length;
+                    }
+                    out.flush();
+                    metricas.tramasEnviadas(lote.size(), bytes);
+                    lote.clear();
+                }
+                vaciada = true;
+            } catch (IOException e) {
+                if (active) {
+                    LOGGER.log(Level.SEVERE, ERROR, e);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                ReplayBuffer anillo = repeticion;
+                if (anillo != null) {
+                    anillo.anotarPendientes(cola);
+                }
+                cola.abortar();
+                cerrarRecursos();
+                escritorTerminado.complete(vaciada);
+            }
         }
 
         /**
-         * Procesa un mensaje normal (publicación o comando ban/unban).
+         * Negocia el formato de las tramas, recibe el nombre del usuario y
+         * registra al cliente.
          * 
-         * @param msg mensaje que se va a tratar.
+         * @throws IOException
          */
-        private void procesarPublicacion(ChatMessage msg) {
-            String content = msg.getMessage();
+        private void inicializarConexion() throws IOException {
 
-            // Cuando hay un comando de baneo/desbaneo se gestionan con el método adhoc.
-            if (content.startsWith("ban ") || content.startsWith("unban ")) {
-                gestionarBaneos(content);
+            // Se envía primero el saludo del servidor (los clientes antiguos lo esperan antes de escribir)
+            cola.ofrecer(WireFormat.SALUDO_SERVIDOR);
+
+            // El saludo del cliente indica el formato de las tramas
+            InputStream entrada = new BufferedInputStream(socket.getInputStream());
+            formato = WireFormat.desdeSaludo(FrameReader.leerSaludo(entrada));
+            metricas.bytesRecibidos(WireFormat.LONGITUD_SALUDO);
+            in = new FrameReader(entrada, formato.nuevoDecoder());
+
+            // Se lee el primer mensaje que contiene el nombre del usuario
+            ChatMessage primerMensaje = in.read();
+
+            // O la petición de reanudar una sesión cuya conexión se cayó
+            if (primerMensaje.getType() == MessageType.RESUME) {
+                active = reanudarSesion(this, primerMensaje);
                 return;
             }
-            
-            // Se hace un log del mensaje publicado
-            LOGGER.log(Level.INFO,
-                    "{0} {1} {2} ha publicado un mensaje.",
-                    new Object[]{ PUB, USER, username });
-            
-            // Se envía el mensaje con el método broadcast
-            broadcast(msg);
+
+            username = primerMensaje.getMessage();
+            plantilla = new MessageTemplate(username);
+
+            // Se comprueba primero si el nombre ya existe. Si está se informa y se para.
+            if (!reservarNombre(this).join()) {
+                rechazarUsuarioDuplicado(this);
+                active = false;
+                return;
+            }
+
+            // Se asigna un ID único al usuario que se ha registrado
+            id = getNextId();
+
+            // Se registra y se le envían su id y la bienvenida
+            repeticion = nuevaRepeticion(formato);
+            registrarCliente(this);
+        }
+
+        /**
+         * Bucle principal de lectura de mensajes del cliente. Se tratan según el tipo.
+         */
+        private void gestionarMensajes() {
+        	// Se leen los mensajes mientras se encuentre activo el hilo.
+            long leidos = 0;
+        	while (active) {
+                try {
+                	// Lectura del mensaje entrante
+                    ChatMessage msg = in.read();
+                    metricas.bytesRecibidos(in.getBytesLeidos() - leidos);
+                    leidos = in.getBytesLeidos();
+                    if (vigilancia != null) {
+                        vigilancia.actividad();
+                    }
+
+                    // Las publicaciones que superan el límite del cliente se retrasan, descartan o lo desconectan
+                    if (limitador != null && PublishRateLimiter.limitado(msg) && !respetarLimite(in.getTamUltima())) {
+                        continue;
+                    }
+
+                    // Se trata según el tipo; logout y shutdown terminan el hilo
+                    active = procesarMensaje(this, msg);
+
+                } catch (IOException e) {
+                    // Si no se ha desconectado desde el servidor, se ha caído la conexión
+                    caida = active;
+                    active = false;
+                    break;
+                }
+            }
         }
 
         /**
-         * Gestiona los comandos de baneo y desbaneo.
+         * Cuenta una publicación contra el límite del cliente. Con DELAY se
+         * espera aquí mismo: mientras tanto no se lee el socket y TCP frena
+         * al cliente.
          * 
-         * @param contenido contenido del mensaje de ban/unban
+         * @param bytes bytes de la trama del mensaje
+         * @return true si hay que tratar el mensaje
          */
-        private void gestionarBaneos(String contenido) {
-        	// Cuando se produce un baneo se divide en dos parte el mensaje
-            String[] parts = contenido.trim().split("\\s+", 2);
-            
-            // Si no se puede dividir (empiea por ban/unban sin nada más), se termina.
-            if (parts.length < 2) {
-            	return;
+        private boolean respetarLimite(int bytes) {
+            long espera = limitador.admitir(bytes);
+            if (espera == 0) {
+                return true;
             }
-            
-            //Cuando se puede dividir se extraen las dos partes
-            String comando = parts[0]; // contiene ban/unban
-            String usuario = parts[1]; // contiene nombre de usuario
-            
-            // Cuando se banea se añade a la lista
-            if ("ban".equals(comando)) {
-                baneados.put(usuario, true);
-                LOGGER.log(Level.INFO,
-                        "{0} {1} {2} ha baneado a {3}.",
-                        new Object[]{ PUB, USER, username, usuario });
-            
-            // Cuando se desbanea se saca de la lista
-            } else if ("unban".equals(comando)) {
-                baneados.remove(usuario);
-                LOGGER.log(Level.INFO,
-                        "{0}  {1} {2} ha desbaneado a {3}.",
-                        new Object[]{ PUB, USER, username, usuario });
+            metricas.mensajeLimitado();
+            switch (limitador.getPolitica()) {
+                case DELAY -> {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(espera);
+                        return true;
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        active = false;
+                        return false;
+                    }
+                }
+                case DISCONNECT -> {
+                    desconectarPorTasa(this);
+                    active = false;
+                    return false;
+                }
+                default -> {
+                    return false;
+                }
             }
         }
 
         /**
-         * Indica si este cliente ha baneado a otro usuario.
+         * Devuelve el id.
          * 
-         * @param otroUsuario
-         * @return True si es verdad y False si no lo ha baneado
+         * @return id del cliente
          */
-        public boolean haBaneado(String otroUsuario) {
-            return baneados.containsKey(otroUsuario);
+        @Override
+        public int getId() {
+            return id;
         }
 
         /**
-         * Envía un mensaje al cliente.
+         * Devuelve el nombre de usuario.
          * 
-         * @param mensaje el mensaje que se envía.
+         * @return nombre de usuario
          */
-        public void enviarMensaje(ChatMessage mensaje) {
+        @Override
+        public String getUsername() {
+            return username;
+        }
+
+        /**
+         * Devuelve la plantilla de las publicaciones del usuario.
+         * 
+         * @return la plantilla
+         */
+        @Override
+        public MessageTemplate getPlantilla() {
+            return plantilla;
+        }
+
+        /**
+         * Devuelve el formato de las tramas negociado con el cliente.
+         * 
+         * @return el formato
+         */
+        @Override
+        public WireFormat getFormato() {
+            return formato;
+        }
+
+        /**
+         * Devuelve las tramas enviadas para reanudar la sesión.
+         * 
+         * @return el anillo o null si la sesión no se puede reanudar
+         */
+        @Override
+        public ReplayBuffer getRepeticion() {
+            return repeticion;
+        }
+
+        /**
+         * Toma la identidad de la sesión suspendida que se reanuda.
+         * 
+         * @param anterior sesión suspendida
+         */
+        @Override
+        public void adoptar(ClientSession anterior) {
+            id = anterior.getId();
+            username = anterior.getUsername();
+            plantilla = anterior.getPlantilla();
+            repeticion = anterior.getRepeticion();
+        }
+
+
+        /**
+         * Deja en la cola de salida la trama del mensaje en el formato del
+         * cliente. Si la cola está llena se aplica la política configurada.
+         * 
+         * @param trama el mensaje que se envía, ya codificado.
+         */
+        @Override
+        public void enviarTrama(EncodedMessage trama) {
             if (!active) return;
 
             try {
-                out.writeObject(mensaje);
+                if (!cola.ofrecer(trama.bytes(formato))) {
+                    desconectarLento(this);
+                }
             } catch (IOException e) {
                 LOGGER.log(Level.SEVERE, ERROR, e);
             }
         }
 
+        /**
+         * Devuelve la cola de salida.
+         * 
+         * @return la cola de tramas pendientes
+         */
+        @Override
+        public OutboundQueue getColaSalida() {
+            return cola;
+        }
+
         /**
          * Desconecta al cliente cerrando sus recursos.
          */
+        @Override
         public void disconnect() {
-            // Se pone active a false para cerrar el hilo.
+            // Se pone active a false para cerrar el hilo (una sesión expulsada no se reanuda).
         	active = false;
-            // Se lanza el proceso de cierre.
+            repeticion = null;
+            // Se descarta lo pendiente y se lanza el proceso de cierre.
+            cola.abortar();
             cerrarRecursos();
         }
 
         /**
-         * Cierra los flujos y el socket del cliente.
+         * Cierra la cola de salida: el escritor envía lo pendiente y cierra
+         * el socket, con lo que termina también la lectura (sin dejar la
+         * sesión suspendida).
+         * 
+         * @return futuro que se completa cuando termina el escritor
+         */
+        @Override
+        public CompletableFuture<Boolean> vaciarYCerrar() {
+            active = false;
+            cola.cerrar();
+            return escritorTerminado;
+        }
+
+        /**
+         * Cierra el socket del cliente (y sus flujos).
          */
         private void cerrarRecursos() {
             try {
-                if (in != null) in.close();
-                if (out != null) out.close();
+                /* Solo se cierra el socket (y con él sus flujos): cerrar el buffer de
+                 * salida haría flush y se quedaría esperando al escritor si el cliente
+                 * no lee. El escritor ya hace flush de cada lote. */
                 if (socket != null && !socket.isClosed()) socket.close();
             } catch (IOException e) {
                 LOGGER.log(Level.SEVERE, ERROR, e);
             }
         }
-
-        /**
-         * Genera un nuevo ID único para un cliente.
-         * 
-         * @reurn clientId clave generada para el nuevo cliente que se conecta.
-         */
-        private synchronized int getNextId() {
-            return ++clientId;
-        }
     }
 }
\ No newline at end of file
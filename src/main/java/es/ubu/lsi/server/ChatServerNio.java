@@ -0,0 +1,1173 @@
+/**
+ *
+ */
+package es.ubu.lsi.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessage.MessageType;
+import es.ubu.lsi.common.EncodedMessage;
+import es.ubu.lsi.common.FrameDecoder;
+import es.ubu.lsi.common.WireFormat;
+
+/**
+ * Servidor de chat con E/S no bloqueante.
+ *
+ * En lugar de un hilo por cliente se usa:
+ *  - Un ServerSocketChannel con su Selector para aceptar conexiones.
+ *  - Un número fijo de bucles de E/S (por defecto uno por núcleo), cada uno
+ *    con su Selector, que leen y escriben de forma no bloqueante.
+ *  - Un objeto de estado por conexión (NioSession) con sus buffers.
+ *
+ * La lógica del chat (registro, baneos, broadcast, logout y shutdown) es la
+ * misma que la de ChatServerImpl. Cada conexión negocia su formato de trama
+ * (serialización Java o binario) igual que en el motor bloqueante, así que
+ * los clientes antiguos funcionan sin cambios.
+ *
+ * Se elige al arrancar con -Dchat.engine=nio.
+ */
+public class ChatServerNio extends ChatServerImpl {
+
+    /** Tamaño inicial del buffer de lectura de cada conexión. */
+    private static final int TAM_LECTURA = 8 * 1024;
+
+    /** Selector del canal de aceptación. */
+    private Selector selectorAceptacion;
+
+    /** Canal del servidor. */
+    private ServerSocketChannel canalServidor;
+
+    /** Bucles de E/S entre los que se reparten las conexiones. */
+    private IoLoop[] bucles = new IoLoop[0];
+
+    /** Índice del bucle que recibirá la siguiente conexión. */
+    private int siguienteBucle;
+
+    /**
+     * Constructor por defecto (puerto 1500).
+     */
+    public ChatServerNio() {
+        this(DEFAULT_PORT);
+    }
+
+    /**
+     * Constructor con puerto especificado.
+     *
+     * @param port puerto de conexión.
+     */
+    public ChatServerNio(int port) {
+        this(port, new ServerConfig());
+    }
+
+    /**
+     * Constructor con puerto y configuración.
+     *
+     * @param port puerto de conexión.
+     * @param config configuración del servidor.
+     */
+    public ChatServerNio(int port, ServerConfig config) {
+        super(port, config);
+    }
+
+    /**
+     * Constructor con puerto, configuración y bus del clúster.
+     *
+     * @param port puerto de conexión.
+     * @param config configuración del servidor.
+     * @param bus bus con los demás nodos del clúster.
+     */
+    public ChatServerNio(int port, ServerConfig config, ClusterBus bus) {
+        super(port, config, bus);
+    }
+
+    /**
+     * Arranca los bucles de E/S y acepta conexiones hasta el apagado.
+     */
+    @Override
+    public void startup() {
+        try {
+            // Creación del canal del servidor en modo no bloqueante
+            canalServidor = ServerSocketChannel.open();
+            canalServidor.bind(new InetSocketAddress(port), config.getAcceptBacklog());
+            canalServidor.configureBlocking(false);
+
+            selectorAceptacion = Selector.open();
+            canalServidor.register(selectorAceptacion, SelectionKey.OP_ACCEPT);
+
+            // Se arrancan los bucles de E/S
+            arrancarBucles();
+
+            // Métricas, registro de mensajes y clúster
+            arrancarServicios();
+
+            //Log de apertura
+            LOGGER.log(Level.INFO,
+                    "{0} Servidor NIO iniciado a las: [{1}] con {2} bucles de E/S",
+                    new Object[]{ PUB, FORMATO_HORA.format(LocalTime.now()), bucles.length });
+
+            LOGGER.log(Level.INFO,
+                    "Escuchando al puerto: {0}",
+                    new Object[]{ port });
+
+            // Bucle de aceptación mientras el servidor esté vivo
+            while (alive) {
+                selectorAceptacion.select();
+                aceptarConexiones();
+            }
+
+        } catch (ClosedSelectorException e) {
+            // El selector se cierra durante el apagado
+            LOGGER.fine(ERROR2);
+        } catch (IOException e) {
+            if (alive) {
+                LOGGER.log(Level.SEVERE, ERROR, e);
+            }
+        }
+    }
+
+    /**
+     * Crea y arranca un hilo por cada bucle de E/S.
+     *
+     * @throws IOException si no se puede abrir un selector
+     */
+    private void arrancarBucles() throws IOException {
+        bucles = new IoLoop[config.getIoLoops()];
+        for (int i = 0; i < bucles.length; i++) {
+            bucles[i] = new IoLoop();
+            new Thread(bucles[i], "chat-nio-" + i).start();
+        }
+    }
+
+    /**
+     * Acepta todas las conexiones pendientes y reparte entre los bucles las
+     * que admite el control de admisión. Las rechazadas se cierran aquí.
+     *
+     * @throws IOException si falla el canal de aceptación
+     */
+    private void aceptarConexiones() throws IOException {
+        selectorAceptacion.selectedKeys().clear();
+
+        SocketChannel canal;
+        while ((canal = canalServidor.accept()) != null) {
+            metricas.conexionAceptada();
+            try {
+                canal.configureBlocking(false);
+                canal.setOption(StandardSocketOptions.TCP_NODELAY, config.isTcpNoDelay());
+            } catch (IOException e) {
+                // El cliente se ha ido nada más conectar: se descarta solo su canal
+                LOGGER.log(Level.FINE, ERROR2, e);
+                AdmissionControl.cortar(canal);
+                continue;
+            }
+
+            // Rechazo inmediato si supera algún límite
+            if (!admision.admitir(canal.socket().getInetAddress())) {
+                AdmissionControl.cortar(canal);
+                continue;
+            }
+
+            // Reparto round-robin
+            bucles[siguienteBucle].registrar(canal);
+            siguienteBucle = (siguienteBucle + 1) % bucles.length;
+        }
+    }
+
+    /**
+     * Cierra el canal de aceptación al empezar el apagado. Los bucles de E/S
+     * siguen funcionando para vaciar las colas de los clientes.
+     */
+    @Override
+    protected void dejarDeAceptar() {
+        try {
+            if (selectorAceptacion != null) {
+                selectorAceptacion.close();
+            }
+            if (canalServidor != null) {
+                canalServidor.close();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, ERROR, e);
+        }
+    }
+
+    /**
+     * Para los bucles de E/S al final del apagado; cierran las conexiones
+     * que les queden.
+     */
+    @Override
+    protected void pararMotor() {
+        for (IoLoop bucle : bucles) {
+            bucle.parar();
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // -------------------------- CLASES INTERNAS ------------------------------
+    // -------------------------------------------------------------------------
+
+    /**
+     * Bucle de eventos que atiende un subconjunto de las conexiones.
+     *
+     * Solo el hilo del bucle toca el selector y los canales registrados en él.
+     * El resto de hilos le pasan trabajo mediante colas concurrentes y
+     * despiertan el selector.
+     *
+     * Las sesiones que esperan por su límite de publicación se guardan
+     * ordenadas por el final de su espera, y el select se bloquea como mucho
+     * hasta el primero: no hace falta ningún hilo temporizador.
+     */
+    class IoLoop implements Runnable {
+
+        /** Selector de este bucle. */
+        private final Selector selector;
+
+        /** Conexiones aceptadas pendientes de registrar. */
+        private final Queue<SocketChannel> nuevas = new ConcurrentLinkedQueue<>();
+
+        /** Sesiones con datos pendientes de escribir. */
+        private final Queue<NioSession> pendientes = new ConcurrentLinkedQueue<>();
+
+        /** Tareas que otros hilos piden ejecutar en el hilo del bucle. */
+        private final Queue<Runnable> tareas = new ConcurrentLinkedQueue<>();
+
+        /** Sesiones que esperan por su límite de publicación (solo el hilo del bucle). */
+        private final PriorityQueue<NioSession> enEspera =
+                new PriorityQueue<>(Comparator.comparingLong((NioSession s) -> s.finEspera));
+
+        /** Hilo que ejecuta el bucle. */
+        private volatile Thread hilo;
+
+        /** Estado del bucle. */
+        private volatile boolean activo = true;
+
+        /**
+         * Constructor: abre el selector del bucle.
+         *
+         * @throws IOException si no se puede abrir el selector
+         */
+        IoLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        /**
+         * Entrega una conexión recién aceptada al bucle.
+         *
+         * @param canal canal del cliente
+         */
+        void registrar(SocketChannel canal) {
+            nuevas.add(canal);
+            selector.wakeup();
+        }
+
+        /**
+         * Pide al bucle que escriba los datos pendientes de una sesión.
+         *
+         * @param sesion sesión con datos pendientes
+         */
+        void programarEscritura(NioSession sesion) {
+            pendientes.add(sesion);
+            if (Thread.currentThread() != hilo) {
+                selector.wakeup();
+            }
+        }
+
+        /**
+         * Pide al bucle que ejecute una tarea de una sesión en su hilo. Si la
+         * tarea falla solo se cierra esa sesión.
+         *
+         * @param sesion sesión a la que pertenece la tarea
+         * @param tarea tarea que se ejecuta
+         */
+        void ejecutar(NioSession sesion, Runnable tarea) {
+            tareas.add(() -> {
+                try {
+                    tarea.run();
+                } catch (RuntimeException e) {
+                    fallar(sesion, e);
+                }
+            });
+            selector.wakeup();
+        }
+
+        /**
+         * Deja una sesión esperando hasta que pase el tiempo indicado (solo
+         * desde el hilo del bucle).
+         *
+         * @param sesion sesión que ha dejado de leer
+         * @param nanos espera en nanosegundos
+         */
+        void esperar(NioSession sesion, long nanos) {
+            sesion.finEspera = System.nanoTime() + nanos;
+            enEspera.add(sesion);
+        }
+
+        /**
+         * Para el bucle. Las conexiones se cierran en el propio hilo del bucle.
+         */
+        void parar() {
+            activo = false;
+            selector.wakeup();
+        }
+
+        /**
+         * Bucle principal: registra conexiones nuevas, escribe lo pendiente y
+         * atiende los canales listos.
+         */
+        @Override
+        public void run() {
+            hilo = Thread.currentThread();
+            try {
+                while (activo) {
+                    // Si hay escrituras o tareas pendientes no se bloquea en el select
+                    long espera = pendientes.isEmpty() && tareas.isEmpty() ? msHastaFinEspera() : 0;
+                    if (espera < 0) {
+                        selector.select();
+                    } else if (espera > 0) {
+                        selector.select(espera);
+                    } else {
+                        selector.selectNow();
+                    }
+
+                    registrarNuevas();
+                    ejecutarTareas();
+                    terminarEsperas();
+                    atenderEscriturasPendientes();
+
+                    Iterator<SelectionKey> claves = selector.selectedKeys().iterator();
+                    while (claves.hasNext()) {
+                        SelectionKey clave = claves.next();
+                        claves.remove();
+                        atender(clave);
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, ERROR, e);
+            } finally {
+                // Los cierres pedidos desde otros hilos se completan antes de cerrar el resto
+                ejecutarTareas();
+                cerrarTodas();
+            }
+        }
+
+        /**
+         * Registra en el selector las conexiones nuevas.
+         *
+         * @throws IOException si no se puede registrar un canal
+         */
+        private void registrarNuevas() throws IOException {
+            SocketChannel canal;
+            while ((canal = nuevas.poll()) != null) {
+                NioSession sesion = new NioSession(canal, this);
+                try {
+                    sesion.clave = canal.register(selector, SelectionKey.OP_READ, sesion);
+                } catch (ClosedChannelException e) {
+                    // El cliente se ha ido antes de registrarlo: se libera su hueco
+                    admision.inicioTerminado(null);
+                    admision.conexionCerrada();
+                    continue;
+                }
+
+                // El plazo del inicio vence en el temporizador y se atiende en el bucle
+                sesion.plazoInicio = admision.vigilarInicio(() -> ejecutar(sesion, sesion::caducarInicio));
+
+                // Los clientes antiguos esperan el saludo antes de enviar nada
+                sesion.encolar(WireFormat.SALUDO_SERVIDOR);
+            }
+        }
+
+        /**
+         * Devuelve cuánto falta para que termine la primera espera.
+         *
+         * @return milisegundos (al menos 1), 0 si ya ha terminado o -1 si no hay esperas
+         */
+        private long msHastaFinEspera() {
+            NioSession primera = enEspera.peek();
+            if (primera == null) {
+                return -1;
+            }
+            long nanos = primera.finEspera - System.nanoTime();
+            return nanos <= 0 ? 0 : Math.max(1, (nanos + 999_999) / 1_000_000);
+        }
+
+        /**
+         * Sigue con las sesiones cuya espera ha terminado.
+         */
+        private void terminarEsperas() {
+            long ahora = System.nanoTime();
+            NioSession sesion;
+            while ((sesion = enEspera.peek()) != null && sesion.finEspera - ahora <= 0) {
+                enEspera.poll();
+                try {
+                    sesion.continuarTrasEspera();
+                } catch (RuntimeException e) {
+                    fallar(sesion, e);
+                }
+            }
+        }
+
+        /**
+         * Ejecuta las tareas pedidas por otros hilos.
+         */
+        private void ejecutarTareas() {
+            Runnable tarea;
+            while ((tarea = tareas.poll()) != null) {
+                tarea.run();
+            }
+        }
+
+        /**
+         * Escribe los datos de las sesiones que lo han pedido.
+         */
+        private void atenderEscriturasPendientes() {
+            NioSession sesion;
+            while ((sesion = pendientes.poll()) != null) {
+                sesion.escrituraProgramada.set(false);
+                try {
+                    sesion.escribir();
+                } catch (IOException | CancelledKeyException e) {
+                    sesion.perderConexion();
+                } catch (RuntimeException e) {
+                    fallar(sesion, e);
+                }
+            }
+        }
+
+        /**
+         * Atiende un canal listo para leer o escribir.
+         *
+         * @param clave clave del canal
+         */
+        private void atender(SelectionKey clave) {
+            NioSession sesion = (NioSession) clave.attachment();
+            try {
+                if (clave.isValid() && clave.isReadable()) {
+                    sesion.leer();
+                }
+                if (clave.isValid() && clave.isWritable()) {
+                    sesion.escribir();
+                }
+            } catch (IOException | CancelledKeyException e) {
+                sesion.perderConexion();
+            } catch (RuntimeException e) {
+                fallar(sesion, e);
+            }
+        }
+
+        /**
+         * Cierra una sesión cuyo tratamiento ha fallado con un error
+         * inesperado. El bucle sigue atendiendo al resto de conexiones.
+         *
+         * @param sesion sesión que ha fallado
+         * @param e error producido
+         */
+        private void fallar(NioSession sesion, RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Error inesperado atendiendo a una conexión, se cierra", e);
+            try {
+                sesion.perderConexion();
+            } catch (RuntimeException e2) {
+                LOGGER.log(Level.FINE, ERROR2, e2);
+            }
+
+            // Si el cierre se ha quedado a medias, al menos se suelta el canal
+            if (sesion.canal.isOpen()) {
+                sesion.clave.cancel();
+                try {
+                    sesion.canal.close();
+                } catch (IOException e2) {
+                    LOGGER.log(Level.FINE, ERROR2, e2);
+                }
+            }
+        }
+
+        /**
+         * Cierra todas las conexiones del bucle y su selector.
+         */
+        private void cerrarTodas() {
+            try {
+                for (SelectionKey clave : selector.keys()) {
+                    NioSession sesion = (NioSession) clave.attachment();
+                    try {
+                        sesion.cerrar();
+                    } catch (RuntimeException e) {
+                        fallar(sesion, e);
+                    }
+                }
+                selector.close();
+            } catch (IOException | ClosedSelectorException e) {
+                LOGGER.fine(ERROR2);
+            }
+        }
+    }
+
+    /**
+     * Estado de una conexión gestionada por un bucle de E/S.
+     *
+     * Cada sesión tiene:
+     *  - Su canal y su clave en el selector del bucle.
+     *  - Su decodificador y buffer de lectura.
+     *  - Su cola de salida acotada, que vacía el bucle.
+     *
+     * Si la conexión se cae sin logout y la sesión se puede reanudar, lo que
+     * queda en la cola se anota y la sesión se deja suspendida.
+     */
+    class NioSession implements ResumableSession {
+
+        /** Canal del cliente. */
+        private final SocketChannel canal;
+
+        /** Bucle que atiende la conexión. */
+        private final IoLoop bucle;
+
+        /** Clave del canal en el selector del bucle. */
+        private SelectionKey clave;
+
+        /** Formato de las tramas (null hasta recibir el saludo del cliente). */
+        private WireFormat formato;
+
+        /** Decodificador del flujo entrante (según el formato). */
+        private FrameDecoder decoder;
+
+        /** Buffer de lectura (crece si llega una trama grande). */
+        private ByteBuffer lectura = ByteBuffer.allocate(TAM_LECTURA);
+
+        /** Tramas pendientes de escribir, en orden. */
+        private final OutboundQueue cola = nuevaColaSalida();
+
+        /** Tramas sacadas de la cola para la siguiente escritura. */
+        private final List<byte[]> tramasLote = new ArrayList<>();
+
+        /** Lote que se está escribiendo (el canal puede no admitirlo entero). */
+        private ByteBuffer[] lote = new ByteBuffer[0];
+
+        /** Primer buffer del lote que aún no se ha escrito entero. */
+        private int inicioLote;
+
+        /** Indica si la sesión ya está en la cola de escrituras del bucle. */
+        private final AtomicBoolean escrituraProgramada = new AtomicBoolean();
+
+        /** Estado de la sesión. */
+        private volatile boolean active = true;
+
+        /** Indica si hay que cerrar la conexión cuando se vacíe la salida. */
+        private volatile boolean cerrarAlVaciar;
+
+        /** Indica si la conexión ya se ha cerrado. */
+        private boolean cerrada;
+
+        /** Indica si se espera la respuesta del clúster sobre el nombre. */
+        private boolean esperandoNombre;
+
+        /** Indica si la conexión se ha caído sin que el cliente se despida. */
+        private boolean caida;
+
+        /** Tramas enviadas para reanudar la sesión (null si no se puede). */
+        private volatile ReplayBuffer repeticion;
+
+        /** Indica si la conexión aún ocupa un hueco de inicio. */
+        private boolean enInicio = true;
+
+        /** Límite de publicación del cliente (null si no hay). */
+        private final PublishRateLimiter limitador = nuevoLimitador();
+
+        /** Publicación retenida hasta que cumpla el límite (null si no hay). */
+        private ChatMessage retenido;
+
+        /** Instante (System.nanoTime) en el que se trata la publicación retenida. */
+        private long finEspera;
+
+        /** Plazo del inicio (null si no hay). */
+        private ScheduledFuture<?> plazoInicio;
+
+        /** Vigilancia de la inactividad (null sin latidos o con un cliente antiguo). */
+        private volatile HeartbeatMonitor.Watch vigilancia;
+
+        /** Se completa al cerrar la conexión, con true si se había enviado toda la salida. */
+        private final CompletableFuture<Boolean> cierre = new CompletableFuture<>();
+
+        /** Identificador único del cliente. */
+        private int id;
+
+        /** Plantilla de las publicaciones (se asigna antes que el nombre). */
+        private MessageTemplate plantilla;
+
+        /** Nombre de usuario (null hasta recibir el primer mensaje). */
+        private volatile String username;
+
+
+        /**
+         * Constructor.
+         *
+         * @param canal canal del cliente
+         * @param bucle bucle que atiende la conexión
+         */
+        NioSession(SocketChannel canal, IoLoop bucle) {
+            this.canal = canal;
+            this.bucle = bucle;
+        }
+
+        /**
+         * Lee lo disponible en el canal y procesa los mensajes completos.
+         *
+         * @throws IOException si falla la lectura o la trama no es válida
+         */
+        void leer() throws IOException {
+            int leidos = canal.read(lectura);
+            if (leidos < 0) {
+                perderConexion();
+                return;
+            }
+            metricas.bytesRecibidos(leidos);
+            HeartbeatMonitor.Watch actual = vigilancia;
+            if (actual != null) {
+                actual.actividad();
+            }
+            procesarLeidos();
+        }
+
+        /**
+         * Procesa los mensajes completos que hay en el buffer de lectura.
+         *
+         * @throws IOException si la trama no es válida
+         */
+        private void procesarLeidos() throws IOException {
+            lectura.flip();
+            if (decoder != null || leerSaludo()) {
+                ChatMessage msg;
+                int inicio = lectura.position();
+                while (active && !esperandoNombre && retenido == null && (msg = decoder.decode(lectura)) != null) {
+                    procesar(msg, lectura.position() - inicio);
+                    inicio = lectura.position();
+                }
+            }
+            lectura.compact();
+
+            // Buffer lleno sin una trama completa: se amplía
+            if (!lectura.hasRemaining()) {
+                ampliarLectura();
+            }
+        }
+
+        /**
+         * Lee el saludo del cliente y elige el formato de las tramas.
+         *
+         * @return true si ya se ha recibido el saludo completo
+         * @throws IOException si el saludo no es válido
+         */
+        private boolean leerSaludo() throws IOException {
+            if (lectura.remaining() < WireFormat.LONGITUD_SALUDO) {
+                return false;
+            }
+            byte[] saludo = new byte[WireFormat.LONGITUD_SALUDO];
+            lectura.get(saludo);
+            formato = WireFormat.desdeSaludo(saludo);
+            decoder = formato.nuevoDecoder();
+            return true;
+        }
+
+        /**
+         * Duplica el buffer de lectura hasta el tamaño máximo de trama.
+         *
+         * @throws IOException si la trama supera el tamaño máximo
+         */
+        private void ampliarLectura() throws IOException {
+            if (lectura.capacity() >= WireFormat.MAX_TRAMA) {
+                throw new IOException("Trama demasiado grande");
+            }
+            ByteBuffer nuevo = ByteBuffer.allocate(lectura.capacity() * 2);
+            lectura.flip();
+            nuevo.put(lectura);
+            lectura = nuevo;
+        }
+
+        /**
+         * Trata un mensaje recibido. El primero contiene el nombre de usuario.
+         *
+         * @param msg mensaje recibido
+         * @param bytes bytes de la trama
+         */
+        private void procesar(ChatMessage msg, int bytes) {
+            if (username == null) {
+                iniciarSesion(msg);
+            } else if (limitador != null && PublishRateLimiter.limitado(msg) && !respetarLimite(msg, bytes)) {
+                // Retenido, descartado o desconectado por el límite de publicación
+                return;
+            } else if (!procesarMensaje(this, msg)) {
+                // Logout o shutdown: se cierra la conexión
+                cerrar();
+            }
+        }
+
+        /**
+         * Cuenta una publicación contra el límite del cliente. Con DELAY el
+         * mensaje se retiene y se deja de leer el canal hasta que termine la
+         * espera (TCP frena al cliente), sin parar el bucle.
+         *
+         * @param msg publicación recibida
+         * @param bytes bytes de la trama
+         * @return true si hay que tratar el mensaje ahora
+         */
+        private boolean respetarLimite(ChatMessage msg, int bytes) {
+            long espera = limitador.admitir(bytes);
+            if (espera == 0) {
+                return true;
+            }
+            metricas.mensajeLimitado();
+            switch (limitador.getPolitica()) {
+                case DELAY -> {
+                    retenido = msg;
+                    clave.interestOps(clave.interestOps() & ~SelectionKey.OP_READ);
+                    bucle.esperar(this, espera);
+                }
+                case DISCONNECT -> {
+                    desconectarPorTasa(this);
+                    active = false;
+                    cerrarAlVaciar = true;
+                }
+                default -> { }
+            }
+            return false;
+        }
+
+        /**
+         * Trata la publicación retenida cuando termina su espera y vuelve a
+         * leer el canal (en el hilo del bucle).
+         */
+        void continuarTrasEspera() {
+            ChatMessage msg = retenido;
+            retenido = null;
+            if (cerrada || msg == null) {
+                return;
+            }
+            if (!procesarMensaje(this, msg)) {
+                cerrar();
+                return;
+            }
+            try {
+                clave.interestOps(clave.interestOps() | SelectionKey.OP_READ);
+                // Mensajes que llegaron antes de dejar de leer
+                procesarLeidos();
+            } catch (IOException | CancelledKeyException e) {
+                perderConexion();
+            }
+        }
+
+        /**
+         * Registra al cliente con el nombre recibido o lo rechaza si ya existe.
+         *
+         * @param primerMensaje mensaje con el nombre de usuario
+         */
+        private void iniciarSesion(ChatMessage primerMensaje) {
+            // Petición de reanudar una sesión cuya conexión se cayó
+            if (primerMensaje.getType() == MessageType.RESUME) {
+                terminarInicio();
+                if (!reanudarSesion(this, primerMensaje)) {
+                    active = false;
+                    cerrarAlVaciar = true;
+                } else {
+                    vigilarActividad();
+                }
+                return;
+            }
+
+            plantilla = new MessageTemplate(primerMensaje.getMessage());
+            username = primerMensaje.getMessage();
+
+            CompletableFuture<Boolean> reserva = reservarNombre(this);
+            if (reserva.isDone()) {
+                completarInicio(reserva.join());
+                return;
+            }
+
+            /* El nombre lo decide otro nodo del clúster: se deja de leer hasta
+             * que conteste, sin bloquear el bucle */
+            esperandoNombre = true;
+            clave.interestOps(clave.interestOps() & ~SelectionKey.OP_READ);
+            reserva.thenAccept(concedido -> bucle.ejecutar(this, () -> reanudar(concedido)));
+        }
+
+        /**
+         * Sigue con la sesión cuando llega la respuesta sobre el nombre.
+         *
+         * @param concedido true si el nombre es de este cliente
+         */
+        private void reanudar(boolean concedido) {
+            esperandoNombre = false;
+            completarInicio(concedido);
+            if (cerrada) {
+                return;
+            }
+            clave.interestOps(clave.interestOps() | SelectionKey.OP_READ);
+            try {
+                // Mensajes que llegaron mientras se esperaba
+                procesarLeidos();
+            } catch (IOException | CancelledKeyException e) {
+                perderConexion();
+            }
+        }
+
+        /**
+         * Registra al cliente o lo rechaza según la reserva de su nombre.
+         *
+         * @param concedido true si el nombre es de este cliente
+         */
+        private void completarInicio(boolean concedido) {
+            // La conexión se ha cerrado mientras se esperaba
+            if (cerrada) {
+                if (concedido) {
+                    liberarNombre(this);
+                }
+                return;
+            }
+            terminarInicio();
+
+            // Si el nombre ya existe se informa y se cierra.
+            if (!concedido) {
+                rechazarUsuarioDuplicado(this);
+                active = false;
+                cerrarAlVaciar = true;
+                return;
+            }
+
+            // Se asigna un ID único y se registra al usuario
+            id = getNextId();
+            repeticion = nuevaRepeticion(formato);
+            registrarCliente(this);
+            vigilarActividad();
+        }
+
+        /**
+         * Empieza a vigilar la inactividad del cliente. Los clientes antiguos
+         * no conocen los PING: con ellos se activa el keepalive de TCP.
+         */
+        private void vigilarActividad() {
+            if (formato == WireFormat.BINARY) {
+                vigilancia = latidos.vigilar(this, () -> bucle.ejecutar(this, this::caducarPorInactividad));
+                return;
+            }
+            try {
+                canal.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, ERROR2, e);
+            }
+        }
+
+        /**
+         * Cierra la conexión de un cliente inactivo como si se hubiera caído
+         * (en el hilo del bucle).
+         */
+        void caducarPorInactividad() {
+            if (!cerrada) {
+                desconectarInactivo(this);
+                perderConexion();
+            }
+        }
+
+        /**
+         * Libera el hueco de inicio de la conexión (solo la primera vez).
+         */
+        private void terminarInicio() {
+            if (enInicio) {
+                enInicio = false;
+                admision.inicioTerminado(plazoInicio);
+            }
+        }
+
+        /**
+         * Cierra la conexión si aún no ha terminado el inicio cuando vence
+         * su plazo (en el hilo del bucle).
+         */
+        void caducarInicio() {
+            if (enInicio && !cerrada) {
+                ASYNC_LOGGER.log(Level.FINE, PUB + "Conexión de {0} cerrada: no ha terminado el inicio a tiempo.",
+                        canal.socket().getInetAddress());
+                cerrar();
+            }
+        }
+
+        /**
+         * Añade una trama a la cola de salida y avisa al bucle.
+         *
+         * @param trama bytes que se van a escribir (no se modifican)
+         * @return false si la cola está llena y hay que desconectar al cliente
+         */
+        boolean encolar(byte[] trama) {
+            if (!cola.ofrecer(trama)) {
+                return false;
+            }
+            if (escrituraProgramada.compareAndSet(false, true)) {
+                bucle.programarEscritura(this);
+            }
+            return true;
+        }
+
+        /**
+         * Escribe todo lo que admita el canal. Las tramas pendientes se
+         * escriben por lotes con una sola escritura agrupada (gathering
+         * write). Si no cabe, se espera a que el canal esté listo (OP_WRITE).
+         *
+         * @throws IOException si falla la escritura
+         */
+        void escribir() throws IOException {
+            while (inicioLote < lote.length || siguienteLote()) {
+                long bytes = canal.write(lote, inicioLote, lote.length - inicioLote);
+                int completas = 0;
+                while (inicioLote < lote.length && !lote[inicioLote].hasRemaining()) {
+                    lote[inicioLote++] = null;
+                    completas++;
+                }
+                metricas.tramasEnviadas(completas, bytes);
+                if (inicioLote < lote.length) {
+                    clave.interestOps(clave.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            clave.interestOps(clave.interestOps() & ~SelectionKey.OP_WRITE);
+
+            if (cerrarAlVaciar) {
+                cerrar();
+            }
+        }
+
+        /**
+         * Saca de la cola el siguiente lote de tramas. Se envuelven los bytes
+         * compartidos sin copiarlos: cada sesión solo tiene su propia vista
+         * (posición) sobre el mismo array.
+         *
+         * @return true si había tramas pendientes
+         */
+        private boolean siguienteLote() {
+            tramasLote.clear();
+            if (cola.sondearLote(tramasLote, config.getWriteMaxBytes()) == 0) {
+                return false;
+            }
+            ReplayBuffer anillo = repeticion;
+            if (anillo != null) {
+                anillo.anotar(tramasLote);
+            }
+            lote = new ByteBuffer[tramasLote.size()];
+            for (int i = 0; i < lote.length; i++) {
+                lote[i] = ByteBuffer.wrap(tramasLote.get(i)).asReadOnlyBuffer();
+            }
+            inicioLote = 0;
+            return true;
+        }
+
+        /**
+         * Cierra la conexión porque se ha caído (o el cliente ha enviado
+         * algo no válido) sin que el cliente se despida.
+         */
+        void perderConexion() {
+            caida = true;
+            cerrar();
+        }
+
+        /**
+         * Cierra la conexión y elimina al cliente o, si la conexión se ha
+         * caído y la sesión se puede reanudar, la deja suspendida con lo que
+         * quedaba por enviar (solo desde el hilo del bucle).
+         */
+        void cerrar() {
+            if (cerrada) {
+                return;
+            }
+            cerrada = true;
+            active = false;
+            terminarInicio();
+            admision.conexionCerrada();
+            dejarDeVigilar();
+            ReplayBuffer anillo = repeticion;
+            boolean suspender = caida && anillo != null && id != 0;
+            if (suspender) {
+                anillo.anotarPendientes(cola);
+            }
+            cierre.complete(!caida && cola.getProfundidad() == 0 && inicioLote >= lote.length);
+            cola.abortar();
+            clave.cancel();
+            try {
+                canal.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, ERROR, e);
+            }
+            if (suspender) {
+                suspender(this);
+            } else if (id != 0) {
+                remove(id);
+            }
+        }
+
+        /**
+         * Pide al bucle que cierre la conexión cuando haya escrito lo que
+         * queda en la cola (desde cualquier hilo).
+         *
+         * @return futuro que se completa al cerrar la conexión
+         */
+        @Override
+        public CompletableFuture<Boolean> vaciarYCerrar() {
+            bucle.ejecutar(this, () -> {
+                if (cerrada) {
+                    return;
+                }
+                active = false;
+                cerrarAlVaciar = true;
+                try {
+                    escribir();
+                } catch (IOException | CancelledKeyException e) {
+                    perderConexion();
+                }
+            });
+            return cierre;
+        }
+
+        /**
+         * Deja de vigilar la inactividad de la sesión.
+         */
+        private void dejarDeVigilar() {
+            HeartbeatMonitor.Watch actual = vigilancia;
+            if (actual != null) {
+                actual.cancelar();
+            }
+        }
+
+        /**
+         * Devuelve el id.
+         *
+         * @return id del cliente
+         */
+        @Override
+        public int getId() {
+            return id;
+        }
+
+        /**
+         * Devuelve el nombre de usuario.
+         *
+         * @return nombre de usuario
+         */
+        @Override
+        public String getUsername() {
+            return username;
+        }
+
+        /**
+         * Devuelve la plantilla de las publicaciones del usuario.
+         *
+         * @return la plantilla
+         */
+        @Override
+        public MessageTemplate getPlantilla() {
+            return plantilla;
+        }
+
+        /**
+         * Devuelve el formato de las tramas de la sesión.
+         *
+         * @return el formato (null hasta recibir el saludo)
+         */
+        @Override
+        public WireFormat getFormato() {
+            return formato;
+        }
+
+        /**
+         * Devuelve las tramas enviadas para reanudar la sesión.
+         *
+         * @return el anillo o null si la sesión no se puede reanudar
+         */
+        @Override
+        public ReplayBuffer getRepeticion() {
+            return repeticion;
+        }
+
+        /**
+         * Toma la identidad de la sesión suspendida que se reanuda. El
+         * nombre se asigna el último: a partir de ahí los mensajes se tratan
+         * como de un cliente registrado.
+         *
+         * @param anterior sesión suspendida
+         */
+        @Override
+        public void adoptar(ClientSession anterior) {
+            id = anterior.getId();
+            plantilla = anterior.getPlantilla();
+            repeticion = anterior.getRepeticion();
+            username = anterior.getUsername();
+        }
+
+
+        /**
+         * Deja en la cola de salida la trama del mensaje en el formato de la
+         * sesión. Si la cola está llena se aplica la política configurada.
+         *
+         * @param trama el mensaje que se envía, ya codificado.
+         */
+        @Override
+        public void enviarTrama(EncodedMessage trama) {
+            if (!active) return;
+
+            try {
+                if (!encolar(trama.bytes(formato))) {
+                    desconectarLento(this);
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, ERROR, e);
+            }
+        }
+
+        /**
+         * Devuelve la cola de salida.
+         *
+         * @return la cola de tramas pendientes
+         */
+        @Override
+        public OutboundQueue getColaSalida() {
+            return cola;
+        }
+
+        /**
+         * Desconecta al cliente desde cualquier hilo cerrando el canal.
+         * El bucle ya no verá la clave, así que se elimina aquí del registro;
+         * el resto del cierre (como liberar su hueco en el control de
+         * admisión) se hace en el hilo del bucle, una sola vez.
+         */
+        @Override
+        public void disconnect() {
+            active = false;
+            repeticion = null;
+            dejarDeVigilar();
+            cierre.complete(false);
+            cola.abortar();
+            try {
+                canal.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, ERROR, e);
+            }
+            if (id != 0) {
+                remove(id);
+            }
+            bucle.ejecutar(this, this::cerrar);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ *
+ */
+package es.ubu.lsi.server;
+
+import java.util.concurrent.CompletableFuture;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.EncodedMessage;
+import es.ubu.lsi.common.WireFormat;
+
+/**
+ * Interface ClientSession
+ *
+ * Define lo que el servidor necesita de un cliente conectado,
+ * independientemente del motor de red que lo gestione.
+ */
+interface ClientSession {
+
+    /**
+     * Devuelve el identificador asignado por el servidor.
+     *
+     * @return id del cliente
+     */
+    int getId();
+
+    /**
+     * Devuelve el nombre de usuario.
+     *
+     * @return nombre de usuario
+     */
+    String getUsername();
+
+    /**
+     * Devuelve la plantilla con la que se forman las publicaciones del
+     * usuario, creada al recibir su nombre.
+     *
+     * @return la plantilla
+     */
+    MessageTemplate getPlantilla();
+
+    /**
+     * Devuelve el formato de las tramas que negoció el cliente.
+     *
+     * @return el formato (null antes del saludo)
+     */
+    WireFormat getFormato();
+
+    /**
+     * Devuelve las últimas tramas enviadas, con las que se puede reanudar
+     * la sesión si se cae la conexión.
+     *
+     * @return el anillo o null si la sesión no se puede reanudar
+     */
+    ReplayBuffer getRepeticion();
+
+    /**
+     * Envía un mensaje ya codificado al cliente, en el formato que negoció.
+     *
+     * Las tramas se comparten entre destinatarios y no se deben modificar.
+     *
+     * @param trama mensaje con sus tramas codificadas
+     */
+    void enviarTrama(EncodedMessage trama);
+
+    /**
+     * Envía un mensaje a este cliente solamente.
+     *
+     * @param mensaje mensaje enviado
+     */
+    default void enviarMensaje(ChatMessage mensaje) {
+        enviarTrama(new EncodedMessage(mensaje));
+    }
+
+    /**
+     * Devuelve la cola de salida del cliente.
+     *
+     * @return la cola de tramas pendientes de escribir
+     */
+    OutboundQueue getColaSalida();
+
+    /**
+     * Desconecta al cliente cerrando sus recursos.
+     */
+    void disconnect();
+
+    /**
+     * Cierra la conexión después de enviar lo que quede en la cola de
+     * salida, sin admitir más tramas (en el apagado). No espera: el cierre
+     * lo hace el escritor de la sesión.
+     *
+     * @return futuro que se completa al cerrar la conexión, con true si se
+     *         ha enviado todo lo pendiente
+     */
+    CompletableFuture<Boolean> vaciarYCerrar();
+}
@@ -0,0 +1,78 @@
+/**
+ *
+ */
+package es.ubu.lsi.server;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Interface ClusterBus
+ *
+ * Bus entre los nodos de un clúster de servidores de chat que comparten
+ * usuarios. Lo usa el servidor para dos cosas:
+ *  - Reclamar los nombres de usuario, para que no se repitan entre nodos.
+ *  - Reenviar una sola vez a los demás nodos cada publicación de sus
+ *    clientes; cada nodo la reparte después entre sus clientes locales.
+ *
+ * Las publicaciones viajan como la trama binaria ya construida (el formato
+ * de BinaryFrameEncoder), así que el nodo que la recibe no vuelve a formatear
+ * el texto y sus clientes binarios reciben esos mismos bytes.
+ */
+public interface ClusterBus {
+
+    /**
+     * Receptor de las publicaciones que llegan de otros nodos.
+     */
+    @FunctionalInterface
+    interface Receptor {
+
+        /**
+         * Reparte entre los clientes locales una publicación de otro nodo.
+         *
+         * @param sala sala en la que se ha publicado
+         * @param usuario nombre del emisor (para aplicar los baneos)
+         * @param trama trama binaria del mensaje (no se debe modificar)
+         */
+        void publicacionRemota(String sala, String usuario, byte[] trama);
+    }
+
+    /**
+     * Conecta el bus con los demás nodos.
+     *
+     * @param receptor quien recibe las publicaciones de otros nodos
+     * @throws IOException si no se puede abrir el bus
+     */
+    void iniciar(Receptor receptor) throws IOException;
+
+    /**
+     * Reclama un nombre de usuario en todo el clúster. El servidor ya lo ha
+     * reservado entre sus clientes locales antes de llamar.
+     *
+     * @param usuario nombre de usuario
+     * @return futuro que se completa con true si el nombre es de este nodo
+     *         y con false si lo tiene otro (o no se ha podido confirmar)
+     */
+    CompletableFuture<Boolean> reclamar(String usuario);
+
+    /**
+     * Libera un nombre de usuario reclamado por este nodo.
+     *
+     * @param usuario nombre de usuario
+     */
+    void liberar(String usuario);
+
+    /**
+     * Reenvía a los demás nodos una publicación de un cliente local.
+     *
+     * @param sala sala en la que se ha publicado
+     * @param usuario nombre del emisor
+     * @param trama trama binaria del mensaje (no se debe modificar)
+     */
+    void publicar(String sala, String usuario, byte[] trama);
+
+    /**
+     * Cierra las conexiones con los demás nodos.
+     */
+    void cerrar();
+}
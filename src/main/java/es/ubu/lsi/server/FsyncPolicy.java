@@ -0,0 +1,19 @@
+/**
+ *
+ */
+package es.ubu.lsi.server;
+
+/**
+ * Cuándo se fuerza a disco el registro de mensajes.
+ */
+public enum FsyncPolicy {
+
+    /** Nunca: el sistema operativo escribe las páginas cuando quiere. */
+    NEVER,
+
+    /** Después de cada lote escrito (lo más seguro y lo más lento). */
+    BATCH,
+
+    /** Cada cierto tiempo (chat.log.fsync.ms), en segundo plano. */
+    INTERVAL;
+}
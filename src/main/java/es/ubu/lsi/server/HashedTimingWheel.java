@@ -0,0 +1,228 @@
+/**
+ *
+ */
+package es.ubu.lsi.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Temporizador de rueda (hashed timing wheel) para muchos plazos poco
+ * precisos, como los de inactividad de cada sesión.
+ *
+ * La rueda tiene un número fijo de casillas y avanza una casilla en cada
+ * tic. Un plazo se guarda en la casilla en la que vence, con las vueltas
+ * completas que le faltan. En cada tic solo se recorre la casilla actual,
+ * así que el coste no depende de cuántos plazos haya programados sino de
+ * cuántos caen en esa casilla. Programar y cancelar son O(1).
+ *
+ * Los plazos vencen como mucho un tic tarde y nunca antes de tiempo. Las
+ * tareas se ejecutan en el hilo de la rueda, por lo que deben ser cortas
+ * (encolar un mensaje, cerrar un socket o pasar trabajo a otro hilo).
+ */
+class HashedTimingWheel {
+
+    /** Logger de los errores de las tareas. */
+    private static final Logger LOGGER = Logger.getLogger(HashedTimingWheel.class.getName());
+
+    /** Nombre del hilo de la rueda. */
+    private final String nombre;
+
+    /** Duración de un tic en nanosegundos. */
+    private final long nanosPorTic;
+
+    /** Casillas de la rueda (listas enlazadas de plazos, solo las toca el hilo de la rueda). */
+    private final Timeout[] casillas;
+
+    /** Máscara para pasar de tic a casilla (el número de casillas es potencia de 2). */
+    private final int mascara;
+
+    /** Plazos programados desde otros hilos, pendientes de colocar en su casilla. */
+    private final Queue<Timeout> nuevos = new ConcurrentLinkedQueue<>();
+
+    /** Instante (System.nanoTime) del tic 0. */
+    private long inicio;
+
+    /** Hilo de la rueda (se crea con el primer plazo). */
+    private Thread hilo;
+
+    /** Estado de la rueda. */
+    private volatile boolean activa = true;
+
+    /**
+     * Constructor.
+     *
+     * @param nombre nombre del hilo de la rueda
+     * @param tic duración de un tic
+     * @param unidad unidad de tic
+     * @param numCasillas casillas de la rueda (se redondea a potencia de 2)
+     */
+    HashedTimingWheel(String nombre, long tic, TimeUnit unidad, int numCasillas) {
+        this.nombre = nombre;
+        this.nanosPorTic = Math.max(1, unidad.toNanos(tic));
+        int tam = Integer.highestOneBit(Math.max(1, numCasillas - 1)) << 1;
+        this.casillas = new Timeout[tam];
+        this.mascara = tam - 1;
+    }
+
+    /**
+     * Programa una tarea para que se ejecute cuando pase el retraso.
+     *
+     * @param tarea tarea que se ejecuta en el hilo de la rueda
+     * @param retraso retraso desde ahora
+     * @param unidad unidad del retraso
+     * @return el plazo, que se puede cancelar
+     */
+    Timeout programar(Runnable tarea, long retraso, TimeUnit unidad) {
+        arrancar();
+        Timeout plazo = new Timeout(tarea, System.nanoTime() + Math.max(0, unidad.toNanos(retraso)));
+        nuevos.add(plazo);
+        return plazo;
+    }
+
+    /**
+     * Para la rueda. Los plazos pendientes ya no se ejecutan.
+     */
+    synchronized void parar() {
+        activa = false;
+        if (hilo != null) {
+            LockSupport.unpark(hilo);
+        }
+    }
+
+    /**
+     * Arranca el hilo de la rueda si aún no existe.
+     */
+    private synchronized void arrancar() {
+        if (hilo != null || !activa) {
+            return;
+        }
+        inicio = System.nanoTime();
+        hilo = new Thread(this::girar, nombre);
+        hilo.setDaemon(true);
+        hilo.start();
+    }
+
+    /**
+     * Bucle del hilo de la rueda: espera al final de cada tic, coloca los
+     * plazos nuevos y vence los de la casilla actual.
+     */
+    private void girar() {
+        long tic = 0;
+        while (activa) {
+            long fin = inicio + (tic + 1) * nanosPorTic;
+            long falta;
+            while (activa && (falta = fin - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, falta);
+            }
+            if (!activa) {
+                break;
+            }
+            colocarNuevos(tic);
+            vencer((int) (tic & mascara));
+            tic++;
+        }
+        nuevos.clear();
+    }
+
+    /**
+     * Coloca los plazos nuevos en la casilla en la que vencen. Los que ya
+     * han vencido van a la casilla actual.
+     *
+     * @param tic tic actual
+     */
+    private void colocarNuevos(long tic) {
+        Timeout plazo;
+        while ((plazo = nuevos.poll()) != null) {
+            if (plazo.cancelado) {
+                continue;
+            }
+            long ticPlazo = Math.max(tic, (plazo.vence - inicio) / nanosPorTic);
+            plazo.vueltas = (ticPlazo - tic) / casillas.length;
+            int casilla = (int) (ticPlazo & mascara);
+            plazo.siguiente = casillas[casilla];
+            casillas[casilla] = plazo;
+        }
+    }
+
+    /**
+     * Recorre una casilla: ejecuta los plazos de esta vuelta, descarta los
+     * cancelados y deja los demás con una vuelta menos.
+     *
+     * @param casilla casilla actual
+     */
+    private void vencer(int casilla) {
+        Timeout plazo = casillas[casilla];
+        casillas[casilla] = null;
+        while (plazo != null) {
+            Timeout siguiente = plazo.siguiente;
+            plazo.siguiente = null;
+            if (plazo.vueltas > 0 && !plazo.cancelado) {
+                plazo.vueltas--;
+                plazo.siguiente = casillas[casilla];
+                casillas[casilla] = plazo;
+            } else if (!plazo.cancelado) {
+                ejecutar(plazo);
+            }
+            plazo = siguiente;
+        }
+    }
+
+    /**
+     * Ejecuta la tarea de un plazo vencido. Un error en la tarea no para
+     * la rueda.
+     *
+     * @param plazo plazo vencido
+     */
+    private void ejecutar(Timeout plazo) {
+        try {
+            plazo.tarea.run();
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Error en una tarea del temporizador " + nombre, e);
+        }
+    }
+
+    /**
+     * Plazo programado en la rueda.
+     */
+    static final class Timeout {
+
+        /** Tarea que se ejecuta al vencer. */
+        private final Runnable tarea;
+
+        /** Instante (System.nanoTime) en el que vence. */
+        private final long vence;
+
+        /** Vueltas completas que faltan (solo el hilo de la rueda). */
+        private long vueltas;
+
+        /** Siguiente plazo de la misma casilla (solo el hilo de la rueda). */
+        private Timeout siguiente;
+
+        /** Indica si se ha cancelado. */
+        private volatile boolean cancelado;
+
+        /**
+         * Constructor.
+         *
+         * @param tarea tarea que se ejecuta al vencer
+         * @param vence instante en el que vence
+         */
+        private Timeout(Runnable tarea, long vence) {
+            this.tarea = tarea;
+            this.vence = vence;
+        }
+
+        /**
+         * Cancela el plazo. Se saca de su casilla la próxima vez que la
+         * recorra la rueda.
+         */
+        void cancelar() {
+            cancelado = true;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/**
+ *
+ */
+package es.ubu.lsi.server;
+
+import java.util.concurrent.TimeUnit;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessage.MessageType;
+import es.ubu.lsi.common.EncodedMessage;
+
+/**
+ * Detección de sesiones inactivas con latidos (PING/PONG).
+ *
+ * Una conexión TCP medio abierta (el cliente se ha ido sin cerrar, o se ha
+ * caído la red) no da ningún error hasta que se escribe en ella, y un
+ * cliente que no recibe nada puede ocupar su hilo y su nombre para siempre.
+ * Para evitarlo, cada sesión registrada anota cuándo recibió algo por
+ * última vez:
+ *  - Si pasa chat.heartbeat.ms sin recibir nada, se le envía un PING (y
+ *    otro en cada intervalo). El cliente contesta con un PONG, que cuenta
+ *    como actividad.
+ *  - Si pasa chat.idle.timeout.ms sin recibir nada, se cierra la conexión
+ *    como si se hubiera caído (la sesión se puede reanudar si procede).
+ *
+ * Anotar la actividad es solo escribir un volatile: los plazos no se mueven
+ * con cada mensaje. Cada sesión tiene un único plazo en una
+ * HashedTimingWheel y, cuando vence, se mira la última actividad para
+ * decidir si se envía un PING, se cierra la sesión o se vuelve a programar
+ * el plazo desde esa actividad.
+ */
+class HeartbeatMonitor {
+
+    /** Duración de un tic de la rueda en milisegundos. */
+    private static final long TIC_MS = 100;
+
+    /** Casillas de la rueda (una vuelta son unos 51 segundos). */
+    private static final int CASILLAS = 512;
+
+    /** Latido que se envía a las sesiones inactivas (se codifica una sola vez). */
+    private static final EncodedMessage PING = new EncodedMessage(new ChatMessage(0, MessageType.PING, ""));
+
+    /** Inactividad tras la que se envía un PING, en nanosegundos (0 sin latidos). */
+    private final long intervalo;
+
+    /** Inactividad tras la que se cierra la sesión, en nanosegundos. */
+    private final long limite;
+
+    /** Rueda con los plazos de todas las sesiones (null sin latidos). */
+    private final HashedTimingWheel rueda;
+
+    /**
+     * Constructor.
+     *
+     * @param config configuración del servidor
+     */
+    HeartbeatMonitor(ServerConfig config) {
+        this.intervalo = TimeUnit.MILLISECONDS.toNanos(config.getHeartbeatMillis());
+        this.limite = TimeUnit.MILLISECONDS.toNanos(config.getIdleTimeoutMillis());
+        // Sin latidos no se crea la rueda (ni, por tanto, su hilo)
+        this.rueda = intervalo == 0 ? null
+                : new HashedTimingWheel("chat-latidos", TIC_MS, TimeUnit.MILLISECONDS, CASILLAS);
+    }
+
+    /**
+     * Empieza a vigilar una sesión registrada.
+     *
+     * @param sesion sesión a la que se envían los PING
+     * @param alCaducar acción que cierra la conexión si sigue inactiva al
+     *        llegar al límite (se ejecuta en el hilo de la rueda)
+     * @return la vigilancia de la sesión, o null si no hay latidos
+     */
+    Watch vigilar(ClientSession sesion, Runnable alCaducar) {
+        if (intervalo == 0) {
+            return null;
+        }
+        Watch vigilancia = new Watch(sesion, alCaducar);
+        vigilancia.programar(intervalo);
+        return vigilancia;
+    }
+
+    /**
+     * Para la rueda.
+     */
+    void cerrar() {
+        if (rueda != null) {
+            rueda.parar();
+        }
+    }
+
+    /**
+     * Vigilancia de la actividad de una sesión.
+     */
+    final class Watch {
+
+        /** Sesión vigilada. */
+        private final ClientSession sesion;
+
+        /** Acción que cierra la conexión inactiva. */
+        private final Runnable alCaducar;
+
+        /** Instante (System.nanoTime) en el que se recibió algo por última vez. */
+        private volatile long ultimaActividad = System.nanoTime();
+
+        /** Plazo programado en la rueda. */
+        private volatile HashedTimingWheel.Timeout plazo;
+
+        /** Indica si se ha dejado de vigilar. */
+        private volatile boolean cancelada;
+
+        /**
+         * Constructor.
+         *
+         * @param sesion sesión vigilada
+         * @param alCaducar acción que cierra la conexión inactiva
+         */
+        private Watch(ClientSession sesion, Runnable alCaducar) {
+            this.sesion = sesion;
+            this.alCaducar = alCaducar;
+        }
+
+        /**
+         * Anota que se ha recibido algo del cliente.
+         */
+        void actividad() {
+            ultimaActividad = System.nanoTime();
+        }
+
+        /**
+         * Deja de vigilar la sesión (al cerrarla).
+         */
+        void cancelar() {
+            cancelada = true;
+            HashedTimingWheel.Timeout actual = plazo;
+            if (actual != null) {
+                actual.cancelar();
+            }
+        }
+
+        /**
+         * Programa la siguiente comprobación.
+         *
+         * @param nanos nanosegundos hasta la comprobación
+         */
+        private void programar(long nanos) {
+            plazo = rueda.programar(this::comprobar, nanos, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Comprueba la inactividad de la sesión cuando vence su plazo (en el
+         * hilo de la rueda).
+         */
+        private void comprobar() {
+            if (cancelada) {
+                return;
+            }
+            long inactiva = System.nanoTime() - ultimaActividad;
+            if (inactiva >= limite) {
+                cancelada = true;
+                alCaducar.run();
+                return;
+            }
+            if (inactiva >= intervalo) {
+                sesion.enviarTrama(PING);
+                programar(Math.min(intervalo, limite - inactiva));
+            } else {
+                programar(intervalo - inactiva);
+            }
+        }
+    }
+}
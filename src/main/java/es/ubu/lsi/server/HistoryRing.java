@@ -0,0 +1,104 @@
+/**
+ *
+ */
+package es.ubu.lsi.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import es.ubu.lsi.common.EncodedMessage;
+
+/**
+ * Últimos mensajes publicados en una sala, para enviárselos a quien entra.
+ *
+ * Es un anillo de tamaño fijo reservado al crearlo que guarda los mensajes
+ * ya codificados (EncodedMessage), así que ponerse al día no vuelve a
+ * serializar nada: el recién llegado recibe los mismos bytes que recibieron
+ * los demás.
+ *
+ * Añadir no usa cerrojos: cada publicación coge su número con un contador
+ * atómico y escribe en su posición. Cada posición guarda también el número
+ * del mensaje que contiene; se invalida antes de escribir y se vuelve a
+ * poner después, de modo que quien lee a la vez descarta una posición que
+ * se está sobrescribiendo (como un seqlock).
+ */
+class HistoryRing {
+
+    /** Marca de posición que se está escribiendo. */
+    private static final long ESCRIBIENDO = -1;
+
+    /** Mensajes guardados. */
+    private final AtomicReferenceArray<EncodedMessage> mensajes;
+
+    /** Número del mensaje de cada posición (ESCRIBIENDO mientras cambia). */
+    private final AtomicLongArray numeros;
+
+    /** Número del siguiente mensaje. */
+    private final AtomicLong siguiente = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param capacidad número de mensajes que se guardan (al menos 1)
+     */
+    HistoryRing(int capacidad) {
+        int tam = Math.max(1, capacidad);
+        this.mensajes = new AtomicReferenceArray<>(tam);
+        this.numeros = new AtomicLongArray(tam);
+        for (int i = 0; i < tam; i++) {
+            numeros.set(i, ESCRIBIENDO);
+        }
+    }
+
+    /**
+     * Guarda un mensaje, sustituyendo al más antiguo si está lleno.
+     *
+     * @param mensaje mensaje ya codificado
+     */
+    void anadir(EncodedMessage mensaje) {
+        long numero = siguiente.getAndIncrement();
+        int posicion = (int) (numero % mensajes.length());
+        numeros.set(posicion, ESCRIBIENDO);
+        mensajes.set(posicion, mensaje);
+        numeros.set(posicion, numero);
+    }
+
+    /**
+     * Devuelve los mensajes guardados, del más antiguo al más nuevo. Se
+     * saltan los que se estén sobrescribiendo en ese momento.
+     *
+     * @return copia de los mensajes
+     */
+    List<EncodedMessage> recientes() {
+        long fin = siguiente.get();
+        long inicio = Math.max(0, fin - mensajes.length());
+        if (inicio == fin) {
+            return Collections.emptyList();
+        }
+        List<EncodedMessage> resultado = new ArrayList<>((int) (fin - inicio));
+        for (long numero = inicio; numero < fin; numero++) {
+            int posicion = (int) (numero % mensajes.length());
+            if (numeros.get(posicion) != numero) {
+                continue;
+            }
+            EncodedMessage mensaje = mensajes.get(posicion);
+            if (numeros.get(posicion) == numero) {
+                resultado.add(mensaje);
+            }
+        }
+        return resultado;
+    }
+
+    /**
+     * Devuelve el número de mensajes que caben.
+     *
+     * @return capacidad del anillo
+     */
+    int capacidad() {
+        return mensajes.length();
+    }
+}
@@ -0,0 +1,43 @@
+/**
+ *
+ */
+package es.ubu.lsi.server;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Bus de un servidor sin clúster: no hay otros nodos.
+ *
+ * Los nombres ya se reservan entre los clientes locales, así que todo
+ * reclamo se concede, y las publicaciones no se reenvían a ningún sitio.
+ */
+final class LocalBus implements ClusterBus {
+
+    /** Respuesta a todos los reclamos. */
+    private static final CompletableFuture<Boolean> CONCEDIDO = CompletableFuture.completedFuture(true);
+
+    @Override
+    public void iniciar(Receptor receptor) {
+        // No hay nodos con los que conectar
+    }
+
+    @Override
+    public CompletableFuture<Boolean> reclamar(String usuario) {
+        return CONCEDIDO;
+    }
+
+    @Override
+    public void liberar(String usuario) {
+        // No hay nada reservado fuera del servidor
+    }
+
+    @Override
+    public void publicar(String sala, String usuario, byte[] trama) {
+        // No hay otros nodos
+    }
+
+    @Override
+    public void cerrar() {
+        // No hay conexiones
+    }
+}
@@ -0,0 +1,657 @@
+/**
+ *
+ */
+package es.ubu.lsi.server;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import es.ubu.lsi.common.WireFormat;
+
+/**
+ * Registro persistente (solo se añade) de las publicaciones del servidor.
+ *
+ * Los mensajes se guardan en segmentos de tamaño fijo proyectados en memoria
+ * (memory-mapped). Cuando un segmento se llena se abre el siguiente, cuyo
+ * nombre es el offset de su primer mensaje. Cada segmento tiene un índice
+ * disperso (una entrada cada INTERVALO_INDICE bytes) para buscar un offset
+ * sin recorrer el segmento desde el principio.
+ *
+ * Quien publica solo prepara la entrada y la deja en una cola; un hilo de
+ * fondo la escribe por lotes y aplica la política de fsync, así que la
+ * latencia del disco no está en el camino del broadcast. Si la cola se
+ * llena la entrada se descarta (y se cuenta) en lugar de frenar el envío.
+ *
+ * Cada registro del segmento es:
+ *  - Longitud de la entrada (int) y su CRC32 (int).
+ *  - Instante en milisegundos (long).
+ *  - Sala (short con la longitud y los bytes en UTF-8).
+ *  - Trama binaria del mensaje (el formato de BinaryFrameEncoder).
+ * Una longitud 0 marca el final de lo escrito. Al abrir un registro existente
+ * se recorre el último segmento y se corta en el primer registro incompleto
+ * o con un CRC incorrecto.
+ */
+class MessageLog {
+
+    /** Logger del registro. */
+    private static final Logger LOGGER = Logger.getLogger(MessageLog.class.getName());
+
+    /** Extensión de los segmentos. */
+    private static final String EXTENSION_LOG = ".log";
+
+    /** Extensión de los índices. */
+    private static final String EXTENSION_INDICE = ".index";
+
+    /** Bytes de la cabecera de un registro (longitud y CRC). */
+    private static final int CABECERA = 8;
+
+    /** Bytes de una entrada del índice (offset relativo y posición). */
+    private static final int ENTRADA_INDICE = 8;
+
+    /** Bytes de segmento entre dos entradas del índice. */
+    private static final int INTERVALO_INDICE = 4096;
+
+    /** Bytes máximos que el escritor saca de la cola de una vez. */
+    private static final int MAX_LOTE = 1024 * 1024;
+
+    /** Tamaño mínimo de un segmento (cabe al menos una trama máxima). */
+    static final int MIN_SEGMENTO = 2 * WireFormat.MAX_TRAMA;
+
+    /**
+     * Mensaje leído del registro.
+     */
+    static final class Entrada {
+
+        /** Posición del mensaje en el registro. */
+        private final long offset;
+
+        /** Instante en el que se registró (milisegundos). */
+        private final long instante;
+
+        /** Sala en la que se publicó. */
+        private final String sala;
+
+        /** Trama binaria del mensaje. */
+        private final byte[] trama;
+
+        /**
+         * Constructor.
+         *
+         * @param offset posición del mensaje
+         * @param instante instante del registro
+         * @param sala sala del mensaje
+         * @param trama trama binaria
+         */
+        private Entrada(long offset, long instante, String sala, byte[] trama) {
+            this.offset = offset;
+            this.instante = instante;
+            this.sala = sala;
+            this.trama = trama;
+        }
+
+        /**
+         * Devuelve la posición del mensaje en el registro.
+         *
+         * @return el offset
+         */
+        long getOffset() {
+            return offset;
+        }
+
+        /**
+         * Devuelve el instante en el que se registró.
+         *
+         * @return milisegundos desde 1970
+         */
+        long getInstante() {
+            return instante;
+        }
+
+        /**
+         * Devuelve la sala en la que se publicó.
+         *
+         * @return nombre de la sala
+         */
+        String getSala() {
+            return sala;
+        }
+
+        /**
+         * Devuelve la trama binaria del mensaje.
+         *
+         * @return bytes de la trama (no se deben modificar)
+         */
+        byte[] getTrama() {
+            return trama;
+        }
+    }
+
+    /**
+     * Segmento del registro con su índice. Solo lo modifica el escritor.
+     */
+    private static final class Segmento {
+
+        /** Offset del primer mensaje del segmento. */
+        private final long base;
+
+        /** Canal del fichero de datos. */
+        private final FileChannel canalDatos;
+
+        /** Canal del fichero del índice. */
+        private final FileChannel canalIndice;
+
+        /** Datos proyectados en memoria. */
+        private final MappedByteBuffer datos;
+
+        /** Índice proyectado en memoria. */
+        private final MappedByteBuffer indice;
+
+        /** Posición en la que se escribirá el siguiente registro. */
+        private int posicion;
+
+        /** Número de registros escritos. */
+        private int registros;
+
+        /** Número de entradas del índice. */
+        private volatile int entradasIndice;
+
+        /** Posición del último registro indexado. */
+        private int ultimaIndexada = -INTERVALO_INDICE;
+
+        /**
+         * Abre (o crea) un segmento.
+         *
+         * @param directorio directorio del registro
+         * @param base offset del primer mensaje
+         * @param tam tamaño de un segmento nuevo
+         * @throws IOException si no se pueden abrir los ficheros
+         */
+        Segmento(Path directorio, long base, int tam) throws IOException {
+            this.base = base;
+            Path rutaDatos = directorio.resolve(nombre(base) + EXTENSION_LOG);
+            Path rutaIndice = directorio.resolve(nombre(base) + EXTENSION_INDICE);
+
+            canalDatos = FileChannel.open(rutaDatos, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            // Un segmento existente conserva su tamaño aunque cambie la configuración
+            long tamDatos = canalDatos.size() > 0 ? canalDatos.size() : tam;
+            datos = canalDatos.map(FileChannel.MapMode.READ_WRITE, 0, tamDatos);
+
+            canalIndice = FileChannel.open(rutaIndice, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            indice = canalIndice.map(FileChannel.MapMode.READ_WRITE, 0,
+                    (tamDatos / INTERVALO_INDICE + 1) * ENTRADA_INDICE);
+        }
+
+        /**
+         * Recorre el segmento para encontrar el final de lo escrito y
+         * reconstruye el índice.
+         */
+        void recuperar() {
+            posicion = 0;
+            registros = 0;
+            entradasIndice = 0;
+            ultimaIndexada = -INTERVALO_INDICE;
+            CRC32 crc = new CRC32();
+            while (posicion + CABECERA <= datos.capacity()) {
+                int longitud = datos.getInt(posicion);
+                if (longitud <= 0 || posicion + CABECERA + longitud > datos.capacity()) {
+                    break;
+                }
+                byte[] entrada = new byte[longitud];
+                datos.get(posicion + CABECERA, entrada);
+                crc.reset();
+                crc.update(entrada);
+                if ((int) crc.getValue() != datos.getInt(posicion + 4)) {
+                    break;
+                }
+                indexar();
+                posicion += CABECERA + longitud;
+                registros++;
+            }
+            terminar();
+        }
+
+        /**
+         * Cuenta las entradas válidas del índice de un segmento cerrado.
+         */
+        void cargarIndice() {
+            int entradas = indice.capacity() > 0 ? 1 : 0;
+            while ((entradas + 1) * ENTRADA_INDICE <= indice.capacity()
+                    && indice.getInt(entradas * ENTRADA_INDICE) > 0) {
+                entradas++;
+            }
+            entradasIndice = entradas;
+        }
+
+        /**
+         * Indica si cabe un registro más.
+         *
+         * @param longitud bytes de la entrada
+         * @return true si cabe (dejando sitio para la marca de final)
+         */
+        boolean cabe(int longitud) {
+            return posicion + CABECERA + longitud + 4 <= datos.capacity();
+        }
+
+        /**
+         * Añade un registro.
+         *
+         * @param entrada bytes de la entrada
+         * @param crc calculador de CRC del escritor
+         */
+        void anadir(byte[] entrada, CRC32 crc) {
+            crc.reset();
+            crc.update(entrada);
+            indexar();
+            datos.put(posicion + CABECERA, entrada);
+            datos.putInt(posicion + 4, (int) crc.getValue());
+            datos.putInt(posicion, entrada.length);
+            posicion += CABECERA + entrada.length;
+            registros++;
+        }
+
+        /**
+         * Escribe la marca de final después del último registro.
+         */
+        void terminar() {
+            if (posicion + 4 <= datos.capacity()) {
+                datos.putInt(posicion, 0);
+            }
+        }
+
+        /**
+         * Añade una entrada al índice si toca.
+         */
+        private void indexar() {
+            if (posicion - ultimaIndexada < INTERVALO_INDICE) {
+                return;
+            }
+            int entrada = entradasIndice;
+            if ((entrada + 1) * ENTRADA_INDICE > indice.capacity()) {
+                return;
+            }
+            indice.putInt(entrada * ENTRADA_INDICE, registros);
+            indice.putInt(entrada * ENTRADA_INDICE + 4, posicion);
+            ultimaIndexada = posicion;
+            entradasIndice = entrada + 1;
+        }
+
+        /**
+         * Busca en el índice la posición desde la que recorrer el segmento
+         * para llegar a un registro.
+         *
+         * @param relativo número del registro dentro del segmento
+         * @return pareja {número de registro, posición} de la entrada anterior
+         */
+        int[] buscar(int relativo) {
+            int bajo = 0;
+            int alto = entradasIndice - 1;
+            int[] resultado = { 0, 0 };
+            while (bajo <= alto) {
+                int medio = (bajo + alto) >>> 1;
+                int registro = indice.getInt(medio * ENTRADA_INDICE);
+                if (registro <= relativo) {
+                    resultado[0] = registro;
+                    resultado[1] = indice.getInt(medio * ENTRADA_INDICE + 4);
+                    bajo = medio + 1;
+                } else {
+                    alto = medio - 1;
+                }
+            }
+            return resultado;
+        }
+
+        /**
+         * Fuerza a disco los datos y el índice.
+         */
+        void forzar() {
+            datos.force();
+            indice.force();
+        }
+
+        /**
+         * Cierra los ficheros del segmento.
+         */
+        void cerrar() {
+            try {
+                canalDatos.close();
+                canalIndice.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Error cerrando un segmento: {0}", e.getMessage());
+            }
+        }
+    }
+
+    /** Directorio de los segmentos. */
+    private final Path directorio;
+
+    /** Tamaño de los segmentos nuevos. */
+    private final int tamSegmento;
+
+    /** Política de fsync. */
+    private final FsyncPolicy politicaFsync;
+
+    /** Entradas pendientes de escribir. */
+    private final OutboundQueue cola;
+
+    /** Entradas descartadas por cola llena. */
+    private final LongAdder descartadas = new LongAdder();
+
+    /** Segmentos abiertos, del más antiguo al más nuevo. */
+    private final List<Segmento> segmentos = new CopyOnWriteArrayList<>();
+
+    /** Offset del siguiente mensaje; lo anterior ya se puede leer. */
+    private volatile long siguienteOffset;
+
+    /** Hilo que escribe las entradas. */
+    private final Thread escritor;
+
+    /** Tarea de fsync periódico (null si la política no es INTERVAL). */
+    private final ScheduledExecutorService fsyncPeriodico;
+
+    /**
+     * Abre el registro (recuperando lo que ya hubiera en el directorio) y
+     * arranca el escritor.
+     *
+     * @param directorio directorio de los segmentos
+     * @param tamSegmento tamaño de cada segmento en bytes
+     * @param capacidadCola entradas que pueden esperar al escritor
+     * @param politicaFsync cuándo se fuerza a disco
+     * @param intervaloFsyncMs periodo del fsync con la política INTERVAL
+     * @throws IOException si no se puede abrir el directorio o un segmento
+     */
+    MessageLog(Path directorio, int tamSegmento, int capacidadCola,
+            FsyncPolicy politicaFsync, long intervaloFsyncMs) throws IOException {
+        this.directorio = Files.createDirectories(directorio);
+        this.tamSegmento = Math.max(MIN_SEGMENTO, tamSegmento);
+        this.politicaFsync = politicaFsync;
+        this.cola = new OutboundQueue(capacidadCola, OverflowPolicy.DROP_NEWEST, descartadas);
+        abrirSegmentos();
+
+        escritor = new Thread(this::escribir, "registro-mensajes");
+        escritor.setDaemon(true);
+        escritor.start();
+
+        if (politicaFsync == FsyncPolicy.INTERVAL) {
+            fsyncPeriodico = Executors.newSingleThreadScheduledExecutor(tarea -> {
+                Thread hilo = new Thread(tarea, "registro-fsync");
+                hilo.setDaemon(true);
+                return hilo;
+            });
+            fsyncPeriodico.scheduleWithFixedDelay(this::forzar,
+                    intervaloFsyncMs, intervaloFsyncMs, TimeUnit.MILLISECONDS);
+        } else {
+            fsyncPeriodico = null;
+        }
+        LOGGER.log(Level.INFO, "Registro de mensajes en {0} desde el offset {1}",
+                new Object[]{ this.directorio, String.valueOf(siguienteOffset) });
+    }
+
+    /**
+     * Deja una publicación en la cola del escritor. No bloquea.
+     *
+     * @param sala sala en la que se ha publicado
+     * @param trama trama binaria del mensaje (no se modifica)
+     */
+    void anadir(String sala, byte[] trama) {
+        byte[] nombreSala = sala.getBytes(StandardCharsets.UTF_8);
+        if (nombreSala.length > 0xFFFF) {
+            // No cabe en la cabecera: se cuenta como descartada
+            descartadas.increment();
+            return;
+        }
+        byte[] entrada = new byte[8 + 2 + nombreSala.length + trama.length];
+        long instante = System.currentTimeMillis();
+        for (int i = 0; i < 8; i++) {
+            entrada[i] = (byte) (instante >>> (56 - 8 * i));
+        }
+        entrada[8] = (byte) (nombreSala.length >>> 8);
+        entrada[9] = (byte) nombreSala.length;
+        System.arraycopy(nombreSala, 0, entrada, 10, nombreSala.length);
+        System.arraycopy(trama, 0, entrada, 10 + nombreSala.length, trama.length);
+        cola.ofrecer(entrada);
+    }
+
+    /**
+     * Lee mensajes ya escritos a partir de un offset.
+     *
+     * @param desde offset del primer mensaje que se quiere
+     * @param max número máximo de mensajes
+     * @return los mensajes, en orden (vacía si no hay más)
+     */
+    List<Entrada> leer(long desde, int max) {
+        long hasta = Math.min(siguienteOffset, desde + max);
+        if (desde >= hasta) {
+            return Collections.emptyList();
+        }
+        List<Entrada> resultado = new ArrayList<>();
+        long offset = Math.max(desde, segmentos.get(0).base);
+        while (offset < hasta) {
+            Segmento segmento = segmentoDe(offset);
+            int[] inicio = segmento.buscar((int) (offset - segmento.base));
+            long actual = segmento.base + inicio[0];
+            int posicion = inicio[1];
+            while (actual < hasta && posicion + CABECERA <= segmento.datos.capacity()) {
+                int longitud = segmento.datos.getInt(posicion);
+                if (longitud <= 0) {
+                    break;
+                }
+                if (actual >= offset) {
+                    resultado.add(leerEntrada(segmento, actual, posicion + CABECERA, longitud));
+                }
+                posicion += CABECERA + longitud;
+                actual++;
+            }
+            if (actual == offset) {
+                // No hay nada más en este segmento
+                break;
+            }
+            offset = actual;
+        }
+        return resultado;
+    }
+
+    /**
+     * Devuelve el offset del siguiente mensaje que se escribirá.
+     *
+     * @return número de mensajes escritos desde que se creó el registro
+     */
+    long getSiguienteOffset() {
+        return siguienteOffset;
+    }
+
+    /**
+     * Devuelve las entradas descartadas porque la cola estaba llena.
+     *
+     * @return entradas descartadas
+     */
+    long getDescartadas() {
+        return descartadas.sum();
+    }
+
+    /**
+     * Escribe lo pendiente, fuerza a disco (salvo con NEVER) y cierra los
+     * segmentos.
+     *
+     * @param maxMilis espera máxima al escritor en milisegundos
+     */
+    void cerrar(long maxMilis) {
+        cola.cerrar();
+        try {
+            escritor.join(maxMilis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (fsyncPeriodico != null) {
+            fsyncPeriodico.shutdownNow();
+        }
+        if (politicaFsync != FsyncPolicy.NEVER) {
+            forzar();
+        }
+        for (Segmento segmento : segmentos) {
+            segmento.cerrar();
+        }
+    }
+
+    /**
+     * Abre los segmentos que ya hay en el directorio o crea el primero.
+     *
+     * @throws IOException si no se puede leer el directorio o un segmento
+     */
+    private void abrirSegmentos() throws IOException {
+        List<Long> bases = new ArrayList<>();
+        try (DirectoryStream<Path> ficheros = Files.newDirectoryStream(directorio, "*" + EXTENSION_LOG)) {
+            for (Path fichero : ficheros) {
+                String nombre = fichero.getFileName().toString();
+                try {
+                    bases.add(Long.parseLong(nombre.substring(0, nombre.length() - EXTENSION_LOG.length())));
+                } catch (NumberFormatException e) {
+                    LOGGER.log(Level.WARNING, "Fichero ajeno en el registro: {0}", nombre);
+                }
+            }
+        }
+        Collections.sort(bases);
+
+        if (bases.isEmpty()) {
+            Segmento primero = new Segmento(directorio, 0, tamSegmento);
+            primero.terminar();
+            segmentos.add(primero);
+            siguienteOffset = 0;
+            return;
+        }
+        for (int i = 0; i < bases.size(); i++) {
+            Segmento segmento = new Segmento(directorio, bases.get(i), tamSegmento);
+            if (i < bases.size() - 1) {
+                segmento.cargarIndice();
+            } else {
+                // Solo el último puede tener un registro a medias
+                segmento.recuperar();
+                siguienteOffset = segmento.base + segmento.registros;
+            }
+            segmentos.add(segmento);
+        }
+    }
+
+    /**
+     * Bucle del escritor: saca lotes de la cola y los escribe.
+     */
+    private void escribir() {
+        List<byte[]> lote = new ArrayList<>();
+        CRC32 crc = new CRC32();
+        Segmento actual = segmentos.get(segmentos.size() - 1);
+        try {
+            while (cola.tomarLote(lote, MAX_LOTE, 0) > 0) {
+                for (byte[] entrada : lote) {
+                    if (!actual.cabe(entrada.length)) {
+                        actual = rotar(actual);
+                    }
+                    actual.anadir(entrada, crc);
+                }
+                actual.terminar();
+                lote.clear();
+
+                // Los mensajes del lote ya se pueden leer
+                siguienteOffset = actual.base + actual.registros;
+
+                if (politicaFsync == FsyncPolicy.BATCH) {
+                    actual.forzar();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Error en el registro de mensajes, se deja de escribir", e);
+            cola.abortar();
+        }
+    }
+
+    /**
+     * Cierra el segmento actual (forzándolo a disco) y abre el siguiente.
+     *
+     * @param actual segmento lleno
+     * @return el segmento nuevo
+     * @throws IOException si no se puede crear el segmento
+     */
+    private Segmento rotar(Segmento actual) throws IOException {
+        actual.terminar();
+        if (politicaFsync != FsyncPolicy.NEVER) {
+            actual.forzar();
+        }
+        Segmento nuevo = new Segmento(directorio, actual.base + actual.registros, tamSegmento);
+        nuevo.terminar();
+        segmentos.add(nuevo);
+        return nuevo;
+    }
+
+    /**
+     * Fuerza a disco el segmento en el que se está escribiendo.
+     */
+    private void forzar() {
+        segmentos.get(segmentos.size() - 1).forzar();
+    }
+
+    /**
+     * Busca el segmento que contiene un offset.
+     *
+     * @param offset offset del mensaje
+     * @return el último segmento cuya base no es mayor que el offset
+     */
+    private Segmento segmentoDe(long offset) {
+        Segmento resultado = segmentos.get(0);
+        for (Segmento segmento : segmentos) {
+            if (segmento.base > offset) {
+                break;
+            }
+            resultado = segmento;
+        }
+        return resultado;
+    }
+
+    /**
+     * Lee un registro del segmento.
+     *
+     * @param segmento segmento del registro
+     * @param offset offset del mensaje
+     * @param posicion posición de la entrada (después de la cabecera)
+     * @param longitud bytes de la entrada
+     * @return la entrada leída
+     */
+    private static Entrada leerEntrada(Segmento segmento, long offset, int posicion, int longitud) {
+        long instante = segmento.datos.getLong(posicion);
+        int tamSala = segmento.datos.getShort(posicion + 8) & 0xFFFF;
+        byte[] sala = new byte[tamSala];
+        segmento.datos.get(posicion + 10, sala);
+        byte[] trama = new byte[longitud - 10 - tamSala];
+        segmento.datos.get(posicion + 10 + tamSala, trama);
+        return new Entrada(offset, instante, new String(sala, StandardCharsets.UTF_8), trama);
+    }
+
+    /**
+     * Nombre de los ficheros de un segmento: su offset base con ceros a la
+     * izquierda, para que se ordenen bien.
+     *
+     * @param base offset base
+     * @return nombre sin extensión
+     */
+    private static String nombre(long base) {
+        return String.format("%020d", base);
+    }
+}
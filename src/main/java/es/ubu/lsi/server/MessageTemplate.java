@@ -0,0 +1,152 @@
+/**
+ *
+ */
+package es.ubu.lsi.server;
+
+import java.nio.charset.StandardCharsets;
+
+import es.ubu.lsi.common.BinaryFrameEncoder;
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessage.MessageType;
+import es.ubu.lsi.common.EncodedMessage;
+import es.ubu.lsi.common.WireFormat;
+
+/**
+ * Plantilla precompilada de las publicaciones de un usuario.
+ *
+ * El texto que reciben los clientes es siempre el patrocinio, el nombre del
+ * emisor y el contenido. Todo menos el contenido depende solo del emisor, así
+ * que cada sesión guarda su plantilla con ese prefijo ya montado (y ya pasado
+ * a UTF-8). Por cada mensaje solo se añade el contenido: no hay que analizar
+ * un patrón como en String.format y la trama binaria se construye copiando el
+ * prefijo, sin volver a codificarlo.
+ *
+ * Es inmutable, se puede compartir entre hilos.
+ */
+final class MessageTemplate {
+
+    /** Plantilla de los mensajes de emisores desconocidos. */
+    static final MessageTemplate ANONIMA = new MessageTemplate("");
+
+    /**
+     * Bytes que añade la serialización de un ChatMessage a su texto: el
+     * descriptor de la clase y del enumerado ocupan unos 250, con margen.
+     */
+    private static final int SOBRECARGA_SERIALIZADA = 512;
+
+    /** Texto fijo delante del contenido. */
+    private final String prefijo;
+
+    /** El prefijo en UTF-8. */
+    private final byte[] prefijoUtf8;
+
+    /**
+     * Constructor.
+     *
+     * @param usuario nombre del usuario que publica con esta plantilla
+     */
+    MessageTemplate(String usuario) {
+        this.prefijo = ChatServerImpl.PUB + " " + ChatServerImpl.USER + ": " + usuario + " ha escrito: ";
+        this.prefijoUtf8 = prefijo.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Da el formato final (con patrocinio) a un contenido.
+     *
+     * @param contenido texto del mensaje
+     * @return el texto que reciben los clientes
+     */
+    String texto(String contenido) {
+        return prefijo.concat(String.valueOf(contenido));
+    }
+
+    /**
+     * Indica si una publicación con este contenido cabe en una trama de
+     * cualquier formato una vez añadido el prefijo. La trama que envía el
+     * cliente cabe, pero la que se reenvía es más larga: si pasara de
+     * WireFormat.MAX_TRAMA, los destinatarios la rechazarían y se
+     * desconectarían.
+     *
+     * @param contenido texto del mensaje
+     * @return true si la trama binaria y la serializada caben
+     */
+    boolean cabeEnTrama(String contenido) {
+        String texto = String.valueOf(contenido);
+
+        // Longitud, id y tipo ocupan como mucho 11 bytes en la trama binaria
+        long binaria = 11L + prefijoUtf8.length + tamUtf8(texto);
+        long serializada = SOBRECARGA_SERIALIZADA + tamUtf8Modificado(prefijo) + tamUtf8Modificado(texto);
+        return binaria <= WireFormat.MAX_TRAMA && serializada <= WireFormat.MAX_TRAMA;
+    }
+
+    /**
+     * Calcula los bytes de un texto en UTF-8 sin codificarlo.
+     *
+     * @param texto texto que se mide
+     * @return bytes en UTF-8 (cada mitad de un par suplente cuenta 2)
+     */
+    private static long tamUtf8(String texto) {
+        long bytes = 0;
+        for (int i = 0; i < texto.length(); i++) {
+            char c = texto.charAt(i);
+            bytes += c < 0x80 ? 1 : c < 0x800 || Character.isSurrogate(c) ? 2 : 3;
+        }
+        return bytes;
+    }
+
+    /**
+     * Calcula los bytes de un texto en el UTF-8 modificado de la
+     * serialización (writeUTF): el carácter 0 ocupa 2 bytes y cada mitad de
+     * un par suplente 3.
+     *
+     * @param texto texto que se mide
+     * @return bytes en UTF-8 modificado
+     */
+    private static long tamUtf8Modificado(String texto) {
+        long bytes = 0;
+        for (int i = 0; i < texto.length(); i++) {
+            char c = texto.charAt(i);
+            bytes += c != 0 && c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+        }
+        return bytes;
+    }
+
+    /**
+     * Construye la trama binaria de una publicación directamente a partir
+     * del prefijo en UTF-8 y el contenido, con el mismo formato que
+     * BinaryFrameEncoder.
+     *
+     * @param id id del emisor
+     * @param tipo tipo del mensaje
+     * @param contenido texto del mensaje
+     * @return bytes de la trama
+     */
+    byte[] tramaBinaria(int id, MessageType tipo, String contenido) {
+        byte[] utf8 = String.valueOf(contenido).getBytes(StandardCharsets.UTF_8);
+
+        int cuerpo = BinaryFrameEncoder.tamVarint(id) + 1 + prefijoUtf8.length + utf8.length;
+        byte[] trama = new byte[BinaryFrameEncoder.tamVarint(cuerpo) + cuerpo];
+
+        int pos = BinaryFrameEncoder.escribirVarint(trama, 0, cuerpo);
+        pos = BinaryFrameEncoder.escribirVarint(trama, pos, id);
+        trama[pos++] = (byte) tipo.ordinal();
+        System.arraycopy(prefijoUtf8, 0, trama, pos, prefijoUtf8.length);
+        System.arraycopy(utf8, 0, trama, pos + prefijoUtf8.length, utf8.length);
+        return trama;
+    }
+
+    /**
+     * Prepara una publicación para enviarla a todos los destinatarios, con
+     * la trama binaria ya construida. La serializada se codifica solo si
+     * algún destinatario la pide.
+     *
+     * @param id id del emisor
+     * @param tipo tipo del mensaje
+     * @param contenido texto del mensaje
+     * @return el mensaje codificado
+     */
+    EncodedMessage publicacion(int id, MessageType tipo, String contenido) {
+        ChatMessage mensaje = new ChatMessage(id, tipo, texto(contenido));
+        return new EncodedMessage(mensaje, WireFormat.BINARY, tramaBinaria(id, tipo, contenido));
+    }
+}
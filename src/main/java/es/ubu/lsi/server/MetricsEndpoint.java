@@ -0,0 +1,62 @@
+/**
+ *
+ */
+package es.ubu.lsi.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Endpoint HTTP de solo lectura con las métricas en texto plano.
+ *
+ * Escucha solo en la interfaz local (loopback) y responde en /metrics.
+ * Usa el servidor HTTP del JDK con un único hilo: las consultas son pocas
+ * y no tocan el camino de los mensajes.
+ */
+class MetricsEndpoint {
+
+    /** Servidor HTTP. */
+    private final HttpServer http;
+
+    /**
+     * Crea y arranca el endpoint.
+     *
+     * @param puerto puerto local
+     * @param metricas métricas que se publican
+     * @throws IOException si no se puede abrir el puerto
+     */
+    MetricsEndpoint(int puerto, ServerMetrics metricas) throws IOException {
+        http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), puerto), 0);
+        http.createContext("/metrics", intercambio -> responder(intercambio, metricas));
+        http.start();
+    }
+
+    /**
+     * Responde a una consulta con el texto de las métricas.
+     *
+     * @param intercambio petición y respuesta HTTP
+     * @param metricas métricas que se publican
+     * @throws IOException si falla el envío
+     */
+    private static void responder(HttpExchange intercambio, ServerMetrics metricas) throws IOException {
+        byte[] cuerpo = metricas.texto().getBytes(StandardCharsets.UTF_8);
+        intercambio.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        intercambio.sendResponseHeaders(200, cuerpo.length);
+        try (OutputStream out = intercambio.getResponseBody()) {
+            out.write(cuerpo);
+        }
+    }
+
+    /**
+     * Para el endpoint.
+     */
+    void parar() {
+        http.stop(0);
+    }
+}
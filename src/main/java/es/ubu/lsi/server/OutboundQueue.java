@@ -0,0 +1,254 @@
+/**
+ *
+ */
+package es.ubu.lsi.server;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cola de salida acotada de un cliente.
+ *
+ * Quien hace el broadcast solo deja la trama en la cola y sigue con el
+ * siguiente destinatario; un escritor propio de cada cliente (una tarea en el
+ * motor bloqueante, el bucle de E/S en el NIO) la vacía hacia el socket. Así
+ * un cliente lento solo se retrasa a sí mismo. Cuando la cola se llena se
+ * aplica la política de desbordamiento.
+ *
+ * El escritor puede sacar las tramas de una en una o por lotes (hasta un
+ * máximo de bytes) para escribirlas todas con una sola llamada al sistema.
+ *
+ * Usa ReentrantLock en lugar de synchronized para no fijar hilos virtuales.
+ */
+class OutboundQueue {
+
+    /** Número máximo de tramas en la cola. */
+    private final int capacidad;
+
+    /** Política cuando la cola está llena. */
+    private final OverflowPolicy politica;
+
+    /** Contador de descartes de todo el servidor. */
+    private final LongAdder descartesServidor;
+
+    /** Tramas pendientes, en orden de envío. */
+    private final ArrayDeque<byte[]> tramas = new ArrayDeque<>();
+
+    /** Cerrojo de la cola. */
+    private final ReentrantLock cerrojo = new ReentrantLock();
+
+    /** Condición de cola no vacía (o cerrada) para el escritor. */
+    private final Condition noVacia = cerrojo.newCondition();
+
+    /** Indica si la cola está cerrada. */
+    private boolean cerrada;
+
+    /** Tramas descartadas en esta cola. */
+    private long descartadas;
+
+    /** Profundidad actual (se lee sin cerrojo para las métricas). */
+    private volatile int profundidad;
+
+    /** Profundidad máxima alcanzada. */
+    private volatile int maxProfundidad;
+
+    /**
+     * Constructor.
+     *
+     * @param capacidad número máximo de tramas
+     * @param politica política cuando la cola está llena
+     * @param descartesServidor contador de descartes de todo el servidor
+     */
+    OutboundQueue(int capacidad, OverflowPolicy politica, LongAdder descartesServidor) {
+        this.capacidad = Math.max(1, capacidad);
+        this.politica = politica;
+        this.descartesServidor = descartesServidor;
+    }
+
+    /**
+     * Añade una trama a la cola aplicando la política si está llena.
+     *
+     * @param trama bytes de la trama
+     * @return false si la cola está llena y la política es desconectar al cliente
+     */
+    boolean ofrecer(byte[] trama) {
+        cerrojo.lock();
+        try {
+            if (cerrada) {
+                return true;
+            }
+            if (tramas.size() >= capacidad) {
+                descartar();
+                switch (politica) {
+                    case DROP_NEWEST:
+                        return true;
+                    case DROP_OLDEST:
+                        tramas.pollFirst();
+                        break;
+                    default:
+                        return false;
+                }
+            }
+            tramas.addLast(trama);
+            actualizarProfundidad();
+            noVacia.signal();
+            return true;
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    /**
+     * Saca un lote de tramas, esperando si la cola está vacía.
+     *
+     * Después de la primera trama se siguen sacando las que haya hasta llegar
+     * a maxBytes. Si con una espera mayor que cero el lote no se ha llenado,
+     * se espera como mucho ese tiempo a que lleguen más tramas.
+     *
+     * @param lote lista a la que se añaden las tramas
+     * @param maxBytes bytes máximos del lote (la primera trama siempre entra)
+     * @param esperaNanos tiempo máximo de espera para completar el lote
+     * @return número de tramas añadidas, 0 si la cola se ha cerrado y está vacía
+     * @throws InterruptedException si se interrumpe la espera
+     */
+    int tomarLote(List<byte[]> lote, int maxBytes, long esperaNanos) throws InterruptedException {
+        cerrojo.lock();
+        try {
+            while (tramas.isEmpty() && !cerrada) {
+                noVacia.await();
+            }
+            int antes = lote.size();
+            int bytes = extraer(lote, 0, maxBytes);
+
+            // Se da un margen para agrupar las tramas que llegan seguidas
+            long restante = esperaNanos;
+            while (bytes > 0 && bytes < maxBytes && restante > 0 && !cerrada) {
+                restante = noVacia.awaitNanos(restante);
+                bytes = extraer(lote, bytes, maxBytes);
+            }
+            actualizarProfundidad();
+            return lote.size() - antes;
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    /**
+     * Saca sin esperar un lote de tramas de hasta maxBytes.
+     *
+     * @param lote lista a la que se añaden las tramas
+     * @param maxBytes bytes máximos del lote (la primera trama siempre entra)
+     * @return número de tramas añadidas (0 si la cola está vacía)
+     */
+    int sondearLote(List<byte[]> lote, int maxBytes) {
+        cerrojo.lock();
+        try {
+            int antes = lote.size();
+            extraer(lote, 0, maxBytes);
+            actualizarProfundidad();
+            return lote.size() - antes;
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    /**
+     * Cierra la cola: no admite más tramas, pero el escritor puede sacar
+     * las pendientes.
+     */
+    void cerrar() {
+        cerrojo.lock();
+        try {
+            cerrada = true;
+            noVacia.signalAll();
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    /**
+     * Cierra la cola y descarta las tramas pendientes.
+     */
+    void abortar() {
+        cerrojo.lock();
+        try {
+            cerrada = true;
+            tramas.clear();
+            actualizarProfundidad();
+            noVacia.signalAll();
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    /**
+     * Devuelve el número de tramas pendientes.
+     *
+     * @return profundidad actual
+     */
+    int getProfundidad() {
+        return profundidad;
+    }
+
+    /**
+     * Devuelve la profundidad máxima alcanzada.
+     *
+     * @return profundidad máxima
+     */
+    int getMaxProfundidad() {
+        return maxProfundidad;
+    }
+
+    /**
+     * Devuelve el número de tramas descartadas en esta cola.
+     *
+     * @return tramas descartadas
+     */
+    long getDescartadas() {
+        cerrojo.lock();
+        try {
+            return descartadas;
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    /**
+     * Pasa tramas de la cola al lote mientras quepan (con el cerrojo cogido).
+     *
+     * @param lote lista a la que se añaden las tramas
+     * @param bytes bytes que ya tiene el lote
+     * @param maxBytes bytes máximos del lote
+     * @return bytes del lote después de añadir
+     */
+    private int extraer(List<byte[]> lote, int bytes, int maxBytes) {
+        byte[] trama;
+        while ((trama = tramas.peekFirst()) != null
+                && (bytes == 0 || bytes + trama.length <= maxBytes)) {
+            lote.add(tramas.pollFirst());
+            bytes += trama.length;
+        }
+        return bytes;
+    }
+
+    /**
+     * Cuenta una trama descartada (con el cerrojo cogido).
+     */
+    private void descartar() {
+        descartadas++;
+        descartesServidor.increment();
+    }
+
+    /**
+     * Actualiza las métricas de profundidad (con el cerrojo cogido).
+     */
+    private void actualizarProfundidad() {
+        profundidad = tramas.size();
+        if (profundidad > maxProfundidad) {
+            maxProfundidad = profundidad;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+/**
+ *
+ */
+package es.ubu.lsi.server;
+
+/**
+ * Qué hacer cuando la cola de salida de un cliente está llena.
+ */
+public enum OverflowPolicy {
+
+    /** Se descarta la trama más antigua de la cola para hacer sitio. */
+    DROP_OLDEST,
+
+    /** Se descarta la trama nueva. */
+    DROP_NEWEST,
+
+    /** Se desconecta al cliente lento. */
+    DISCONNECT;
+}
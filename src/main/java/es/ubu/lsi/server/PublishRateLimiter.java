@@ -0,0 +1,92 @@
+/**
+ *
+ */
+package es.ubu.lsi.server;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessage.MessageType;
+
+/**
+ * Límite de publicación de una sesión: mensajes por segundo y bytes por
+ * segundo, cada uno con su TokenBucket.
+ *
+ * Lo consulta el bucle de lectura de la sesión antes de tratar cada
+ * publicación (o mensaje privado); el logout y el apagado no se limitan.
+ * Cuando un mensaje supera la tasa se aplica la política configurada:
+ * esperar a que la cumpla (dejando de leer al cliente, con lo que TCP le
+ * frena), descartarlo o desconectar al cliente.
+ */
+class PublishRateLimiter {
+
+    /** Resultado de admitir para un mensaje que supera la tasa con DROP o DISCONNECT. */
+    static final long RECHAZADO = -1;
+
+    /** Mensajes por segundo (null sin límite). */
+    private final TokenBucket mensajes;
+
+    /** Bytes por segundo (null sin límite). */
+    private final TokenBucket bytes;
+
+    /** Qué hacer con los mensajes que superan la tasa. */
+    private final RateLimitPolicy politica;
+
+    /**
+     * Constructor.
+     *
+     * @param config configuración del servidor (con algún límite activo)
+     */
+    PublishRateLimiter(ServerConfig config) {
+        this.mensajes = config.getPublishRate() > 0
+                ? new TokenBucket(config.getPublishRate(), config.getPublishBurst()) : null;
+        this.bytes = config.getPublishBytesRate() > 0
+                ? new TokenBucket(config.getPublishBytesRate(), config.getPublishBytesBurst()) : null;
+        this.politica = config.getPublishPolicy();
+    }
+
+    /**
+     * Indica si un mensaje cuenta para el límite.
+     *
+     * @param mensaje mensaje recibido de un cliente registrado
+     * @return true para las publicaciones y los mensajes privados
+     */
+    static boolean limitado(ChatMessage mensaje) {
+        return mensaje.getType() == MessageType.MESSAGE || mensaje.getType() == MessageType.PRIVATE;
+    }
+
+    /**
+     * Devuelve la política con los mensajes que superan la tasa.
+     *
+     * @return la política
+     */
+    RateLimitPolicy getPolitica() {
+        return politica;
+    }
+
+    /**
+     * Cuenta un mensaje contra los dos límites.
+     *
+     * Con DELAY el mensaje siempre se cuenta y se devuelve cuánto hay que
+     * esperar para tratarlo. Con DROP y DISCONNECT solo se cuenta si cumple
+     * los dos límites; si no, no gasta nada.
+     *
+     * @param tam bytes del mensaje
+     * @return 0 si cumple la tasa, los nanosegundos de espera con DELAY o
+     *         RECHAZADO con las demás políticas
+     */
+    long admitir(long tam) {
+        if (politica == RateLimitPolicy.DELAY) {
+            long espera = mensajes != null ? mensajes.reservar(1) : 0;
+            return bytes != null ? Math.max(espera, bytes.reservar(tam)) : espera;
+        }
+        if (mensajes != null && !mensajes.consumir(1)) {
+            return RECHAZADO;
+        }
+        if (bytes != null && !bytes.consumir(tam)) {
+            if (mensajes != null) {
+                mensajes.devolver(1);
+            }
+            return RECHAZADO;
+        }
+        return 0;
+    }
+}
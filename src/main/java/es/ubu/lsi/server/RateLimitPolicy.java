@@ -0,0 +1,19 @@
+/**
+ *
+ */
+package es.ubu.lsi.server;
+
+/**
+ * Qué hacer cuando un cliente publica más deprisa de lo permitido.
+ */
+public enum RateLimitPolicy {
+
+    /** Se deja de leer al cliente hasta que el mensaje cumple la tasa. */
+    DELAY,
+
+    /** Se descarta el mensaje. */
+    DROP,
+
+    /** Se desconecta al cliente. */
+    DISCONNECT;
+}
@@ -0,0 +1,121 @@
+/**
+ *
+ */
+package es.ubu.lsi.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import es.ubu.lsi.common.WireFormat;
+
+/**
+ * Últimas tramas enviadas a una sesión que se puede reanudar.
+ *
+ * Las tramas se numeran en el orden en el que las saca de la cola el
+ * escritor de la sesión (la primera después del saludo es la 1), que es el
+ * orden en el que las lee el cliente. El cliente cuenta las que recibe y, al
+ * reconectarse, dice cuántas tiene: se le vuelven a enviar las posteriores
+ * que sigan en el anillo.
+ *
+ * Mientras la sesión está suspendida se anotan aquí las tramas que le
+ * llegan, así que también se le envían al volver.
+ *
+ * Los métodos son sincronizados: los usa un solo hilo cada vez (el escritor
+ * de la conexión o, sin conexión, quien le envía), así que no hay espera.
+ */
+class ReplayBuffer {
+
+    /** Token con el que el cliente pide reanudar la sesión. */
+    private final String token;
+
+    /** Tramas guardadas por posición (número % capacidad). */
+    private final byte[][] tramas;
+
+    /** Número de tramas anotadas (la última tiene ese número). */
+    private long anotadas;
+
+    /**
+     * Constructor.
+     *
+     * @param token token de reanudación de la sesión
+     * @param capacidad número de tramas que se guardan (al menos 1)
+     */
+    ReplayBuffer(String token, int capacidad) {
+        this.token = token;
+        this.tramas = new byte[Math.max(1, capacidad)][];
+    }
+
+    /**
+     * Devuelve el token de reanudación.
+     *
+     * @return el token
+     */
+    String getToken() {
+        return token;
+    }
+
+    /**
+     * Anota una trama enviada. El saludo del servidor no es una trama y no
+     * se cuenta.
+     *
+     * @param trama bytes de la trama
+     */
+    synchronized void anotar(byte[] trama) {
+        if (trama == WireFormat.SALUDO_SERVIDOR) {
+            return;
+        }
+        anotadas++;
+        tramas[(int) (anotadas % tramas.length)] = trama;
+    }
+
+    /**
+     * Anota un lote de tramas en orden.
+     *
+     * @param lote tramas sacadas de la cola de salida
+     */
+    synchronized void anotar(List<byte[]> lote) {
+        for (byte[] trama : lote) {
+            anotar(trama);
+        }
+    }
+
+    /**
+     * Anota las tramas que quedan en la cola de salida cuando se cae la
+     * conexión: el cliente no las ha recibido y se le envían al volver.
+     *
+     * @param cola cola de salida de la conexión caída
+     */
+    synchronized void anotarPendientes(OutboundQueue cola) {
+        List<byte[]> pendientes = new ArrayList<>();
+        while (cola.sondearLote(pendientes, Integer.MAX_VALUE) > 0) {
+            anotar(pendientes);
+            pendientes.clear();
+        }
+    }
+
+    /**
+     * Devuelve las tramas posteriores a las que tiene el cliente. Si el
+     * cliente lleva más atrás de lo que cabe en el anillo, solo se devuelven
+     * las que quedan.
+     *
+     * @param recibidas tramas que dice tener el cliente
+     * @return tramas que le faltan, en orden
+     */
+    synchronized List<byte[]> desde(long recibidas) {
+        long inicio = Math.max(recibidas, anotadas - tramas.length) + 1;
+        List<byte[]> faltan = new ArrayList<>();
+        for (long numero = Math.max(1, inicio); numero <= anotadas; numero++) {
+            faltan.add(tramas[(int) (numero % tramas.length)]);
+        }
+        return faltan;
+    }
+
+    /**
+     * Devuelve el número de tramas anotadas.
+     *
+     * @return número de la última trama
+     */
+    synchronized long getAnotadas() {
+        return anotadas;
+    }
+}
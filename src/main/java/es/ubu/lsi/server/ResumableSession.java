@@ -0,0 +1,22 @@
+/**
+ *
+ */
+package es.ubu.lsi.server;
+
+/**
+ * Interface ResumableSession
+ *
+ * Sesión de una conexión real que puede tomar el lugar de una sesión
+ * suspendida cuando el cliente la reanuda. Solo la implementan las sesiones
+ * de los motores de red; las suspendidas no cambian de identidad.
+ */
+interface ResumableSession extends ClientSession {
+
+    /**
+     * Toma la identidad (id, nombre, plantilla y tramas enviadas) de una
+     * sesión suspendida que el cliente reanuda con esta conexión.
+     *
+     * @param anterior sesión suspendida
+     */
+    void adoptar(ClientSession anterior);
+}
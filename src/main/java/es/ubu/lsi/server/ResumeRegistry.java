@@ -0,0 +1,145 @@
+/**
+ *
+ */
+package es.ubu.lsi.server;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Sesiones suspendidas a la espera de que su cliente se reconecte.
+ *
+ * Cada sesión suspendida se guarda por su token durante el periodo de
+ * gracia. Quien la saca del mapa (la reanudación, la caducidad o un nuevo
+ * inicio de sesión con el mismo nombre) es el único que se queda con ella,
+ * así que no se puede reanudar una sesión que ya ha caducado ni al revés.
+ */
+class ResumeRegistry {
+
+    /** Bytes aleatorios de cada token. */
+    private static final int BYTES_TOKEN = 18;
+
+    /** Sesiones suspendidas por token. */
+    private final Map<String, SuspendedSession> suspendidas = new ConcurrentHashMap<>();
+
+    /** Generador de los tokens. */
+    private final SecureRandom aleatorio = new SecureRandom();
+
+    /** Periodo de gracia en milisegundos. */
+    private final long graciaMs;
+
+    /** Hilo que hace caducar las sesiones (se crea con la primera suspensión). */
+    private ScheduledExecutorService temporizador;
+
+    /**
+     * Constructor.
+     *
+     * @param graciaMs tiempo que se guarda una sesión suspendida
+     */
+    ResumeRegistry(long graciaMs) {
+        this.graciaMs = graciaMs;
+    }
+
+    /**
+     * Crea un token de reanudación nuevo (no se puede adivinar).
+     *
+     * @return el token, sin espacios
+     */
+    String nuevoToken() {
+        byte[] bytes = new byte[BYTES_TOKEN];
+        aleatorio.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    /**
+     * Guarda una sesión suspendida y programa su caducidad.
+     *
+     * @param sesion sesión suspendida
+     * @param alCaducar acción si no se reanuda a tiempo
+     */
+    void suspender(SuspendedSession sesion, Consumer<SuspendedSession> alCaducar) {
+        String token = sesion.getRepeticion().getToken();
+        suspendidas.put(token, sesion);
+        Runnable caducar = () -> {
+            if (suspendidas.remove(token, sesion)) {
+                alCaducar.accept(sesion);
+            }
+        };
+        try {
+            sesion.setCaducidad(temporizador().schedule(caducar, graciaMs, TimeUnit.MILLISECONDS));
+        } catch (RejectedExecutionException e) {
+            // El servidor se está apagando: caduca ya
+            caducar.run();
+        }
+    }
+
+    /**
+     * Saca la sesión suspendida de un token para reanudarla.
+     *
+     * @param token token que presenta el cliente
+     * @return la sesión o null si no existe o ya ha caducado
+     */
+    SuspendedSession tomar(String token) {
+        SuspendedSession sesion = suspendidas.remove(token);
+        if (sesion != null) {
+            sesion.cancelarCaducidad();
+        }
+        return sesion;
+    }
+
+    /**
+     * Descarta una sesión suspendida antes de que caduque.
+     *
+     * @param sesion sesión suspendida
+     * @return true si seguía suspendida (y ya no lo está)
+     */
+    boolean descartar(SuspendedSession sesion) {
+        if (suspendidas.remove(sesion.getRepeticion().getToken(), sesion)) {
+            sesion.cancelarCaducidad();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Devuelve el número de sesiones suspendidas.
+     *
+     * @return sesiones a la espera de su cliente
+     */
+    int size() {
+        return suspendidas.size();
+    }
+
+    /**
+     * Olvida todas las sesiones suspendidas y para el temporizador.
+     */
+    synchronized void cerrar() {
+        suspendidas.clear();
+        if (temporizador != null) {
+            temporizador.shutdownNow();
+        }
+    }
+
+    /**
+     * Devuelve el temporizador, creándolo si hace falta.
+     *
+     * @return el temporizador de las caducidades
+     */
+    private synchronized ScheduledExecutorService temporizador() {
+        if (temporizador == null) {
+            temporizador = Executors.newSingleThreadScheduledExecutor(tarea -> {
+                Thread hilo = new Thread(tarea, "chat-reanudacion");
+                hilo.setDaemon(true);
+                return hilo;
+            });
+        }
+        return temporizador;
+    }
+}
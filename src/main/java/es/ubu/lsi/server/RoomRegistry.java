@@ -0,0 +1,215 @@
+/**
+ *
+ */
+package es.ubu.lsi.server;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToIntFunction;
+
+/**
+ * Registro de las salas del servidor.
+ *
+ * Cada sesión está en una sola sala (al conectarse, en la sala general) y
+ * cada sala tiene su propio conjunto concurrente de miembros, así que una
+ * publicación solo recorre los miembros de la sala del emisor y su coste
+ * depende del tamaño de la sala, no del total de clientes.
+ *
+ * Las salas se crean al entrar el primer miembro y se borran al salir el
+ * último (salvo la general). Los cambios de miembros de una sala se hacen
+ * dentro del compute del mapa de salas, de modo que nadie puede entrar en
+ * una sala mientras se está borrando.
+ *
+ * Cada sala guarda además sus últimos mensajes (HistoryRing), con un tamaño
+ * que puede ser distinto en cada sala.
+ */
+class RoomRegistry {
+
+    /** Nombre de la sala en la que entran los clientes al conectarse. */
+    static final String GENERAL = "general";
+
+    /**
+     * Sala con sus miembros.
+     */
+    static final class Room {
+
+        /** Nombre de la sala. */
+        private final String nombre;
+
+        /** Miembros de la sala por id de sesión. */
+        private final Map<Integer, ClientSession> miembros = new ConcurrentHashMap<>();
+
+        /** Últimos mensajes de la sala (null si no se guardan). */
+        private final HistoryRing historial;
+
+        /**
+         * Constructor.
+         *
+         * @param nombre nombre de la sala
+         * @param tamHistorial mensajes que se guardan (0 para ninguno)
+         */
+        private Room(String nombre, int tamHistorial) {
+            this.nombre = nombre;
+            this.historial = tamHistorial > 0 ? new HistoryRing(tamHistorial) : null;
+        }
+
+        /**
+         * Devuelve el nombre de la sala.
+         *
+         * @return nombre de la sala
+         */
+        String getNombre() {
+            return nombre;
+        }
+
+        /**
+         * Devuelve una vista de los miembros.
+         *
+         * @return miembros de la sala (se puede recorrer mientras cambia)
+         */
+        Collection<ClientSession> miembros() {
+            return miembros.values();
+        }
+
+        /**
+         * Devuelve los últimos mensajes de la sala.
+         *
+         * @return el historial o null si la sala no guarda mensajes
+         */
+        HistoryRing historial() {
+            return historial;
+        }
+
+        /**
+         * Devuelve el número de miembros.
+         *
+         * @return número de miembros
+         */
+        int size() {
+            return miembros.size();
+        }
+    }
+
+    /** Salas por nombre. */
+    private final Map<String, Room> salas = new ConcurrentHashMap<>();
+
+    /** Sala actual de cada sesión por id. */
+    private final Map<Integer, Room> salaDe = new ConcurrentHashMap<>();
+
+    /** Tamaño del historial de cada sala según su nombre. */
+    private final ToIntFunction<String> tamHistorial;
+
+    /**
+     * Constructor.
+     *
+     * @param tamHistorial mensajes que guarda cada sala según su nombre
+     */
+    RoomRegistry(ToIntFunction<String> tamHistorial) {
+        this.tamHistorial = tamHistorial;
+    }
+
+    /**
+     * Mete una sesión en una sala (creándola si no existe) y la saca de la
+     * sala en la que estuviera.
+     *
+     * @param sesion sesión con su id asignado
+     * @param nombre nombre de la sala
+     * @return la sala en la que ha entrado
+     */
+    Room entrar(ClientSession sesion, String nombre) {
+        Room actual = salaDe.get(sesion.getId());
+        if (actual != null && actual.nombre.equals(nombre)) {
+            return actual;
+        }
+
+        Room nueva = salas.compute(nombre, (k, sala) -> {
+            Room destino = sala == null ? new Room(k, tamHistorial.applyAsInt(k)) : sala;
+            destino.miembros.put(sesion.getId(), sesion);
+            return destino;
+        });
+        Room anterior = salaDe.put(sesion.getId(), nueva);
+        if (anterior != null && anterior != nueva) {
+            quitar(anterior, sesion.getId());
+        }
+        return nueva;
+    }
+
+    /**
+     * Pone una sesión en el lugar de la que tenía su id en su sala (al
+     * suspender o reanudar una sesión).
+     *
+     * @param sesion sesión que sustituye a la anterior
+     */
+    void sustituir(ClientSession sesion) {
+        Room sala = salaDe.get(sesion.getId());
+        if (sala != null) {
+            salas.computeIfPresent(sala.nombre, (k, actual) -> {
+                actual.miembros.replace(sesion.getId(), sesion);
+                return actual;
+            });
+        }
+    }
+
+    /**
+     * Saca a una sesión de todas las salas (al desconectarse).
+     *
+     * @param idSesion id de la sesión
+     */
+    void salir(int idSesion) {
+        Room sala = salaDe.remove(idSesion);
+        if (sala != null) {
+            quitar(sala, idSesion);
+        }
+    }
+
+    /**
+     * Devuelve la sala en la que está una sesión.
+     *
+     * @param idSesion id de la sesión
+     * @return la sala o null si la sesión no está en ninguna
+     */
+    Room salaDe(int idSesion) {
+        return salaDe.get(idSesion);
+    }
+
+    /**
+     * Busca una sala por nombre.
+     *
+     * @param nombre nombre de la sala
+     * @return la sala o null si no hay nadie en ella
+     */
+    Room porNombre(String nombre) {
+        return salas.get(nombre);
+    }
+
+    /**
+     * Devuelve el número de salas abiertas.
+     *
+     * @return número de salas
+     */
+    int size() {
+        return salas.size();
+    }
+
+    /**
+     * Vacía el registro.
+     */
+    void limpiar() {
+        salas.clear();
+        salaDe.clear();
+    }
+
+    /**
+     * Quita una sesión de una sala y borra la sala si se queda vacía.
+     *
+     * @param sala sala de la que sale
+     * @param idSesion id de la sesión
+     */
+    private void quitar(Room sala, int idSesion) {
+        salas.computeIfPresent(sala.nombre, (k, actual) -> {
+            actual.miembros.remove(idSesion);
+            return actual.miembros.isEmpty() && !GENERAL.equals(k) ? null : actual;
+        });
+    }
+}
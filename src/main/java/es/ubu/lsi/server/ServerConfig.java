@@ -0,0 +1,662 @@
+/**
+ *
+ */
+package es.ubu.lsi.server;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import es.ubu.lsi.common.ThreadMode;
+
+/**
+ * Configuración del servidor de chat.
+ *
+ * Los valores se leen de propiedades con el prefijo "chat." (normalmente
+ * las propiedades del sistema, -Dchat.engine=nio por ejemplo). Si una
+ * propiedad no existe o no es válida se usa el valor por defecto.
+ */
+public class ServerConfig {
+
+    /** Logger para avisar de valores no válidos. */
+    private static final Logger LOGGER = Logger.getLogger(ServerConfig.class.getName());
+
+    /** Prefijo de las propiedades con el historial de una sala concreta. */
+    private static final String PREFIJO_HISTORIAL_SALA = "chat.history.room.";
+
+    /**
+     * Motor de red del servidor.
+     */
+    public enum Engine {
+        /** Un hilo bloqueante por cliente. */
+        BLOCKING,
+        /** Bucles de eventos con Selector y canales no bloqueantes. */
+        NIO;
+    }
+
+    /** Puerto en el que escucha el servidor. */
+    private final int port;
+
+    /** Motor de red utilizado. */
+    private final Engine engine;
+
+    /** Número de bucles de E/S del motor NIO. */
+    private final int ioLoops;
+
+    /** Tipo de hilos en los que se ejecutan las tareas de cada cliente. */
+    private final ThreadMode threadMode;
+
+    /** Capacidad (en tramas) de la cola de salida de cada cliente. */
+    private final int outboundCapacity;
+
+    /** Política cuando se llena la cola de salida de un cliente. */
+    private final OverflowPolicy overflowPolicy;
+
+    /** Bytes máximos que se agrupan en una escritura. */
+    private final int writeMaxBytes;
+
+    /** Espera máxima (microsegundos) para agrupar tramas en una escritura. */
+    private final int writeMaxDelayMicros;
+
+    /** Indica si se desactiva el algoritmo de Nagle (TCP_NODELAY). */
+    private final boolean tcpNoDelay;
+
+    /** Puerto local del endpoint de métricas (0 para no abrirlo). */
+    private final int metricsPort;
+
+    /** Indica si se registran las métricas como MBean. */
+    private final boolean metricsJmx;
+
+    /** Direcciones de los nodos del clúster (vacía si no hay clúster). */
+    private final List<InetSocketAddress> clusterNodes;
+
+    /** Posición de este nodo en la lista de nodos. */
+    private final int clusterNode;
+
+    /** Espera máxima (milisegundos) de la respuesta a un reclamo de nombre. */
+    private final int clusterTimeoutMillis;
+
+    /** Directorio del registro de mensajes (null si no se guardan). */
+    private final String logDir;
+
+    /** Tamaño de cada segmento del registro en MB. */
+    private final int logSegmentMb;
+
+    /** Entradas que pueden esperar al escritor del registro. */
+    private final int logQueue;
+
+    /** Cuándo se fuerza a disco el registro. */
+    private final FsyncPolicy logFsync;
+
+    /** Periodo (milisegundos) del fsync con la política INTERVAL. */
+    private final int logFsyncMillis;
+
+    /** Mensajes que guarda cada sala para los que entran. */
+    private final int historySize;
+
+    /** Tamaños del historial de salas concretas (chat.history.room.NOMBRE). */
+    private final Map<String, Integer> historySizeByRoom = new HashMap<>();
+
+    /** Tiempo (milisegundos) que se guarda la sesión de un cliente que pierde la conexión. */
+    private final int resumeGraceMillis;
+
+    /** Tramas enviadas que se guardan por sesión para reenviarlas al reanudarla. */
+    private final int resumeBuffer;
+
+    /** Conexiones que pueden esperar en la cola de aceptación del sistema. */
+    private final int acceptBacklog;
+
+    /** Plazo (milisegundos) para terminar el saludo y el nombre de usuario. */
+    private final int handshakeTimeoutMillis;
+
+    /** Conexiones que pueden estar a la vez sin terminar el inicio. */
+    private final int handshakeMax;
+
+    /** Conexiones abiertas como máximo. */
+    private final int maxConnections;
+
+    /** Conexiones por segundo admitidas desde una misma dirección. */
+    private final int acceptRate;
+
+    /** Conexiones seguidas admitidas desde una misma dirección. */
+    private final int acceptBurst;
+
+    /** Mensajes por segundo que puede publicar cada cliente. */
+    private final int publishRate;
+
+    /** Mensajes seguidos que puede publicar cada cliente. */
+    private final int publishBurst;
+
+    /** Bytes por segundo que puede publicar cada cliente. */
+    private final int publishBytesRate;
+
+    /** Bytes seguidos que puede publicar cada cliente. */
+    private final int publishBytesBurst;
+
+    /** Qué hacer con los mensajes que superan el límite de publicación. */
+    private final RateLimitPolicy publishPolicy;
+
+    /** Inactividad (milisegundos) tras la que se envía un PING al cliente. */
+    private final int heartbeatMillis;
+
+    /** Inactividad (milisegundos) tras la que se cierra la conexión del cliente. */
+    private final int idleTimeoutMillis;
+
+    /** Tiempo (milisegundos) que se espera en el apagado a que se vacíen las colas de salida. */
+    private final int shutdownTimeoutMillis;
+
+    /**
+     * Constructor con las propiedades del sistema.
+     */
+    public ServerConfig() {
+        this(System.getProperties());
+    }
+
+    /**
+     * Constructor con las propiedades indicadas.
+     *
+     * @param propiedades propiedades de las que se lee la configuración
+     */
+    public ServerConfig(Properties propiedades) {
+        this.port = entero(propiedades, "chat.port", 1500);
+        this.engine = enumerado(propiedades, "chat.engine", Engine.BLOCKING);
+        this.ioLoops = entero(propiedades, "chat.nio.loops",
+                Runtime.getRuntime().availableProcessors());
+        this.threadMode = enumerado(propiedades, ThreadMode.PROPIEDAD, ThreadMode.PLATFORM);
+        this.outboundCapacity = entero(propiedades, "chat.outbound.capacity", 1024);
+        this.overflowPolicy = enumerado(propiedades, "chat.outbound.policy", OverflowPolicy.DISCONNECT);
+        this.writeMaxBytes = entero(propiedades, "chat.write.maxbytes", 64 * 1024);
+        this.writeMaxDelayMicros = entero(propiedades, "chat.write.maxdelay", 0);
+        this.tcpNoDelay = booleano(propiedades, "chat.tcp.nodelay", true);
+        this.metricsPort = entero(propiedades, "chat.metrics.port", 0);
+        this.metricsJmx = booleano(propiedades, "chat.metrics.jmx", true);
+        this.clusterNodes = direcciones(propiedades, "chat.cluster.nodes");
+        this.clusterNode = entero(propiedades, "chat.cluster.node", 0);
+        this.clusterTimeoutMillis = entero(propiedades, "chat.cluster.timeout", 2000);
+        String dir = propiedades.getProperty("chat.log.dir");
+        this.logDir = dir == null || dir.isBlank() ? null : dir.trim();
+        this.logSegmentMb = entero(propiedades, "chat.log.segment.mb", 64);
+        this.logQueue = entero(propiedades, "chat.log.queue", 65536);
+        this.logFsync = enumerado(propiedades, "chat.log.fsync", FsyncPolicy.INTERVAL);
+        this.logFsyncMillis = entero(propiedades, "chat.log.fsync.ms", 1000);
+        this.historySize = entero(propiedades, "chat.history.size", 50);
+        this.resumeGraceMillis = entero(propiedades, "chat.resume.grace.ms", 30000);
+        this.resumeBuffer = entero(propiedades, "chat.resume.buffer", 256);
+        this.acceptBacklog = entero(propiedades, "chat.accept.backlog", 1024);
+        this.handshakeTimeoutMillis = entero(propiedades, "chat.handshake.timeout.ms", 10000);
+        this.handshakeMax = entero(propiedades, "chat.handshake.max", 256);
+        this.maxConnections = entero(propiedades, "chat.max.connections", 0);
+        this.acceptRate = entero(propiedades, "chat.accept.rate", 0);
+        this.acceptBurst = entero(propiedades, "chat.accept.burst", 20);
+        this.publishRate = entero(propiedades, "chat.publish.rate", 0);
+        this.publishBurst = entero(propiedades, "chat.publish.burst", 20);
+        this.publishBytesRate = entero(propiedades, "chat.publish.bytes.rate", 0);
+        this.publishBytesBurst = entero(propiedades, "chat.publish.bytes.burst", 64 * 1024);
+        this.publishPolicy = enumerado(propiedades, "chat.publish.policy", RateLimitPolicy.DELAY);
+        this.heartbeatMillis = entero(propiedades, "chat.heartbeat.ms", 30000);
+        this.idleTimeoutMillis = entero(propiedades, "chat.idle.timeout.ms", 90000);
+        this.shutdownTimeoutMillis = entero(propiedades, "chat.shutdown.timeout.ms", 5000);
+        for (String clave : propiedades.stringPropertyNames()) {
+            if (clave.startsWith(PREFIJO_HISTORIAL_SALA)) {
+                historySizeByRoom.put(clave.substring(PREFIJO_HISTORIAL_SALA.length()),
+                        entero(propiedades, clave, historySize));
+            }
+        }
+    }
+
+    /**
+     * Devuelve el puerto en el que escucha el servidor (lo usa el main).
+     *
+     * @return el puerto
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Devuelve el motor de red.
+     *
+     * @return el motor de red
+     */
+    public Engine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Devuelve el número de bucles de E/S del motor NIO.
+     *
+     * @return número de bucles (al menos 1)
+     */
+    public int getIoLoops() {
+        return Math.max(1, ioLoops);
+    }
+
+    /**
+     * Devuelve el tipo de hilos de las tareas de cada cliente.
+     *
+     * @return hilos de plataforma o virtuales
+     */
+    public ThreadMode getThreadMode() {
+        return threadMode;
+    }
+
+    /**
+     * Devuelve la capacidad de la cola de salida de cada cliente.
+     *
+     * @return número máximo de tramas pendientes por cliente
+     */
+    public int getOutboundCapacity() {
+        return outboundCapacity;
+    }
+
+    /**
+     * Devuelve la política cuando se llena la cola de salida de un cliente.
+     *
+     * @return la política de desbordamiento
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Devuelve los bytes máximos que se agrupan en una escritura.
+     *
+     * @return tamaño máximo del lote (al menos 1 KB)
+     */
+    public int getWriteMaxBytes() {
+        return Math.max(1024, writeMaxBytes);
+    }
+
+    /**
+     * Devuelve la espera máxima para agrupar tramas en una escritura.
+     * Con 0 solo se agrupan las tramas que ya están en la cola.
+     *
+     * @return espera máxima en nanosegundos
+     */
+    public long getWriteMaxDelayNanos() {
+        return Math.max(0, writeMaxDelayMicros) * 1000L;
+    }
+
+    /**
+     * Indica si se activa TCP_NODELAY en las conexiones de los clientes.
+     *
+     * Por defecto sí: el servidor ya agrupa las tramas antes de escribir y
+     * Nagle solo añadiría retardo.
+     *
+     * @return true si se desactiva el algoritmo de Nagle
+     */
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    /**
+     * Devuelve el puerto local del endpoint de métricas en texto plano.
+     *
+     * @return el puerto, o 0 si no se abre el endpoint
+     */
+    public int getMetricsPort() {
+        return Math.max(0, metricsPort);
+    }
+
+    /**
+     * Indica si se registran las métricas como MBean en la plataforma.
+     *
+     * @return true si se publican por JMX
+     */
+    public boolean isMetricsJmx() {
+        return metricsJmx;
+    }
+
+    /**
+     * Devuelve las direcciones (host:puerto entre nodos) de todos los nodos
+     * del clúster, incluido este. Todos los nodos deben tener la misma lista.
+     *
+     * @return los nodos, o una lista vacía si el servidor va solo
+     */
+    public List<InetSocketAddress> getClusterNodes() {
+        return clusterNodes;
+    }
+
+    /**
+     * Devuelve la posición de este nodo en la lista de nodos del clúster.
+     *
+     * @return índice del nodo
+     */
+    public int getClusterNode() {
+        return clusterNode;
+    }
+
+    /**
+     * Devuelve la espera máxima de la respuesta a un reclamo de nombre de
+     * usuario en el clúster.
+     *
+     * @return espera en milisegundos (al menos 1)
+     */
+    public long getClusterTimeoutMillis() {
+        return Math.max(1, clusterTimeoutMillis);
+    }
+
+    /**
+     * Devuelve el directorio del registro persistente de mensajes.
+     *
+     * @return el directorio, o null si no se guardan los mensajes
+     */
+    public String getLogDir() {
+        return logDir;
+    }
+
+    /**
+     * Devuelve el tamaño de cada segmento del registro.
+     *
+     * @return bytes por segmento (al menos dos tramas máximas)
+     */
+    public int getLogSegmentBytes() {
+        long bytes = Math.max(1, logSegmentMb) * 1024L * 1024L;
+        return (int) Math.max(MessageLog.MIN_SEGMENTO, Math.min(Integer.MAX_VALUE, bytes));
+    }
+
+    /**
+     * Devuelve cuántas entradas pueden esperar al escritor del registro
+     * antes de empezar a descartarlas.
+     *
+     * @return capacidad de la cola del registro
+     */
+    public int getLogQueue() {
+        return logQueue;
+    }
+
+    /**
+     * Devuelve cuándo se fuerza a disco el registro.
+     *
+     * @return la política de fsync
+     */
+    public FsyncPolicy getLogFsync() {
+        return logFsync;
+    }
+
+    /**
+     * Devuelve el periodo del fsync con la política INTERVAL.
+     *
+     * @return periodo en milisegundos (al menos 1)
+     */
+    public long getLogFsyncMillis() {
+        return Math.max(1, logFsyncMillis);
+    }
+
+    /**
+     * Devuelve cuántos mensajes guarda una sala para enviárselos a quien
+     * entra (chat.history.room.NOMBRE o, si no está, chat.history.size).
+     *
+     * @param sala nombre de la sala
+     * @return número de mensajes (0 si la sala no guarda historial)
+     */
+    public int getHistorySize(String sala) {
+        return Math.max(0, historySizeByRoom.getOrDefault(sala, historySize));
+    }
+
+    /**
+     * Devuelve cuánto tiempo se guarda la sesión de un cliente que pierde
+     * la conexión sin despedirse.
+     *
+     * @return periodo de gracia en milisegundos (0 si no se reanudan sesiones)
+     */
+    public long getResumeGraceMillis() {
+        return Math.max(0, resumeGraceMillis);
+    }
+
+    /**
+     * Devuelve cuántas tramas enviadas se guardan por sesión para
+     * reenviarlas al reanudarla. Tienen que caber en la cola de salida
+     * junto con la confirmación.
+     *
+     * @return tramas por sesión (al menos 1)
+     */
+    public int getResumeBuffer() {
+        return Math.max(1, Math.min(resumeBuffer, outboundCapacity - 1));
+    }
+
+    /**
+     * Devuelve cuántas conexiones pueden esperar en la cola de aceptación
+     * del sistema operativo mientras el servidor no las acepta.
+     *
+     * @return tamaño de la cola (al menos 1)
+     */
+    public int getAcceptBacklog() {
+        return Math.max(1, acceptBacklog);
+    }
+
+    /**
+     * Devuelve el plazo que tiene una conexión nueva para enviar su saludo
+     * y su nombre de usuario (o su petición de reanudación).
+     *
+     * @return plazo en milisegundos (0 si no hay plazo)
+     */
+    public long getHandshakeTimeoutMillis() {
+        return Math.max(0, handshakeTimeoutMillis);
+    }
+
+    /**
+     * Devuelve cuántas conexiones pueden estar a la vez sin terminar el
+     * inicio. Las que llegan por encima se rechazan.
+     *
+     * @return máximo de inicios a medias (0 sin límite)
+     */
+    public int getHandshakeMax() {
+        return Math.max(0, handshakeMax);
+    }
+
+    /**
+     * Devuelve cuántas conexiones puede tener abiertas el servidor. Las que
+     * llegan por encima se rechazan.
+     *
+     * @return máximo de conexiones (0 sin límite)
+     */
+    public int getMaxConnections() {
+        return Math.max(0, maxConnections);
+    }
+
+    /**
+     * Devuelve cuántas conexiones por segundo se admiten desde una misma
+     * dirección (a largo plazo; chat.accept.burst admite ráfagas).
+     *
+     * @return conexiones por segundo (0 sin límite)
+     */
+    public int getAcceptRate() {
+        return Math.max(0, acceptRate);
+    }
+
+    /**
+     * Devuelve cuántas conexiones seguidas se admiten desde una misma
+     * dirección antes de aplicar chat.accept.rate.
+     *
+     * @return tamaño de la ráfaga (al menos 1)
+     */
+    public int getAcceptBurst() {
+        return Math.max(1, acceptBurst);
+    }
+
+    /**
+     * Devuelve cuántos mensajes por segundo puede publicar cada cliente (a
+     * largo plazo; chat.publish.burst admite ráfagas).
+     *
+     * @return mensajes por segundo (0 sin límite)
+     */
+    public int getPublishRate() {
+        return Math.max(0, publishRate);
+    }
+
+    /**
+     * Devuelve cuántos mensajes seguidos puede publicar un cliente antes
+     * de aplicar chat.publish.rate.
+     *
+     * @return tamaño de la ráfaga (al menos 1)
+     */
+    public int getPublishBurst() {
+        return Math.max(1, publishBurst);
+    }
+
+    /**
+     * Devuelve cuántos bytes por segundo puede publicar cada cliente.
+     *
+     * @return bytes por segundo (0 sin límite)
+     */
+    public int getPublishBytesRate() {
+        return Math.max(0, publishBytesRate);
+    }
+
+    /**
+     * Devuelve cuántos bytes seguidos puede publicar un cliente antes de
+     * aplicar chat.publish.bytes.rate.
+     *
+     * @return tamaño de la ráfaga en bytes (al menos 1)
+     */
+    public int getPublishBytesBurst() {
+        return Math.max(1, publishBytesBurst);
+    }
+
+    /**
+     * Devuelve qué se hace con los mensajes que superan el límite de
+     * publicación.
+     *
+     * @return la política
+     */
+    public RateLimitPolicy getPublishPolicy() {
+        return publishPolicy;
+    }
+
+    /**
+     * Indica si hay algún límite de publicación por cliente.
+     *
+     * @return true si se limitan los mensajes o los bytes
+     */
+    public boolean isPublishLimited() {
+        return getPublishRate() > 0 || getPublishBytesRate() > 0;
+    }
+
+    /**
+     * Devuelve cuánto tiempo puede estar un cliente sin enviar nada antes
+     * de que se le envíe un PING (y otro en cada intervalo).
+     *
+     * @return intervalo en milisegundos (0 sin latidos ni cierre por inactividad)
+     */
+    public long getHeartbeatMillis() {
+        return Math.max(0, heartbeatMillis);
+    }
+
+    /**
+     * Devuelve cuánto tiempo puede estar un cliente sin enviar nada (ni
+     * contestar a los PING) antes de que se cierre su conexión.
+     *
+     * @return plazo en milisegundos (al menos el intervalo de los latidos)
+     */
+    public long getIdleTimeoutMillis() {
+        return Math.max(getHeartbeatMillis(), idleTimeoutMillis);
+    }
+
+    /**
+     * Devuelve cuánto se espera en el apagado a que los clientes reciban lo
+     * que tienen pendiente. Los que no terminan a tiempo se cierran sin más.
+     *
+     * @return plazo en milisegundos
+     */
+    public long getShutdownTimeoutMillis() {
+        return Math.max(0, shutdownTimeoutMillis);
+    }
+
+    /**
+     * Lee una propiedad entera.
+     *
+     * @param propiedades propiedades de origen
+     * @param clave nombre de la propiedad
+     * @param defecto valor por defecto
+     * @return el valor leído o el valor por defecto
+     */
+    static int entero(Properties propiedades, String clave, int defecto) {
+        String valor = propiedades.getProperty(clave);
+        if (valor == null) {
+            return defecto;
+        }
+        try {
+            return Integer.parseInt(valor.trim());
+        } catch (NumberFormatException e) {
+            LOGGER.warning("Valor no válido para " + clave + ": " + valor);
+            return defecto;
+        }
+    }
+
+    /**
+     * Lee una propiedad booleana (true o false).
+     *
+     * @param propiedades propiedades de origen
+     * @param clave nombre de la propiedad
+     * @param defecto valor por defecto
+     * @return el valor leído o el valor por defecto
+     */
+    static boolean booleano(Properties propiedades, String clave, boolean defecto) {
+        String valor = propiedades.getProperty(clave);
+        if (valor == null) {
+            return defecto;
+        }
+        String limpio = valor.trim();
+        if (!"true".equalsIgnoreCase(limpio) && !"false".equalsIgnoreCase(limpio)) {
+            LOGGER.warning("Valor no válido para " + clave + ": " + valor);
+            return defecto;
+        }
+        return Boolean.parseBoolean(limpio);
+    }
+
+    /**
+     * Lee una lista de direcciones host:puerto separadas por comas.
+     *
+     * @param propiedades propiedades de origen
+     * @param clave nombre de la propiedad
+     * @return las direcciones leídas, o una lista vacía si no hay o no son válidas
+     */
+    static List<InetSocketAddress> direcciones(Properties propiedades, String clave) {
+        String valor = propiedades.getProperty(clave);
+        if (valor == null || valor.isBlank()) {
+            return Collections.emptyList();
+        }
+        List<InetSocketAddress> lista = new ArrayList<>();
+        for (String parte : valor.split(",")) {
+            String limpio = parte.trim();
+            int separador = limpio.lastIndexOf(':');
+            try {
+                lista.add(InetSocketAddress.createUnresolved(limpio.substring(0, separador),
+                        Integer.parseInt(limpio.substring(separador + 1))));
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                LOGGER.warning("Valor no válido para " + clave + ": " + valor);
+                return Collections.emptyList();
+            }
+        }
+        return Collections.unmodifiableList(lista);
+    }
+
+    /**
+     * Lee una propiedad de tipo enumerado (sin distinguir mayúsculas).
+     *
+     * @param propiedades propiedades de origen
+     * @param clave nombre de la propiedad
+     * @param defecto valor por defecto
+     * @param <E> tipo del enumerado
+     * @return el valor leído o el valor por defecto
+     */
+    static <E extends Enum<E>> E enumerado(Properties propiedades, String clave, E defecto) {
+        String valor = propiedades.getProperty(clave);
+        if (valor == null) {
+            return defecto;
+        }
+        try {
+            return Enum.valueOf(defecto.getDeclaringClass(), valor.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            LOGGER.warning("Valor no válido para " + clave + ": " + valor);
+            return defecto;
+        }
+    }
+}
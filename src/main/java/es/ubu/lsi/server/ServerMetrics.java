@@ -0,0 +1,266 @@
+/**
+ *
+ */
+package es.ubu.lsi.server;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+import es.ubu.lsi.common.LatencyHistogram;
+
+/**
+ * Métricas del servidor.
+ *
+ * Los contadores son LongAdder (una celda por hilo cuando hay contención)
+ * y los tiempos se guardan en histogramas de cubetas fijas, así que
+ * registrar una métrica en el camino de los mensajes no crea objetos ni
+ * coge cerrojos. Las lecturas (JMX o el endpoint de texto) suman las celdas
+ * y pueden ver los valores ligeramente desfasados entre sí.
+ *
+ * La profundidad de las colas y los descartes se leen del servidor.
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+
+    /** Servidor del que se leen los valores instantáneos. */
+    private final ChatServerImpl servidor;
+
+    /** Conexiones aceptadas. */
+    private final LongAdder conexionesAceptadas = new LongAdder();
+
+    /** Mensajes recibidos. */
+    private final LongAdder mensajesRecibidos = new LongAdder();
+
+    /** Mensajes que han superado el límite de publicación de su cliente. */
+    private final LongAdder mensajesLimitados = new LongAdder();
+
+    /** Sesiones cerradas por inactividad. */
+    private final LongAdder sesionesInactivas = new LongAdder();
+
+    /** Bytes recibidos. */
+    private final LongAdder bytesRecibidos = new LongAdder();
+
+    /** Tramas escritas. */
+    private final LongAdder tramasEnviadas = new LongAdder();
+
+    /** Bytes escritos. */
+    private final LongAdder bytesEnviados = new LongAdder();
+
+    /** Tiempo de reparto de cada broadcast (nanosegundos). */
+    private final LatencyHistogram tiempoBroadcast = new LatencyHistogram();
+
+    /** Destinatarios de cada broadcast. */
+    private final LatencyHistogram destinatarios = new LatencyHistogram();
+
+    /**
+     * Constructor.
+     *
+     * @param servidor servidor medido
+     */
+    ServerMetrics(ChatServerImpl servidor) {
+        this.servidor = servidor;
+    }
+
+    /**
+     * Cuenta una conexión aceptada.
+     */
+    void conexionAceptada() {
+        conexionesAceptadas.increment();
+    }
+
+    /**
+     * Cuenta un mensaje recibido de un cliente.
+     */
+    void mensajeRecibido() {
+        mensajesRecibidos.increment();
+    }
+
+    /**
+     * Cuenta un mensaje que supera el límite de publicación (se retrasa,
+     * se descarta o desconecta a su cliente, según la política).
+     */
+    void mensajeLimitado() {
+        mensajesLimitados.increment();
+    }
+
+    /**
+     * Cuenta una sesión cerrada porque su cliente no ha enviado nada (ni
+     * contestado a los PING) en el plazo de inactividad.
+     */
+    void sesionInactiva() {
+        sesionesInactivas.increment();
+    }
+
+    /**
+     * Cuenta bytes leídos de un socket.
+     *
+     * @param bytes bytes leídos
+     */
+    void bytesRecibidos(long bytes) {
+        bytesRecibidos.add(bytes);
+    }
+
+    /**
+     * Cuenta tramas escritas en un socket.
+     *
+     * @param tramas tramas completas escritas
+     * @param bytes bytes escritos
+     */
+    void tramasEnviadas(int tramas, long bytes) {
+        tramasEnviadas.add(tramas);
+        bytesEnviados.add(bytes);
+    }
+
+    /**
+     * Registra un broadcast.
+     *
+     * @param numDestinatarios sesiones a las que se ha enviado
+     * @param nanos tiempo del reparto
+     */
+    void broadcast(int numDestinatarios, long nanos) {
+        destinatarios.registrar(numDestinatarios);
+        tiempoBroadcast.registrar(nanos);
+    }
+
+    @Override
+    public long getConexionesAceptadas() {
+        return conexionesAceptadas.sum();
+    }
+
+    @Override
+    public long getConexionesRechazadas() {
+        return servidor.admision.getRechazadas();
+    }
+
+    @Override
+    public int getConexionesAbiertas() {
+        return servidor.admision.getConexiones();
+    }
+
+    @Override
+    public int getClientesConectados() {
+        return servidor.clientes.size();
+    }
+
+    @Override
+    public long getMensajesRecibidos() {
+        return mensajesRecibidos.sum();
+    }
+
+    @Override
+    public long getMensajesLimitados() {
+        return mensajesLimitados.sum();
+    }
+
+    @Override
+    public long getSesionesInactivas() {
+        return sesionesInactivas.sum();
+    }
+
+    @Override
+    public long getBytesRecibidos() {
+        return bytesRecibidos.sum();
+    }
+
+    @Override
+    public long getTramasEnviadas() {
+        return tramasEnviadas.sum();
+    }
+
+    @Override
+    public long getBytesEnviados() {
+        return bytesEnviados.sum();
+    }
+
+    @Override
+    public long getBroadcasts() {
+        return tiempoBroadcast.getCuenta();
+    }
+
+    @Override
+    public double getBroadcastP50Micros() {
+        return tiempoBroadcast.percentil(50) / 1e3;
+    }
+
+    @Override
+    public double getBroadcastP99Micros() {
+        return tiempoBroadcast.percentil(99) / 1e3;
+    }
+
+    @Override
+    public double getBroadcastP999Micros() {
+        return tiempoBroadcast.percentil(99.9) / 1e3;
+    }
+
+    @Override
+    public double getBroadcastMaxMicros() {
+        return tiempoBroadcast.getMaximo() / 1e3;
+    }
+
+    @Override
+    public long getTramasDescartadas() {
+        return servidor.getTramasDescartadas();
+    }
+
+    @Override
+    public int getProfundidadColas() {
+        return servidor.getProfundidadColas();
+    }
+
+    @Override
+    public int getMaxProfundidadCola() {
+        return servidor.getMaxProfundidadCola();
+    }
+
+    /**
+     * Devuelve todas las métricas en texto plano, una por línea
+     * ("nombre valor"), en el formato de exposición de Prometheus.
+     *
+     * @return el texto de las métricas
+     */
+    public String texto() {
+        StringBuilder sb = new StringBuilder(1024);
+        linea(sb, "chat_conexiones_aceptadas_total", getConexionesAceptadas());
+        linea(sb, "chat_conexiones_rechazadas_total", getConexionesRechazadas());
+        linea(sb, "chat_conexiones_abiertas", getConexionesAbiertas());
+        linea(sb, "chat_clientes_conectados", getClientesConectados());
+        linea(sb, "chat_mensajes_recibidos_total", getMensajesRecibidos());
+        linea(sb, "chat_mensajes_limitados_total", getMensajesLimitados());
+        linea(sb, "chat_sesiones_inactivas_total", getSesionesInactivas());
+        linea(sb, "chat_bytes_recibidos_total", getBytesRecibidos());
+        linea(sb, "chat_tramas_enviadas_total", getTramasEnviadas());
+        linea(sb, "chat_bytes_enviados_total", getBytesEnviados());
+        linea(sb, "chat_tramas_descartadas_total", getTramasDescartadas());
+        linea(sb, "chat_colas_profundidad", getProfundidadColas());
+        linea(sb, "chat_colas_profundidad_max", getMaxProfundidadCola());
+        linea(sb, "chat_broadcast_total", getBroadcasts());
+        linea(sb, "chat_broadcast_destinatarios_media", destinatarios.getMedia());
+        for (String cuantil : new String[] { "0.5", "0.99", "0.999" }) {
+            linea(sb, "chat_broadcast_segundos{quantile=\"" + cuantil + "\"}",
+                    tiempoBroadcast.percentil(Double.parseDouble(cuantil) * 100) / 1e9);
+        }
+        linea(sb, "chat_broadcast_segundos_max", tiempoBroadcast.getMaximo() / 1e9);
+        return sb.toString();
+    }
+
+    /**
+     * Añade una línea "nombre valor".
+     *
+     * @param sb texto de destino
+     * @param nombre nombre de la métrica
+     * @param valor valor de la métrica
+     */
+    private static void linea(StringBuilder sb, String nombre, long valor) {
+        sb.append(nombre).append(' ').append(valor).append('\n');
+    }
+
+    /**
+     * Añade una línea "nombre valor" con decimales.
+     *
+     * @param sb texto de destino
+     * @param nombre nombre de la métrica
+     * @param valor valor de la métrica
+     */
+    private static void linea(StringBuilder sb, String nombre, double valor) {
+        sb.append(nombre).append(' ').append(String.format(Locale.ROOT, "%.9f", valor)).append('\n');
+    }
+}
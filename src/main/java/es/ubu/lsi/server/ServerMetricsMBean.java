@@ -0,0 +1,141 @@
+/**
+ *
+ */
+package es.ubu.lsi.server;
+
+/**
+ * Interfaz JMX de las métricas del servidor (MBean estándar).
+ *
+ * Se registra como es.ubu.lsi:type=ChatServer y se puede consultar con
+ * jconsole o cualquier cliente JMX.
+ */
+public interface ServerMetricsMBean {
+
+    /**
+     * Devuelve las conexiones aceptadas desde el arranque.
+     *
+     * @return conexiones aceptadas
+     */
+    long getConexionesAceptadas();
+
+    /**
+     * Devuelve las conexiones rechazadas por el control de admisión.
+     *
+     * @return conexiones rechazadas
+     */
+    long getConexionesRechazadas();
+
+    /**
+     * Devuelve las conexiones admitidas y aún abiertas (incluidas las que
+     * no han terminado el inicio).
+     *
+     * @return conexiones abiertas
+     */
+    int getConexionesAbiertas();
+
+    /**
+     * Devuelve los clientes registrados ahora mismo.
+     *
+     * @return clientes conectados
+     */
+    int getClientesConectados();
+
+    /**
+     * Devuelve los mensajes recibidos de los clientes.
+     *
+     * @return mensajes recibidos
+     */
+    long getMensajesRecibidos();
+
+    /**
+     * Devuelve los mensajes que han superado el límite de publicación de
+     * su cliente.
+     *
+     * @return mensajes limitados
+     */
+    long getMensajesLimitados();
+
+    /**
+     * Devuelve las sesiones cerradas por inactividad.
+     *
+     * @return sesiones inactivas
+     */
+    long getSesionesInactivas();
+
+    /**
+     * Devuelve los bytes recibidos de los clientes.
+     *
+     * @return bytes recibidos
+     */
+    long getBytesRecibidos();
+
+    /**
+     * Devuelve las tramas escritas en los sockets.
+     *
+     * @return tramas enviadas
+     */
+    long getTramasEnviadas();
+
+    /**
+     * Devuelve los bytes escritos en los sockets.
+     *
+     * @return bytes enviados
+     */
+    long getBytesEnviados();
+
+    /**
+     * Devuelve el número de broadcasts hechos.
+     *
+     * @return broadcasts
+     */
+    long getBroadcasts();
+
+    /**
+     * Devuelve la mediana del tiempo de reparto de un broadcast.
+     *
+     * @return p50 en microsegundos
+     */
+    double getBroadcastP50Micros();
+
+    /**
+     * Devuelve el percentil 99 del tiempo de reparto de un broadcast.
+     *
+     * @return p99 en microsegundos
+     */
+    double getBroadcastP99Micros();
+
+    /**
+     * Devuelve el percentil 99.9 del tiempo de reparto de un broadcast.
+     *
+     * @return p999 en microsegundos
+     */
+    double getBroadcastP999Micros();
+
+    /**
+     * Devuelve el mayor tiempo de reparto de un broadcast.
+     *
+     * @return máximo en microsegundos
+     */
+    double getBroadcastMaxMicros();
+
+    /**
+     * Devuelve las tramas descartadas por colas de salida llenas.
+     *
+     * @return tramas descartadas
+     */
+    long getTramasDescartadas();
+
+    /**
+     * Devuelve las tramas pendientes en todas las colas de salida.
+     *
+     * @return tramas pendientes
+     */
+    int getProfundidadColas();
+
+    /**
+     * Devuelve la mayor profundidad alcanzada por una cola de salida.
+     *
+     * @return profundidad máxima
+     */
+    int getMaxProfundidadCola();
+}
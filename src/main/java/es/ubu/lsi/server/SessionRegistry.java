@@ -0,0 +1,136 @@
+/**
+ *
+ */
+package es.ubu.lsi.server;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registro de las sesiones conectadas.
+ *
+ * Mantiene dos índices concurrentes:
+ *  - id → sesión, para buscar al emisor de un mensaje y recorrer los clientes.
+ *  - nombre de usuario → sesión, para comprobar duplicados.
+ *
+ * El nombre se reserva con putIfAbsent, así que si dos clientes se conectan
+ * a la vez con el mismo nombre solo uno de ellos lo consigue. Todas las
+ * búsquedas son O(1).
+ */
+class SessionRegistry {
+
+    /** Sesiones registradas por id. */
+    private final Map<Integer, ClientSession> porId = new ConcurrentHashMap<>();
+
+    /** Sesiones por nombre de usuario (incluye las reservadas aún sin id). */
+    private final Map<String, ClientSession> porNombre = new ConcurrentHashMap<>();
+
+    /**
+     * Reserva el nombre de usuario de la sesión.
+     *
+     * @param sesion sesión que quiere el nombre
+     * @return false si el nombre ya lo tiene otra sesión (o no hay nombre)
+     */
+    boolean reservar(ClientSession sesion) {
+        String username = sesion.getUsername();
+        return username != null && porNombre.putIfAbsent(username, sesion) == null;
+    }
+
+    /**
+     * Libera el nombre reservado por una sesión que no se llega a registrar.
+     *
+     * @param sesion sesión que tenía el nombre
+     */
+    void liberar(ClientSession sesion) {
+        if (sesion.getUsername() != null) {
+            porNombre.remove(sesion.getUsername(), sesion);
+        }
+    }
+
+    /**
+     * Registra por id una sesión que ya ha reservado su nombre.
+     *
+     * @param sesion sesión con su id asignado
+     */
+    void registrar(ClientSession sesion) {
+        porId.put(sesion.getId(), sesion);
+    }
+
+    /**
+     * Pone una sesión en el lugar de otra con el mismo id y el mismo nombre
+     * (al suspender o reanudar una sesión).
+     *
+     * @param anterior sesión registrada
+     * @param nueva sesión que la sustituye
+     * @return false si la anterior ya no estaba registrada
+     */
+    boolean sustituir(ClientSession anterior, ClientSession nueva) {
+        if (!porId.replace(anterior.getId(), anterior, nueva)) {
+            return false;
+        }
+        porNombre.replace(anterior.getUsername(), anterior, nueva);
+        return true;
+    }
+
+    /**
+     * Elimina una sesión y libera su nombre de usuario.
+     *
+     * @param id id de la sesión
+     * @return la sesión eliminada o null si no estaba registrada
+     */
+    ClientSession eliminar(int id) {
+        ClientSession sesion = porId.remove(id);
+        if (sesion != null && sesion.getUsername() != null) {
+            // Solo se libera el nombre si sigue siendo de esta sesión
+            porNombre.remove(sesion.getUsername(), sesion);
+        }
+        return sesion;
+    }
+
+    /**
+     * Busca una sesión por id.
+     *
+     * @param id id del cliente
+     * @return la sesión o null si no existe
+     */
+    ClientSession porId(int id) {
+        return porId.get(id);
+    }
+
+    /**
+     * Busca una sesión por nombre de usuario.
+     *
+     * @param username nombre de usuario
+     * @return la sesión o null si no existe
+     */
+    ClientSession porNombre(String username) {
+        return username == null ? null : porNombre.get(username);
+    }
+
+    /**
+     * Devuelve una vista de las sesiones registradas.
+     *
+     * @return sesiones registradas (se puede recorrer mientras cambia)
+     */
+    Collection<ClientSession> sesiones() {
+        return porId.values();
+    }
+
+    /**
+     * Devuelve el número de sesiones registradas.
+     *
+     * @return número de clientes conectados
+     */
+    int size() {
+        return porId.size();
+    }
+
+    /**
+     * Vacía el registro.
+     */
+    void limpiar() {
+        porId.clear();
+        porNombre.clear();
+    }
+}
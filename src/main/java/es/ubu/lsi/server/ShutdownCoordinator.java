@@ -0,0 +1,110 @@
+/**
+ *
+ */
+package es.ubu.lsi.server;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.EncodedMessage;
+
+/**
+ * Cierre ordenado de las sesiones durante el apagado.
+ *
+ * En lugar de esperar un tiempo fijo y cerrar las conexiones una a una, a
+ * todas las sesiones se les deja el aviso de apagado y se les pide a la vez
+ * que se vacíen: cada escritor (la tarea del cliente en el motor bloqueante,
+ * el bucle de E/S en el NIO) envía lo que queda en su cola y cierra su
+ * conexión, todos en paralelo. Se espera como mucho hasta el plazo; las
+ * sesiones que no han terminado (clientes que no leen) se cierran entonces
+ * descartando lo que les quedaba.
+ */
+class ShutdownCoordinator {
+
+    /** Logger del resultado del apagado. */
+    private static final Logger LOGGER = Logger.getLogger(ShutdownCoordinator.class.getName());
+
+    /** Tiempo máximo para vaciar las sesiones. */
+    private final Duration plazo;
+
+    /**
+     * Constructor.
+     *
+     * @param plazo tiempo máximo para vaciar las sesiones
+     */
+    ShutdownCoordinator(Duration plazo) {
+        this.plazo = plazo.isNegative() ? Duration.ZERO : plazo;
+    }
+
+    /**
+     * Avisa a las sesiones, las vacía en paralelo y cierra las que no
+     * terminan a tiempo. Las sesiones suspendidas no tienen conexión y se
+     * dejan como están.
+     *
+     * @param sesiones sesiones registradas
+     * @param aviso mensaje que reciben todas antes del cierre
+     * @return número de sesiones que han enviado todo lo pendiente
+     */
+    int vaciar(Collection<ClientSession> sesiones, ChatMessage aviso) {
+        long inicio = System.nanoTime();
+        EncodedMessage trama = new EncodedMessage(aviso);
+
+        // Se piden todos los cierres sin esperar a ninguno
+        List<ClientSession> abiertas = new ArrayList<>();
+        List<CompletableFuture<Boolean>> cierres = new ArrayList<>();
+        for (ClientSession sesion : sesiones) {
+            if (sesion instanceof SuspendedSession) {
+                continue;
+            }
+            sesion.enviarTrama(trama);
+            abiertas.add(sesion);
+            cierres.add(sesion.vaciarYCerrar());
+        }
+
+        esperar(cierres);
+
+        // Las que no han terminado se cierran ya
+        int vaciadas = 0;
+        int forzadas = 0;
+        for (int i = 0; i < cierres.size(); i++) {
+            CompletableFuture<Boolean> cierre = cierres.get(i);
+            if (!cierre.isDone()) {
+                abiertas.get(i).disconnect();
+                forzadas++;
+            } else if (cierre.join()) {
+                vaciadas++;
+            }
+        }
+
+        LOGGER.log(Level.INFO, "Apagado: {0} de {1} sesiones vaciadas, {2} cerradas al vencer el plazo ({3} ms).",
+                new Object[] { vaciadas, cierres.size(), forzadas,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - inicio) });
+        return vaciadas;
+    }
+
+    /**
+     * Espera a que se cierren todas las sesiones o a que venza el plazo.
+     *
+     * @param cierres cierres pedidos
+     */
+    private void esperar(List<CompletableFuture<Boolean>> cierres) {
+        try {
+            CompletableFuture.allOf(cierres.toArray(new CompletableFuture<?>[0]))
+                    .get(plazo.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            // Las que falten se cierran sin esperar más
+            LOGGER.log(Level.FINE, "Plazo de apagado vencido", e);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/**
+ *
+ */
+package es.ubu.lsi.server;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessage.MessageType;
+import es.ubu.lsi.common.EncodedMessage;
+import es.ubu.lsi.common.WireFormat;
+
+/**
+ * Sesión cuyo cliente ha perdido la conexión y puede volver.
+ *
+ * Ocupa el lugar de la sesión caída en los registros (mismo id, mismo nombre
+ * y misma sala), así que los baneos se conservan y las publicaciones le
+ * siguen llegando: en vez de escribirlas se anotan en su ReplayBuffer para
+ * enviarlas cuando el cliente se reconecte.
+ *
+ * Al reanudar, la nueva conexión recibe primero las tramas que le faltan y a
+ * partir de ahí las que lleguen a esta sesión se le pasan directamente,
+ * hasta que los registros apuntan a la nueva.
+ */
+class SuspendedSession implements ClientSession {
+
+    /** Logger para los errores de codificación. */
+    private static final Logger LOGGER = Logger.getLogger(SuspendedSession.class.getName());
+
+    /** Cola vacía para las métricas: una sesión suspendida no escribe nada. */
+    private static final OutboundQueue SIN_COLA = new OutboundQueue(1, OverflowPolicy.DROP_NEWEST, new LongAdder());
+
+    /** Identificador del cliente. */
+    private final int id;
+
+    /** Nombre de usuario. */
+    private final String username;
+
+    /** Plantilla de las publicaciones del usuario. */
+    private final MessageTemplate plantilla;
+
+    /** Formato de las tramas del cliente. */
+    private final WireFormat formato;
+
+    /** Tramas enviadas y pendientes. */
+    private final ReplayBuffer repeticion;
+
+    /** Caducidad programada de la sesión. */
+    private volatile ScheduledFuture<?> caducidad;
+
+    /** Sesión que ha reanudado a esta (null mientras está suspendida). */
+    private ClientSession sucesora;
+
+    /**
+     * Constructor.
+     *
+     * @param caida sesión cuya conexión se ha caído
+     */
+    SuspendedSession(ClientSession caida) {
+        this.id = caida.getId();
+        this.username = caida.getUsername();
+        this.plantilla = caida.getPlantilla();
+        this.formato = caida.getFormato();
+        this.repeticion = caida.getRepeticion();
+    }
+
+    /**
+     * Guarda la caducidad programada para poder cancelarla.
+     *
+     * @param caducidad tarea que elimina la sesión
+     */
+    void setCaducidad(ScheduledFuture<?> caducidad) {
+        this.caducidad = caducidad;
+    }
+
+    /**
+     * Cancela la caducidad programada.
+     */
+    void cancelarCaducidad() {
+        if (caducidad != null) {
+            caducidad.cancel(false);
+        }
+    }
+
+    /**
+     * Pasa la sesión a una nueva conexión: le envía la confirmación con el
+     * número de trama que le corresponde y después las tramas que le faltan.
+     * Desde ese momento lo que llegue a esta sesión va a la nueva.
+     *
+     * @param nueva sesión de la nueva conexión (ya con la identidad de esta)
+     * @param recibidas tramas que dice tener el cliente
+     * @return número de tramas reenviadas
+     */
+    synchronized int traspasar(ClientSession nueva, long recibidas) {
+        List<byte[]> faltan = repeticion.desde(recibidas);
+
+        // La confirmación será la siguiente trama anotada: el cliente sigue contando desde ahí
+        nueva.enviarMensaje(new ChatMessage(id, MessageType.RESUME,
+                String.valueOf(repeticion.getAnotadas() + 1)));
+        for (byte[] trama : faltan) {
+            // Ya está en el formato del cliente: no hace falta el mensaje original
+            nueva.enviarTrama(new EncodedMessage(null, formato, trama));
+        }
+        sucesora = nueva;
+        return faltan.size();
+    }
+
+    /**
+     * Devuelve el id.
+     *
+     * @return id del cliente
+     */
+    @Override
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Devuelve el nombre de usuario.
+     *
+     * @return nombre de usuario
+     */
+    @Override
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Devuelve la plantilla de las publicaciones del usuario.
+     *
+     * @return la plantilla
+     */
+    @Override
+    public MessageTemplate getPlantilla() {
+        return plantilla;
+    }
+
+    /**
+     * Devuelve el formato de las tramas del cliente.
+     *
+     * @return el formato
+     */
+    @Override
+    public WireFormat getFormato() {
+        return formato;
+    }
+
+    /**
+     * Devuelve las tramas enviadas y pendientes.
+     *
+     * @return el anillo de la sesión
+     */
+    @Override
+    public ReplayBuffer getRepeticion() {
+        return repeticion;
+    }
+
+    /**
+     * Anota la trama para enviarla al volver el cliente o, si ya ha vuelto,
+     * se la pasa a la nueva conexión.
+     *
+     * @param trama el mensaje que se envía, ya codificado.
+     */
+    @Override
+    public synchronized void enviarTrama(EncodedMessage trama) {
+        if (sucesora != null) {
+            sucesora.enviarTrama(trama);
+            return;
+        }
+        try {
+            repeticion.anotar(trama.bytes(formato));
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Error I/O", e);
+        }
+    }
+
+    /**
+     * Devuelve una cola vacía: no hay conexión en la que escribir.
+     *
+     * @return cola sin tramas
+     */
+    @Override
+    public OutboundQueue getColaSalida() {
+        return SIN_COLA;
+    }
+
+    /**
+     * No hay conexión que cerrar.
+     */
+    @Override
+    public void disconnect() {
+        cancelarCaducidad();
+    }
+
+    /**
+     * No hay conexión ni nada que enviar: solo se olvida.
+     *
+     * @return futuro ya completado
+     */
+    @Override
+    public CompletableFuture<Boolean> vaciarYCerrar() {
+        disconnect();
+        return CompletableFuture.completedFuture(true);
+    }
+}
@@ -0,0 +1,572 @@
+/**
+ *
+ */
+package es.ubu.lsi.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bus entre nodos sobre una malla de conexiones TCP.
+ *
+ * Todos los nodos tienen la misma lista de direcciones y cada uno sabe su
+ * posición en ella. Cada nodo abre una conexión de salida a cada uno de los
+ * demás y solo escribe por ella; lo que recibe le llega por las conexiones
+ * que abren los otros. Una publicación se serializa una vez y se deja en la
+ * cola de salida de cada conexión (la misma OutboundQueue de los clientes).
+ *
+ * Nombres de usuario: cada nombre tiene un árbitro, el nodo que sale de su
+ * hash, y solo él decide a qué nodo pertenece. Reclamar un nombre es
+ * preguntárselo (o mirarlo en local si el árbitro es este nodo), así que dos
+ * nodos no pueden quedarse a la vez con el mismo. Si el árbitro no contesta
+ * a tiempo el reclamo se deniega. Cuando se cae la conexión con un nodo, su
+ * árbitro libera sus nombres; al reconectar, el nodo vuelve a reclamar los
+ * nombres de sus clientes.
+ *
+ * Se puede probar con varios nodos en localhost, por ejemplo:
+ * -Dchat.cluster.nodes=localhost:7001,localhost:7002 -Dchat.cluster.node=0
+ */
+public class TcpPeerBus implements ClusterBus {
+
+    /** Logger del bus. */
+    private static final Logger LOGGER = Logger.getLogger(TcpPeerBus.class.getName());
+
+    /** Mensaje de presentación: nodo que abre la conexión. */
+    private static final byte HOLA = 0;
+
+    /** Publicación: sala, usuario y trama. */
+    private static final byte PUBLICAR = 1;
+
+    /** Reclamo de un nombre: id de la petición (0 si no se espera respuesta) y nombre. */
+    private static final byte RECLAMAR = 2;
+
+    /** Liberación de un nombre. */
+    private static final byte LIBERAR = 3;
+
+    /** Respuesta a un reclamo: id de la petición y si se concede. */
+    private static final byte RESPUESTA = 4;
+
+    /** Espera entre intentos de conexión con un nodo. */
+    private static final long ESPERA_RECONEXION_MS = 1000;
+
+    /** Capacidad (en mensajes) de la cola de salida hacia cada nodo. */
+    private static final int CAPACIDAD_ENLACE = 8192;
+
+    /** Bytes máximos que se agrupan en una escritura hacia un nodo. */
+    private static final int MAX_LOTE = 64 * 1024;
+
+    /** Direcciones de todos los nodos. */
+    private final List<InetSocketAddress> nodos;
+
+    /** Posición de este nodo. */
+    private final int miNodo;
+
+    /** Espera máxima de la respuesta a un reclamo. */
+    private final long esperaReclamoMs;
+
+    /** Conexión de salida hacia cada nodo (null en la posición propia). */
+    private final Enlace[] enlaces;
+
+    /** Nombres de los que este nodo es árbitro → nodo que los tiene. */
+    private final Map<String, Integer> duenos = new ConcurrentHashMap<>();
+
+    /** Nombres concedidos a clientes de este nodo. */
+    private final Set<String> propios = ConcurrentHashMap.newKeySet();
+
+    /** Reclamos pendientes de respuesta por id. */
+    private final Map<Long, CompletableFuture<Boolean>> peticiones = new ConcurrentHashMap<>();
+
+    /** Siguiente id de petición (el 0 no se usa). */
+    private final AtomicLong siguientePeticion = new AtomicLong(1);
+
+    /** Conexiones abiertas por los otros nodos. */
+    private final Set<Socket> entrantes = ConcurrentHashMap.newKeySet();
+
+    /** Mensajes descartados por colas llenas (solo informativo). */
+    private final LongAdder descartados = new LongAdder();
+
+    /** Receptor de las publicaciones de otros nodos. */
+    private volatile Receptor receptor;
+
+    /** Socket en el que escuchan los otros nodos. */
+    private ServerSocket servidor;
+
+    /** Estado del bus. */
+    private volatile boolean activo = true;
+
+    /**
+     * Constructor.
+     *
+     * @param nodos direcciones de todos los nodos (la misma lista en todos)
+     * @param miNodo posición de este nodo en la lista
+     * @param esperaReclamoMs espera máxima de la respuesta a un reclamo
+     */
+    public TcpPeerBus(List<InetSocketAddress> nodos, int miNodo, long esperaReclamoMs) {
+        if (miNodo < 0 || miNodo >= nodos.size()) {
+            throw new IllegalArgumentException("Nodo fuera de la lista: " + miNodo);
+        }
+        this.nodos = new ArrayList<>(nodos);
+        this.miNodo = miNodo;
+        this.esperaReclamoMs = esperaReclamoMs;
+        this.enlaces = new Enlace[nodos.size()];
+    }
+
+    /**
+     * Abre el puerto del nodo y empieza a conectar con los demás.
+     *
+     * @param receptor quien recibe las publicaciones de otros nodos
+     * @throws IOException si no se puede abrir el puerto del nodo
+     */
+    @Override
+    public void iniciar(Receptor receptor) throws IOException {
+        this.receptor = receptor;
+        for (int nodo = 0; nodo < nodos.size(); nodo++) {
+            if (nodo != miNodo) {
+                enlaces[nodo] = new Enlace(nodo);
+            }
+        }
+
+        // Los enlaces ya existen cuando llega el primer reclamo de otro nodo
+        servidor = new ServerSocket(nodos.get(miNodo).getPort());
+        arrancar(this::aceptar, "bus-aceptar");
+        for (Enlace enlace : enlaces) {
+            if (enlace != null) {
+                arrancar(enlace, "bus-nodo-" + enlace.nodo);
+            }
+        }
+        LOGGER.log(Level.INFO, "Nodo {0} del clúster escuchando en el puerto {1}",
+                new Object[]{ miNodo, String.valueOf(nodos.get(miNodo).getPort()) });
+    }
+
+    /**
+     * Pide el nombre a su árbitro.
+     *
+     * @param usuario nombre de usuario
+     * @return futuro con la respuesta del árbitro
+     */
+    @Override
+    public CompletableFuture<Boolean> reclamar(String usuario) {
+        int arbitro = arbitro(usuario);
+        if (arbitro == miNodo) {
+            boolean concedido = arbitrar(usuario, miNodo);
+            if (concedido) {
+                propios.add(usuario);
+            }
+            return CompletableFuture.completedFuture(concedido);
+        }
+
+        long id = siguientePeticion.getAndIncrement();
+        CompletableFuture<Boolean> respuesta = new CompletableFuture<>();
+        peticiones.put(id, respuesta);
+        if (!enlaces[arbitro].enviar(mensaje(RECLAMAR, id, usuario))) {
+            peticiones.remove(id);
+            return CompletableFuture.completedFuture(false);
+        }
+
+        return respuesta.completeOnTimeout(false, esperaReclamoMs, TimeUnit.MILLISECONDS)
+                .thenApply(concedido -> {
+                    peticiones.remove(id);
+                    if (concedido) {
+                        propios.add(usuario);
+                    } else {
+                        // Si la concesión llega tarde, el árbitro no debe quedarse con ella
+                        enlaces[arbitro].enviar(mensaje(LIBERAR, 0, usuario));
+                    }
+                    return concedido;
+                });
+    }
+
+    /**
+     * Devuelve el nombre a su árbitro.
+     *
+     * @param usuario nombre de usuario
+     */
+    @Override
+    public void liberar(String usuario) {
+        if (!propios.remove(usuario)) {
+            return;
+        }
+        int arbitro = arbitro(usuario);
+        if (arbitro == miNodo) {
+            duenos.remove(usuario, miNodo);
+        } else {
+            enlaces[arbitro].enviar(mensaje(LIBERAR, 0, usuario));
+        }
+    }
+
+    /**
+     * Serializa la publicación una vez y la deja en la cola de cada nodo.
+     *
+     * @param sala sala en la que se ha publicado
+     * @param usuario nombre del emisor
+     * @param trama trama binaria del mensaje
+     */
+    @Override
+    public void publicar(String sala, String usuario, byte[] trama) {
+        byte[] mensaje;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(trama.length + 32);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(PUBLICAR);
+            out.writeUTF(sala);
+            out.writeUTF(usuario);
+            out.writeInt(trama.length);
+            out.write(trama);
+            mensaje = bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        for (Enlace enlace : enlaces) {
+            if (enlace != null) {
+                enlace.enviar(mensaje);
+            }
+        }
+    }
+
+    /**
+     * Cierra el puerto del nodo y todas las conexiones.
+     */
+    @Override
+    public void cerrar() {
+        activo = false;
+        try {
+            if (servidor != null) {
+                servidor.close();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Error cerrando el bus", e);
+        }
+        for (Enlace enlace : enlaces) {
+            if (enlace != null) {
+                enlace.cortar();
+            }
+        }
+        for (Socket socket : entrantes) {
+            cerrarSocket(socket);
+        }
+    }
+
+    /**
+     * Devuelve los mensajes hacia otros nodos descartados por colas llenas
+     * o conexiones caídas.
+     *
+     * @return mensajes descartados
+     */
+    public long getDescartados() {
+        return descartados.sum();
+    }
+
+    /**
+     * Calcula el nodo árbitro de un nombre.
+     *
+     * @param usuario nombre de usuario
+     * @return posición del árbitro
+     */
+    private int arbitro(String usuario) {
+        return Math.floorMod(usuario.hashCode(), nodos.size());
+    }
+
+    /**
+     * Decide como árbitro si un nombre es de un nodo. Se concede si está
+     * libre o si ya era de ese nodo (un reclamo repetido tras reconectar).
+     *
+     * @param usuario nombre de usuario
+     * @param nodo nodo que lo reclama
+     * @return true si se concede
+     */
+    private boolean arbitrar(String usuario, int nodo) {
+        Integer dueno = duenos.putIfAbsent(usuario, nodo);
+        return dueno == null || dueno == nodo;
+    }
+
+    /**
+     * Acepta las conexiones de los otros nodos.
+     */
+    private void aceptar() {
+        while (activo) {
+            try {
+                Socket socket = servidor.accept();
+                arrancar(() -> recibir(socket), "bus-entrada");
+            } catch (IOException e) {
+                if (activo) {
+                    LOGGER.log(Level.WARNING, "Error aceptando un nodo: {0}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Lee los mensajes de una conexión abierta por otro nodo.
+     *
+     * @param socket conexión del otro nodo
+     */
+    private void recibir(Socket socket) {
+        entrantes.add(socket);
+        int nodo = -1;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            if (in.readByte() != HOLA) {
+                throw new IOException("Falta la presentación del nodo");
+            }
+            nodo = in.readInt();
+            if (nodo < 0 || nodo >= nodos.size() || nodo == miNodo) {
+                throw new IOException("Nodo desconocido: " + nodo);
+            }
+            LOGGER.log(Level.INFO, "Conectado el nodo {0}", nodo);
+
+            while (activo) {
+                byte tipo = in.readByte();
+                switch (tipo) {
+                    case PUBLICAR -> {
+                        String sala = in.readUTF();
+                        String usuario = in.readUTF();
+                        byte[] trama = new byte[in.readInt()];
+                        in.readFully(trama);
+                        receptor.publicacionRemota(sala, usuario, trama);
+                    }
+                    case RECLAMAR -> {
+                        long id = in.readLong();
+                        boolean concedido = arbitrar(in.readUTF(), nodo);
+                        if (id != 0) {
+                            enlaces[nodo].enviar(mensaje(RESPUESTA, id, concedido));
+                        }
+                    }
+                    case LIBERAR -> {
+                        in.readLong();
+                        duenos.remove(in.readUTF(), nodo);
+                    }
+                    case RESPUESTA -> {
+                        CompletableFuture<Boolean> respuesta = peticiones.remove(in.readLong());
+                        boolean concedido = in.readBoolean();
+                        if (respuesta != null) {
+                            respuesta.complete(concedido);
+                        }
+                    }
+                    default -> throw new IOException("Mensaje de nodo desconocido: " + tipo);
+                }
+            }
+        } catch (IOException e) {
+            if (activo) {
+                LOGGER.log(Level.WARNING, "Desconectado el nodo {0}: {1}",
+                        new Object[]{ nodo, e.getMessage() });
+            }
+        } finally {
+            entrantes.remove(socket);
+            cerrarSocket(socket);
+            if (nodo >= 0) {
+                // Los nombres de ese nodo quedan libres hasta que los vuelva a reclamar
+                final int caido = nodo;
+                duenos.values().removeIf(dueno -> dueno == caido);
+            }
+        }
+    }
+
+    /**
+     * Crea un mensaje de reclamo o liberación.
+     *
+     * @param tipo RECLAMAR o LIBERAR
+     * @param id id de la petición
+     * @param usuario nombre de usuario
+     * @return bytes del mensaje
+     */
+    private static byte[] mensaje(byte tipo, long id, String usuario) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + usuario.length());
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(tipo);
+            out.writeLong(id);
+            out.writeUTF(usuario);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Crea un mensaje de respuesta a un reclamo.
+     *
+     * @param tipo RESPUESTA
+     * @param id id de la petición
+     * @param concedido si se concede el nombre
+     * @return bytes del mensaje
+     */
+    private static byte[] mensaje(byte tipo, long id, boolean concedido) {
+        byte[] bytes = new byte[10];
+        bytes[0] = tipo;
+        for (int i = 0; i < 8; i++) {
+            bytes[1 + i] = (byte) (id >>> (56 - 8 * i));
+        }
+        bytes[9] = (byte) (concedido ? 1 : 0);
+        return bytes;
+    }
+
+    /**
+     * Arranca un hilo demonio del bus.
+     *
+     * @param tarea tarea del hilo
+     * @param nombre nombre del hilo
+     */
+    private static void arrancar(Runnable tarea, String nombre) {
+        Thread hilo = new Thread(tarea, nombre);
+        hilo.setDaemon(true);
+        hilo.start();
+    }
+
+    /**
+     * Cierra un socket sin propagar errores.
+     *
+     * @param socket socket que se cierra
+     */
+    private static void cerrarSocket(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Error cerrando una conexión del bus", e);
+        }
+    }
+
+    /**
+     * Conexión de salida hacia otro nodo. Se reconecta sola mientras el bus
+     * esté activo; mientras no hay conexión los mensajes se descartan.
+     */
+    private final class Enlace implements Runnable {
+
+        /** Posición del nodo de destino. */
+        private final int nodo;
+
+        /** Cola de la conexión actual (null si no hay conexión). */
+        private volatile OutboundQueue cola;
+
+        /** Socket de la conexión actual. */
+        private volatile Socket socket;
+
+        /**
+         * Constructor.
+         *
+         * @param nodo posición del nodo de destino
+         */
+        Enlace(int nodo) {
+            this.nodo = nodo;
+        }
+
+        /**
+         * Deja un mensaje en la cola de la conexión.
+         *
+         * @param mensaje bytes del mensaje (no se modifican)
+         * @return false si no hay conexión o la cola está llena
+         */
+        boolean enviar(byte[] mensaje) {
+            OutboundQueue actual = cola;
+            if (actual != null && actual.ofrecer(mensaje)) {
+                return true;
+            }
+            if (actual != null) {
+                // El nodo no lee (la cola ya ha contado el descarte): se corta y se vuelve a conectar
+                cortar();
+            } else {
+                descartados.increment();
+            }
+            return false;
+        }
+
+        /**
+         * Corta la conexión actual.
+         */
+        void cortar() {
+            OutboundQueue actual = cola;
+            if (actual != null) {
+                actual.abortar();
+            }
+            Socket s = socket;
+            if (s != null) {
+                cerrarSocket(s);
+            }
+        }
+
+        /**
+         * Conecta con el nodo y escribe lo que llega a la cola, volviendo a
+         * conectar si se corta.
+         */
+        @Override
+        public void run() {
+            List<byte[]> lote = new ArrayList<>();
+            while (activo) {
+                InetSocketAddress destino = nodos.get(nodo);
+                try (Socket s = new Socket(destino.getHostString(), destino.getPort())) {
+                    s.setTcpNoDelay(true);
+                    socket = s;
+                    OutputStream out = new BufferedOutputStream(s.getOutputStream(), MAX_LOTE);
+                    presentarse(out);
+
+                    OutboundQueue nueva = new OutboundQueue(CAPACIDAD_ENLACE, OverflowPolicy.DISCONNECT, descartados);
+                    cola = nueva;
+                    LOGGER.log(Level.INFO, "Conectado con el nodo {0}", nodo);
+
+                    while (activo && nueva.tomarLote(lote, MAX_LOTE, 0) > 0) {
+                        for (byte[] mensaje : lote) {
+                            out.write(mensaje);
+                        }
+                        lote.clear();
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Sin conexión con el nodo {0}: {1}",
+                            new Object[]{ nodo, e.getMessage() });
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } finally {
+                    cola = null;
+                    socket = null;
+                    lote.clear();
+                }
+
+                try {
+                    Thread.sleep(ESPERA_RECONEXION_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Envía la presentación y vuelve a reclamar los nombres de los
+         * clientes de este nodo que arbitra el nodo de destino.
+         *
+         * @param out flujo de la conexión
+         * @throws IOException si falla la escritura
+         */
+        private void presentarse(OutputStream out) throws IOException {
+            DataOutputStream datos = new DataOutputStream(out);
+            datos.writeByte(HOLA);
+            datos.writeInt(miNodo);
+            for (String usuario : propios) {
+                if (arbitro(usuario) == nodo) {
+                    datos.write(mensaje(RECLAMAR, 0, usuario));
+                }
+            }
+            datos.flush();
+        }
+    }
+}
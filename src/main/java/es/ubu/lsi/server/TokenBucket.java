@@ -0,0 +1,113 @@
+/**
+ *
+ */
+package es.ubu.lsi.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cubo de fichas para limitar la tasa de un evento.
+ *
+ * El cubo se llena a un ritmo fijo (fichas por segundo) hasta su capacidad,
+ * que es la ráfaga que se admite de golpe. Cada evento gasta fichas; si no
+ * hay bastantes, se rechaza o se espera.
+ *
+ * No guarda las fichas sino el instante en el que el cubo volverá a estar
+ * lleno (como el algoritmo GCRA): gastar fichas es retrasar ese instante y
+ * el tiempo que falta para llegar a él equivale a las fichas gastadas. Así
+ * todo el estado es un solo long que se cambia con compareAndSet, sin
+ * cerrojos ni temporizadores.
+ */
+class TokenBucket {
+
+    /** Nanosegundos que tarda en reponerse una ficha. */
+    private final double nanosPorFicha;
+
+    /** Nanosegundos que equivalen al cubo entero (la ráfaga). */
+    private final long tolerancia;
+
+    /** Instante (System.nanoTime) en el que el cubo estará lleno. */
+    private final AtomicLong llenoEn;
+
+    /**
+     * Constructor. El cubo empieza lleno.
+     *
+     * @param porSegundo fichas que se añaden cada segundo (mayor que 0)
+     * @param rafaga fichas máximas (al menos 1)
+     */
+    TokenBucket(double porSegundo, double rafaga) {
+        this.nanosPorFicha = 1e9 / porSegundo;
+        this.tolerancia = (long) (Math.max(1, rafaga) * nanosPorFicha);
+        this.llenoEn = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Gasta fichas si las hay. Un evento que cuesta más que el cubo entero
+     * se admite solo con el cubo lleno.
+     *
+     * @param cantidad fichas que cuesta el evento
+     * @return true si se han gastado y false si no había bastantes
+     */
+    boolean consumir(double cantidad) {
+        long coste = coste(cantidad);
+        while (true) {
+            long ahora = System.nanoTime();
+            long actual = llenoEn.get();
+            long deuda = actual - ahora;
+            if (deuda > 0 && deuda + coste > tolerancia) {
+                return false;
+            }
+            if (llenoEn.compareAndSet(actual, (deuda > 0 ? actual : ahora) + coste)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Gasta fichas aunque no las haya y devuelve cuánto hay que esperar
+     * para que el evento respete la tasa.
+     *
+     * @param cantidad fichas que cuesta el evento
+     * @return nanosegundos de espera (0 si había fichas)
+     */
+    long reservar(double cantidad) {
+        long coste = coste(cantidad);
+        while (true) {
+            long ahora = System.nanoTime();
+            long actual = llenoEn.get();
+            long deuda = actual - ahora;
+            if (llenoEn.compareAndSet(actual, (deuda > 0 ? actual : ahora) + coste)) {
+                return deuda > 0 ? Math.max(0, deuda + coste - tolerancia) : 0;
+            }
+        }
+    }
+
+    /**
+     * Devuelve fichas gastadas por un evento que al final no se hace.
+     *
+     * @param cantidad fichas que se devuelven
+     */
+    void devolver(double cantidad) {
+        llenoEn.addAndGet(-coste(cantidad));
+    }
+
+    /**
+     * Indica si el cubo está lleno, es decir, si no se ha usado en el
+     * tiempo que tarda en llenarse (se puede olvidar sin cambiar nada).
+     *
+     * @return true si está lleno
+     */
+    boolean lleno() {
+        return llenoEn.get() - System.nanoTime() <= 0;
+    }
+
+    /**
+     * Pasa fichas a nanosegundos de reposición.
+     *
+     * @param cantidad fichas
+     * @return nanosegundos que tardan en reponerse
+     */
+    private long coste(double cantidad) {
+        return (long) (cantidad * nanosPorFicha);
+    }
+}
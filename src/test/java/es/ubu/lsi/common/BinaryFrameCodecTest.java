@@ -0,0 +1,199 @@
+package es.ubu.lsi.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+import es.ubu.lsi.common.ChatMessage.MessageType;
+
+/**
+ * Pruebas del formato binario: ida y vuelta de BinaryFrameEncoder y
+ * BinaryFrameDecoder, tramas incompletas y tramas demasiado grandes, también
+ * a través de FrameReader.
+ */
+class BinaryFrameCodecTest {
+
+    /** Codificador del formato. */
+    private final FrameEncoder encoder = WireFormat.BINARY.encoder();
+
+    /**
+     * Todos los tipos, ids en los límites de los varint y textos con
+     * caracteres de varios bytes llegan iguales.
+     */
+    @Test
+    void idaYVuelta() throws IOException {
+        int[] ids = { 0, 1, 127, 128, 16_383, 16_384, Integer.MAX_VALUE, -1 };
+        String[] textos = { "", "hola", "ñandú €", "emoji 😀", "x".repeat(70_000) };
+        for (MessageType tipo : MessageType.values()) {
+            for (int id : ids) {
+                for (String texto : textos) {
+                    ChatMessage original = new ChatMessage(id, tipo, texto);
+                    ChatMessage leido = WireFormat.BINARY.nuevoDecoder()
+                            .decode(ByteBuffer.wrap(encoder.encode(original)));
+                    comprobar(original, leido);
+                }
+            }
+        }
+    }
+
+    /**
+     * Un texto null se envía como texto vacío.
+     */
+    @Test
+    void textoNullComoVacio() throws IOException {
+        byte[] trama = encoder.encode(new ChatMessage(3, MessageType.LOGOUT, null));
+        assertEquals("", WireFormat.BINARY.nuevoDecoder().decode(ByteBuffer.wrap(trama)).getMessage());
+    }
+
+    /**
+     * Mientras la trama no está completa no se consume nada; al llegar el
+     * último byte se decodifica entera.
+     */
+    @Test
+    void tramaIncompleta() throws IOException {
+        ChatMessage original = new ChatMessage(300, MessageType.PRIVATE, "bob " + "y".repeat(200));
+        byte[] trama = encoder.encode(original);
+        FrameDecoder decoder = WireFormat.BINARY.nuevoDecoder();
+
+        for (int n = 0; n < trama.length; n++) {
+            ByteBuffer parcial = ByteBuffer.wrap(trama, 0, n);
+            assertNull(decoder.decode(parcial), "con " + n + " bytes");
+            assertEquals(0, parcial.position());
+        }
+        ByteBuffer completa = ByteBuffer.wrap(trama);
+        comprobar(original, decoder.decode(completa));
+        assertEquals(trama.length, completa.position());
+    }
+
+    /**
+     * Varias tramas seguidas en el mismo buffer se decodifican una a una.
+     */
+    @Test
+    void variasTramasSeguidas() throws IOException {
+        ByteArrayOutputStream flujo = new ByteArrayOutputStream();
+        for (int i = 0; i < 10; i++) {
+            flujo.write(encoder.encode(new ChatMessage(i, MessageType.MESSAGE, "m" + i)));
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(flujo.toByteArray());
+        FrameDecoder decoder = WireFormat.BINARY.nuevoDecoder();
+        for (int i = 0; i < 10; i++) {
+            comprobar(new ChatMessage(i, MessageType.MESSAGE, "m" + i), decoder.decode(buffer));
+        }
+        assertNull(decoder.decode(buffer));
+    }
+
+    /**
+     * Una trama que anuncia más de WireFormat.MAX_TRAMA bytes se rechaza
+     * en cuanto se lee su longitud, sin esperar al resto.
+     */
+    @Test
+    void tramaDemasiadoGrande() throws IOException {
+        byte[] trama = encoder.encode(new ChatMessage(1, MessageType.MESSAGE, "x".repeat(WireFormat.MAX_TRAMA)));
+        ByteBuffer cabecera = ByteBuffer.wrap(trama, 0, 8);
+        assertThrows(StreamCorruptedException.class,
+                () -> WireFormat.BINARY.nuevoDecoder().decode(cabecera));
+    }
+
+    /**
+     * Un tipo que no existe o un varint de más de 5 bytes no son tramas
+     * válidas.
+     */
+    @Test
+    void tramasNoValidas() {
+        byte[] tipoDesconocido = { 3, 1, (byte) 99, 'x' };
+        assertThrows(StreamCorruptedException.class,
+                () -> WireFormat.BINARY.nuevoDecoder().decode(ByteBuffer.wrap(tipoDesconocido)));
+
+        byte[] varintLargo = { (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 1 };
+        assertThrows(StreamCorruptedException.class,
+                () -> WireFormat.BINARY.nuevoDecoder().decode(ByteBuffer.wrap(varintLargo)));
+    }
+
+    /**
+     * FrameReader junta las tramas aunque el flujo las entregue a trozos, y
+     * amplía su buffer para una trama del tamaño máximo.
+     */
+    @Test
+    void frameReaderATrozos() throws IOException {
+        String grande = "g".repeat(WireFormat.MAX_TRAMA - 16);
+        ByteArrayOutputStream flujo = new ByteArrayOutputStream();
+        flujo.write(encoder.encode(new ChatMessage(1, MessageType.MESSAGE, "primero")));
+        flujo.write(encoder.encode(new ChatMessage(2, MessageType.MESSAGE, grande)));
+        flujo.write(encoder.encode(new ChatMessage(3, MessageType.LOGOUT, "")));
+
+        try (FrameReader lector = new FrameReader(new ATrozos(flujo.toByteArray(), 1000),
+                WireFormat.BINARY.nuevoDecoder())) {
+            assertEquals("primero", lector.read().getMessage());
+            ChatMessage leido = lector.read();
+            assertEquals(grande, leido.getMessage());
+            assertEquals(encoder.encode(leido).length, lector.getTamUltima());
+            assertEquals(MessageType.LOGOUT, lector.read().getType());
+        }
+    }
+
+    /**
+     * FrameReader rechaza una trama más grande que el máximo.
+     */
+    @Test
+    void frameReaderTramaDemasiadoGrande() throws IOException {
+        byte[] trama = encoder.encode(new ChatMessage(1, MessageType.MESSAGE, "x".repeat(WireFormat.MAX_TRAMA)));
+        try (FrameReader lector = new FrameReader(new ByteArrayInputStream(trama), WireFormat.BINARY.nuevoDecoder())) {
+            assertThrows(StreamCorruptedException.class, lector::read);
+        }
+    }
+
+    /**
+     * Comprueba que dos mensajes son iguales campo a campo.
+     *
+     * @param esperado mensaje original
+     * @param leido mensaje decodificado
+     */
+    static void comprobar(ChatMessage esperado, ChatMessage leido) {
+        assertEquals(esperado.getId(), leido.getId());
+        assertEquals(esperado.getType(), leido.getType());
+        assertEquals(esperado.getMessage(), leido.getMessage());
+    }
+
+    /**
+     * Flujo que entrega sus bytes en trozos de como mucho un tamaño dado,
+     * como un socket.
+     */
+    static final class ATrozos extends InputStream {
+
+        /** Bytes del flujo. */
+        private final ByteArrayInputStream datos;
+
+        /** Bytes máximos de cada lectura. */
+        private final int trozo;
+
+        /**
+         * Constructor.
+         *
+         * @param bytes bytes del flujo
+         * @param trozo bytes máximos de cada lectura
+         */
+        ATrozos(byte[] bytes, int trozo) {
+            this.datos = new ByteArrayInputStream(bytes);
+            this.trozo = trozo;
+        }
+
+        @Override
+        public int read() {
+            return datos.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            return datos.read(b, off, Math.min(len, trozo));
+        }
+    }
+}
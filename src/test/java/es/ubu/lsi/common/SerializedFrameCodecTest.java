@@ -0,0 +1,180 @@
+package es.ubu.lsi.common;
+
+import static es.ubu.lsi.common.BinaryFrameCodecTest.comprobar;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import es.ubu.lsi.common.ChatMessage.MessageType;
+
+/**
+ * Pruebas de la serialización Java: SerializedFrameEncoder y
+ * SerializedFrameDecoder entre sí y con ObjectOutputStream y
+ * ObjectInputStream, que es lo que usan los clientes antiguos.
+ */
+class SerializedFrameCodecTest {
+
+    /** Codificador del formato. */
+    private final FrameEncoder encoder = WireFormat.SERIALIZED.encoder();
+
+    /**
+     * Todos los tipos llegan tal cual, también los posteriores a LOGOUT.
+     */
+    @Test
+    void idaYVuelta() throws IOException {
+        for (MessageType tipo : MessageType.values()) {
+            for (String texto : new String[] { "", "hola", "ñandú \u0000 😀", "x".repeat(70_000) }) {
+                ChatMessage original = new ChatMessage(42, tipo, texto);
+                comprobar(original, WireFormat.SERIALIZED.nuevoDecoder()
+                        .decode(ByteBuffer.wrap(encoder.encode(original))));
+            }
+        }
+    }
+
+    /**
+     * Lo que escribe un ObjectOutputStream (varios objetos, con referencias
+     * a los descriptores ya enviados) se decodifica mensaje a mensaje.
+     */
+    @Test
+    void leeLoQueEscribeObjectOutputStream() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+            oos.writeObject(new ChatMessage(0, MessageType.MESSAGE, "ana"));
+            oos.writeObject(new ChatMessage(7, MessageType.MESSAGE, "hola"));
+            oos.reset();
+            oos.writeObject(new ChatMessage(7, MessageType.LOGOUT, ""));
+        }
+        byte[] flujo = bytes.toByteArray();
+        ByteBuffer buffer = ByteBuffer.wrap(flujo, SerializedFrameEncoder.STREAM_HEADER.length,
+                flujo.length - SerializedFrameEncoder.STREAM_HEADER.length);
+
+        FrameDecoder decoder = WireFormat.SERIALIZED.nuevoDecoder();
+        comprobar(new ChatMessage(0, MessageType.MESSAGE, "ana"), decoder.decode(buffer));
+        comprobar(new ChatMessage(7, MessageType.MESSAGE, "hola"), decoder.decode(buffer));
+        comprobar(new ChatMessage(7, MessageType.LOGOUT, ""), decoder.decode(buffer));
+        assertNull(decoder.decode(buffer));
+    }
+
+    /**
+     * Las tramas que envía el servidor (cabecera una vez y luego tramas
+     * autocontenidas) se leen con un ObjectInputStream normal.
+     */
+    @Test
+    void objectInputStreamLeeLasTramas() throws Exception {
+        ByteArrayOutputStream flujo = new ByteArrayOutputStream();
+        flujo.write(WireFormat.SALUDO_SERVIDOR);
+        for (int i = 0; i < 3; i++) {
+            flujo.write(encoder.encode(new ChatMessage(i, MessageType.MESSAGE, "m" + i)));
+        }
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(flujo.toByteArray()))) {
+            for (int i = 0; i < 3; i++) {
+                comprobar(new ChatMessage(i, MessageType.MESSAGE, "m" + i), (ChatMessage) ois.readObject());
+            }
+        }
+    }
+
+    /**
+     * Con la trama a medias no se consume nada ni cambia la tabla de
+     * referencias: la trama se decodifica entera cuando llega completa.
+     */
+    @Test
+    void tramaIncompleta() throws IOException {
+        FrameDecoder decoder = WireFormat.SERIALIZED.nuevoDecoder();
+        ChatMessage primero = new ChatMessage(1, MessageType.MESSAGE, "primero");
+        comprobar(primero, decoder.decode(ByteBuffer.wrap(encoder.encode(primero))));
+
+        ChatMessage original = new ChatMessage(2, MessageType.SHUTDOWN, "fin");
+        byte[] trama = encoder.encode(original);
+        for (int n = 0; n < trama.length; n++) {
+            ByteBuffer parcial = ByteBuffer.wrap(trama, 0, n);
+            assertNull(decoder.decode(parcial), "con " + n + " bytes");
+            assertEquals(0, parcial.position());
+        }
+        comprobar(original, decoder.decode(ByteBuffer.wrap(trama)));
+    }
+
+    /**
+     * Un ChatMessage sin tipo o sin texto no es una trama válida.
+     */
+    @Test
+    void rechazaCamposNulos() throws IOException {
+        for (ChatMessage incompleto : new ChatMessage[] {
+                new ChatMessage(0, null, "x"), new ChatMessage(0, MessageType.MESSAGE, null) }) {
+            byte[] trama = sinCabecera(incompleto);
+            assertThrows(InvalidObjectException.class,
+                    () -> WireFormat.SERIALIZED.nuevoDecoder().decode(ByteBuffer.wrap(trama)));
+        }
+    }
+
+    /**
+     * Un objeto que no es un ChatMessage no es una trama válida.
+     */
+    @Test
+    void rechazaOtrosObjetos() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+            oos.writeObject(Integer.valueOf(5));
+        }
+        byte[] flujo = bytes.toByteArray();
+        byte[] trama = Arrays.copyOfRange(flujo, SerializedFrameEncoder.STREAM_HEADER.length, flujo.length);
+        assertThrows(IOException.class,
+                () -> WireFormat.SERIALIZED.nuevoDecoder().decode(ByteBuffer.wrap(trama)));
+    }
+
+    /**
+     * FrameReader rechaza una trama serializada más grande que el máximo.
+     */
+    @Test
+    void frameReaderTramaDemasiadoGrande() throws IOException {
+        byte[] trama = encoder.encode(new ChatMessage(1, MessageType.MESSAGE, "x".repeat(WireFormat.MAX_TRAMA)));
+        try (FrameReader lector = new FrameReader(new ByteArrayInputStream(trama),
+                WireFormat.SERIALIZED.nuevoDecoder())) {
+            assertThrows(StreamCorruptedException.class, lector::read);
+        }
+    }
+
+    /**
+     * Los clientes antiguos reciben los tipos nuevos como MESSAGE; los que
+     * hablan el formato binario los reciben tal cual.
+     */
+    @Test
+    void encodedMessageRebajaSoloParaSerializacion() throws IOException {
+        EncodedMessage privado = new EncodedMessage(new ChatMessage(5, MessageType.PRIVATE, "secreto"));
+
+        ChatMessage serializado = WireFormat.SERIALIZED.nuevoDecoder()
+                .decode(ByteBuffer.wrap(privado.bytes(WireFormat.SERIALIZED)));
+        comprobar(new ChatMessage(5, MessageType.MESSAGE, "secreto"), serializado);
+
+        ChatMessage binario = WireFormat.BINARY.nuevoDecoder()
+                .decode(ByteBuffer.wrap(privado.bytes(WireFormat.BINARY)));
+        comprobar(new ChatMessage(5, MessageType.PRIVATE, "secreto"), binario);
+    }
+
+    /**
+     * Serializa un mensaje con ObjectOutputStream y quita la cabecera.
+     *
+     * @param mensaje mensaje
+     * @return bytes del objeto
+     * @throws IOException si falla la serialización
+     */
+    private static byte[] sinCabecera(ChatMessage mensaje) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+            oos.writeObject(mensaje);
+        }
+        byte[] flujo = bytes.toByteArray();
+        return Arrays.copyOfRange(flujo, SerializedFrameEncoder.STREAM_HEADER.length, flujo.length);
+    }
+}
@@ -0,0 +1,112 @@
+package es.ubu.lsi.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import es.ubu.lsi.common.ChatMessage.MessageType;
+import es.ubu.lsi.common.WireFormat;
+
+/**
+ * Pruebas del recuento de conexiones del control de admisión: conecta y
+ * desconecta sesiones de todas las formas posibles y comprueba que el
+ * recuento vuelve a cero (si no, el servidor acabaría rechazando a todo el
+ * mundo con chat.max.connections).
+ */
+class AdmissionTest {
+
+    /** Sesiones de cada tipo que se abren. */
+    private static final int SESIONES = 4;
+
+    /**
+     * Con el motor bloqueante.
+     */
+    @Test
+    void recuentoBloqueante() throws Exception {
+        comprobarRecuento(ServerConfig.Engine.BLOCKING);
+    }
+
+    /**
+     * Con el motor NIO.
+     */
+    @Test
+    void recuentoNio() throws Exception {
+        comprobarRecuento(ServerConfig.Engine.NIO);
+    }
+
+    /**
+     * Abre sesiones de ambos formatos y las cierra desde el servidor, con
+     * LOGOUT, cerrando el socket y a medio iniciar.
+     *
+     * @param motor motor de red del servidor
+     * @throws Exception si falla la conexión
+     */
+    private static void comprobarRecuento(ServerConfig.Engine motor) throws Exception {
+        try (ServidorPrueba servidor = ServidorPrueba.arrancar(motor, "chat.history.size=0")) {
+            AdmissionControl admision = servidor.servidor.admision;
+            List<ClientePrueba> expulsados = new ArrayList<>();
+            List<ClientePrueba> salientes = new ArrayList<>();
+            List<ClientePrueba> caidos = new ArrayList<>();
+            List<ClientePrueba> aMedias = new ArrayList<>();
+            try {
+                for (int i = 0; i < SESIONES; i++) {
+                    WireFormat formato = i % 2 == 0 ? WireFormat.BINARY : WireFormat.SERIALIZED;
+                    expulsados.add(ClientePrueba.entrar(servidor.puerto, formato, "expulsado" + i));
+                    salientes.add(ClientePrueba.entrar(servidor.puerto, formato, "saliente" + i));
+                    caidos.add(ClientePrueba.entrar(servidor.puerto, formato, "caido" + i));
+                    aMedias.add(ClientePrueba.conectar(servidor.puerto, formato));
+                }
+                assertEquals(4 * SESIONES, admision.getConexiones());
+
+                // Desde el servidor
+                for (ClientSession sesion : servidor.servidor.clientes.sesiones()) {
+                    if (sesion.getUsername().startsWith("expulsado")) {
+                        sesion.disconnect();
+                    }
+                }
+                for (ClientePrueba cliente : expulsados) {
+                    assertTrue(cliente.cerradaPorServidor());
+                }
+
+                // Con LOGOUT
+                for (ClientePrueba cliente : salientes) {
+                    cliente.enviar(MessageType.LOGOUT, "");
+                    assertTrue(cliente.cerradaPorServidor());
+                }
+
+                // Cerrando el socket, con y sin terminar el inicio (las binarias
+                // quedan suspendidas, pero sin ocupar una conexión)
+                for (ClientePrueba cliente : caidos) {
+                    cliente.close();
+                }
+                for (ClientePrueba cliente : aMedias) {
+                    cliente.close();
+                }
+
+                ServidorPrueba.esperar(() -> admision.getConexiones() == 0, "recuento de conexiones a cero");
+            } finally {
+                cerrar(expulsados, salientes, caidos, aMedias);
+            }
+        }
+    }
+
+    /**
+     * Cierra los clientes que queden abiertos.
+     *
+     * @param listas clientes
+     * @throws IOException si falla el cierre
+     */
+    @SafeVarargs
+    private static void cerrar(List<ClientePrueba>... listas) throws IOException {
+        for (List<ClientePrueba> lista : listas) {
+            for (ClientePrueba cliente : lista) {
+                cliente.close();
+            }
+        }
+    }
+}
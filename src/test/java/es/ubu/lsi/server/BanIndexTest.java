@@ -0,0 +1,141 @@
+package es.ubu.lsi.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Pruebas de BanIndex: banear, desbanear y olvidar los baneos de una sesión.
+ */
+class BanIndexTest {
+
+    /** Índice de prueba. */
+    private final BanIndex indice = new BanIndex();
+
+    /**
+     * Sin baneos no hay conjunto para nadie.
+     */
+    @Test
+    void vacio() {
+        assertNull(indice.baneadoresDe("ana"));
+        assertNull(indice.baneadoresDe(null));
+        assertFalse(indice.haBaneado(1, "ana"));
+    }
+
+    /**
+     * Cada baneo añade la sesión al conjunto del usuario baneado.
+     */
+    @Test
+    void banear() {
+        indice.banear(1, "ana");
+        indice.banear(70, "ana");
+        indice.banear(1, "bob");
+
+        assertTrue(indice.haBaneado(1, "ana"));
+        assertTrue(indice.haBaneado(70, "ana"));
+        assertFalse(indice.haBaneado(2, "ana"));
+        assertEquals(2, indice.baneadoresDe("ana").tamano());
+        assertEquals(1, indice.baneadoresDe("bob").tamano());
+    }
+
+    /**
+     * Desbanear quita solo esa sesión, y el conjunto desaparece cuando se
+     * queda vacío.
+     */
+    @Test
+    void desbanear() {
+        indice.banear(1, "ana");
+        indice.banear(2, "ana");
+
+        indice.desbanear(1, "ana");
+        assertFalse(indice.haBaneado(1, "ana"));
+        assertTrue(indice.haBaneado(2, "ana"));
+
+        indice.desbanear(2, "ana");
+        assertNull(indice.baneadoresDe("ana"));
+
+        // Desbanear a quien no estaba baneado no hace nada
+        indice.desbanear(3, "bob");
+        assertNull(indice.baneadoresDe("bob"));
+    }
+
+    /**
+     * Al olvidar una sesión se quitan todos sus baneos y no los de las demás.
+     */
+    @Test
+    void olvidar() {
+        indice.banear(1, "ana");
+        indice.banear(1, "bob");
+        indice.banear(2, "bob");
+
+        indice.olvidar(1);
+        assertNull(indice.baneadoresDe("ana"));
+        assertFalse(indice.haBaneado(1, "bob"));
+        assertTrue(indice.haBaneado(2, "bob"));
+
+        // Un desbaneo previo no se vuelve a aplicar ni falla
+        indice.banear(3, "carla");
+        indice.desbanear(3, "carla");
+        indice.olvidar(3);
+        assertNull(indice.baneadoresDe("carla"));
+    }
+
+    /**
+     * Un conjunto ya publicado no cambia: los cambios crean una copia.
+     */
+    @Test
+    void copiaAlEscribir() {
+        indice.banear(1, "ana");
+        BanIndex.Baneadores antes = indice.baneadoresDe("ana");
+
+        indice.banear(2, "ana");
+        indice.desbanear(1, "ana");
+
+        assertTrue(antes.contiene(1));
+        assertFalse(antes.contiene(2));
+        assertTrue(indice.baneadoresDe("ana").contiene(2));
+    }
+
+    /**
+     * Los ids de sesión no se reutilizan y crecen con cada conexión: el
+     * conjunto ocupa lo que haya de sesiones que banean, no el id más alto.
+     */
+    @Test
+    void idsGrandes() {
+        int[] ids = { 3_000_000, 7, 1_000_000, Integer.MAX_VALUE, 500 };
+        for (int id : ids) {
+            indice.banear(id, "ana");
+        }
+        indice.banear(7, "ana");
+
+        BanIndex.Baneadores baneadores = indice.baneadoresDe("ana");
+        assertEquals(ids.length, baneadores.tamano());
+        for (int id : ids) {
+            assertTrue(baneadores.contiene(id));
+        }
+        assertFalse(baneadores.contiene(1_000_001));
+        assertFalse(baneadores.contiene(0));
+
+        indice.olvidar(1_000_000);
+        indice.desbanear(Integer.MAX_VALUE, "ana");
+        assertEquals(3, indice.baneadoresDe("ana").tamano());
+        assertFalse(indice.haBaneado(1_000_000, "ana"));
+        assertTrue(indice.haBaneado(3_000_000, "ana"));
+        assertTrue(indice.haBaneado(500, "ana"));
+    }
+
+    /**
+     * limpiar vacía el índice.
+     */
+    @Test
+    void limpiar() {
+        indice.banear(1, "ana");
+        indice.limpiar();
+        assertNull(indice.baneadoresDe("ana"));
+        indice.olvidar(1);
+        assertNull(indice.baneadoresDe("ana"));
+    }
+}
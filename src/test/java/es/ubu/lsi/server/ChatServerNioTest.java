@@ -0,0 +1,102 @@
+package es.ubu.lsi.server;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessage.MessageType;
+import es.ubu.lsi.common.WireFormat;
+
+/**
+ * Pruebas del motor NIO con un solo bucle de E/S: un error atendiendo a
+ * una sesión cierra esa sesión y el resto de sesiones del mismo bucle
+ * siguen funcionando.
+ */
+class ChatServerNioTest {
+
+    /** Mensaje que hace fallar al servidor de prueba. */
+    private static final String FALLO = "fallo";
+
+    /**
+     * Una excepción inesperada tratando el mensaje de una sesión solo
+     * cierra esa sesión.
+     */
+    @Test
+    void unaSesionQueFallaNoParaElBucle() throws Exception {
+        try (ServidorPrueba servidor = ServidorPrueba.arrancar(ChatServerNioTest::servidorQueFalla,
+                "chat.nio.loops=1", "chat.history.size=0");
+                ClientePrueba ana = ClientePrueba.entrar(servidor.puerto, WireFormat.BINARY, "ana");
+                ClientePrueba bob = ClientePrueba.entrar(servidor.puerto, WireFormat.BINARY, "bob");
+                ClientePrueba viejo = ClientePrueba.entrar(servidor.puerto, WireFormat.SERIALIZED, "viejo");
+                ClientePrueba carla = ClientePrueba.entrar(servidor.puerto, WireFormat.BINARY, "carla")) {
+
+            carla.enviar(MessageType.MESSAGE, FALLO);
+            assertTrue(carla.cerradaPorServidor());
+
+            comprobarQueSigue(servidor, ana, bob, viejo);
+        }
+    }
+
+    /**
+     * Un cliente antiguo que envía un mensaje sin tipo se desconecta y los
+     * demás siguen recibiendo.
+     */
+    @Test
+    void mensajeSinTipo() throws Exception {
+        try (ServidorPrueba servidor = ServidorPrueba.arrancar(ServerConfig.Engine.NIO,
+                "chat.nio.loops=1", "chat.history.size=0");
+                ClientePrueba ana = ClientePrueba.entrar(servidor.puerto, WireFormat.BINARY, "ana");
+                ClientePrueba bob = ClientePrueba.entrar(servidor.puerto, WireFormat.BINARY, "bob");
+                ClientePrueba viejo = ClientePrueba.entrar(servidor.puerto, WireFormat.SERIALIZED, "viejo");
+                ClientePrueba malo = ClientePrueba.entrar(servidor.puerto, WireFormat.SERIALIZED, "malo")) {
+
+            malo.enviar(new ChatMessage(malo.getId(), null, "sin tipo"));
+            assertTrue(malo.cerradaPorServidor());
+
+            comprobarQueSigue(servidor, ana, bob, viejo);
+        }
+    }
+
+    /**
+     * Comprueba que las sesiones que quedan reciben una publicación y que
+     * el bucle sigue aceptando clientes nuevos.
+     *
+     * @param servidor servidor de prueba
+     * @param emisor cliente que publica
+     * @param otros clientes que tienen que recibirla
+     * @throws Exception si falla la conexión
+     */
+    private static void comprobarQueSigue(ServidorPrueba servidor, ClientePrueba emisor, ClientePrueba... otros)
+            throws Exception {
+        emisor.enviar(MessageType.MESSAGE, "sigo");
+        emisor.esperar("sigo");
+        for (ClientePrueba otro : otros) {
+            assertTrue(otro.recibir().getMessage().endsWith("sigo"));
+        }
+
+        try (ClientePrueba nuevo = ClientePrueba.entrar(servidor.puerto, WireFormat.BINARY, "nuevo")) {
+            nuevo.enviar(MessageType.MESSAGE, "hola");
+            assertTrue(emisor.esperar("hola").getMessage().contains("nuevo"));
+        }
+    }
+
+    /**
+     * Crea un servidor NIO que lanza una excepción al tratar el mensaje FALLO.
+     *
+     * @param puerto puerto del servidor
+     * @param config configuración
+     * @return el servidor
+     */
+    private static ChatServerImpl servidorQueFalla(int puerto, ServerConfig config) {
+        return new ChatServerNio(puerto, config) {
+            @Override
+            protected boolean procesarMensaje(ClientSession sesion, ChatMessage msg) {
+                if (FALLO.equals(msg.getMessage())) {
+                    throw new IllegalStateException("Fallo de prueba");
+                }
+                return super.procesarMensaje(sesion, msg);
+            }
+        };
+    }
+}
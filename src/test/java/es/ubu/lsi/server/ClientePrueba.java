@@ -0,0 +1,246 @@
+package es.ubu.lsi.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessage.MessageType;
+import es.ubu.lsi.common.FrameReader;
+import es.ubu.lsi.common.WireFormat;
+
+/**
+ * Cliente de chat mínimo para las pruebas: habla el protocolo directamente
+ * sobre el socket y cuenta las tramas recibidas, como el cliente real para
+ * reanudar su sesión.
+ */
+final class ClientePrueba implements Closeable {
+
+    /** Socket de la conexión. */
+    private final Socket socket;
+
+    /** Flujo de salida. */
+    private final OutputStream salida;
+
+    /** Lector de tramas. */
+    private final FrameReader entrada;
+
+    /** Formato de las tramas. */
+    private final WireFormat formato;
+
+    /** Id asignado por el servidor. */
+    private int id;
+
+    /** Token de reanudación (null si la sesión no se puede reanudar). */
+    private String token;
+
+    /** Tramas recibidas desde el saludo. */
+    private long recibidas;
+
+    /**
+     * Constructor: hace el saludo.
+     *
+     * @param socket socket conectado
+     * @param formato formato de las tramas
+     * @throws IOException si falla el saludo
+     */
+    private ClientePrueba(Socket socket, WireFormat formato) throws IOException {
+        this.socket = socket;
+        this.formato = formato;
+        socket.setSoTimeout((int) ServidorPrueba.ESPERA_MS);
+        salida = new BufferedOutputStream(socket.getOutputStream());
+        salida.write(formato.saludo());
+        salida.flush();
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        WireFormat.comprobarSaludoServidor(FrameReader.leerSaludo(in));
+        entrada = new FrameReader(in, formato.nuevoDecoder());
+    }
+
+    /**
+     * Conecta con un servidor de localhost, reintentando mientras aún no
+     * escucha.
+     *
+     * @param puerto puerto del servidor
+     * @param formato formato de las tramas
+     * @return el cliente conectado, sin nombre todavía
+     * @throws IOException si no se puede conectar
+     */
+    static ClientePrueba conectar(int puerto, WireFormat formato) throws IOException {
+        long limite = System.nanoTime() + ServidorPrueba.ESPERA_MS * 1_000_000;
+        while (true) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress("localhost", puerto));
+                return new ClientePrueba(socket, formato);
+            } catch (ConnectException e) {
+                socket.close();
+                if (System.nanoTime() > limite) {
+                    throw e;
+                }
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Conecta y entra en el chat con un nombre: lee el id, la bienvenida y,
+     * con el formato binario, el token de reanudación.
+     *
+     * @param puerto puerto del servidor
+     * @param formato formato de las tramas
+     * @param usuario nombre de usuario
+     * @return el cliente registrado
+     * @throws IOException si falla la conexión
+     */
+    static ClientePrueba entrar(int puerto, WireFormat formato, String usuario) throws IOException {
+        ClientePrueba cliente = conectar(puerto, formato);
+        cliente.enviar(MessageType.MESSAGE, usuario);
+        cliente.id = Integer.parseInt(cliente.recibir().getMessage());
+        cliente.recibir();
+        if (formato == WireFormat.BINARY) {
+            ChatMessage token = cliente.recibir();
+            assertEquals(MessageType.RESUME, token.getType());
+            cliente.token = token.getMessage();
+        }
+        return cliente;
+    }
+
+    /**
+     * Envía un mensaje con el id del cliente.
+     *
+     * @param tipo tipo del mensaje
+     * @param texto texto del mensaje
+     * @throws IOException si falla el envío
+     */
+    void enviar(MessageType tipo, String texto) throws IOException {
+        enviar(new ChatMessage(id, tipo, texto));
+    }
+
+    /**
+     * Envía un mensaje tal cual.
+     *
+     * @param mensaje mensaje
+     * @throws IOException si falla el envío
+     */
+    void enviar(ChatMessage mensaje) throws IOException {
+        salida.write(formato.encoder().encode(mensaje));
+        salida.flush();
+    }
+
+    /**
+     * Pide reanudar una sesión por esta conexión. Si se acepta, el cliente
+     * recupera el id de la sesión y sigue contando desde el número de la
+     * confirmación.
+     *
+     * @param tokenSesion token de la sesión
+     * @param tramas tramas que se dicen recibidas
+     * @return la respuesta del servidor (RESUME si se reanuda)
+     * @throws IOException si falla la conexión
+     */
+    ChatMessage reanudar(String tokenSesion, long tramas) throws IOException {
+        enviar(MessageType.RESUME, tokenSesion + " " + tramas);
+        ChatMessage respuesta = entrada.read();
+        if (respuesta.getType() == MessageType.RESUME) {
+            id = respuesta.getId();
+            token = tokenSesion;
+            recibidas = Long.parseLong(respuesta.getMessage());
+        }
+        return respuesta;
+    }
+
+    /**
+     * Lee la siguiente trama.
+     *
+     * @return el mensaje
+     * @throws IOException si se cierra la conexión o no llega nada a tiempo
+     */
+    ChatMessage recibir() throws IOException {
+        ChatMessage mensaje = entrada.read();
+        recibidas++;
+        return mensaje;
+    }
+
+    /**
+     * Lee tramas hasta la primera que contiene un texto.
+     *
+     * @param texto texto buscado
+     * @return el mensaje que lo contiene
+     * @throws IOException si se cierra la conexión o no llega a tiempo
+     */
+    ChatMessage esperar(String texto) throws IOException {
+        while (true) {
+            ChatMessage mensaje = recibir();
+            if (String.valueOf(mensaje.getMessage()).contains(texto)) {
+                return mensaje;
+            }
+        }
+    }
+
+    /**
+     * Lee hasta que el servidor cierra la conexión.
+     *
+     * @return true si la ha cerrado y false si sigue abierta pasado el plazo
+     */
+    boolean cerradaPorServidor() {
+        try {
+            while (true) {
+                recibir();
+            }
+        } catch (SocketTimeoutException e) {
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Devuelve el id asignado por el servidor.
+     *
+     * @return el id
+     */
+    int getId() {
+        return id;
+    }
+
+    /**
+     * Devuelve el token de reanudación.
+     *
+     * @return el token o null
+     */
+    String getToken() {
+        return token;
+    }
+
+    /**
+     * Devuelve las tramas recibidas, como las cuenta el cliente real.
+     *
+     * @return tramas recibidas
+     */
+    long getRecibidas() {
+        return recibidas;
+    }
+
+    /**
+     * Cierra el socket sin despedirse (como una conexión caída).
+     *
+     * @throws IOException si falla el cierre
+     */
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,144 @@
+package es.ubu.lsi.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Pruebas de HashedTimingWheel con una rueda pequeña (8 casillas de 10 ms,
+ * una vuelta cada 80 ms) para que los plazos largos den varias vueltas.
+ */
+class HashedTimingWheelTest {
+
+    /** Duración de un tic en milisegundos. */
+    private static final long TIC = 10;
+
+    /**
+     * Retraso admitido al vencer. Es amplio porque la máquina que pasa las
+     * pruebas puede estar muy cargada: lo que importa es que no venzan antes.
+     */
+    private static final long HOLGURA_MS = 2000;
+
+    /** Plazo de las tareas que se cancelan, mucho más largo que lo que tarda en cancelarse. */
+    private static final long PLAZO_LARGO_MS = 1000;
+
+    /** Rueda de prueba. */
+    private final HashedTimingWheel rueda = new HashedTimingWheel("rueda-test", TIC, TimeUnit.MILLISECONDS, 8);
+
+    /**
+     * Para la rueda.
+     */
+    @AfterEach
+    void parar() {
+        rueda.parar();
+    }
+
+    /**
+     * Plazos más cortos y más largos que una vuelta vencen a su tiempo:
+     * nunca antes y sin quedarse dando vueltas.
+     */
+    @Test
+    void venceAlCabo() throws InterruptedException {
+        long[] retrasos = { 0, 5, 35, 79, 80, 81, 165, 250 };
+        AtomicLongArray vencidos = new AtomicLongArray(retrasos.length);
+        CountDownLatch todos = new CountDownLatch(retrasos.length);
+
+        long inicio = System.nanoTime();
+        for (int i = 0; i < retrasos.length; i++) {
+            int indice = i;
+            rueda.programar(() -> {
+                vencidos.set(indice, System.nanoTime());
+                todos.countDown();
+            }, retrasos[i], TimeUnit.MILLISECONDS);
+        }
+        assertTrue(todos.await(5, TimeUnit.SECONDS));
+
+        for (int i = 0; i < retrasos.length; i++) {
+            long ms = TimeUnit.NANOSECONDS.toMillis(vencidos.get(i) - inicio);
+            assertTrue(ms >= retrasos[i], "plazo de " + retrasos[i] + " ms vencido a los " + ms);
+            assertTrue(ms < retrasos[i] + HOLGURA_MS, "plazo de " + retrasos[i] + " ms vencido a los " + ms);
+        }
+    }
+
+    /**
+     * Un plazo que cae en la misma casilla que otro más largo no lo arrastra:
+     * cada uno vence en su vuelta.
+     */
+    @Test
+    void mismaCasillaDistintaVuelta() throws InterruptedException {
+        AtomicInteger orden = new AtomicInteger();
+        int[] posiciones = new int[3];
+        CountDownLatch todos = new CountDownLatch(3);
+        long[] retrasos = { 2 * 80 + 30, 30, 80 + 30 };
+        for (int i = 0; i < retrasos.length; i++) {
+            int indice = i;
+            rueda.programar(() -> {
+                posiciones[indice] = orden.getAndIncrement();
+                todos.countDown();
+            }, retrasos[i], TimeUnit.MILLISECONDS);
+        }
+        assertTrue(todos.await(5, TimeUnit.SECONDS));
+        assertEquals(2, posiciones[0]);
+        assertEquals(0, posiciones[1]);
+        assertEquals(1, posiciones[2]);
+    }
+
+    /**
+     * Un plazo cancelado no vence, tanto si aún no se había colocado en su
+     * casilla como si ya estaba dando vueltas.
+     */
+    @Test
+    void cancelar() throws InterruptedException {
+        AtomicInteger vencidos = new AtomicInteger();
+        CountDownLatch colocado = new CountDownLatch(1);
+        CountDownLatch testigo = new CountDownLatch(1);
+
+        HashedTimingWheel.Timeout antes = rueda.programar(vencidos::incrementAndGet, PLAZO_LARGO_MS,
+                TimeUnit.MILLISECONDS);
+        antes.cancelar();
+        HashedTimingWheel.Timeout durante = rueda.programar(vencidos::incrementAndGet, PLAZO_LARGO_MS,
+                TimeUnit.MILLISECONDS);
+        rueda.programar(colocado::countDown, 3 * TIC, TimeUnit.MILLISECONDS);
+        rueda.programar(testigo::countDown, PLAZO_LARGO_MS + 10 * TIC, TimeUnit.MILLISECONDS);
+
+        // Cuando vence el plazo corto la rueda ya ha colocado los anteriores
+        assertTrue(colocado.await(5, TimeUnit.SECONDS));
+        durante.cancelar();
+
+        assertTrue(testigo.await(5, TimeUnit.SECONDS));
+        assertEquals(0, vencidos.get());
+    }
+
+    /**
+     * Una tarea que falla no para la rueda.
+     */
+    @Test
+    void tareaQueFalla() throws InterruptedException {
+        CountDownLatch despues = new CountDownLatch(1);
+        rueda.programar(() -> {
+            throw new IllegalStateException("prueba");
+        }, 10, TimeUnit.MILLISECONDS);
+        rueda.programar(despues::countDown, 50, TimeUnit.MILLISECONDS);
+        assertTrue(despues.await(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Con la rueda parada los plazos pendientes ya no vencen.
+     */
+    @Test
+    void pararDescartaLosPendientes() throws InterruptedException {
+        CountDownLatch vencido = new CountDownLatch(1);
+        rueda.programar(vencido::countDown, 100, TimeUnit.MILLISECONDS);
+        Thread.sleep(20);
+        rueda.parar();
+        assertFalse(vencido.await(300, TimeUnit.MILLISECONDS));
+    }
+}
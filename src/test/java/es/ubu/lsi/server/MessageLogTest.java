@@ -0,0 +1,242 @@
+package es.ubu.lsi.server;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Pruebas del registro persistente de mensajes: escritura a través de
+ * varios segmentos, lectura por offset con el índice y recuperación al
+ * reabrir un registro con el último registro a medias.
+ */
+class MessageLogTest {
+
+    /** Espera máxima a que el escritor termine un lote. */
+    private static final long ESPERA_MS = 10_000;
+
+    /** Directorio temporal del registro. */
+    @TempDir
+    Path directorio;
+
+    /** Registro abierto en la prueba (se cierra al terminar). */
+    private MessageLog registro;
+
+    /**
+     * Cierra el registro de la prueba.
+     */
+    @AfterEach
+    void cerrar() {
+        if (registro != null) {
+            registro.cerrar(1000);
+        }
+    }
+
+    /**
+     * Los mensajes que no caben en el primer segmento van a otro nuevo, y
+     * se leen todos en orden desde cualquier offset.
+     */
+    @Test
+    void escribeYLeeAtravesandoSegmentos() throws Exception {
+        registro = abrir();
+        int total = 40;
+        for (int i = 0; i < total; i++) {
+            registro.anadir(sala(i), trama(i, 100_000));
+        }
+        esperarOffset(registro, total);
+
+        assertTrue(segmentos() >= 2, "40 tramas de 100 KB no caben en un segmento");
+        comprobar(registro.leer(0, total), 0, total, 100_000);
+        comprobar(registro.leer(17, 5), 17, 5, 100_000);
+        assertTrue(registro.leer(total, 10).isEmpty());
+    }
+
+    /**
+     * Con muchos mensajes pequeños el índice tiene varias entradas y la
+     * lectura desde un offset intermedio empieza en el mensaje pedido.
+     */
+    @Test
+    void leePorOffsetConElIndice() throws Exception {
+        registro = abrir();
+        int total = 5000;
+        for (int i = 0; i < total; i++) {
+            registro.anadir(sala(i), trama(i, 200));
+        }
+        esperarOffset(registro, total);
+
+        comprobar(registro.leer(1234, 3), 1234, 3, 200);
+        comprobar(registro.leer(4999, 100), 4999, 1, 200);
+        comprobar(registro.leer(0, 1), 0, 1, 200);
+    }
+
+    /**
+     * Al reabrir el registro se sigue desde el último mensaje y se pueden
+     * leer los de los segmentos anteriores.
+     */
+    @Test
+    void reabreYSigueDondeSeQuedo() throws Exception {
+        registro = abrir();
+        for (int i = 0; i < 30; i++) {
+            registro.anadir(sala(i), trama(i, 100_000));
+        }
+        esperarOffset(registro, 30);
+        registro.cerrar(1000);
+        assertTrue(segmentos() >= 2);
+
+        registro = abrir();
+        assertEquals(30, registro.getSiguienteOffset());
+        registro.anadir(sala(30), trama(30, 100_000));
+        esperarOffset(registro, 31);
+        comprobar(registro.leer(0, 31), 0, 31, 100_000);
+    }
+
+    /**
+     * Un último registro a medias (su CRC no coincide) se descarta al
+     * reabrir, y el siguiente mensaje ocupa su lugar.
+     */
+    @Test
+    void recuperaUnUltimoRegistroCortado() throws Exception {
+        registro = abrir();
+        for (int i = 0; i < 10; i++) {
+            registro.anadir(sala(i), trama(i, 1000));
+        }
+        esperarOffset(registro, 10);
+        registro.cerrar(1000);
+        registro = null;
+
+        cortarUltimoRegistro();
+
+        registro = abrir();
+        assertEquals(9, registro.getSiguienteOffset());
+        comprobar(registro.leer(0, 10), 0, 9, 1000);
+
+        registro.anadir(sala(9), trama(9, 1000));
+        esperarOffset(registro, 10);
+        comprobar(registro.leer(0, 10), 0, 10, 1000);
+    }
+
+    /**
+     * Abre el registro del directorio temporal con segmentos del tamaño
+     * mínimo.
+     *
+     * @return el registro
+     * @throws IOException si no se puede abrir
+     */
+    private MessageLog abrir() throws IOException {
+        return new MessageLog(directorio, MessageLog.MIN_SEGMENTO, 100_000, FsyncPolicy.NEVER, 1000);
+    }
+
+    /**
+     * Espera a que el escritor haya escrito hasta un offset.
+     *
+     * @param log registro
+     * @param offset offset esperado
+     * @throws InterruptedException si se interrumpe la espera
+     */
+    private static void esperarOffset(MessageLog log, long offset) throws InterruptedException {
+        long limite = System.currentTimeMillis() + ESPERA_MS;
+        while (log.getSiguienteOffset() < offset && System.currentTimeMillis() < limite) {
+            Thread.sleep(5);
+        }
+        assertEquals(offset, log.getSiguienteOffset());
+    }
+
+    /**
+     * Comprueba que las entradas leídas son las esperadas.
+     *
+     * @param leidas entradas leídas
+     * @param desde offset de la primera
+     * @param cuantas número de entradas esperadas
+     * @param tam tamaño de las tramas
+     */
+    private static void comprobar(List<MessageLog.Entrada> leidas, long desde, int cuantas, int tam) {
+        assertEquals(cuantas, leidas.size());
+        for (int i = 0; i < cuantas; i++) {
+            MessageLog.Entrada entrada = leidas.get(i);
+            int n = (int) (desde + i);
+            assertEquals(desde + i, entrada.getOffset());
+            assertEquals(sala(n), entrada.getSala());
+            assertArrayEquals(trama(n, tam), entrada.getTrama());
+            assertTrue(entrada.getInstante() > 0);
+        }
+    }
+
+    /**
+     * Daña el final del último registro del segmento más nuevo, como si el
+     * proceso se hubiera parado a mitad de escribirlo.
+     *
+     * @throws IOException si no se puede abrir el segmento
+     */
+    private void cortarUltimoRegistro() throws IOException {
+        Path ultimo;
+        try (Stream<Path> ficheros = Files.list(directorio)) {
+            ultimo = ficheros.filter(f -> f.toString().endsWith(".log")).sorted()
+                    .reduce((a, b) -> b).orElseThrow();
+        }
+        try (FileChannel canal = FileChannel.open(ultimo, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer datos = canal.map(FileChannel.MapMode.READ_WRITE, 0, canal.size());
+            int posicion = 0;
+            int anterior = -1;
+            while (datos.getInt(posicion) > 0) {
+                anterior = posicion;
+                posicion += 8 + datos.getInt(posicion);
+            }
+            assertTrue(anterior >= 0);
+            // La cabecera está, pero la segunda mitad de la entrada no llegó a escribirse
+            int longitud = datos.getInt(anterior);
+            for (int i = anterior + 8 + longitud / 2; i < anterior + 8 + longitud; i++) {
+                datos.put(i, (byte) 0);
+            }
+            datos.force();
+        }
+    }
+
+    /**
+     * Cuenta los segmentos del directorio.
+     *
+     * @return número de ficheros de datos
+     * @throws IOException si no se puede listar el directorio
+     */
+    private long segmentos() throws IOException {
+        try (Stream<Path> ficheros = Files.list(directorio)) {
+            return ficheros.filter(f -> f.toString().endsWith(".log")).count();
+        }
+    }
+
+    /**
+     * Sala del mensaje n.
+     *
+     * @param n número del mensaje
+     * @return nombre de la sala
+     */
+    private static String sala(int n) {
+        return n % 2 == 0 ? RoomRegistry.GENERAL : "sala-" + n % 7;
+    }
+
+    /**
+     * Trama de prueba del mensaje n: bytes distintos para cada mensaje.
+     *
+     * @param n número del mensaje
+     * @param tam tamaño de la trama
+     * @return bytes de la trama
+     */
+    private static byte[] trama(int n, int tam) {
+        byte[] trama = new byte[tam];
+        for (int i = 0; i < tam; i++) {
+            trama[i] = (byte) (n * 31 + i);
+        }
+        return trama;
+    }
+}
@@ -0,0 +1,220 @@
+package es.ubu.lsi.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Pruebas de OutboundQueue: políticas de desbordamiento, lotes y cierre.
+ */
+class OutboundQueueTest {
+
+    /** Contador de descartes compartido. */
+    private final LongAdder descartes = new LongAdder();
+
+    /**
+     * DROP_OLDEST hace sitio quitando la trama más antigua.
+     */
+    @Test
+    void dropOldestDescartaLaMasAntigua() {
+        OutboundQueue cola = llena(OverflowPolicy.DROP_OLDEST);
+        assertTrue(cola.ofrecer(trama(3)));
+        assertTrue(cola.ofrecer(trama(4)));
+
+        assertEquals(List.of(2, 3, 4), sacar(cola));
+        assertEquals(2, cola.getDescartadas());
+        assertEquals(2, descartes.sum());
+    }
+
+    /**
+     * DROP_NEWEST deja la cola como estaba y descarta la trama nueva.
+     */
+    @Test
+    void dropNewestDescartaLaNueva() {
+        OutboundQueue cola = llena(OverflowPolicy.DROP_NEWEST);
+        assertTrue(cola.ofrecer(trama(3)));
+
+        assertEquals(List.of(0, 1, 2), sacar(cola));
+        assertEquals(1, cola.getDescartadas());
+        assertEquals(1, descartes.sum());
+    }
+
+    /**
+     * DISCONNECT avisa con false para que se desconecte al cliente.
+     */
+    @Test
+    void disconnectDevuelveFalse() {
+        OutboundQueue cola = llena(OverflowPolicy.DISCONNECT);
+        assertFalse(cola.ofrecer(trama(3)));
+
+        assertEquals(List.of(0, 1, 2), sacar(cola));
+        assertEquals(1, cola.getDescartadas());
+    }
+
+    /**
+     * Las profundidades reflejan la cola actual y el máximo alcanzado.
+     */
+    @Test
+    void profundidad() {
+        OutboundQueue cola = llena(OverflowPolicy.DROP_OLDEST);
+        cola.ofrecer(trama(3));
+        assertEquals(3, cola.getProfundidad());
+        sacar(cola);
+        assertEquals(0, cola.getProfundidad());
+        assertEquals(3, cola.getMaxProfundidad());
+    }
+
+    /**
+     * Un lote no pasa de maxBytes, salvo la primera trama, que siempre entra.
+     */
+    @Test
+    void loteHastaMaxBytes() {
+        OutboundQueue cola = new OutboundQueue(10, OverflowPolicy.DROP_OLDEST, descartes);
+        cola.ofrecer(new byte[100]);
+        cola.ofrecer(new byte[30]);
+        cola.ofrecer(new byte[30]);
+
+        List<byte[]> lote = new ArrayList<>();
+        assertEquals(1, cola.sondearLote(lote, 50));
+        assertEquals(100, lote.get(0).length);
+        assertEquals(2, cola.sondearLote(lote, 60));
+        assertEquals(0, cola.sondearLote(lote, 60));
+    }
+
+    /**
+     * tomarLote espera a que llegue una trama desde otro hilo.
+     */
+    @Test
+    void tomarLoteEspera() throws InterruptedException {
+        OutboundQueue cola = new OutboundQueue(4, OverflowPolicy.DROP_OLDEST, descartes);
+        Thread productor = new Thread(() -> {
+            dormir(50);
+            cola.ofrecer(trama(7));
+        });
+        productor.start();
+
+        List<byte[]> lote = new ArrayList<>();
+        assertEquals(1, cola.tomarLote(lote, 1024, 0));
+        assertEquals(7, lote.get(0)[0]);
+        productor.join();
+    }
+
+    /**
+     * tomarLote con espera recoge las tramas que llegan poco después de la
+     * primera.
+     */
+    @Test
+    void tomarLoteAgrupa() throws InterruptedException {
+        OutboundQueue cola = new OutboundQueue(4, OverflowPolicy.DROP_OLDEST, descartes);
+        cola.ofrecer(trama(1));
+        Thread productor = new Thread(() -> {
+            dormir(20);
+            cola.ofrecer(trama(2));
+        });
+        productor.start();
+
+        List<byte[]> lote = new ArrayList<>();
+        assertEquals(2, cola.tomarLote(lote, 2, TimeUnit.SECONDS.toNanos(5)));
+        productor.join();
+    }
+
+    /**
+     * Una cola cerrada ignora las tramas nuevas pero deja sacar las
+     * pendientes; luego tomarLote devuelve 0 sin esperar.
+     */
+    @Test
+    void cerrarVaciaLasPendientes() throws InterruptedException {
+        OutboundQueue cola = llena(OverflowPolicy.DISCONNECT);
+        cola.cerrar();
+        assertTrue(cola.ofrecer(trama(3)));
+
+        List<byte[]> lote = new ArrayList<>();
+        assertEquals(3, cola.tomarLote(lote, 1024, 0));
+        assertEquals(0, cola.tomarLote(lote, 1024, 0));
+        assertEquals(0, cola.getDescartadas());
+    }
+
+    /**
+     * abortar descarta las pendientes y despierta al escritor bloqueado.
+     */
+    @Test
+    void abortarDespiertaAlEscritor() throws InterruptedException {
+        OutboundQueue cola = new OutboundQueue(4, OverflowPolicy.DROP_OLDEST, descartes);
+        int[] sacadas = { -1 };
+        Thread escritor = new Thread(() -> {
+            try {
+                sacadas[0] = cola.tomarLote(new ArrayList<>(), 1024, 0);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        escritor.start();
+        dormir(50);
+        cola.abortar();
+        escritor.join(5000);
+
+        assertFalse(escritor.isAlive());
+        assertEquals(0, sacadas[0]);
+        assertEquals(0, cola.getProfundidad());
+    }
+
+    /**
+     * Crea una cola de tres tramas llena con las tramas 0, 1 y 2.
+     *
+     * @param politica política de desbordamiento
+     * @return la cola
+     */
+    private OutboundQueue llena(OverflowPolicy politica) {
+        OutboundQueue cola = new OutboundQueue(3, politica, descartes);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(cola.ofrecer(trama(i)));
+        }
+        return cola;
+    }
+
+    /**
+     * Saca todas las tramas pendientes.
+     *
+     * @param cola cola
+     * @return número de cada trama, en orden
+     */
+    private static List<Integer> sacar(OutboundQueue cola) {
+        List<byte[]> lote = new ArrayList<>();
+        cola.sondearLote(lote, Integer.MAX_VALUE);
+        List<Integer> numeros = new ArrayList<>();
+        for (byte[] trama : lote) {
+            numeros.add((int) trama[0]);
+        }
+        return numeros;
+    }
+
+    /**
+     * Crea una trama de un byte que la identifica.
+     *
+     * @param numero número de la trama
+     * @return la trama
+     */
+    private static byte[] trama(int numero) {
+        return new byte[] { (byte) numero };
+    }
+
+    /**
+     * Duerme sin propagar la interrupción.
+     *
+     * @param ms milisegundos
+     */
+    private static void dormir(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
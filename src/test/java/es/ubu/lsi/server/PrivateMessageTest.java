@@ -0,0 +1,98 @@
+package es.ubu.lsi.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessage.MessageType;
+import es.ubu.lsi.common.WireFormat;
+
+/**
+ * Pruebas de los mensajes privados con clientes de los dos formatos: solo
+ * los recibe su destinatario y los clientes antiguos los reciben como
+ * MESSAGE.
+ */
+class PrivateMessageTest {
+
+    /**
+     * Con el motor bloqueante.
+     */
+    @Test
+    void soloLlegaAlDestinatarioBloqueante() throws Exception {
+        comprobarPrivados(ServerConfig.Engine.BLOCKING);
+    }
+
+    /**
+     * Con el motor NIO.
+     */
+    @Test
+    void soloLlegaAlDestinatarioNio() throws Exception {
+        comprobarPrivados(ServerConfig.Engine.NIO);
+    }
+
+    /**
+     * Envía privados a un cliente binario y a uno antiguo y publica después
+     * una marca: lo primero que recibe cada uno de los demás es la marca.
+     *
+     * @param motor motor de red del servidor
+     * @throws Exception si falla la conexión
+     */
+    private static void comprobarPrivados(ServerConfig.Engine motor) throws Exception {
+        try (ServidorPrueba servidor = ServidorPrueba.arrancar(motor, "chat.history.size=0");
+                ClientePrueba ana = ClientePrueba.entrar(servidor.puerto, WireFormat.BINARY, "ana");
+                ClientePrueba bob = ClientePrueba.entrar(servidor.puerto, WireFormat.BINARY, "bob");
+                ClientePrueba viejo = ClientePrueba.entrar(servidor.puerto, WireFormat.SERIALIZED, "viejo");
+                ClientePrueba otro = ClientePrueba.entrar(servidor.puerto, WireFormat.SERIALIZED, "otro")) {
+
+            ana.enviar(MessageType.PRIVATE, "viejo para el viejo");
+            ana.enviar(MessageType.PRIVATE, "bob para bob");
+
+            // El cliente antiguo recibe los privados como MESSAGE, con el id del emisor
+            ChatMessage alViejo = viejo.recibir();
+            assertEquals(MessageType.MESSAGE, alViejo.getType());
+            assertEquals(ana.getId(), alViejo.getId());
+            assertTrue(alViejo.getMessage().endsWith("para el viejo"), alViejo.getMessage());
+
+            // El binario, como PRIVATE
+            ChatMessage aBob = bob.recibir();
+            assertEquals(MessageType.PRIVATE, aBob.getType());
+            assertEquals(ana.getId(), aBob.getId());
+            assertTrue(aBob.getMessage().endsWith("para bob"), aBob.getMessage());
+
+            // Entre dos clientes antiguos
+            otro.enviar(MessageType.PRIVATE, "viejo de otro");
+            ChatMessage deOtro = viejo.recibir();
+            assertEquals(MessageType.MESSAGE, deOtro.getType());
+            assertEquals(otro.getId(), deOtro.getId());
+            assertTrue(deOtro.getMessage().endsWith("de otro"), deOtro.getMessage());
+
+            // Ninguno ha recibido los privados de otro antes de la marca
+            ana.enviar(MessageType.MESSAGE, "marca");
+            for (ClientePrueba cliente : new ClientePrueba[] { ana, bob, viejo, otro }) {
+                ChatMessage marca = cliente.recibir();
+                assertEquals(MessageType.MESSAGE, marca.getType());
+                assertTrue(marca.getMessage().endsWith("marca"), marca.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Un privado a quien no está conectado no se publica: solo se avisa al
+     * emisor.
+     */
+    @Test
+    void destinatarioDesconocido() throws Exception {
+        try (ServidorPrueba servidor = ServidorPrueba.arrancar(ServerConfig.Engine.BLOCKING, "chat.history.size=0");
+                ClientePrueba ana = ClientePrueba.entrar(servidor.puerto, WireFormat.BINARY, "ana");
+                ClientePrueba viejo = ClientePrueba.entrar(servidor.puerto, WireFormat.SERIALIZED, "viejo")) {
+
+            ana.enviar(MessageType.PRIVATE, "nadie hola");
+            assertTrue(ana.recibir().getMessage().contains("nadie no está conectado"));
+
+            ana.enviar(MessageType.MESSAGE, "marca");
+            assertTrue(viejo.recibir().getMessage().endsWith("marca"));
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package es.ubu.lsi.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.junit.jupiter.api.Test;
+
+import es.ubu.lsi.common.WireFormat;
+
+/**
+ * Pruebas de ReplayBuffer: numeración de las tramas, vueltas del anillo y
+ * tramas pendientes de una conexión caída.
+ */
+class ReplayBufferTest {
+
+    /**
+     * Las tramas se numeran desde 1 y el saludo del servidor no cuenta.
+     */
+    @Test
+    void numeraDesdeUno() {
+        ReplayBuffer anillo = new ReplayBuffer("t", 8);
+        anillo.anotar(WireFormat.SALUDO_SERVIDOR);
+        for (int i = 1; i <= 3; i++) {
+            anillo.anotar(trama(i));
+        }
+        assertEquals(3, anillo.getAnotadas());
+        assertEquals(List.of(1, 2, 3), numeros(anillo.desde(0)));
+        assertEquals(List.of(3), numeros(anillo.desde(2)));
+        assertEquals(List.of(), numeros(anillo.desde(3)));
+    }
+
+    /**
+     * Después de varias vueltas solo quedan las últimas tramas: un cliente
+     * que lleva más atrás recibe las que quedan, y uno que dice tener más
+     * de las anotadas no recibe nada.
+     */
+    @Test
+    void desdeTrasVariasVueltas() {
+        ReplayBuffer anillo = new ReplayBuffer("t", 4);
+        for (int i = 1; i <= 10; i++) {
+            anillo.anotar(trama(i));
+        }
+        assertEquals(List.of(7, 8, 9, 10), numeros(anillo.desde(0)));
+        assertEquals(List.of(7, 8, 9, 10), numeros(anillo.desde(6)));
+        assertEquals(List.of(8, 9, 10), numeros(anillo.desde(7)));
+        assertEquals(List.of(10), numeros(anillo.desde(9)));
+        assertEquals(List.of(), numeros(anillo.desde(10)));
+        assertEquals(List.of(), numeros(anillo.desde(15)));
+    }
+
+    /**
+     * Un anillo de una sola trama guarda la última.
+     */
+    @Test
+    void capacidadMinima() {
+        ReplayBuffer anillo = new ReplayBuffer("t", 0);
+        anillo.anotar(trama(1));
+        anillo.anotar(trama(2));
+        assertEquals(List.of(2), numeros(anillo.desde(0)));
+    }
+
+    /**
+     * Las tramas que quedan en la cola de una conexión caída se anotan en
+     * orden, detrás de las ya enviadas, y la cola queda vacía.
+     */
+    @Test
+    void anotarPendientes() {
+        ReplayBuffer anillo = new ReplayBuffer("t", 4);
+        anillo.anotar(trama(1));
+        anillo.anotar(trama(2));
+
+        OutboundQueue cola = new OutboundQueue(16, OverflowPolicy.DISCONNECT, new LongAdder());
+        for (int i = 3; i <= 7; i++) {
+            cola.ofrecer(trama(i));
+        }
+        anillo.anotarPendientes(cola);
+
+        assertEquals(7, anillo.getAnotadas());
+        assertEquals(0, cola.getProfundidad());
+        assertEquals(List.of(4, 5, 6, 7), numeros(anillo.desde(2)));
+        assertEquals(List.of(6, 7), numeros(anillo.desde(5)));
+    }
+
+    /**
+     * Las tramas anotadas por lotes siguen la misma numeración.
+     */
+    @Test
+    void anotarLote() {
+        ReplayBuffer anillo = new ReplayBuffer("t", 8);
+        anillo.anotar(List.of(trama(1), trama(2), WireFormat.SALUDO_SERVIDOR, trama(3)));
+        assertEquals(3, anillo.getAnotadas());
+        assertEquals(List.of(2, 3), numeros(anillo.desde(1)));
+    }
+
+    /**
+     * Crea una trama de un byte que la identifica.
+     *
+     * @param numero número de la trama
+     * @return la trama
+     */
+    private static byte[] trama(int numero) {
+        return new byte[] { (byte) numero };
+    }
+
+    /**
+     * Pasa tramas a sus números.
+     *
+     * @param tramas tramas
+     * @return número de cada trama, en orden
+     */
+    private static List<Integer> numeros(List<byte[]> tramas) {
+        List<Integer> numeros = new ArrayList<>();
+        for (byte[] trama : tramas) {
+            numeros.add((int) trama[0]);
+        }
+        return numeros;
+    }
+}
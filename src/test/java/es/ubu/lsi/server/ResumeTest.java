@@ -0,0 +1,163 @@
+package es.ubu.lsi.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessage.MessageType;
+import es.ubu.lsi.common.WireFormat;
+
+/**
+ * Pruebas de la reanudación de sesiones sobre un servidor real: una sesión
+ * binaria pierde la conexión, se publica mientras está suspendida y vuelve
+ * con su token y las tramas que dice tener.
+ *
+ * La confirmación lleva el número de la siguiente trama anotada, y las
+ * tramas reenviadas se vuelven a anotar con números nuevos: el cliente
+ * cuenta todo lo que recibe y con esa cuenta puede volver a reanudar.
+ */
+class ResumeTest {
+
+    /**
+     * Con el motor bloqueante.
+     */
+    @Test
+    void reanudaBloqueante() throws Exception {
+        comprobarReanudacion(ServerConfig.Engine.BLOCKING);
+    }
+
+    /**
+     * Con el motor NIO.
+     */
+    @Test
+    void reanudaNio() throws Exception {
+        comprobarReanudacion(ServerConfig.Engine.NIO);
+    }
+
+    /**
+     * Un token desconocido no reanuda nada: el cliente tiene que volver a entrar.
+     */
+    @Test
+    void tokenDesconocido() throws Exception {
+        try (ServidorPrueba servidor = ServidorPrueba.arrancar(ServerConfig.Engine.BLOCKING, "chat.history.size=0");
+                ClientePrueba cliente = ClientePrueba.conectar(servidor.puerto, WireFormat.BINARY)) {
+            assertEquals(MessageType.LOGOUT, cliente.reanudar("desconocido", 3).getType());
+            assertTrue(cliente.cerradaPorServidor());
+        }
+    }
+
+    /**
+     * Reanuda dos veces la misma sesión y comprueba el orden de las tramas
+     * y los números de las confirmaciones.
+     *
+     * @param motor motor de red del servidor
+     * @throws Exception si falla la conexión
+     */
+    private static void comprobarReanudacion(ServerConfig.Engine motor) throws Exception {
+        try (ServidorPrueba servidor = ServidorPrueba.arrancar(motor, "chat.history.size=0");
+                ClientePrueba bob = ClientePrueba.entrar(servidor.puerto, WireFormat.BINARY, "bob")) {
+
+            // id, bienvenida y token: 3 tramas; m0 es la 4
+            ClientePrueba ana = ClientePrueba.entrar(servidor.puerto, WireFormat.BINARY, "ana");
+            String token = ana.getToken();
+            bob.enviar(MessageType.MESSAGE, "m0");
+            ana.esperar("m0");
+            assertEquals(4, ana.getRecibidas());
+
+            // Se cae la conexión y se publica mientras está suspendida (tramas 5 a 7)
+            ana.close();
+            esperarSuspendida(servidor, "ana");
+            publicar(bob, "m1", "m2", "m3");
+            esperarAnotadas(servidor, "ana", 7);
+
+            // Confirmación 8 y después m1, m2 y m3 (que se anotan como 9, 10 y 11)
+            ClientePrueba ana2 = ClientePrueba.conectar(servidor.puerto, WireFormat.BINARY);
+            ChatMessage confirmacion = ana2.reanudar(token, 4);
+            assertEquals(MessageType.RESUME, confirmacion.getType());
+            assertEquals("8", confirmacion.getMessage());
+            comprobarSiguientes(ana2, "m1", "m2", "m3");
+            assertEquals(11, ana2.getRecibidas());
+
+            // La sesión reanudada sigue recibiendo (trama 12)
+            publicar(bob, "m4");
+            comprobarSiguientes(ana2, "m4");
+
+            // Se vuelve a caer, diciendo tener una trama menos de las recibidas
+            ana2.close();
+            esperarSuspendida(servidor, "ana");
+            publicar(bob, "m5");
+            esperarAnotadas(servidor, "ana", 13);
+
+            try (ClientePrueba ana3 = ClientePrueba.conectar(servidor.puerto, WireFormat.BINARY)) {
+                confirmacion = ana3.reanudar(token, 11);
+                assertEquals(MessageType.RESUME, confirmacion.getType());
+                assertEquals("14", confirmacion.getMessage());
+                comprobarSiguientes(ana3, "m4", "m5");
+
+                // Los demás la ven como la misma sesión
+                ana3.enviar(MessageType.MESSAGE, "he vuelto");
+                String eco = bob.esperar("he vuelto").getMessage();
+                assertTrue(eco.contains("ana"), eco);
+                assertEquals(ana.getId(), servidor.servidor.clientes.porNombre("ana").getId());
+            }
+        }
+    }
+
+    /**
+     * Espera a que la sesión de un usuario quede suspendida.
+     *
+     * @param servidor servidor de prueba
+     * @param usuario nombre del usuario
+     */
+    private static void esperarSuspendida(ServidorPrueba servidor, String usuario) {
+        ServidorPrueba.esperar(() -> servidor.servidor.clientes.porNombre(usuario) instanceof SuspendedSession,
+                "sesión de " + usuario + " suspendida");
+    }
+
+    /**
+     * Espera a que la sesión suspendida de un usuario haya anotado sus
+     * tramas: el emisor puede recibir su propio mensaje antes.
+     *
+     * @param servidor servidor de prueba
+     * @param usuario nombre del usuario
+     * @param anotadas tramas anotadas esperadas
+     */
+    private static void esperarAnotadas(ServidorPrueba servidor, String usuario, long anotadas) {
+        ServidorPrueba.esperar(
+                () -> servidor.servidor.clientes.porNombre(usuario).getRepeticion().getAnotadas() == anotadas,
+                anotadas + " tramas anotadas para " + usuario);
+    }
+
+    /**
+     * Publica mensajes y espera a recibirlos de vuelta, así ya están
+     * anotados en las demás sesiones.
+     *
+     * @param emisor cliente que publica
+     * @param textos mensajes
+     * @throws Exception si falla la conexión
+     */
+    private static void publicar(ClientePrueba emisor, String... textos) throws Exception {
+        for (String texto : textos) {
+            emisor.enviar(MessageType.MESSAGE, texto);
+            emisor.esperar(texto);
+        }
+    }
+
+    /**
+     * Comprueba que las siguientes tramas son las publicaciones indicadas,
+     * en orden.
+     *
+     * @param cliente cliente que las recibe
+     * @param textos mensajes esperados
+     * @throws Exception si falla la conexión
+     */
+    private static void comprobarSiguientes(ClientePrueba cliente, String... textos) throws Exception {
+        for (String texto : textos) {
+            ChatMessage mensaje = cliente.recibir();
+            assertEquals(MessageType.MESSAGE, mensaje.getType());
+            assertTrue(mensaje.getMessage().endsWith(": " + texto), mensaje.getMessage());
+        }
+    }
+}
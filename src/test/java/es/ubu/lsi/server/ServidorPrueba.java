@@ -0,0 +1,135 @@
+package es.ubu.lsi.server;
+
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.time.Duration;
+import java.util.Properties;
+import java.util.function.BiFunction;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Servidor de chat arrancado en un puerto libre de localhost para las
+ * pruebas, con su bucle de aceptación en un hilo aparte.
+ */
+final class ServidorPrueba implements AutoCloseable {
+
+    /** Espera máxima de las condiciones de las pruebas. */
+    static final long ESPERA_MS = 5000;
+
+    /** Servidor arrancado. */
+    final ChatServerImpl servidor;
+
+    /** Puerto en el que escucha. */
+    final int puerto;
+
+    /** Hilo del bucle de aceptación. */
+    private final Thread hilo;
+
+    /**
+     * Constructor: arranca el servidor.
+     *
+     * @param servidor servidor sin arrancar
+     * @param puerto puerto del servidor
+     */
+    private ServidorPrueba(ChatServerImpl servidor, int puerto) {
+        this.servidor = servidor;
+        this.puerto = puerto;
+        this.hilo = new Thread(servidor::startup, "servidor-prueba-" + puerto);
+        hilo.setDaemon(true);
+        hilo.start();
+    }
+
+    /**
+     * Arranca un servidor con el motor indicado.
+     *
+     * @param motor motor de red
+     * @param propiedades propiedades de la configuración ("clave=valor")
+     * @return el servidor arrancado
+     * @throws IOException si no se encuentra un puerto libre
+     */
+    static ServidorPrueba arrancar(ServerConfig.Engine motor, String... propiedades) throws IOException {
+        return arrancar((puerto, config) -> motor == ServerConfig.Engine.NIO
+                ? new ChatServerNio(puerto, config)
+                : new ChatServerImpl(puerto, config), propiedades);
+    }
+
+    /**
+     * Arranca un servidor creado por la prueba (por ejemplo, una subclase).
+     *
+     * @param fabrica crea el servidor a partir del puerto y la configuración
+     * @param propiedades propiedades de la configuración ("clave=valor")
+     * @return el servidor arrancado
+     * @throws IOException si no se encuentra un puerto libre
+     */
+    static ServidorPrueba arrancar(BiFunction<Integer, ServerConfig, ChatServerImpl> fabrica,
+            String... propiedades) throws IOException {
+        int puerto = puertoLibre();
+        return new ServidorPrueba(fabrica.apply(puerto, configuracion(propiedades)), puerto);
+    }
+
+    /**
+     * Crea la configuración de un servidor de prueba: sin MBean (se
+     * arrancan varios servidores en la misma JVM) y con las propiedades
+     * indicadas.
+     *
+     * @param propiedades propiedades ("clave=valor")
+     * @return la configuración
+     */
+    static ServerConfig configuracion(String... propiedades) {
+        Properties valores = new Properties();
+        valores.setProperty("chat.metrics.jmx", "false");
+        for (String propiedad : propiedades) {
+            int igual = propiedad.indexOf('=');
+            valores.setProperty(propiedad.substring(0, igual), propiedad.substring(igual + 1));
+        }
+        return new ServerConfig(valores);
+    }
+
+    /**
+     * Busca un puerto libre de localhost.
+     *
+     * @return el puerto
+     * @throws IOException si no se puede abrir ninguno
+     */
+    static int puertoLibre() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Espera a que se cumpla una condición y falla si no se cumple a tiempo.
+     *
+     * @param condicion condición que se comprueba
+     * @param descripcion qué se espera (para el fallo)
+     */
+    static void esperar(BooleanSupplier condicion, String descripcion) {
+        long limite = System.nanoTime() + ESPERA_MS * 1_000_000;
+        while (!condicion.getAsBoolean()) {
+            if (System.nanoTime() > limite) {
+                fail("No se ha cumplido a tiempo: " + descripcion);
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail("Interrumpido esperando: " + descripcion);
+            }
+        }
+    }
+
+    /**
+     * Apaga el servidor y espera a que termine su bucle de aceptación.
+     */
+    @Override
+    public void close() {
+        servidor.shutdown(Duration.ofMillis(500));
+        try {
+            hilo.join(ESPERA_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
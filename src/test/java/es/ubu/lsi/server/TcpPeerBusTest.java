@@ -0,0 +1,213 @@
+package es.ubu.lsi.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Pruebas de TcpPeerBus con dos nodos en localhost: reparto de las
+ * publicaciones, reclamos de nombres entre nodos, concesiones que llegan
+ * tarde y nombres de un nodo que se cae.
+ */
+class TcpPeerBusTest {
+
+    /** Sala de las publicaciones con las que se comprueba que hay enlace. */
+    private static final String SONDA = "sonda";
+
+    /** Sala de las publicaciones que bloquean la lectura del nodo que las recibe. */
+    private static final String BLOQUEO = "bloqueo";
+
+    /** Libera las lecturas bloqueadas. */
+    private final CountDownLatch desbloqueo = new CountDownLatch(1);
+
+    /** Buses arrancados por la prueba. */
+    private final List<TcpPeerBus> buses = new ArrayList<>();
+
+    /** Publicaciones recibidas por cada nodo ("sala usuario texto"). */
+    private final List<Queue<String>> recibidas = new ArrayList<>();
+
+    /** Indica por nodo si ya ha recibido alguna sonda. */
+    private final List<AtomicBoolean> enlazados = new ArrayList<>();
+
+    /**
+     * Cierra los buses.
+     */
+    @AfterEach
+    void cerrar() {
+        desbloqueo.countDown();
+        for (TcpPeerBus bus : buses) {
+            bus.cerrar();
+        }
+    }
+
+    /**
+     * Una publicación llega una vez al otro nodo, con su sala, su usuario y
+     * los mismos bytes, y no vuelve al nodo que la publica.
+     */
+    @Test
+    void difundeEntreNodos() throws Exception {
+        TcpPeerBus[] malla = arrancar(2000);
+
+        malla[0].publicar("general", "ana", bytes("hola desde 0"));
+        malla[1].publicar("deportes", "bob", bytes("hola desde 1"));
+
+        ServidorPrueba.esperar(() -> recibidas.get(0).size() == 1 && recibidas.get(1).size() == 1,
+                "una publicación en cada nodo");
+        assertEquals("general ana hola desde 0", recibidas.get(1).poll());
+        assertEquals("deportes bob hola desde 1", recibidas.get(0).poll());
+        Thread.sleep(100);
+        assertNull(recibidas.get(0).poll());
+        assertNull(recibidas.get(1).poll());
+    }
+
+    /**
+     * Un nombre concedido a un nodo se deniega al otro, sea cual sea el
+     * árbitro, hasta que el primero lo libera.
+     */
+    @Test
+    void reclamosEntreNodos() throws Exception {
+        TcpPeerBus[] malla = arrancar(2000);
+        for (int arbitro = 0; arbitro < 2; arbitro++) {
+            String nombre = nombreArbitradoPor(arbitro);
+
+            assertTrue(malla[0].reclamar(nombre).get(), nombre);
+            assertFalse(malla[1].reclamar(nombre).get(), nombre);
+            // Un reclamo repetido del dueño (tras reconectar) se concede
+            assertTrue(malla[0].reclamar(nombre).get(), nombre);
+
+            malla[0].liberar(nombre);
+            ServidorPrueba.esperar(() -> malla[1].reclamar(nombre).join(), nombre + " libre para el nodo 1");
+            assertFalse(malla[0].reclamar(nombre).get(), nombre);
+        }
+    }
+
+    /**
+     * Si la concesión del árbitro llega después del plazo, el reclamo se da
+     * por denegado y se devuelve el nombre: el árbitro no se queda con un
+     * dueño que no lo usa.
+     */
+    @Test
+    void concesionTardiaSeLibera() throws Exception {
+        TcpPeerBus[] malla = arrancar(200);
+        String nombre = nombreArbitradoPor(0);
+
+        // El árbitro no lee el reclamo hasta que se desbloquea, pasado el plazo
+        malla[1].publicar(BLOQUEO, BLOQUEO, new byte[0]);
+        assertFalse(malla[1].reclamar(nombre).get());
+
+        // Al leerlo lo concede, pero le llega detrás la devolución
+        desbloqueo.countDown();
+        ServidorPrueba.esperar(() -> malla[0].reclamar(nombre).join(), nombre + " devuelto al árbitro");
+    }
+
+    /**
+     * Cuando se cae el enlace con un nodo, el árbitro libera los nombres
+     * que le había concedido.
+     */
+    @Test
+    void nodoCaidoLiberaSusNombres() throws Exception {
+        TcpPeerBus[] malla = arrancar(2000);
+        String nombre = nombreArbitradoPor(0);
+
+        assertTrue(malla[1].reclamar(nombre).get());
+        assertFalse(malla[0].reclamar(nombre).get());
+
+        malla[1].cerrar();
+        ServidorPrueba.esperar(() -> malla[0].reclamar(nombre).join(), nombre + " libre tras caer el nodo 1");
+    }
+
+    /**
+     * Arranca dos nodos en puertos libres de localhost y espera a que estén
+     * enlazados en los dos sentidos.
+     *
+     * @param esperaNodo1 espera máxima de los reclamos del nodo 1
+     * @return los dos nodos
+     * @throws IOException si no se puede abrir algún puerto
+     */
+    private TcpPeerBus[] arrancar(long esperaNodo1) throws IOException {
+        List<InetSocketAddress> nodos = List.of(
+                new InetSocketAddress("localhost", ServidorPrueba.puertoLibre()),
+                new InetSocketAddress("localhost", ServidorPrueba.puertoLibre()));
+        TcpPeerBus[] malla = new TcpPeerBus[nodos.size()];
+        for (int nodo = 0; nodo < malla.length; nodo++) {
+            Queue<String> cola = new ConcurrentLinkedQueue<>();
+            AtomicBoolean enlazado = new AtomicBoolean();
+            recibidas.add(cola);
+            enlazados.add(enlazado);
+            malla[nodo] = new TcpPeerBus(nodos, nodo, nodo == 1 ? esperaNodo1 : 2000);
+            buses.add(malla[nodo]);
+            malla[nodo].iniciar((sala, usuario, trama) -> {
+                if (SONDA.equals(sala)) {
+                    enlazado.set(true);
+                } else if (BLOQUEO.equals(sala)) {
+                    esperarDesbloqueo();
+                } else {
+                    cola.add(sala + " " + usuario + " " + new String(trama, StandardCharsets.UTF_8));
+                }
+            });
+        }
+
+        // Mientras no hay enlace las publicaciones se descartan: se repiten las sondas
+        for (int nodo = 0; nodo < malla.length; nodo++) {
+            TcpPeerBus origen = malla[nodo];
+            AtomicBoolean destino = enlazados.get(1 - nodo);
+            ServidorPrueba.esperar(() -> {
+                origen.publicar(SONDA, SONDA, new byte[0]);
+                return destino.get();
+            }, "enlace desde el nodo " + nodo);
+        }
+        return malla;
+    }
+
+    /**
+     * Bloquea el hilo de lectura del bus hasta que la prueba lo libera.
+     */
+    private void esperarDesbloqueo() {
+        try {
+            desbloqueo.await(ServidorPrueba.ESPERA_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Busca un nombre cuyo árbitro sea un nodo concreto (el mismo cálculo
+     * que TcpPeerBus con dos nodos).
+     *
+     * @param arbitro nodo árbitro
+     * @return el nombre
+     */
+    private static String nombreArbitradoPor(int arbitro) {
+        for (int i = 0;; i++) {
+            String nombre = "usuario" + i;
+            if (Math.floorMod(nombre.hashCode(), 2) == arbitro) {
+                return nombre;
+            }
+        }
+    }
+
+    /**
+     * Pasa un texto a bytes.
+     *
+     * @param texto texto
+     * @return bytes UTF-8
+     */
+    private static byte[] bytes(String texto) {
+        return texto.getBytes(StandardCharsets.UTF_8);
+    }
+}
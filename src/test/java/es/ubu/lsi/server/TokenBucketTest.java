@@ -0,0 +1,136 @@
+package es.ubu.lsi.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Pruebas de TokenBucket: ráfaga, reposición, reservas y devoluciones.
+ *
+ * Las tasas son lentas (una ficha por segundo o menos) para que el tiempo
+ * que pasa durante la prueba no reponga fichas, salvo donde se espera a
+ * propósito.
+ */
+class TokenBucketTest {
+
+    /**
+     * Un cubo nuevo está lleno y admite la ráfaga entera, pero no más.
+     */
+    @Test
+    void consumeLaRafaga() {
+        TokenBucket cubo = new TokenBucket(0.1, 5);
+        assertTrue(cubo.lleno());
+        for (int i = 0; i < 5; i++) {
+            assertTrue(cubo.consumir(1), "ficha " + i);
+        }
+        assertFalse(cubo.consumir(1));
+        assertFalse(cubo.lleno());
+    }
+
+    /**
+     * Un evento más caro que el cubo se admite solo con el cubo lleno.
+     */
+    @Test
+    void eventoMayorQueElCubo() {
+        TokenBucket cubo = new TokenBucket(0.1, 5);
+        assertTrue(cubo.consumir(8));
+        assertFalse(cubo.consumir(0.5));
+
+        TokenBucket otro = new TokenBucket(0.1, 5);
+        assertTrue(otro.consumir(1));
+        assertFalse(otro.consumir(8));
+    }
+
+    /**
+     * Las fichas se reponen con el tiempo.
+     */
+    @Test
+    void repone() throws InterruptedException {
+        TokenBucket cubo = new TokenBucket(20, 1);
+        assertTrue(cubo.consumir(1));
+        assertFalse(cubo.consumir(1));
+        Thread.sleep(120);
+        assertTrue(cubo.consumir(1));
+    }
+
+    /**
+     * reservar no espera mientras hay fichas y después pide esperar lo que
+     * tardan en reponerse las que faltan.
+     */
+    @Test
+    void reservar() {
+        TokenBucket cubo = new TokenBucket(1, 2);
+        assertEquals(0, cubo.reservar(1));
+        assertEquals(0, cubo.reservar(1));
+
+        long espera = cubo.reservar(1);
+        assertTrue(espera > TimeUnit.MILLISECONDS.toNanos(900), "espera " + espera);
+        assertTrue(espera <= TimeUnit.SECONDS.toNanos(1), "espera " + espera);
+
+        // Las reservas se acumulan aunque no haya fichas
+        long siguiente = cubo.reservar(1);
+        assertTrue(siguiente > espera + TimeUnit.MILLISECONDS.toNanos(900), "espera " + siguiente);
+        assertFalse(cubo.consumir(1));
+    }
+
+    /**
+     * Las fichas devueltas se pueden volver a gastar.
+     */
+    @Test
+    void devolver() {
+        TokenBucket cubo = new TokenBucket(0.1, 3);
+        assertTrue(cubo.consumir(3));
+        assertFalse(cubo.consumir(1));
+
+        cubo.devolver(2);
+        assertTrue(cubo.consumir(1));
+        assertTrue(cubo.consumir(1));
+        assertFalse(cubo.consumir(1));
+    }
+
+    /**
+     * Devolver una reserva que no se llega a usar deshace la espera.
+     */
+    @Test
+    void devolverReserva() {
+        TokenBucket cubo = new TokenBucket(1, 1);
+        assertEquals(0, cubo.reservar(1));
+        assertTrue(cubo.reservar(1) > 0);
+
+        cubo.devolver(1);
+        cubo.devolver(1);
+        assertTrue(cubo.lleno());
+        assertTrue(cubo.consumir(1));
+    }
+
+    /**
+     * Varios hilos a la vez no gastan más fichas de las que hay.
+     */
+    @Test
+    void concurrente() throws InterruptedException {
+        TokenBucket cubo = new TokenBucket(0.01, 1000);
+        int[] admitidos = new int[8];
+        Thread[] hilos = new Thread[admitidos.length];
+        for (int h = 0; h < hilos.length; h++) {
+            int indice = h;
+            hilos[h] = new Thread(() -> {
+                for (int i = 0; i < 500; i++) {
+                    if (cubo.consumir(1)) {
+                        admitidos[indice]++;
+                    }
+                }
+            });
+            hilos[h].start();
+        }
+        int total = 0;
+        for (int h = 0; h < hilos.length; h++) {
+            hilos[h].join();
+            total += admitidos[h];
+        }
+        assertEquals(1000, total);
+    }
+}